@@ -0,0 +1,44 @@
+package javah4x;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@State(Scope.Benchmark)
+public class ClassInfoBenchmark {
+    @Param("100")
+    public int classes;
+    @Param({"8", "64"})
+    public int methodsPerClass;
+
+    private List<ClassInfo> classInfos;
+
+    @Setup
+    public void setUp() {
+        classInfos = SyntheticCorpus.generate(classes, methodsPerClass, 0);
+    }
+
+    @Benchmark
+    public void methods(Blackhole bh) {
+        for (ClassInfo classInfo : classInfos) {
+            bh.consume(classInfo.methods());
+        }
+    }
+}
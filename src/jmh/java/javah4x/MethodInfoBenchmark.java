@@ -0,0 +1,53 @@
+package javah4x;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@State(Scope.Benchmark)
+public class MethodInfoBenchmark {
+    @Param("100")
+    public int classes;
+
+    private List<MethodInfo> methods;
+
+    @Setup
+    public void setUp() {
+        methods = new ArrayList<>();
+        for (ClassInfo classInfo : SyntheticCorpus.generate(classes, 32, 0)) {
+            methods.addAll(classInfo.methods());
+        }
+    }
+
+    @Benchmark
+    public void jniFuncName(Blackhole bh) {
+        for (MethodInfo method : methods) {
+            bh.consume(method.jniFuncName());
+        }
+    }
+
+    @Benchmark
+    public void params(Blackhole bh) {
+        for (MethodInfo method : methods) {
+            bh.consume(method.params());
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package javah4x;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@State(Scope.Benchmark)
+public class StringUtilsBenchmark {
+    private String camelCase = "compressWithDictionaryAndChecksumIntoDirectBuffer";
+    private String symbol = "com.example.native_bridge.storage_engine.Synthetic_Class42$Entry;[[[B";
+
+    @Benchmark
+    public String toSnakeCase() {
+        return StringUtils.toSnakeCase(camelCase);
+    }
+
+    @Benchmark
+    public String mangle() {
+        return StringUtils.mangle(symbol);
+    }
+}
@@ -0,0 +1,81 @@
+package javah4x;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates a synthetic corpus of classes declaring native methods, to benchmark generation at the scale of
+ * large code bases.
+ * Classes have long package names, many overloaded native methods and deeply nested array types, which are
+ * the costly cases of name mangling and descriptor parsing. The corpus is deterministic for the same seed.
+ */
+public final class SyntheticCorpus {
+    private static final String[] ELEMENT_DESCRIPTORS = {
+            "Z", "B", "C", "S", "I", "J", "F", "D",
+            "Ljava/lang/String;", "Ljava/nio/ByteBuffer;", "Ljava/lang/Object;", "Lcom/example/corpus/Value$Entry;",
+    };
+    private static final String[] WORDS = {
+            "com", "example", "corpus", "native_bridge", "storage", "engine", "codec", "io", "internal", "impl",
+            "compression", "network_stack", "util", "v2",
+    };
+    private static final int OVERLOADS = 4;
+    private static final int MAX_PARAMS = 8;
+    private static final int MAX_ARRAY_DEPTH = 4;
+
+    private SyntheticCorpus() {}
+
+    /**
+     * Generate classes of the corpus.
+     * @param classes the number of classes.
+     * @param methodsPerClass the number of native methods of each class, grouped into overloads of the same name.
+     * @param seed the seed of random choices.
+     * @return the list of {@link ClassInfo}.
+     */
+    public static List<ClassInfo> generate(int classes, int methodsPerClass, long seed) {
+        Random random = new Random(seed);
+        List<ClassInfo> classInfos = new ArrayList<>(classes);
+        for (int i = 0; i < classes; i++) {
+            String name = "Synthetic_Class" + i;
+            String fqn = packageName(random, i) + '.' + name;
+            List<NativeMethod> methods = new ArrayList<>(methodsPerClass);
+            for (int j = 0; j < methodsPerClass; j++) {
+                methods.add(nativeMethod(random, "native_method" + j / OVERLOADS, j % OVERLOADS));
+            }
+            classInfos.add(new ClassInfo(fqn, name, methods));
+        }
+        return Collections.unmodifiableList(classInfos);
+    }
+
+    private static String packageName(Random random, int index) {
+        StringBuilder sb = new StringBuilder();
+        int depth = 6 + random.nextInt(6);
+        for (int i = 0; i < depth; i++) {
+            sb.append(WORDS[random.nextInt(WORDS.length)]).append('.');
+        }
+        return sb.append("group").append(index % 100).toString();
+    }
+
+    private static NativeMethod nativeMethod(Random random, String name, int overload) {
+        // Overloads are told apart by their number of parameters
+        int numParams = overload * (MAX_PARAMS / OVERLOADS) + random.nextInt(MAX_PARAMS / OVERLOADS);
+        StringBuilder descriptor = new StringBuilder("(");
+        List<String> paramNames = new ArrayList<>(numParams);
+        for (int i = 0; i < numParams; i++) {
+            descriptor.append(typeDescriptor(random));
+            paramNames.add("paramNumber" + i);
+        }
+        descriptor.append(')').append(random.nextInt(4) == 0 ? "V" : typeDescriptor(random));
+        return new NativeMethod(name, descriptor.toString(), random.nextBoolean(), paramNames);
+    }
+
+    private static String typeDescriptor(Random random) {
+        StringBuilder sb = new StringBuilder();
+        int depth = random.nextInt(MAX_ARRAY_DEPTH + 1);
+        for (int i = 0; i < depth; i++) {
+            sb.append('[');
+        }
+        return sb.append(ELEMENT_DESCRIPTORS[random.nextInt(ELEMENT_DESCRIPTORS.length)]).toString();
+    }
+}
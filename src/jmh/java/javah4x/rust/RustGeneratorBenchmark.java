@@ -0,0 +1,81 @@
+package javah4x.rust;
+
+import static java.util.stream.Collectors.toList;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import javah4x.ClassInfo;
+import javah4x.SyntheticCorpus;
+
+/**
+ * End-to-end generation of the synthetic corpus. rustfmt is never run, as it's run only by
+ * {@link RustGenerator#finish} with the rustfmtCheck option.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@State(Scope.Benchmark)
+public class RustGeneratorBenchmark {
+    @Param("2000")
+    public int classes;
+    @Param("16")
+    public int methodsPerClass;
+
+    private final RustGenerator generator = new RustGenerator();
+    private List<ClassInfo> classInfos;
+    private Path outputDir;
+
+    @Setup
+    public void setUp() throws IOException {
+        classInfos = SyntheticCorpus.generate(classes, methodsPerClass, 0);
+        outputDir = Files.createTempDirectory("javah4x-bench");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(outputDir)) {
+            for (Path path : files.sorted(Comparator.reverseOrder()).collect(toList())) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Benchmark
+    public void renderClass(Blackhole bh) {
+        for (ClassInfo classInfo : classInfos) {
+            bh.consume(generator.renderClass(classInfo));
+        }
+    }
+
+    /**
+     * Writes files of all classes, which are left unchanged after the first invocation.
+     */
+    @Benchmark
+    public void generateClass() throws IOException {
+        for (ClassInfo classInfo : classInfos) {
+            generator.generateClass(outputDir, classInfo);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package javah4x;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * An {@link OutputSink} that streams all files into a single zip (or jar) archive.
+ *
+ * Files are compressed and appended to a temporary file next to the archive as they are written, so they
+ * don't stay in memory, and the temporary file replaces the archive atomically on {@link #close()}, or is
+ * deleted on {@link #abort()} leaving the existing archive as is.
+ * Entries have a fixed modification time, so the archive doesn't depend on when it's generated.
+ * Writing the same path twice fails, as an archive can't have duplicate entries.
+ */
+public class ArchiveSink implements OutputSink {
+    private static final long ENTRY_TIME = new GregorianCalendar(1980, Calendar.FEBRUARY, 1).getTimeInMillis();
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Path archive;
+    private final Path tmp;
+    private final ZipOutputStream out;
+    private boolean closed;
+
+    /**
+     * Create a new sink.
+     * @param archive the archive file to create, which is replaced if it exists.
+     * @throws IOException when there is an issue with creating the temporary file.
+     */
+    public ArchiveSink(Path archive) throws IOException {
+        this.archive = archive;
+        Path dir = archive.toAbsolutePath().getParent();
+        Files.createDirectories(dir);
+        tmp = Files.createTempFile(dir, "." + archive.getFileName(), ".tmp");
+        out = new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), BUFFER_SIZE));
+    }
+
+    @Override
+    public synchronized boolean write(String path, byte[] content) throws IOException {
+        if (closed) {
+            throw new IllegalStateException("sink is already closed");
+        }
+        ZipEntry entry = new ZipEntry(path);
+        entry.setTime(ENTRY_TIME);
+        out.putNextEntry(entry);
+        out.write(content);
+        out.closeEntry();
+        return true;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        complete(true);
+    }
+
+    @Override
+    public synchronized void abort() throws IOException {
+        complete(false);
+    }
+
+    private void complete(boolean commit) throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            out.close();
+            if (commit) {
+                try {
+                    Files.move(tmp, archive, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(tmp, archive, StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+}
@@ -2,27 +2,80 @@ package javah4x;
 
 import static java.util.stream.Collectors.toList;
 
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Executable;
+import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.lang.reflect.Parameter;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
-import java.util.stream.Stream;
+import java.util.List;
 
-import lombok.AllArgsConstructor;
 import lombok.EqualsAndHashCode;
 import lombok.Getter;
 import lombok.experimental.Accessors;
 
 /**
- * A wrapper around {@link Class} to let {@link CodeGenerator} access interested information easier.
+ * Information about a class declaring native methods, to let {@link CodeGenerator} access interested
+ * information easier.
+ * An instance can be built from a loaded {@link Class} through reflection, or from the declarations read
+ * directly out of a class file (see {@link javah4x.classfile.ClassFileReader}) without loading the class.
  */
 @Accessors(fluent = true)
-@AllArgsConstructor
 @EqualsAndHashCode
 public class ClassInfo {
+	private static final Comparator<NativeMethod> METHOD_ORDER =
+			Comparator.comparing(NativeMethod::name).thenComparing(NativeMethod::descriptor);
+	private static final Comparator<JavaMember> MEMBER_ORDER =
+			Comparator.comparing(JavaMember::kind).thenComparing(JavaMember::name)
+					  .thenComparing(JavaMember::descriptor);
+
+	/**
+	 * The binary name of the class, e.g, "com.example.Foo".
+	 */
 	@Getter
-	private final Class<?> clazz;
+	private final String fqn;
+	/**
+	 * The simple name of the class, e.g, "Foo".
+	 */
+	@Getter
+	private final String name;
+	private final List<NativeMethod> nativeMethods;
+	private final List<JavaMember> members;
+
+	public ClassInfo(Class<?> clazz) {
+		this(clazz.getName(), clazz.getSimpleName(), declaredNativeMethods(clazz), declaredMembers(clazz));
+	}
+
+	public ClassInfo(String fqn, String name, Collection<NativeMethod> nativeMethods) {
+		this(fqn, name, nativeMethods, Collections.emptyList());
+	}
+
+	public ClassInfo(String fqn, String name, Collection<NativeMethod> nativeMethods,
+					 Collection<JavaMember> members) {
+		this.fqn = fqn;
+		this.name = name;
+		List<NativeMethod> sorted = new ArrayList<>(nativeMethods);
+		sorted.sort(METHOD_ORDER);
+		this.nativeMethods = Collections.unmodifiableList(sorted);
+		List<JavaMember> sortedMembers = new ArrayList<>(members);
+		sortedMembers.sort(MEMBER_ORDER);
+		this.members = Collections.unmodifiableList(sortedMembers);
+	}
+
+	/**
+	 * Returns the simple name of the class from its binary name, e.g, "Bar" for "com.example.Foo$Bar".
+	 * @param fqn the binary name of the class.
+	 * @return the simple name.
+	 */
+	public static String simpleNameOf(String fqn) {
+		String name = fqn.substring(fqn.lastIndexOf('.') + 1);
+		return name.substring(name.lastIndexOf('$') + 1);
+	}
 
 	/**
 	 * Returns the fully-qualified name of the class with replacing delimiter with the given string.
@@ -31,24 +84,77 @@ public class ClassInfo {
 	 * @return fully-qualified name with the given delimiter.
 	 */
 	public String fullyQualifiedNameDelimitedWith(String delim) {
-		return clazz.getName().replace(".", delim);
+		return fqn.replace(".", delim);
+	}
+
+	private static List<NativeMethod> declaredNativeMethods(Class<?> clazz) {
+		return Arrays.stream(clazz.getDeclaredMethods())
+					 .filter(method -> Modifier.isNative(method.getModifiers()))
+					 .map(ClassInfo::toNativeMethod)
+					 .collect(toList());
+	}
+
+	private static NativeMethod toNativeMethod(Method method) {
+		List<String> paramNames = new ArrayList<>();
+		return new NativeMethod(method.getName(), descriptor(method, method.getReturnType(), paramNames),
+								Modifier.isStatic(method.getModifiers()), paramNames);
 	}
 
-	public String fqn() {
-		return clazz.getName();
+	private static List<JavaMember> declaredMembers(Class<?> clazz) {
+		List<JavaMember> members = new ArrayList<>();
+		for (Field field : clazz.getDeclaredFields()) {
+			if (!field.isSynthetic()) {
+				members.add(new JavaMember(JavaMember.Kind.FIELD, field.getName(),
+										   JavaType.fromClass(field.getType()).descriptor(),
+										   Modifier.isStatic(field.getModifiers()), Collections.emptyList()));
+			}
+		}
+		for (Constructor<?> constructor : clazz.getDeclaredConstructors()) {
+			if (!constructor.isSynthetic()) {
+				List<String> paramNames = new ArrayList<>();
+				String descriptor = descriptor(constructor, void.class, paramNames);
+				members.add(new JavaMember(JavaMember.Kind.METHOD, JavaMember.CONSTRUCTOR_NAME, descriptor, false,
+										   paramNames));
+			}
+		}
+		for (Method method : clazz.getDeclaredMethods()) {
+			if (!method.isSynthetic() && !Modifier.isNative(method.getModifiers())) {
+				List<String> paramNames = new ArrayList<>();
+				String descriptor = descriptor(method, method.getReturnType(), paramNames);
+				members.add(new JavaMember(JavaMember.Kind.METHOD, method.getName(), descriptor,
+										   Modifier.isStatic(method.getModifiers()), paramNames));
+			}
+		}
+		return members;
 	}
 
 	/**
-	 * Returns the name of this class.
-	 * @return name of this class.
+	 * Build the descriptor of the method, collecting names of its parameters into paramNames.
 	 */
-	public String name() {
-		return clazz.getSimpleName();
+	private static String descriptor(Executable executable, Class<?> returnType, List<String> paramNames) {
+		StringBuilder descriptor = new StringBuilder("(");
+		for (Parameter parameter : executable.getParameters()) {
+			descriptor.append(JavaType.fromClass(parameter.getType()).descriptor());
+			paramNames.add(parameter.getName());
+		}
+		return descriptor.append(')').append(JavaType.fromClass(returnType).descriptor()).toString();
 	}
 
-	Stream<Method> declaredNativeMethods() {
-		return Arrays.stream(clazz.getDeclaredMethods())
-					 .filter(method -> Modifier.isNative(method.getModifiers()));
+	/**
+	 * Returns the declarations of native methods, ordered by their name and descriptor.
+	 * @return the list of {@link NativeMethod}.
+	 */
+	public List<NativeMethod> nativeMethods() {
+		return nativeMethods;
+	}
+
+	/**
+	 * Returns the declarations of non-native fields, methods and constructors, which native code may access
+	 * back, ordered by their kind, name and descriptor. Inherited members aren't included.
+	 * @return the list of {@link JavaMember}.
+	 */
+	public List<JavaMember> members() {
+		return members;
 	}
 
 	/**
@@ -56,8 +162,6 @@ public class ClassInfo {
 	 * @return the list of {@link MethodInfo} that represents native methods.
 	 */
 	public Collection<MethodInfo> methods() {
-		return declaredNativeMethods()
-					 .sorted(Comparator.comparing(Method::getName))
-					 .map(m -> new MethodInfo(this, m)).collect(toList());
+		return nativeMethods.stream().map(m -> new MethodInfo(this, m)).collect(toList());
 	}
 }
@@ -1,23 +1,131 @@
 package javah4x;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import javah4x.rust.RustGenerator;
 
 /**
  * The code generator interface.
  * Each language/library combination may have different implementation of this interface.
+ *
+ * <h2>Thread safety</h2>
+ * To generate many classes in parallel, {@link #renderClass(ClassInfo)} and
+ * {@link #generateClass(OutputSink, ClassInfo)} may be called concurrently from multiple threads, each for a
+ * different class. Implementations must be safe for such use, typically by keeping no mutable state other
+ * than the options given at construction.
+ * {@link #finish(OutputSink, Collection)} is called once from a single thread, after all calls for classes
+ * have returned.
+ *
+ * <h2>Output</h2>
+ * Generators write files only through the given {@link OutputSink}, never to the filesystem directly, so the
+ * output can be a directory ({@link DirectorySink}), memory ({@link MemorySink}) or an archive
+ * ({@link ArchiveSink}). The methods taking a {@link Path} are shorthands for writing into a directory.
+ *
+ * Implementations override either {@link #renderClass(ClassInfo)}, or {@link #generateClass(Path, ClassInfo)} as
+ * generators written before the former was introduced do.
  */
 public interface CodeGenerator {
     /**
-     * Generate JNI bindings interface file for the given class information.
+     * Render JNI bindings interface files for the given class information, without writing them.
      * See {@link RustGenerator} for the reference implementation.
      * The generated directory structure and file contents is different among programming languages and
      * libraries.
+     * The default implementation calls {@link #generateClass(Path, ClassInfo)} with a temporary directory, and
+     * reads files generated into it.
+     * @param classInfo a {@link ClassInfo} instance that describes the target class.
+     * @return contents of generated files, keyed by their paths relative to the base directory.
+     * @throws UncheckedIOException when there is an issue with the temporary directory.
+     */
+    default Map<String, byte[]> renderClass(ClassInfo classInfo) {
+        try {
+            Path tempDir = Files.createTempDirectory("javah4x");
+            try {
+                generateClass(tempDir, classInfo);
+                Map<String, byte[]> files = new TreeMap<>();
+                try (Stream<Path> paths = Files.walk(tempDir)) {
+                    for (Path path : paths.filter(Files::isRegularFile).collect(Collectors.toList())) {
+                        String name = tempDir.relativize(path).toString().replace(File.separatorChar, '/');
+                        files.put(name, Files.readAllBytes(path));
+                    }
+                }
+                return files;
+            } finally {
+                List<Path> paths;
+                try (Stream<Path> walk = Files.walk(tempDir)) {
+                    paths = walk.sorted(Comparator.reverseOrder()).collect(Collectors.toList());
+                }
+                for (Path path : paths) {
+                    Files.delete(path);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Generate JNI bindings interface files for the given class information.
+     * The default implementation writes files rendered by {@link #renderClass(ClassInfo)} to the sink.
+     * @param sink the sink to write files.
+     * @param classInfo a {@link ClassInfo} instance that describes the target class.
+     * @throws IOException when there is an issue with writing files.
+     */
+    default void generateClass(OutputSink sink, ClassInfo classInfo) throws IOException {
+        for (Map.Entry<String, byte[]> file : renderClass(classInfo).entrySet()) {
+            sink.write(file.getKey(), file.getValue());
+        }
+    }
+
+    /**
+     * Generate JNI bindings interface files for the given class information into the directory, leaving files
+     * that has the same content untouched.
      * @param baseDir the base directory to create files.
      * @param classInfo a {@link ClassInfo} instance that describes the target class.
      * @throws IOException when there is an issue with filesystem IO.
      */
-    void generateClass(Path baseDir, ClassInfo classInfo) throws IOException;
+    default void generateClass(Path baseDir, ClassInfo classInfo) throws IOException {
+        generateClass(new DirectorySink(baseDir), classInfo);
+    }
+
+    /**
+     * Called once after all target classes have been generated, to generate files that depend on the whole
+     * set of classes or to post-process generated files.
+     * Classes that were skipped by incremental generation are included in the given classes too.
+     * @param sink the sink to write files.
+     * @param classInfos all target classes.
+     * @throws IOException when there is an issue with writing files.
+     */
+    default void finish(OutputSink sink, Collection<ClassInfo> classInfos) throws IOException {}
+
+    /**
+     * Calls {@link #finish(OutputSink, Collection)} with the sink writing into the directory.
+     * @param baseDir the base directory to create files.
+     * @param classInfos all target classes.
+     * @throws IOException when there is an issue with filesystem IO.
+     */
+    default void finish(Path baseDir, Collection<ClassInfo> classInfos) throws IOException {
+        finish(new DirectorySink(baseDir), classInfos);
+    }
+
+    /**
+     * Returns a string that identifies this generator and everything that affects its output other than the
+     * target class, such as its version and options.
+     * It is used to tell whether the output generated previously for a class is still up-to-date.
+     * Implementations that have options affecting the output must include them in the returned string.
+     * @return the fingerprint of this generator.
+     */
+    default String fingerprint() {
+        return getClass().getName() + '@' + getClass().getPackage().getImplementationVersion();
+    }
 }
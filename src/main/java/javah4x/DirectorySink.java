@@ -0,0 +1,26 @@
+package javah4x;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import lombok.Getter;
+import lombok.experimental.Accessors;
+
+/**
+ * An {@link OutputSink} that writes files into a directory with {@link FileUtils#writeIfChanged(Path, byte[])},
+ * so files having the same content are left untouched and others are replaced atomically.
+ */
+@Accessors(fluent = true)
+public class DirectorySink implements OutputSink {
+    @Getter
+    private final Path baseDir;
+
+    public DirectorySink(Path baseDir) {
+        this.baseDir = baseDir;
+    }
+
+    @Override
+    public boolean write(String path, byte[] content) throws IOException {
+        return FileUtils.writeIfChanged(baseDir.resolve(path), content);
+    }
+}
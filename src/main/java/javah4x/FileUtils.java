@@ -0,0 +1,63 @@
+package javah4x;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+public final class FileUtils {
+
+    private FileUtils() {}
+
+    /**
+     * Write the given content to the file only when the file doesn't exist or its content differs.
+     * The new content is first written to a temporary file in the same directory, and then atomically
+     * renamed to the target, so readers never observe a partially written file.
+     * An unchanged file is left untouched, keeping its modification time so that build tools don't consider
+     * it as modified.
+     * @param file the file to write.
+     * @param content the content of the file.
+     * @return true if the file has been written, false if it was already up-to-date.
+     * @throws IOException when there is an issue with filesystem IO.
+     */
+    public static boolean writeIfChanged(Path file, byte[] content) throws IOException {
+        if (Files.isRegularFile(file) && Files.size(file) == content.length
+            && Arrays.equals(Files.readAllBytes(file), content)) {
+            return false;
+        }
+        Path dir = file.toAbsolutePath().getParent();
+        Files.createDirectories(dir);
+        Path tmp = Files.createTempFile(dir, "." + file.getFileName(), ".tmp");
+        try {
+            Files.write(tmp, content);
+            try {
+                Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        return true;
+    }
+
+    /**
+     * Read all bytes from the stream until EOF.
+     * @param in the stream to read.
+     * @return the bytes read.
+     * @throws IOException when there is an issue with reading the stream.
+     */
+    public static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = in.read(buf)) >= 0) {
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+}
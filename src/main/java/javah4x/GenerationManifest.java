@@ -0,0 +1,231 @@
+package javah4x;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import lombok.Value;
+import lombok.experimental.Accessors;
+
+/**
+ * A manifest of generated classes that is used for incremental generation.
+ * The manifest maps each class to a hash computed from its member signatures and the fingerprint of
+ * the {@link CodeGenerator} used (see {@link CodeGenerator#fingerprint()}), so a class whose hash is
+ * unchanged since the last generation can be skipped entirely.
+ * It also records the digests of the files generated for each class, relative to the directory of the manifest,
+ * so a class is generated again when any of its files has been deleted or edited since.
+ * Classes that are neither generated nor skipped in a run are kept, as they may be generated by another run
+ * writing to the same directory, unless they are pruned by {@link #save(boolean)}, which deletes their files
+ * along with their entries.
+ *
+ * The manifest is stored as a text file with one line per class, in the form of
+ * "CLASS_NAME\tHASH\tPATH=DIGEST\tPATH=DIGEST...".
+ * This class is thread-safe.
+ */
+public class GenerationManifest {
+    /**
+     * The name of the manifest file that is put in the output directory.
+     */
+    public static final String FILE_NAME = ".javah4x-manifest";
+    private static final String HEADER = "# javah4x manifest v2";
+
+    private final Path file;
+    private final Map<String, Entry> entries;
+    private final Set<String> visited;
+
+    @Value
+    @Accessors(fluent = true)
+    private static class Entry {
+        String hash;
+        /**
+         * Digests of generated files by their paths relative to the directory of the manifest.
+         */
+        Map<String, String> digests;
+    }
+
+    private GenerationManifest(Path file, Map<String, Entry> entries) {
+        this.file = file;
+        this.entries = entries;
+        visited = ConcurrentHashMap.newKeySet();
+    }
+
+    /**
+     * Load the manifest from the file. If the file doesn't exist or is in an unknown format, an empty
+     * manifest is returned.
+     * @param file the manifest file.
+     * @return a {@link GenerationManifest}.
+     * @throws IOException when there is an issue with filesystem IO.
+     */
+    public static GenerationManifest load(Path file) throws IOException {
+        Map<String, Entry> entries = new ConcurrentHashMap<>();
+        if (Files.isRegularFile(file)) {
+            List<String> lines = Files.readAllLines(file, UTF_8);
+            if (!lines.isEmpty() && HEADER.equals(lines.get(0))) {
+                for (String line : lines.subList(1, lines.size())) {
+                    String[] fields = line.split("\t");
+                    if (fields.length < 2 || fields[0].isEmpty()) {
+                        continue;
+                    }
+                    Map<String, String> digests = new TreeMap<>();
+                    for (int i = 2; i < fields.length; i++) {
+                        int idx = fields[i].lastIndexOf('=');
+                        if (idx > 0) {
+                            digests.put(fields[i].substring(0, idx), fields[i].substring(idx + 1));
+                        }
+                    }
+                    entries.put(fields[0], new Entry(fields[1], digests));
+                }
+            }
+        }
+        return new GenerationManifest(file, entries);
+    }
+
+    /**
+     * Compute the hash that identifies the generated output of the class.
+     * @param classInfo the class to generate.
+     * @param fingerprint the fingerprint of the {@link CodeGenerator}.
+     * @return the hash in hex string.
+     */
+    public static String hash(ClassInfo classInfo, String fingerprint) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(fingerprint).append('\n');
+        sb.append(classInfo.fqn()).append('\n');
+        for (NativeMethod method : classInfo.nativeMethods()) {
+            sb.append(method.isStatic() ? "static " : "")
+              .append(method.name()).append(method.descriptor())
+              .append(' ').append(String.join(",", method.paramNames())).append('\n');
+        }
+        for (JavaMember member : classInfo.members()) {
+            sb.append(member.kind()).append(member.isStatic() ? " static " : " ")
+              .append(member.name()).append(member.descriptor())
+              .append(' ').append(String.join(",", member.paramNames())).append('\n');
+        }
+        return digest(sb.toString().getBytes(UTF_8));
+    }
+
+    private static String digest(byte[] content) {
+        try {
+            return hex(MessageDigest.getInstance("SHA-256").digest(content));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Returns true if the class has been generated with the same hash, and its files are unchanged since.
+     * A class that is up-to-date is considered as a part of this run, so it's kept by {@link #save(boolean)}.
+     * @param fqn the name of the class.
+     * @param hash the hash computed by {@link #hash(ClassInfo, String)}.
+     * @return true if the class doesn't need to be generated again.
+     * @throws IOException when there is an issue with reading generated files.
+     */
+    public boolean isUpToDate(String fqn, String hash) throws IOException {
+        Entry entry = entries.get(fqn);
+        if (entry == null || !hash.equals(entry.hash())) {
+            return false;
+        }
+        Path baseDir = file.toAbsolutePath().getParent();
+        for (Map.Entry<String, String> digest : entry.digests().entrySet()) {
+            Path path = baseDir.resolve(digest.getKey());
+            if (!Files.isRegularFile(path) || !digest.getValue().equals(digest(Files.readAllBytes(path)))) {
+                return false;
+            }
+        }
+        visited.add(fqn);
+        return true;
+    }
+
+    /**
+     * Record the hash of the generated class and the files generated for it.
+     * @param fqn the name of the class.
+     * @param hash the hash computed by {@link #hash(ClassInfo, String)}.
+     * @param files the generated files by their paths relative to the directory of the manifest.
+     */
+    public void update(String fqn, String hash, Map<String, byte[]> files) {
+        Map<String, String> digests = new TreeMap<>();
+        for (Map.Entry<String, byte[]> file : files.entrySet()) {
+            digests.put(file.getKey(), digest(file.getValue()));
+        }
+        entries.put(fqn, new Entry(hash, digests));
+        visited.add(fqn);
+    }
+
+    /**
+     * Save the manifest to the file, keeping all classes recorded in it.
+     * @throws IOException when there is an issue with filesystem IO.
+     */
+    public void save() throws IOException {
+        save(false);
+    }
+
+    /**
+     * Save the manifest to the file. If pruning, classes that weren't generated nor skipped since it was loaded
+     * are removed, and their files are deleted unless they have been edited, or belong to other classes too.
+     * Pruning must be enabled only when every class generated into the directory is a part of this run.
+     * @param prune whether to remove classes that aren't a part of this run.
+     * @throws IOException when there is an issue with filesystem IO.
+     */
+    public void save(boolean prune) throws IOException {
+        Set<String> kept = new HashSet<>();
+        for (String fqn : visited) {
+            kept.addAll(entries.get(fqn).digests().keySet());
+        }
+        Path baseDir = file.toAbsolutePath().getParent();
+        StringBuilder sb = new StringBuilder(HEADER).append('\n');
+        for (Map.Entry<String, Entry> entry : new TreeMap<>(entries).entrySet()) {
+            if (prune && !visited.contains(entry.getKey())) {
+                for (Map.Entry<String, String> digest : entry.getValue().digests().entrySet()) {
+                    if (!kept.contains(digest.getKey())) {
+                        deleteUnchanged(baseDir, digest.getKey(), digest.getValue());
+                    }
+                }
+                entries.remove(entry.getKey());
+                continue;
+            }
+            sb.append(entry.getKey()).append('\t').append(entry.getValue().hash());
+            for (Map.Entry<String, String> digest : entry.getValue().digests().entrySet()) {
+                sb.append('\t').append(digest.getKey()).append('=').append(digest.getValue());
+            }
+            sb.append('\n');
+        }
+        FileUtils.writeIfChanged(file, sb.toString().getBytes(UTF_8));
+    }
+
+    /**
+     * Delete the generated file if it's unchanged, and then its directory if it's left empty.
+     */
+    private static void deleteUnchanged(Path baseDir, String file, String digest) throws IOException {
+        Path path = baseDir.resolve(file);
+        if (!Files.isRegularFile(path) || !digest.equals(digest(Files.readAllBytes(path)))) {
+            return;
+        }
+        Files.delete(path);
+        if (path.getParent().equals(baseDir)) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(path.getParent());
+        } catch (DirectoryNotEmptyException e) {
+            // Other files, such as the implementation module, are left in the directory
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package javah4x;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javah4x.classfile.ClassFileReader;
+import javah4x.classfile.NativeClassScanner;
+import javah4x.classfile.ScanIndex;
+
+/**
+ * Runs generation for many classes as a staged pipeline.
+ *
+ * Classes go through three stages, each of which runs concurrently across classes:
+ * <ol>
+ *     <li>model extraction: read class files into {@link ClassInfo}s,</li>
+ *     <li>rendering: {@link CodeGenerator#renderClass(ClassInfo)},</li>
+ *     <li>writing: write rendered files into the {@link OutputSink}.</li>
+ * </ol>
+ * The first two stages run on a pool of the configured number of workers. The writing stage runs on its own,
+ * usually smaller, pool with a bounded queue, so the output isn't hit by too many concurrent writes and
+ * rendered contents waiting to be written don't pile up in memory; when the queue is full, rendering workers
+ * wait for writes to catch up.
+ */
+public class GenerationPipeline {
+    private static final int WRITE_QUEUE_PER_WRITER = 16;
+
+    private final CodeGenerator generator;
+    private final OutputSink sink;
+    private final int workers;
+    private final int writers;
+    private final GenerationManifest manifest;
+    private final ScanIndex scanIndex;
+
+    /**
+     * Create a new pipeline.
+     * @param generator the generator to use, which must follow the thread-safety contract of
+     * {@link CodeGenerator}.
+     * @param sink the sink to write generated files, which isn't closed by the pipeline.
+     * @param workers the number of threads for extraction and rendering.
+     * @param writers the number of threads for writing files.
+     * @param manifest the manifest for incremental generation, or null to generate all classes.
+     * @param scanIndex the index of previously scanned paths, or null to scan all paths.
+     */
+    public GenerationPipeline(CodeGenerator generator, OutputSink sink, int workers, int writers,
+                              GenerationManifest manifest, ScanIndex scanIndex) {
+        if (workers < 1 || writers < 1) {
+            throw new IllegalArgumentException("number of workers and writers must be positive");
+        }
+        this.generator = generator;
+        this.sink = sink;
+        this.workers = workers;
+        this.writers = writers;
+        this.manifest = manifest;
+        this.scanIndex = scanIndex;
+    }
+
+    public GenerationPipeline(CodeGenerator generator, OutputSink sink, int workers, int writers,
+                              GenerationManifest manifest) {
+        this(generator, sink, workers, writers, manifest, null);
+    }
+
+    /**
+     * Run the generation for the given classes.
+     * @param classNames binary names of classes to generate, looked up from the class loader.
+     * @param scanPaths jar files or class directories to scan classes declaring native methods from.
+     * @param loader the class loader to look up class files of classNames.
+     * @return all target classes, in the order of classNames followed by classes found in scanPaths.
+     * @throws ClassNotFoundException when the class file of a class isn't found.
+     * @throws IOException when there is an issue with reading classes or writing files.
+     */
+    public List<ClassInfo> run(List<String> classNames, List<Path> scanPaths, ClassLoader loader)
+            throws ClassNotFoundException, IOException {
+        ForkJoinPool workerPool = new ForkJoinPool(workers);
+        ThreadPoolExecutor writerPool = new ThreadPoolExecutor(
+                writers, writers, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(writers * WRITE_QUEUE_PER_WRITER),
+                (task, executor) -> {
+                    try {
+                        executor.getQueue().put(task);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RejectedExecutionException(e);
+                    }
+                });
+        try {
+            String fingerprint = generator.fingerprint();
+            List<CompletableFuture<ClassInfo>> futures = new ArrayList<>();
+            for (String className : classNames) {
+                CompletableFuture<ClassInfo> extracted = CompletableFuture.supplyAsync(() -> {
+                    try {
+                        // Read class files directly rather than loading classes, so static initializers never run
+                        return ClassFileReader.readClass(className, loader);
+                    } catch (ClassNotFoundException e) {
+                        throw new CompletionException(e);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }, workerPool);
+                futures.add(generate(extracted, fingerprint, workerPool, writerPool));
+            }
+            NativeClassScanner scanner = new NativeClassScanner(workerPool, scanIndex);
+            for (Path path : scanPaths) {
+                for (ClassInfo classInfo : scanner.scan(path)) {
+                    futures.add(generate(CompletableFuture.completedFuture(classInfo), fingerprint,
+                                         workerPool, writerPool));
+                }
+            }
+
+            List<ClassInfo> classInfos = new ArrayList<>();
+            for (CompletableFuture<ClassInfo> future : futures) {
+                classInfos.add(future.join());
+            }
+            return classInfos;
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ClassNotFoundException) {
+                throw (ClassNotFoundException) cause;
+            }
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw e;
+        } finally {
+            workerPool.shutdownNow();
+            writerPool.shutdownNow();
+        }
+    }
+
+    private CompletableFuture<ClassInfo> generate(CompletableFuture<ClassInfo> extracted, String fingerprint,
+                                                  ExecutorService workerPool, ExecutorService writerPool) {
+        return extracted.thenComposeAsync(classInfo -> {
+            String hash = GenerationManifest.hash(classInfo, fingerprint);
+            try {
+                if (manifest != null && manifest.isUpToDate(classInfo.fqn(), hash)) {
+                    return CompletableFuture.completedFuture(classInfo);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            Map<String, byte[]> files = generator.renderClass(classInfo);
+            return CompletableFuture.runAsync(() -> {
+                try {
+                    for (Map.Entry<String, byte[]> file : files.entrySet()) {
+                        sink.write(file.getKey(), file.getValue());
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                if (manifest != null) {
+                    manifest.update(classInfo.fqn(), hash, files);
+                }
+            }, writerPool).thenApply(v -> classInfo);
+        }, workerPool);
+    }
+}
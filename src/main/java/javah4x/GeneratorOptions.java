@@ -0,0 +1,159 @@
+package javah4x;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Options given to a {@link CodeGenerator}, as a set of key-value strings.
+ * Options are given from the command line in the form of "-Akey=value", where "-Akey" alone means
+ * "key=true".
+ */
+public class GeneratorOptions {
+    private final Map<String, String> options;
+
+    public GeneratorOptions(Map<String, String> options) {
+        this.options = Collections.unmodifiableMap(new TreeMap<>(options));
+    }
+
+    /**
+     * Returns an empty options.
+     * @return a {@link GeneratorOptions} with no options.
+     */
+    public static GeneratorOptions empty() {
+        return new GeneratorOptions(Collections.emptyMap());
+    }
+
+    /**
+     * Returns true if no option is given.
+     * @return true if there's no option.
+     */
+    public boolean isEmpty() {
+        return options.isEmpty();
+    }
+
+    /**
+     * Returns the value of the option.
+     * @param key the option key.
+     * @param defaultValue the value to return when the option isn't given.
+     * @return the value of the option.
+     */
+    public String get(String key, String defaultValue) {
+        return options.getOrDefault(key, defaultValue);
+    }
+
+    /**
+     * Returns the value of the option as a boolean.
+     * @param key the option key.
+     * @param defaultValue the value to return when the option isn't given.
+     * @return the value of the option.
+     */
+    public boolean getBoolean(String key, boolean defaultValue) {
+        String value = options.get(key);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+
+    /**
+     * Returns the value of the option for the given method.
+     * Options can be given for a specific method as "key.CLASS_NAME#METHOD_NAME" or for all methods of a
+     * class as "key.CLASS_NAME", which take precedence over "key" in this order.
+     * @param key the option key.
+     * @param method the method to look up the option for.
+     * @param defaultValue the value to return when the option isn't given.
+     * @return the value of the option.
+     */
+    public String get(String key, MethodInfo method, String defaultValue) {
+        String value = options.get(key + '.' + method.classInfo().fqn() + '#' + method.name());
+        return value == null ? get(key, method.classInfo(), defaultValue) : value;
+    }
+
+    /**
+     * Returns the value of the option for the given class.
+     * Options can be given for a specific class as "key.CLASS_NAME", which takes precedence over "key".
+     * @param key the option key.
+     * @param classInfo the class to look up the option for.
+     * @param defaultValue the value to return when the option isn't given.
+     * @return the value of the option.
+     */
+    public String get(String key, ClassInfo classInfo, String defaultValue) {
+        String value = options.get(key + '.' + classInfo.fqn());
+        return value == null ? options.getOrDefault(key, defaultValue) : value;
+    }
+
+    /**
+     * Returns the value of the option for the given class as a boolean.
+     * See {@link #get(String, ClassInfo, String)} for how options for a class are looked up.
+     * @param key the option key.
+     * @param classInfo the class to look up the option for.
+     * @param defaultValue the value to return when the option isn't given.
+     * @return the value of the option.
+     */
+    public boolean getBoolean(String key, ClassInfo classInfo, boolean defaultValue) {
+        String value = get(key, classInfo, null);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+
+    /**
+     * Returns the value of the option for the given method as a boolean.
+     * See {@link #get(String, MethodInfo, String)} for how options for a method are looked up.
+     * @param key the option key.
+     * @param method the method to look up the option for.
+     * @param defaultValue the value to return when the option isn't given.
+     * @return the value of the option.
+     */
+    public boolean getBoolean(String key, MethodInfo method, boolean defaultValue) {
+        String value = get(key, method, null);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+
+    /**
+     * Returns the value of the option for the given method as an integer.
+     * See {@link #get(String, MethodInfo, String)} for how options for a method are looked up.
+     * @param key the option key.
+     * @param method the method to look up the option for.
+     * @param defaultValue the value to return when the option isn't given.
+     * @return the value of the option.
+     * @throws IllegalArgumentException when the value isn't an integer.
+     */
+    public int getInt(String key, MethodInfo method, int defaultValue) {
+        return parseInt(key, get(key, method, null), defaultValue);
+    }
+
+    /**
+     * Returns the value of the option as an integer.
+     * @param key the option key.
+     * @param defaultValue the value to return when the option isn't given.
+     * @return the value of the option.
+     * @throws IllegalArgumentException when the value isn't an integer.
+     */
+    public int getInt(String key, int defaultValue) {
+        return parseInt(key, options.get(key), defaultValue);
+    }
+
+    private static int parseInt(String key, String value, int defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(String.format("option %s must be an integer: %s", key, value));
+        }
+    }
+
+    /**
+     * Returns options in the form of "key1=value1,key2=value2...", sorted by keys.
+     * The returned string can be embedded into {@link CodeGenerator#fingerprint()}.
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> entry : options.entrySet()) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(entry.getKey()).append('=').append(entry.getValue());
+        }
+        return sb.toString();
+    }
+}
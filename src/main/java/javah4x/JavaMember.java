@@ -0,0 +1,55 @@
+package javah4x;
+
+import java.util.List;
+
+import lombok.Value;
+import lombok.experimental.Accessors;
+
+/**
+ * A declaration of a non-native member of a class as it appears in a class file, which native code may
+ * call or access back: a method, a constructor (a method named "&lt;init&gt;") or a field.
+ * Synthetic members and static initializers are never represented.
+ */
+@Value
+@Accessors(fluent = true)
+public class JavaMember {
+    public enum Kind {
+        FIELD,
+        METHOD,
+    }
+
+    /**
+     * Name of the constructors.
+     */
+    public static final String CONSTRUCTOR_NAME = "<init>";
+
+    /**
+     * Whether this is a field or a method.
+     */
+    Kind kind;
+    /**
+     * Name of the member.
+     */
+    String name;
+    /**
+     * JVM descriptor of the member, such as "(Ljava/lang/String;I)V" for a method or "I" for a field.
+     */
+    String descriptor;
+    /**
+     * Whether the member is declared static.
+     */
+    boolean isStatic;
+    /**
+     * Names of parameters for a method, in the same way as {@link NativeMethod#paramNames()}, or an empty list
+     * for a field.
+     */
+    List<String> paramNames;
+
+    /**
+     * Returns whether this member is a constructor.
+     * @return true if this is a constructor.
+     */
+    public boolean isConstructor() {
+        return kind == Kind.METHOD && CONSTRUCTOR_NAME.equals(name);
+    }
+}
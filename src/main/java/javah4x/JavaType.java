@@ -1,5 +1,7 @@
 package javah4x;
 
+import java.util.Locale;
+
 import lombok.EqualsAndHashCode;
 import lombok.Getter;
 import lombok.experimental.Accessors;
@@ -45,13 +47,62 @@ public interface JavaType {
             JavaType innerType = fromClass(type.getComponentType());
             return new JArray(innerType);
         }
-        return new JObject(type);
+        return new JObject(type.getName());
+    }
+
+    /**
+     * Obtain an instance of {@link JavaType} from the given JVM field descriptor, such as "I" or
+     * "[Ljava/lang/String;". "V" is accepted as well to represent void return type.
+     * @param descriptor a type descriptor.
+     * @return a {@link JavaType} instance.
+     */
+    static JavaType fromDescriptor(String descriptor) {
+        switch (descriptor.charAt(0)) {
+            case 'V':
+                return Primitive.VOID;
+            case 'Z':
+                return Primitive.BOOLEAN;
+            case 'B':
+                return Primitive.BYTE;
+            case 'C':
+                return Primitive.CHAR;
+            case 'S':
+                return Primitive.SHORT;
+            case 'I':
+                return Primitive.INT;
+            case 'J':
+                return Primitive.LONG;
+            case 'F':
+                return Primitive.FLOAT;
+            case 'D':
+                return Primitive.DOUBLE;
+            case '[':
+                return new JArray(fromDescriptor(descriptor.substring(1)));
+            case 'L':
+                if (descriptor.charAt(descriptor.length() - 1) == ';') {
+                    return new JObject(descriptor.substring(1, descriptor.length() - 1).replace('/', '.'));
+                }
+                break;
+        }
+        throw new IllegalArgumentException("malformed type descriptor: " + descriptor);
     }
 
     JniType jniType();
 
     String jniTypeSign();
 
+    /**
+     * Returns the JVM descriptor of this type, such as "I" or "Ljava/lang/String;".
+     * @return the type descriptor.
+     */
+    String descriptor();
+
+    /**
+     * Returns this type as written in Java source, such as "int", "byte[]" or "java.util.Map.Entry".
+     * @return the type in Java source.
+     */
+    String sourceName();
+
     /**
      * Primitive types.
      */
@@ -118,6 +169,25 @@ public interface JavaType {
                     throw new RuntimeException("never happens");
             }
         }
+
+        @Override
+        public String descriptor() {
+            return jniTypeSign();
+        }
+
+        @Override
+        public String sourceName() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+
+        /**
+         * Returns the capitalized name of this type, such as "Int", which is used in names of JNI functions
+         * like {@code CallIntMethod}.
+         * @return the capitalized name.
+         */
+        public String capitalizedName() {
+            return name().charAt(0) + name().substring(1).toLowerCase(Locale.ROOT);
+        }
     }
 
     /**
@@ -131,6 +201,14 @@ public interface JavaType {
             this.innerType = innerType;
         }
 
+        /**
+         * Returns the type of elements of this array.
+         * @return the element type.
+         */
+        public JavaType innerType() {
+            return innerType;
+        }
+
         @Override
         public JniType jniType() {
             if (innerType instanceof Primitive) {
@@ -160,6 +238,16 @@ public interface JavaType {
         public String jniTypeSign() {
             return StringUtils.mangle("[") + innerType.jniTypeSign();
         }
+
+        @Override
+        public String descriptor() {
+            return '[' + innerType.descriptor();
+        }
+
+        @Override
+        public String sourceName() {
+            return innerType.sourceName() + "[]";
+        }
     }
 
     /**
@@ -168,27 +256,43 @@ public interface JavaType {
     @Accessors(fluent = true)
     @EqualsAndHashCode
     class JObject implements JavaType {
+        /**
+         * The binary name of the type, e.g, "java.lang.String".
+         */
         @Getter
-        private final Class<?> type;
+        private final String name;
 
-        public JObject(Class<?> type) {
-            this.type = type;
+        public JObject(String name) {
+            this.name = name;
         }
 
         @Override
         public JniType jniType() {
-            if (type == Class.class) {
+            if ("java.lang.Class".equals(name)) {
                 return JniType.CLASS;
             }
-            if (type == String.class) {
+            if ("java.lang.String".equals(name)) {
                 return JniType.STRING;
             }
+            if ("java.nio.ByteBuffer".equals(name)) {
+                return JniType.DIRECT_BUFFER;
+            }
             return JniType.OBJECT;
         }
 
         @Override
         public String jniTypeSign() {
-            return StringUtils.mangle('L' + type.getName() + ';');
+            return StringUtils.mangle('L' + name + ';');
+        }
+
+        @Override
+        public String descriptor() {
+            return 'L' + name.replace('.', '/') + ';';
+        }
+
+        @Override
+        public String sourceName() {
+            return name.replace('$', '.');
         }
     }
 }
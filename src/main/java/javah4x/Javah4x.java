@@ -1,29 +1,180 @@
 package javah4x;
 
 import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
+import javah4x.classfile.ScanIndex;
+import javah4x.jmh.JmhGenerator;
+import javah4x.rust.RustFfmGenerator;
 import javah4x.rust.RustGenerator;
 
 public final class Javah4x {
+    private static final String USAGE =
+            "Usage: javah4x [OPTIONS] LANG|CLASS OUTPUT_DIR [TARGET_CLASS1[ TARGET_CLASS2...]]\n"
+            + "OUTPUT_DIR ending with .zip or .jar is created as an archive containing all generated files.\n"
+            + "Options:\n"
+            + "  --scan PATH    generate for all classes declaring native methods in the jar file or\n"
+            + "                 the class directory. Can be specified multiple times.\n"
+            + "  --scan-index DIR\n"
+            + "                 keep classes found by --scan in the index in DIR, and skip scanning jar files\n"
+            + "                 and directories whose content is unchanged since they are indexed.\n"
+            + "  --scan-index-max-bytes N\n"
+            + "                 limit of the index size, beyond which least recently used entries are evicted.\n"
+            + "                 Defaults to 64MiB.\n"
+            + "  --incremental  skip classes whose native methods haven't changed since the last generation.\n"
+            + "  --prune        with --incremental, delete files of classes generated by previous runs but not\n"
+            + "                 by this one. Don't use it when other runs write to the same OUTPUT_DIR.\n"
+            + "  --jobs N       number of threads to read and render classes. Defaults to the number of\n"
+            + "                 available processors.\n"
+            + "  --write-jobs N number of threads to write generated files. Defaults to min(4, jobs).\n"
+            + "  -Akey[=value]  option passed to the generator. See the generator's documentation for\n"
+            + "                 available options.";
+
     public static void main(String[] args) throws ClassNotFoundException, IOException {
-        if (args.length < 3) {
-            System.err.println("Usage: javah4x LANG|CLASS OUTPUT_DIR TARGET_CLASS1[ TARGET_CLASS2...]");
+        List<Path> scanPaths = new ArrayList<>();
+        Path scanIndexDir = null;
+        long scanIndexMaxBytes = ScanIndex.DEFAULT_MAX_BYTES;
+        boolean incremental = false;
+        boolean prune = false;
+        int jobs = Runtime.getRuntime().availableProcessors();
+        int writeJobs = -1;
+        Map<String, String> generatorOptions = new HashMap<>();
+        List<String> positionals = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--scan":
+                    if (++i >= args.length) {
+                        usageError();
+                    }
+                    scanPaths.add(Paths.get(args[i]));
+                    break;
+                case "--scan-index":
+                    if (++i >= args.length) {
+                        usageError();
+                    }
+                    scanIndexDir = Paths.get(args[i]);
+                    break;
+                case "--scan-index-max-bytes":
+                    if (++i >= args.length) {
+                        usageError();
+                    }
+                    scanIndexMaxBytes = parsePositive(args[i - 1], args[i], Long.MAX_VALUE);
+                    break;
+                case "--incremental":
+                    incremental = true;
+                    break;
+                case "--prune":
+                    prune = true;
+                    break;
+                case "--jobs":
+                    if (++i >= args.length) {
+                        usageError();
+                    }
+                    jobs = (int) parsePositive(args[i - 1], args[i], Integer.MAX_VALUE);
+                    break;
+                case "--write-jobs":
+                    if (++i >= args.length) {
+                        usageError();
+                    }
+                    writeJobs = (int) parsePositive(args[i - 1], args[i], Integer.MAX_VALUE);
+                    break;
+                default:
+                    if (args[i].startsWith("-A")) {
+                        String option = args[i].substring(2);
+                        int idx = option.indexOf('=');
+                        if (idx < 0) {
+                            generatorOptions.put(option, "true");
+                        } else {
+                            generatorOptions.put(option.substring(0, idx), option.substring(idx + 1));
+                        }
+                        break;
+                    }
+                    if (args[i].startsWith("--")) {
+                        usageError();
+                    }
+                    positionals.add(args[i]);
+            }
+        }
+        if (positionals.size() < 2 || positionals.size() < 3 && scanPaths.isEmpty()) {
+            usageError();
+        }
+
+        CodeGenerator generator = createGenerator(positionals.get(0), new GeneratorOptions(generatorOptions));
+        Path outputDir = Paths.get(positionals.get(1));
+        boolean archive = isArchive(outputDir);
+        if (incremental && archive) {
+            // An archive is created from scratch every time, so no class can be skipped
+            System.err.println("--incremental can't be used with an archive output");
+            System.exit(1);
+        }
+        if (prune && !incremental) {
+            System.err.println("--prune can be used only with --incremental");
             System.exit(1);
         }
+        GenerationManifest manifest = null;
+        if (incremental) {
+            manifest = GenerationManifest.load(outputDir.resolve(GenerationManifest.FILE_NAME));
+        }
+        if (writeJobs < 0) {
+            writeJobs = Math.min(4, jobs);
+        }
+        ScanIndex scanIndex = scanIndexDir == null ? null : new ScanIndex(scanIndexDir, scanIndexMaxBytes);
+        OutputSink sink = archive ? new ArchiveSink(outputDir) : new DirectorySink(outputDir);
+        try {
+            GenerationPipeline pipeline = new GenerationPipeline(generator, sink, jobs, writeJobs, manifest,
+                                                                 scanIndex);
+            List<ClassInfo> classInfos = pipeline.run(positionals.subList(2, positionals.size()), scanPaths,
+                                                      ClassLoader.getSystemClassLoader());
+            generator.finish(sink, classInfos);
+        } catch (Throwable e) {
+            try {
+                sink.abort();
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+        sink.close();
+        if (manifest != null) {
+            manifest.save(prune);
+        }
+    }
+
+    private static boolean isArchive(Path outputDir) {
+        String name = outputDir.getFileName().toString();
+        return name.endsWith(".zip") || name.endsWith(".jar");
+    }
+
+    private static void usageError() {
+        System.err.println(USAGE);
+        System.exit(1);
+    }
 
-        CodeGenerator generator = createGenerator(args[0]);
-        Path outputDir = Paths.get(args[1]);
-        for (int i = 2; i < args.length; i++) {
-            Class<?> clazz = Class.forName(args[i]);
-            ClassInfo classInfo = new ClassInfo(clazz);
-            generator.generateClass(outputDir, classInfo);
+    /**
+     * Parse the value of the option, which must be a positive integer up to {@code max}, or exit with the usage.
+     */
+    private static long parsePositive(String option, String value, long max) {
+        try {
+            long n = Long.parseLong(value);
+            if (n > 0 && n <= max) {
+                return n;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below
         }
+        System.err.println(option + " must be a positive integer: " + value);
+        usageError();
+        return -1;
     }
 
-    private static CodeGenerator createGenerator(String spec) {
+    private static CodeGenerator createGenerator(String spec, GeneratorOptions options) {
         Class<? extends CodeGenerator> clazz = mapToLangGeneratorClass(spec).orElseGet(() -> {
             try {
                 return Class.forName(spec).asSubclass(CodeGenerator.class);
@@ -32,9 +183,21 @@ public final class Javah4x {
             }
         });
         try {
-            return clazz.newInstance();
+            try {
+                return clazz.getConstructor(GeneratorOptions.class).newInstance(options);
+            } catch (NoSuchMethodException e) {
+                if (!options.isEmpty()) {
+                    throw new IllegalArgumentException(clazz.getName() + " doesn't accept options");
+                }
+                return clazz.newInstance();
+            }
         } catch (InstantiationException | IllegalAccessException e) {
             throw new RuntimeException(e);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
         }
     }
 
@@ -42,6 +205,10 @@ public final class Javah4x {
         switch (spec) {
             case "rust":
                 return Optional.of(RustGenerator.class.asSubclass(CodeGenerator.class));
+            case "rust-ffm":
+                return Optional.of(RustFfmGenerator.class.asSubclass(CodeGenerator.class));
+            case "jmh":
+                return Optional.of(JmhGenerator.class.asSubclass(CodeGenerator.class));
             default:
                 return Optional.empty();
         }
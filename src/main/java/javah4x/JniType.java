@@ -27,5 +27,9 @@ public enum JniType {
     OBJECT_ARRAY,
     CLASS,
     STRING,
+    /**
+     * {@link java.nio.ByteBuffer}, which is expected to be a direct buffer.
+     */
+    DIRECT_BUFFER,
     OBJECT,
 }
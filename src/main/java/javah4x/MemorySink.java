@@ -0,0 +1,40 @@
+package javah4x;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An {@link OutputSink} that keeps files in memory, for embedding javah4x into build tools and for tests.
+ */
+public class MemorySink implements OutputSink {
+    private final Map<String, byte[]> files = new ConcurrentHashMap<>();
+
+    @Override
+    public boolean write(String path, byte[] content) {
+        byte[] copy = content.clone();
+        byte[] prev = files.put(path, copy);
+        return !Arrays.equals(prev, copy);
+    }
+
+    /**
+     * Returns the content of the file.
+     * @param path the path of the file.
+     * @return the content of the file, or null if the file hasn't been written.
+     */
+    public byte[] get(String path) {
+        byte[] content = files.get(path);
+        return content == null ? null : content.clone();
+    }
+
+    /**
+     * Returns a snapshot of all files written so far.
+     * @return contents of files keyed by their paths, sorted by paths.
+     */
+    public SortedMap<String, byte[]> files() {
+        return Collections.unmodifiableSortedMap(new TreeMap<>(files));
+    }
+}
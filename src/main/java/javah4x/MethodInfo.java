@@ -1,24 +1,20 @@
 package javah4x;
 
-import java.lang.reflect.Method;
-import java.lang.reflect.Modifier;
-import java.lang.reflect.Parameter;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 
-import lombok.AllArgsConstructor;
 import lombok.EqualsAndHashCode;
 import lombok.Getter;
 import lombok.Value;
 import lombok.experimental.Accessors;
 
 /**
- * A wrapper around {@link Method} to let {@link CodeGenerator} access interested information easier.
+ * A wrapper around {@link NativeMethod} to let {@link CodeGenerator} access interested information easier.
  */
 @Accessors(fluent = true)
-@AllArgsConstructor
-@EqualsAndHashCode
+@EqualsAndHashCode(of = { "classInfo", "nativeMethod" })
 public class MethodInfo {
     /**
      * A class that represents one parameter (argument) of the method, by its name and type.
@@ -32,14 +28,58 @@ public class MethodInfo {
     @Getter
     private final ClassInfo classInfo;
     @Getter
-    private final Method method;
+    private final NativeMethod nativeMethod;
+    private final List<JavaType> paramTypes;
+    private final JavaType retType;
+
+    public MethodInfo(ClassInfo classInfo, NativeMethod nativeMethod) {
+        this.classInfo = classInfo;
+        this.nativeMethod = nativeMethod;
+        String descriptor = nativeMethod.descriptor();
+        List<JavaType> types = new ArrayList<>();
+        int pos = 1;
+        while (descriptor.charAt(pos) != ')') {
+            int end = descriptorEnd(descriptor, pos);
+            types.add(JavaType.fromDescriptor(descriptor.substring(pos, end)));
+            pos = end;
+        }
+        paramTypes = Collections.unmodifiableList(types);
+        retType = JavaType.fromDescriptor(descriptor.substring(pos + 1));
+    }
+
+    private static int descriptorEnd(String descriptor, int start) {
+        int pos = start;
+        while (descriptor.charAt(pos) == '[') {
+            pos++;
+        }
+        if (descriptor.charAt(pos) == 'L') {
+            pos = descriptor.indexOf(';', pos);
+        }
+        return pos + 1;
+    }
 
     /**
      * Returns the name of this method.
      * @return name of this method.
      */
     public String name() {
-        return method.getName();
+        return nativeMethod.name();
+    }
+
+    /**
+     * Returns the JVM method descriptor of this method, which is also the signature JNI uses to identify it.
+     * @return the method descriptor such as "(Ljava/lang/String;I)V".
+     */
+    public String descriptor() {
+        return nativeMethod.descriptor();
+    }
+
+    /**
+     * Returns whether this method is static.
+     * @return true if the method is static.
+     */
+    public boolean isStatic() {
+        return nativeMethod.isStatic();
     }
 
     /**
@@ -59,8 +99,8 @@ public class MethodInfo {
 
     private String argumentSignature() {
         StringBuilder sb = new StringBuilder();
-        for (Class<?> parameterType : method.getParameterTypes()) {
-            sb.append(JavaType.fromClass(parameterType).jniTypeSign());
+        for (JavaType parameterType : paramTypes) {
+            sb.append(parameterType.jniTypeSign());
         }
         return sb.toString();
     }
@@ -73,10 +113,9 @@ public class MethodInfo {
      */
     public Collection<Param<JavaType>> originalParams() {
         List<Param<JavaType>> params = new ArrayList<>();
-        for (Parameter parameter : method.getParameters()) {
-            JavaType type = JavaType.fromClass(parameter.getType());
-            Param<JavaType> param = new Param<>(parameter.getName(), type);
-            params.add(param);
+        List<String> names = nativeMethod.paramNames();
+        for (int i = 0; i < paramTypes.size(); i++) {
+            params.add(new Param<>(names.get(i), paramTypes.get(i)));
         }
         return params;
     }
@@ -91,7 +130,7 @@ public class MethodInfo {
     public Collection<Param<JniType>> params() {
         List<Param<JniType>> params = new ArrayList<>();
         params.add(new Param<>("env", JniType.JNI_ENV));
-        if (Modifier.isStatic(method.getModifiers())) {
+        if (isStatic()) {
             params.add(new Param<>("clazz", JniType.CLASS));
         } else {
             params.add(new Param<>("this", JniType.OBJECT));
@@ -108,7 +147,7 @@ public class MethodInfo {
      * @return a {@link JavaType}.
      */
     public JavaType retType() {
-        return JavaType.fromClass(method.getReturnType());
+        return retType;
     }
 
 }
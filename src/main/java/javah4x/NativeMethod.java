@@ -0,0 +1,34 @@
+package javah4x;
+
+import java.util.List;
+
+import lombok.Value;
+import lombok.experimental.Accessors;
+
+/**
+ * A declaration of a native method as it appears in a class file: its name, JVM method descriptor, whether
+ * it is static and the names of its parameters.
+ * This is the minimal information {@link ClassInfo} needs to describe a native method, and it can be
+ * obtained either through reflection or by reading class files directly without loading the class.
+ */
+@Value
+@Accessors(fluent = true)
+public class NativeMethod {
+    /**
+     * Name of the method.
+     */
+    String name;
+    /**
+     * JVM method descriptor of the method, such as "(Ljava/lang/String;I)V".
+     */
+    String descriptor;
+    /**
+     * Whether the method is declared static.
+     */
+    boolean isStatic;
+    /**
+     * Names of parameters. When names aren't recorded in the class file, "arg0", "arg1"... are used like
+     * {@link java.lang.reflect.Parameter#getName()} does.
+     */
+    List<String> paramNames;
+}
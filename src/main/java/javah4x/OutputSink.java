@@ -0,0 +1,40 @@
+package javah4x;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * The destination of files generated by {@link CodeGenerator}s.
+ * Files are identified by their paths relative to the root of the output, delimited with '/'.
+ *
+ * <h2>Thread safety</h2>
+ * {@link #write(String, byte[])} may be called concurrently from multiple threads, each for a different path.
+ * {@link #close()}, or {@link #abort()} when the generation has failed, is called once after all writes have
+ * returned.
+ */
+public interface OutputSink extends Closeable {
+    /**
+     * Write a file.
+     * @param path the path of the file relative to the root of the output.
+     * @param content the content of the file.
+     * @return true if the file has been written, false if it was already up-to-date.
+     * @throws IOException when there is an issue with writing the file.
+     */
+    boolean write(String path, byte[] content) throws IOException;
+
+    /**
+     * Complete the output. The default implementation does nothing.
+     * @throws IOException when there is an issue with completing the output.
+     */
+    @Override
+    default void close() throws IOException {}
+
+    /**
+     * Complete the output of a failed generation, discarding the files written if the sink can.
+     * The default implementation calls {@link #close()}.
+     * @throws IOException when there is an issue with discarding the output.
+     */
+    default void abort() throws IOException {
+        close();
+    }
+}
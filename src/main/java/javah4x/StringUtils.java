@@ -1,5 +1,6 @@
 package javah4x;
 
+import java.util.Locale;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -18,7 +19,7 @@ public final class StringUtils {
         StringBuffer sb = new StringBuffer();
         while (matcher.find()) {
             String upCase = matcher.group(1);
-            matcher.appendReplacement(sb, '_' + upCase.toLowerCase());
+            matcher.appendReplacement(sb, '_' + upCase.toLowerCase(Locale.ROOT));
         }
         matcher.appendTail(sb);
         return sb.toString();
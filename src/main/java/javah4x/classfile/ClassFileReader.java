@@ -0,0 +1,305 @@
+package javah4x.classfile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javah4x.ClassInfo;
+import javah4x.FileUtils;
+import javah4x.JavaMember;
+import javah4x.NativeMethod;
+
+/**
+ * Reads {@link ClassInfo} directly from the bytes of a class file, without loading the class into JVM.
+ * Unlike {@link Class#forName(String)}, reading a class this way never runs its static initializers and
+ * doesn't require classes it refers to be present in the classpath.
+ *
+ * Only the constant pool, the fields and methods tables and the MethodParameters attribute of methods are
+ * interpreted, and everything else is skipped over.
+ */
+public final class ClassFileReader {
+    private static final int MAGIC = 0xCAFEBABE;
+    private static final int ACC_STATIC = 0x0008;
+    private static final int ACC_NATIVE = 0x0100;
+    private static final int ACC_SYNTHETIC = 0x1000;
+    private static final String STATIC_INITIALIZER_NAME = "<clinit>";
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_FLOAT = 4;
+    private static final int CONSTANT_LONG = 5;
+    private static final int CONSTANT_DOUBLE = 6;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_STRING = 8;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_INTERFACE_METHODREF = 11;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+    private static final int CONSTANT_METHOD_HANDLE = 15;
+    private static final int CONSTANT_METHOD_TYPE = 16;
+    private static final int CONSTANT_DYNAMIC = 17;
+    private static final int CONSTANT_INVOKE_DYNAMIC = 18;
+    private static final int CONSTANT_MODULE = 19;
+    private static final int CONSTANT_PACKAGE = 20;
+
+    private ClassFileReader() {}
+
+    /**
+     * Locate the class file of the given class through the class loader's resources and read it.
+     * The class itself is never loaded by the class loader.
+     * @param className the binary name of the class, e.g, "com.example.Foo".
+     * @param loader the class loader to look up the class file from.
+     * @return a {@link ClassInfo} for the class.
+     * @throws ClassNotFoundException when there's no class file for the class.
+     * @throws IOException when there is an issue with reading the class file.
+     */
+    public static ClassInfo readClass(String className, ClassLoader loader)
+            throws ClassNotFoundException, IOException {
+        String resource = className.replace('.', '/') + ".class";
+        try (InputStream in = loader.getResourceAsStream(resource)) {
+            if (in == null) {
+                throw new ClassNotFoundException(className);
+            }
+            return read(FileUtils.readFully(in));
+        }
+    }
+
+    /**
+     * Read the {@link ClassInfo} from the given class file content.
+     * @param classFile bytes of a class file.
+     * @return a {@link ClassInfo} that contains all native methods and other members declared in the class.
+     * @throws IllegalArgumentException when the given bytes aren't a well-formed class file.
+     */
+    public static ClassInfo read(byte[] classFile) {
+        try {
+            ByteBuffer buf = ByteBuffer.wrap(classFile);
+            int[] cpOffsets = readHeaderAndConstantPool(buf, true);
+            buf.getShort(); // access_flags
+            String fqn = className(buf, cpOffsets, buf.getShort() & 0xffff);
+            buf.getShort(); // super_class
+            int interfacesCount = buf.getShort() & 0xffff;
+            buf.position(buf.position() + interfacesCount * 2);
+
+            List<JavaMember> members = new ArrayList<>();
+            int fieldsCount = buf.getShort() & 0xffff;
+            for (int i = 0; i < fieldsCount; i++) {
+                int accessFlags = buf.getShort() & 0xffff;
+                String name = utf8(buf, cpOffsets, buf.getShort() & 0xffff);
+                String descriptor = utf8(buf, cpOffsets, buf.getShort() & 0xffff);
+                skipAttributes(buf, buf.getShort() & 0xffff);
+                if ((accessFlags & ACC_SYNTHETIC) == 0) {
+                    members.add(new JavaMember(JavaMember.Kind.FIELD, name, descriptor,
+                                               (accessFlags & ACC_STATIC) != 0, Collections.emptyList()));
+                }
+            }
+
+            List<NativeMethod> methods = new ArrayList<>();
+            int methodsCount = buf.getShort() & 0xffff;
+            for (int i = 0; i < methodsCount; i++) {
+                int accessFlags = buf.getShort() & 0xffff;
+                String name = utf8(buf, cpOffsets, buf.getShort() & 0xffff);
+                String descriptor = utf8(buf, cpOffsets, buf.getShort() & 0xffff);
+                int attributesCount = buf.getShort() & 0xffff;
+                if ((accessFlags & ACC_SYNTHETIC) != 0 || STATIC_INITIALIZER_NAME.equals(name)) {
+                    skipAttributes(buf, attributesCount);
+                    continue;
+                }
+                List<String> paramNames = null;
+                for (int j = 0; j < attributesCount; j++) {
+                    String attrName = utf8(buf, cpOffsets, buf.getShort() & 0xffff);
+                    int length = buf.getInt();
+                    int end = buf.position() + length;
+                    if ("MethodParameters".equals(attrName)) {
+                        paramNames = readMethodParameters(buf, cpOffsets);
+                    }
+                    buf.position(end);
+                }
+                if (paramNames == null) {
+                    paramNames = defaultParamNames(countParams(descriptor));
+                }
+                boolean isStatic = (accessFlags & ACC_STATIC) != 0;
+                if ((accessFlags & ACC_NATIVE) != 0) {
+                    methods.add(new NativeMethod(name, descriptor, isStatic, paramNames));
+                } else {
+                    members.add(new JavaMember(JavaMember.Kind.METHOD, name, descriptor, isStatic, paramNames));
+                }
+            }
+            return new ClassInfo(fqn, ClassInfo.simpleNameOf(fqn), methods, members);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("malformed class file", e);
+        }
+    }
+
+    /**
+     * Tests whether the given class file declares at least one native method.
+     * This is much cheaper than {@link #read(byte[])} as no strings in the constant pool are decoded and
+     * the test is done only by looking at access flags of methods.
+     * @param classFile bytes of a class file.
+     * @return true if the class declares any native method.
+     * @throws IllegalArgumentException when the given bytes aren't a well-formed class file.
+     */
+    public static boolean hasNativeMethods(byte[] classFile) {
+        try {
+            ByteBuffer buf = ByteBuffer.wrap(classFile);
+            readHeaderAndConstantPool(buf, false);
+            buf.position(buf.position() + 6); // access_flags, this_class, super_class
+            skipInterfacesAndFields(buf);
+            int methodsCount = buf.getShort() & 0xffff;
+            for (int i = 0; i < methodsCount; i++) {
+                int accessFlags = buf.getShort() & 0xffff;
+                if ((accessFlags & ACC_NATIVE) != 0) {
+                    return true;
+                }
+                buf.position(buf.position() + 4); // name_index, descriptor_index
+                skipAttributes(buf, buf.getShort() & 0xffff);
+            }
+            return false;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("malformed class file", e);
+        }
+    }
+
+    /**
+     * Read the class file header and walk through the constant pool.
+     * @return offsets of each constant pool entry's content (just after the tag) in the buffer, indexed by
+     * the constant pool index, or null if not recording.
+     */
+    private static int[] readHeaderAndConstantPool(ByteBuffer buf, boolean record) {
+        if (buf.getInt() != MAGIC) {
+            throw new IllegalArgumentException("not a class file");
+        }
+        buf.getInt(); // minor_version, major_version
+        int count = buf.getShort() & 0xffff;
+        int[] offsets = record ? new int[count] : null;
+        for (int i = 1; i < count; i++) {
+            int tag = buf.get();
+            if (record) {
+                offsets[i] = buf.position();
+            }
+            switch (tag) {
+                case CONSTANT_UTF8:
+                    buf.position(buf.position() + 2 + (buf.getShort(buf.position()) & 0xffff));
+                    break;
+                case CONSTANT_CLASS:
+                case CONSTANT_STRING:
+                case CONSTANT_METHOD_TYPE:
+                case CONSTANT_MODULE:
+                case CONSTANT_PACKAGE:
+                    buf.position(buf.position() + 2);
+                    break;
+                case CONSTANT_METHOD_HANDLE:
+                    buf.position(buf.position() + 3);
+                    break;
+                case CONSTANT_INTEGER:
+                case CONSTANT_FLOAT:
+                case CONSTANT_FIELDREF:
+                case CONSTANT_METHODREF:
+                case CONSTANT_INTERFACE_METHODREF:
+                case CONSTANT_NAME_AND_TYPE:
+                case CONSTANT_DYNAMIC:
+                case CONSTANT_INVOKE_DYNAMIC:
+                    buf.position(buf.position() + 4);
+                    break;
+                case CONSTANT_LONG:
+                case CONSTANT_DOUBLE:
+                    buf.position(buf.position() + 8);
+                    // 8-byte constants take up two entries
+                    i++;
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown constant pool tag: " + tag);
+            }
+        }
+        return offsets;
+    }
+
+    private static void skipInterfacesAndFields(ByteBuffer buf) {
+        int interfacesCount = buf.getShort() & 0xffff;
+        buf.position(buf.position() + interfacesCount * 2);
+        int fieldsCount = buf.getShort() & 0xffff;
+        for (int i = 0; i < fieldsCount; i++) {
+            buf.position(buf.position() + 6); // access_flags, name_index, descriptor_index
+            skipAttributes(buf, buf.getShort() & 0xffff);
+        }
+    }
+
+    private static void skipAttributes(ByteBuffer buf, int count) {
+        for (int i = 0; i < count; i++) {
+            buf.getShort(); // attribute_name_index
+            int length = buf.getInt();
+            buf.position(buf.position() + length);
+        }
+    }
+
+    private static List<String> readMethodParameters(ByteBuffer buf, int[] cpOffsets) {
+        int count = buf.get() & 0xff;
+        List<String> names = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int nameIndex = buf.getShort() & 0xffff;
+            buf.getShort(); // access_flags
+            names.add(nameIndex == 0 ? "arg" + i : utf8(buf, cpOffsets, nameIndex));
+        }
+        return names;
+    }
+
+    private static int countParams(String descriptor) {
+        int count = 0;
+        int pos = 1;
+        while (descriptor.charAt(pos) != ')') {
+            while (descriptor.charAt(pos) == '[') {
+                pos++;
+            }
+            if (descriptor.charAt(pos) == 'L') {
+                pos = descriptor.indexOf(';', pos);
+            }
+            pos++;
+            count++;
+        }
+        return count;
+    }
+
+    private static List<String> defaultParamNames(int count) {
+        if (count == 0) {
+            return Collections.emptyList();
+        }
+        List<String> names = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            names.add("arg" + i);
+        }
+        return names;
+    }
+
+    private static String className(ByteBuffer buf, int[] cpOffsets, int index) {
+        int nameIndex = buf.getShort(cpOffsets[index]) & 0xffff;
+        return utf8(buf, cpOffsets, nameIndex).replace('/', '.');
+    }
+
+    /**
+     * Decode the CONSTANT_Utf8 entry at the given index, which is encoded in "modified UTF-8".
+     */
+    private static String utf8(ByteBuffer buf, int[] cpOffsets, int index) {
+        int offset = cpOffsets[index];
+        int length = buf.getShort(offset) & 0xffff;
+        int pos = offset + 2;
+        int end = pos + length;
+        char[] chars = new char[length];
+        int n = 0;
+        while (pos < end) {
+            int b = buf.get(pos++) & 0xff;
+            if (b < 0x80) {
+                chars[n++] = (char) b;
+            } else if ((b & 0xe0) == 0xc0) {
+                chars[n++] = (char) (((b & 0x1f) << 6) | (buf.get(pos++) & 0x3f));
+            } else {
+                int b2 = buf.get(pos++) & 0x3f;
+                int b3 = buf.get(pos++) & 0x3f;
+                chars[n++] = (char) (((b & 0x0f) << 12) | (b2 << 6) | b3);
+            }
+        }
+        return new String(chars, 0, n);
+    }
+}
@@ -0,0 +1,130 @@
+package javah4x.classfile;
+
+import static java.util.stream.Collectors.toList;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
+
+import javah4x.ClassInfo;
+
+/**
+ * Finds all classes that declare at least one native method in a jar file or a class directory.
+ *
+ * Class files are read in parallel on the given {@link ForkJoinPool}. Jar entries are accessed through the
+ * zip filesystem, so the jar's central directory is read only once and each entry is read without opening
+ * a separate stream against the archive.
+ * Classes are first tested by {@link ClassFileReader#hasNativeMethods(byte[])} which only looks at access
+ * flags of methods, and only classes that passed are fully read.
+ * When a {@link ScanIndex} is given, classes found in a path are stored in the index, and the path is scanned
+ * only if the index doesn't have classes for the digest of its content.
+ */
+public class NativeClassScanner {
+    private static final String CLASS_SUFFIX = ".class";
+
+    private final ForkJoinPool pool;
+    private final ScanIndex index;
+
+    /**
+     * Create a new scanner.
+     * @param pool the pool to read class files on.
+     * @param index the index of previously scanned paths, or null to scan all paths.
+     */
+    public NativeClassScanner(ForkJoinPool pool, ScanIndex index) {
+        this.pool = pool;
+        this.index = index;
+    }
+
+    public NativeClassScanner(ForkJoinPool pool) {
+        this(pool, null);
+    }
+
+    public NativeClassScanner() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Scan the given jar file or class directory.
+     * @param path path to a jar file or a directory that contains class files in the package hierarchy.
+     * @return the list of {@link ClassInfo} for classes declaring native methods, sorted by their names.
+     * @throws IOException when there is an issue with reading files.
+     */
+    public List<ClassInfo> scan(Path path) throws IOException {
+        if (index == null) {
+            return scanPath(path);
+        }
+        String digest = ScanIndex.digest(path);
+        List<ClassInfo> classInfos = index.get(digest);
+        if (classInfos == null) {
+            classInfos = scanPath(path);
+            index.put(digest, classInfos);
+        }
+        return classInfos;
+    }
+
+    private List<ClassInfo> scanPath(Path path) throws IOException {
+        if (Files.isDirectory(path)) {
+            return scanRoot(path);
+        }
+        try (FileSystem zipFs = FileSystems.newFileSystem(path, (ClassLoader) null)) {
+            return scanRoot(zipFs.getPath("/"));
+        }
+    }
+
+    private List<ClassInfo> scanRoot(Path root) throws IOException {
+        List<Path> classFiles;
+        try (Stream<Path> files = Files.walk(root)) {
+            classFiles = files.filter(p -> isClassFile(root.relativize(p)))
+                              .collect(toList());
+        }
+        try {
+            return pool.submit(() -> classFiles.parallelStream()
+                                               .map(NativeClassScanner::readIfNative)
+                                               .filter(info -> info != null)
+                                               .sorted(Comparator.comparing(ClassInfo::fqn))
+                                               .collect(toList()))
+                       .get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while scanning " + root, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private static boolean isClassFile(Path relPath) {
+        String name = relPath.toString();
+        if (!name.endsWith(CLASS_SUFFIX) || name.startsWith("META-INF")) {
+            return false;
+        }
+        String fileName = relPath.getFileName().toString();
+        return !"module-info.class".equals(fileName) && !"package-info.class".equals(fileName);
+    }
+
+    private static ClassInfo readIfNative(Path classFile) {
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(classFile);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (!ClassFileReader.hasNativeMethods(bytes)) {
+            return null;
+        }
+        return ClassFileReader.read(bytes);
+    }
+}
@@ -0,0 +1,356 @@
+package javah4x.classfile;
+
+import static java.util.stream.Collectors.toList;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import javah4x.ClassInfo;
+import javah4x.FileUtils;
+import javah4x.JavaMember;
+import javah4x.NativeMethod;
+
+/**
+ * A persistent index of classes found by {@link NativeClassScanner}, keyed by the digest of the scanned jar
+ * file or class directory, so unchanged jars don't have to be scanned again on later runs.
+ *
+ * Each scanned path is stored as a file named after the SHA-256 digest of its content in the index directory,
+ * in a compact binary format: a header, a table of distinct strings, and classes whose names, descriptors and
+ * parameter names refer to the table by variable-length indices. The header has the fingerprint of the code
+ * reading classes, which is the version of javah4x and the digest of the class files of the reader and the model,
+ * so a file stored by another version, which may read the same classes differently, is treated as missing.
+ * Files are written atomically with {@link FileUtils#writeIfChanged(Path, byte[])}, so the index can be
+ * shared by builds running concurrently; two builds scanning the same content store identical files, and
+ * a file that can't be read, because it is removed or broken, is just treated as missing.
+ *
+ * The index is bounded by the total size of its files. Reading a file renews its modification time, and
+ * after storing a file, files are evicted in the order of their modification times, least recently used
+ * first, until the total size fits in the limit.
+ * This class is thread-safe.
+ */
+public class ScanIndex {
+    /**
+     * The default limit of the total size of index files.
+     */
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+    private static final String FILE_SUFFIX = ".idx";
+    private static final int MAGIC = 0x4a345849; // "J4XI"
+    private static final int VERSION = 2;
+    private static final int FLAG_STATIC = 1;
+    private static final int FLAG_FIELD = 2;
+    private static final String MODEL_FINGERPRINT = modelFingerprint(
+            ClassFileReader.class, NativeClassScanner.class, ClassInfo.class, NativeMethod.class, JavaMember.class);
+
+    private final Path dir;
+    private final long maxBytes;
+
+    /**
+     * Create an index stored in the directory.
+     * @param dir the directory to store index files, which is created if it doesn't exist.
+     * @param maxBytes the limit of the total size of index files.
+     */
+    public ScanIndex(Path dir, long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes must be positive");
+        }
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+    }
+
+    public ScanIndex(Path dir) {
+        this(dir, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * Compute the digest of the jar file or class directory.
+     * The digest of a jar file is computed from its bytes, and the one of a directory from the paths and
+     * contents of class files under it.
+     * @param path path to a jar file or a class directory.
+     * @return the digest in hex string.
+     * @throws IOException when there is an issue with reading files.
+     */
+    public static String digest(Path path) throws IOException {
+        MessageDigest digest = sha256();
+        byte[] buf = new byte[64 * 1024];
+        if (Files.isDirectory(path)) {
+            List<Path> files;
+            try (Stream<Path> walk = Files.walk(path)) {
+                files = walk.filter(p -> p.toString().endsWith(".class") && Files.isRegularFile(p))
+                            .sorted()
+                            .collect(toList());
+            }
+            for (Path file : files) {
+                digest.update(path.relativize(file).toString().replace('\\', '/').getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+                update(digest, file, buf);
+            }
+        } else {
+            update(digest, path, buf);
+        }
+        return hex(digest.digest());
+    }
+
+    /**
+     * Compute the fingerprint from the version of javah4x and the class files of the given classes.
+     */
+    private static String modelFingerprint(Class<?>... classes) {
+        MessageDigest digest = sha256();
+        String version = String.valueOf(ScanIndex.class.getPackage().getImplementationVersion());
+        digest.update(version.getBytes(StandardCharsets.UTF_8));
+        for (Class<?> clazz : classes) {
+            digest.update((byte) 0);
+            try (InputStream in = clazz.getResourceAsStream(clazz.getSimpleName() + ".class")) {
+                if (in != null) {
+                    digest.update(FileUtils.readFully(in));
+                }
+            } catch (IOException e) {
+                // Identified by the version alone
+            }
+        }
+        return hex(digest.digest());
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    private static void update(MessageDigest digest, Path file, byte[] buf) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            int n;
+            while ((n = in.read(buf)) >= 0) {
+                digest.update(buf, 0, n);
+            }
+        }
+    }
+
+    /**
+     * Returns the classes stored for the digest.
+     * @param digest the digest computed by {@link #digest(Path)}.
+     * @return the classes in the order they have been stored, or null if the index doesn't have them.
+     */
+    public List<ClassInfo> get(String digest) {
+        Path file = dir.resolve(digest + FILE_SUFFIX);
+        List<ClassInfo> classInfos;
+        try {
+            classInfos = decode(Files.readAllBytes(file));
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException | RuntimeException e) {
+            // Broken or from an incompatible version, which is overwritten by the next put
+            return null;
+        }
+        try {
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            // Evicted concurrently, which only makes it scanned again on the next run
+        }
+        return classInfos;
+    }
+
+    /**
+     * Store the classes for the digest, and evict least recently used files if the index exceeds its limit.
+     * @param digest the digest computed by {@link #digest(Path)}.
+     * @param classInfos the classes found in the scanned path.
+     * @throws IOException when there is an issue with writing the index.
+     */
+    public void put(String digest, List<ClassInfo> classInfos) throws IOException {
+        Files.createDirectories(dir);
+        FileUtils.writeIfChanged(dir.resolve(digest + FILE_SUFFIX), encode(classInfos));
+        evict();
+    }
+
+    private void evict() throws IOException {
+        Map<Path, FileTime> mtimes = new HashMap<>();
+        Map<Path, Long> sizes = new HashMap<>();
+        long total = 0;
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : files.filter(p -> p.getFileName().toString().endsWith(FILE_SUFFIX))
+                                  .collect(toList())) {
+                try {
+                    mtimes.put(file, Files.getLastModifiedTime(file));
+                    sizes.put(file, Files.size(file));
+                    total += sizes.get(file);
+                } catch (NoSuchFileException e) {
+                    // Evicted concurrently
+                }
+            }
+        }
+        if (total <= maxBytes) {
+            return;
+        }
+        List<Path> oldestFirst = new ArrayList<>(sizes.keySet());
+        oldestFirst.sort(Comparator.comparing(mtimes::get));
+        for (Path file : oldestFirst) {
+            if (total <= maxBytes) {
+                break;
+            }
+            Files.deleteIfExists(file);
+            total -= sizes.get(file);
+        }
+    }
+
+    static byte[] encode(List<ClassInfo> classInfos) {
+        return encode(classInfos, MODEL_FINGERPRINT);
+    }
+
+    static byte[] encode(List<ClassInfo> classInfos, String fingerprint) {
+        Map<String, Integer> strings = new HashMap<>();
+        List<String> table = new ArrayList<>();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        writeVarInt(body, classInfos.size());
+        for (ClassInfo classInfo : classInfos) {
+            writeString(body, classInfo.fqn(), strings, table);
+            writeString(body, classInfo.name(), strings, table);
+            writeVarInt(body, classInfo.nativeMethods().size());
+            for (NativeMethod method : classInfo.nativeMethods()) {
+                writeMember(body, method.isStatic() ? FLAG_STATIC : 0, method.name(), method.descriptor(),
+                            method.paramNames(), strings, table);
+            }
+            writeVarInt(body, classInfo.members().size());
+            for (JavaMember member : classInfo.members()) {
+                int flags = (member.isStatic() ? FLAG_STATIC : 0)
+                            | (member.kind() == JavaMember.Kind.FIELD ? FLAG_FIELD : 0);
+                writeMember(body, flags, member.name(), member.descriptor(), member.paramNames(), strings, table);
+            }
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeUTF(fingerprint);
+            out.writeInt(table.size());
+            for (String s : table) {
+                out.writeUTF(s);
+            }
+            body.writeTo(out);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeMember(ByteArrayOutputStream out, int flags, String name, String descriptor,
+                                    List<String> paramNames, Map<String, Integer> strings, List<String> table) {
+        out.write(flags);
+        writeString(out, name, strings, table);
+        writeString(out, descriptor, strings, table);
+        writeVarInt(out, paramNames.size());
+        for (String paramName : paramNames) {
+            writeString(out, paramName, strings, table);
+        }
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String s, Map<String, Integer> strings,
+                                    List<String> table) {
+        Integer idx = strings.get(s);
+        if (idx == null) {
+            idx = table.size();
+            strings.put(s, idx);
+            table.add(s);
+        }
+        writeVarInt(out, idx);
+    }
+
+    private static void writeVarInt(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write(value & 0x7f | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    static List<ClassInfo> decode(byte[] bytes) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        if (in.readInt() != MAGIC || in.readUnsignedShort() != VERSION) {
+            throw new IOException("unknown format");
+        }
+        if (!MODEL_FINGERPRINT.equals(in.readUTF())) {
+            throw new IOException("stored by another version");
+        }
+        String[] table = new String[in.readInt()];
+        for (int i = 0; i < table.length; i++) {
+            table[i] = in.readUTF();
+        }
+        int numClasses = readVarInt(in);
+        List<ClassInfo> classInfos = new ArrayList<>(numClasses);
+        for (int i = 0; i < numClasses; i++) {
+            String fqn = table[readVarInt(in)];
+            String name = table[readVarInt(in)];
+            int numMethods = readVarInt(in);
+            List<NativeMethod> methods = new ArrayList<>(numMethods);
+            for (int j = 0; j < numMethods; j++) {
+                int flags = in.readUnsignedByte();
+                methods.add(new NativeMethod(table[readVarInt(in)], table[readVarInt(in)],
+                                             (flags & FLAG_STATIC) != 0, readStrings(in, table)));
+            }
+            int numMembers = readVarInt(in);
+            List<JavaMember> members = new ArrayList<>(numMembers);
+            for (int j = 0; j < numMembers; j++) {
+                int flags = in.readUnsignedByte();
+                JavaMember.Kind kind = (flags & FLAG_FIELD) != 0 ? JavaMember.Kind.FIELD : JavaMember.Kind.METHOD;
+                members.add(new JavaMember(kind, table[readVarInt(in)], table[readVarInt(in)],
+                                           (flags & FLAG_STATIC) != 0, readStrings(in, table)));
+            }
+            classInfos.add(new ClassInfo(fqn, name, methods, members));
+        }
+        if (in.read() >= 0) {
+            throw new IOException("trailing bytes");
+        }
+        return classInfos;
+    }
+
+    private static List<String> readStrings(DataInputStream in, String[] table) throws IOException {
+        int size = readVarInt(in);
+        if (size == 0) {
+            return Collections.emptyList();
+        }
+        List<String> strings = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            strings.add(table[readVarInt(in)]);
+        }
+        return strings;
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("malformed variable-length integer");
+    }
+}
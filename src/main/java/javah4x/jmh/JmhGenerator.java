@@ -0,0 +1,531 @@
+package javah4x.jmh;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javah4x.ClassInfo;
+import javah4x.CodeGenerator;
+import javah4x.GeneratorOptions;
+import javah4x.JavaType;
+import javah4x.JavaType.JArray;
+import javah4x.JavaType.JObject;
+import javah4x.JavaType.Primitive;
+import javah4x.MethodInfo;
+import javah4x.MethodInfo.Param;
+import javah4x.NativeMethod;
+import javah4x.OutputSink;
+import javah4x.StringUtils;
+import javah4x.rust.RustFormatter;
+
+/**
+ * A {@link CodeGenerator} implementation that generates <a href="https://github.com/openjdk/jmh">JMH</a>
+ * benchmarks of native methods.
+ *
+ * Given the Java class {@code com.example.Foo}, this generator generates the benchmark class
+ * {@code com.example.FooBenchmark} under {@code src/jmh/java}, which has a benchmark for each native method of
+ * {@code Foo} and each number of threads. Methods are called through method handles, so private methods can be
+ * benchmarked too. Arguments are synthesized per thread before the trial:
+ * <ul>
+ *     <li>primitive arrays and direct {@link java.nio.ByteBuffer}s of {@code arraySize} elements, filled with
+ *     pseudo-random values,</li>
+ *     <li>{@link String}s of {@code stringLength} ASCII letters,</li>
+ *     <li>{@code arraySize} for integral parameters named like a length, such as "length", "len", "size" or
+ *     "count", and zero or false for other primitive parameters.</li>
+ * </ul>
+ * Methods taking or returning other types, and instance methods of classes without a no-arg constructor, are
+ * left out with a comment.
+ *
+ * Each benchmark class also has a baseline that calls a native method doing nothing, which measures the cost
+ * of the JNI transition alone. The baseline functions are generated in {@code src/jmh/rust/jmh_baseline.rs},
+ * to be included in the crate of the native library. {@code jmh.gradle} is generated as well, which adds the
+ * {@code jmh} source set and the {@code jmh} task to the project applying it.
+ *
+ * Options:
+ * <ul>
+ *     <li>{@code jmhArraySizes}: comma-separated sizes of arrays. Defaults to "16,1024,65536".</li>
+ *     <li>{@code jmhStringLengths}: comma-separated lengths of strings. Defaults to "16,256".</li>
+ *     <li>{@code jmhThreads}: comma-separated numbers of threads to run benchmarks with. Defaults to
+ *     "1,4".</li>
+ *     <li>{@code jmhLoadLibrary}: the name of the native library to load before benchmarks. When not given,
+ *     the library is expected to be loaded by the static initializer of the target class.</li>
+ *     <li>{@code jmhVersion}: the version of JMH to depend on. Defaults to "1.37".</li>
+ * </ul>
+ *
+ * Instances are immutable and can be used from multiple threads concurrently.
+ */
+public class JmhGenerator implements CodeGenerator {
+    public static final String JAVA_DIR = "src/jmh/java";
+    public static final String BASELINE_FILE_NAME = "src/jmh/rust/jmh_baseline.rs";
+    public static final String GRADLE_FILE_NAME = "jmh.gradle";
+    public static final String BENCHMARK_SUFFIX = "Benchmark";
+    public static final String BASELINE_METHOD = "nativeBaseline";
+    private static final int MAX_WIDTH = 120;
+
+    private final GeneratorOptions options;
+    private final List<String> threads;
+
+    public JmhGenerator(GeneratorOptions options) {
+        this.options = options;
+        threads = list("jmhThreads", "1,4");
+    }
+
+    public JmhGenerator() {
+        this(GeneratorOptions.empty());
+    }
+
+    private List<String> list(String key, String defaultValue) {
+        List<String> values = new ArrayList<>();
+        for (String value : options.get(key, defaultValue).split(",")) {
+            try {
+                Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException(
+                        String.format("option %s must be a list of integers: %s", key, value));
+            }
+            values.add(value.trim());
+        }
+        return values;
+    }
+
+    @Override
+    public Map<String, byte[]> renderClass(ClassInfo classInfo) {
+        return Collections.singletonMap(
+                JAVA_DIR + '/' + benchmarkName(classInfo).replace('.', '/') + ".java",
+                renderBenchmark(classInfo).getBytes(UTF_8));
+    }
+
+    private static String benchmarkName(ClassInfo classInfo) {
+        return classInfo.fqn().substring(0, classInfo.fqn().length() - classInfo.name().length())
+               + classInfo.name() + BENCHMARK_SUFFIX;
+    }
+
+    /**
+     * Returns the no-op native method of the benchmark class of the given class.
+     */
+    static MethodInfo baselineMethod(ClassInfo classInfo) {
+        String benchmark = benchmarkName(classInfo);
+        ClassInfo benchmarkInfo = new ClassInfo(benchmark, benchmark.substring(benchmark.lastIndexOf('.') + 1),
+                                                Collections.emptyList());
+        return new MethodInfo(benchmarkInfo,
+                              new NativeMethod(BASELINE_METHOD, "()V", true, Collections.emptyList()));
+    }
+
+    /**
+     * Returns names of benchmarks for the given methods, which are the method names, followed by the mangled
+     * argument signature for overloaded methods.
+     */
+    private static List<String> benchmarkNames(Collection<MethodInfo> methods) {
+        Map<String, Integer> counts = new HashMap<>();
+        for (MethodInfo method : methods) {
+            counts.merge(method.name(), 1, Integer::sum);
+        }
+        List<String> names = new ArrayList<>();
+        for (MethodInfo method : methods) {
+            String name = method.name();
+            if (counts.get(name) > 1) {
+                String jniName = method.jniFuncName();
+                name += jniName.substring(jniName.lastIndexOf("__"));
+            }
+            names.add(name);
+        }
+        return names;
+    }
+
+    private static boolean isSupported(JavaType type) {
+        if (type instanceof Primitive) {
+            return true;
+        }
+        if (type instanceof JArray) {
+            return ((JArray) type).innerType() instanceof Primitive;
+        }
+        return isString(type) || isByteBuffer(type);
+    }
+
+    private static boolean isString(JavaType type) {
+        return type instanceof JObject && "java.lang.String".equals(((JObject) type).name());
+    }
+
+    private static boolean isByteBuffer(JavaType type) {
+        return type instanceof JObject && "java.nio.ByteBuffer".equals(((JObject) type).name());
+    }
+
+    private static boolean hasNoArgConstructor(ClassInfo classInfo) {
+        return classInfo.members().stream().anyMatch(
+                member -> member.isConstructor() && "()V".equals(member.descriptor()));
+    }
+
+    /**
+     * Returns the reason why the given method can't be benchmarked, or null if it can.
+     */
+    private static String unsupportedReason(MethodInfo method, boolean hasInstance) {
+        if (!method.isStatic() && !hasInstance) {
+            return "the class has no no-arg constructor to create an instance";
+        }
+        for (Param<JavaType> param : method.originalParams()) {
+            if (!isSupported(param.type())) {
+                return "arguments can't be synthesized for " + param.name();
+            }
+        }
+        if (method.retType() != Primitive.VOID && !isSupported(method.retType())) {
+            return "the return type isn't supported";
+        }
+        return null;
+    }
+
+    private static boolean isLengthName(String name) {
+        String lower = name.toLowerCase(Locale.ROOT);
+        return lower.endsWith("length") || lower.endsWith("len") || lower.endsWith("size")
+               || lower.endsWith("count");
+    }
+
+    private static String capitalize(String s) {
+        return Character.toUpperCase(s.charAt(0)) + s.substring(1);
+    }
+
+    String renderBenchmark(ClassInfo classInfo) {
+        String benchmark = benchmarkName(classInfo);
+        int idx = benchmark.lastIndexOf('.');
+        String pkg = idx < 0 ? null : benchmark.substring(0, idx);
+        String simpleName = benchmark.substring(idx + 1);
+        String target = classInfo.fqn().replace('$', '.');
+        boolean hasInstance = hasNoArgConstructor(classInfo);
+
+        List<MethodInfo> methods = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        List<String> fields = new ArrayList<>();
+        List<String> setup = new ArrayList<>();
+        boolean usesArraySize = false;
+        boolean usesStringLength = false;
+        boolean usesInstance = false;
+        List<String> allNames = benchmarkNames(classInfo.methods());
+        int i = 0;
+        for (MethodInfo method : classInfo.methods()) {
+            String name = allNames.get(i++);
+            if (unsupportedReason(method, hasInstance) != null) {
+                continue;
+            }
+            methods.add(method);
+            names.add(name);
+            usesInstance |= !method.isStatic();
+            for (Param<JavaType> param : method.originalParams()) {
+                String field = name + capitalize(param.name());
+                String type = param.type().sourceName();
+                fields.add(String.format("    private %s %s;", type, field));
+                if (param.type() instanceof JArray) {
+                    usesArraySize = true;
+                    Primitive inner = (Primitive) ((JArray) param.type()).innerType();
+                    setup.add(String.format("        %s = new %s[arraySize];", field, inner.sourceName()));
+                    setup.add(String.format("        for (int i = 0; i < %s.length; i++) {", field));
+                    setup.add(String.format("            %s[i] = %s;", field, randomValue(inner)));
+                    setup.add("        }");
+                } else if (isString(param.type())) {
+                    usesStringLength = true;
+                    setup.add(String.format("        %s = randomString(random, stringLength);", field));
+                } else if (isByteBuffer(param.type())) {
+                    usesArraySize = true;
+                    setup.add(String.format("        %s = ByteBuffer.allocateDirect(arraySize);", field));
+                    setup.add(String.format("        while (%s.hasRemaining()) {", field));
+                    setup.add(String.format("            %s.put((byte) random.nextInt());", field));
+                    setup.add("        }");
+                    setup.add(String.format("        %s.flip();", field));
+                } else if (param.type() == Primitive.BOOLEAN) {
+                    setup.add(String.format("        %s = false;", field));
+                } else if (isLengthName(param.name())) {
+                    usesArraySize = true;
+                    String cast = param.type() == Primitive.INT || param.type() == Primitive.LONG
+                                  ? "" : '(' + type + ") ";
+                    setup.add(String.format("        %s = %sarraySize;", field, cast));
+                } else {
+                    setup.add(String.format("        %s = 0;", field));
+                }
+            }
+        }
+
+        StringWriter out = new StringWriter();
+        try (PrintWriter pw = new PrintWriter(out)) {
+            pw.println("// THIS FILE IS GENERATED AUTOMATICALLY. DO NOT EDIT!");
+            if (pkg != null) {
+                pw.printf("package %s;\n", pkg);
+                pw.println("");
+            }
+            pw.println("import java.lang.invoke.MethodHandle;");
+            pw.println("import java.lang.invoke.MethodHandles;");
+            pw.println("import java.lang.reflect.Constructor;");
+            pw.println("import java.lang.reflect.Method;");
+            pw.println("import java.nio.ByteBuffer;");
+            pw.println("import java.util.Random;");
+            pw.println("import java.util.concurrent.TimeUnit;");
+            pw.println("");
+            pw.println("import org.openjdk.jmh.annotations.Benchmark;");
+            pw.println("import org.openjdk.jmh.annotations.BenchmarkMode;");
+            pw.println("import org.openjdk.jmh.annotations.Level;");
+            pw.println("import org.openjdk.jmh.annotations.Mode;");
+            pw.println("import org.openjdk.jmh.annotations.OutputTimeUnit;");
+            pw.println("import org.openjdk.jmh.annotations.Param;");
+            pw.println("import org.openjdk.jmh.annotations.Scope;");
+            pw.println("import org.openjdk.jmh.annotations.Setup;");
+            pw.println("import org.openjdk.jmh.annotations.State;");
+            pw.println("import org.openjdk.jmh.annotations.Threads;");
+            pw.println("");
+            pw.println("/**");
+            pw.printf(" * Benchmarks of native methods of {@code %s}.\n", target);
+            pw.printf(" * {@link #%s} calls a native method doing nothing, to tell the cost of the JNI transition\n",
+                      BASELINE_METHOD + "Threads" + threads.get(0));
+            pw.println(" * from the cost of implementations.");
+            pw.println(" */");
+            pw.println("@BenchmarkMode(Mode.AverageTime)");
+            pw.println("@OutputTimeUnit(TimeUnit.NANOSECONDS)");
+            pw.println("@State(Scope.Thread)");
+            pw.printf("public class %s {\n", simpleName);
+            pw.printf("    private static final Class<?> TARGET = %s.class;\n", target);
+            for (int j = 0; j < methods.size(); j++) {
+                MethodInfo method = methods.get(j);
+                List<String> handleArgs = new ArrayList<>();
+                handleArgs.add('"' + method.name() + '"');
+                for (Param<JavaType> param : method.originalParams()) {
+                    handleArgs.add(param.type().sourceName() + ".class");
+                }
+                pw.println(callLine(1, String.format("private static final MethodHandle %s = handle",
+                                                     handleName(names.get(j))), handleArgs, ";"));
+            }
+            pw.println("");
+            if (usesArraySize) {
+                pw.printf("    @Param({%s})\n", quoted(list("jmhArraySizes", "16,1024,65536")));
+                pw.println("    public int arraySize;");
+            }
+            if (usesStringLength) {
+                pw.printf("    @Param({%s})\n", quoted(list("jmhStringLengths", "16,256")));
+                pw.println("    public int stringLength;");
+            }
+            if (usesInstance) {
+                pw.printf("    private %s instance;\n", target);
+            }
+            for (String field : fields) {
+                pw.println(field);
+            }
+            if (usesArraySize || usesStringLength || usesInstance || !fields.isEmpty()) {
+                pw.println("");
+            }
+
+            pw.println("    static {");
+            String library = options.get("jmhLoadLibrary", null);
+            if (library != null) {
+                pw.printf("        System.loadLibrary(\"%s\");\n", library);
+            }
+            pw.println("        try {");
+            pw.println("            // Let the target class load the native library if it does");
+            pw.println("            Class.forName(TARGET.getName(), true, TARGET.getClassLoader());");
+            pw.println("        } catch (ClassNotFoundException e) {");
+            pw.println("            throw new ExceptionInInitializerError(e);");
+            pw.println("        }");
+            pw.println("    }");
+            pw.println("");
+            pw.println("    @Setup(Level.Trial)");
+            pw.println("    public void setUp() throws ReflectiveOperationException {");
+            pw.println("        Random random = new Random(42);");
+            if (usesInstance) {
+                pw.println("        Constructor<?> constructor = TARGET.getDeclaredConstructor();");
+                pw.println("        constructor.setAccessible(true);");
+                pw.printf("        instance = (%s) constructor.newInstance();\n", target);
+            }
+            for (String line : setup) {
+                pw.println(line);
+            }
+            pw.println("    }");
+
+            pw.println("");
+            pw.printf("    private static native void %s();\n", BASELINE_METHOD);
+            for (String n : threads) {
+                pw.println("");
+                pw.println("    @Benchmark");
+                pw.printf("    @Threads(%s)\n", n);
+                pw.printf("    public void %sThreads%s() {\n", BASELINE_METHOD, n);
+                pw.printf("        %s();\n", BASELINE_METHOD);
+                pw.println("    }");
+            }
+            int k = 0;
+            for (MethodInfo method : classInfo.methods()) {
+                String name = allNames.get(k++);
+                String reason = unsupportedReason(method, hasInstance);
+                if (reason != null) {
+                    pw.println("");
+                    pw.printf("    // %s%s isn't benchmarked\n", method.name(), method.descriptor());
+                    pw.printf("    // because %s.\n", reason);
+                    continue;
+                }
+                for (String n : threads) {
+                    renderBenchmarkMethod(pw, method, name, n);
+                }
+            }
+
+            if (usesStringLength) {
+                pw.println("");
+                pw.println("    private static String randomString(Random random, int length) {");
+                pw.println("        StringBuilder sb = new StringBuilder(length);");
+                pw.println("        for (int i = 0; i < length; i++) {");
+                pw.println("            sb.append((char) ('a' + random.nextInt(26)));");
+                pw.println("        }");
+                pw.println("        return sb.toString();");
+                pw.println("    }");
+            }
+            pw.println("");
+            pw.println("    private static MethodHandle handle(String name, Class<?>... parameterTypes) {");
+            pw.println("        try {");
+            pw.println("            Method method = TARGET.getDeclaredMethod(name, parameterTypes);");
+            pw.println("            method.setAccessible(true);");
+            pw.println("            return MethodHandles.lookup().unreflect(method);");
+            pw.println("        } catch (ReflectiveOperationException e) {");
+            pw.println("            throw new ExceptionInInitializerError(e);");
+            pw.println("        }");
+            pw.println("    }");
+            pw.println("}");
+        }
+        return out.toString();
+    }
+
+    /**
+     * Format a line that ends with a call, putting the arguments on the continuation line when it doesn't fit
+     * in {@link #MAX_WIDTH}.
+     */
+    private static String callLine(int indent, String prefix, List<String> args, String suffix) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < indent; i++) {
+            sb.append("    ");
+        }
+        String head = sb + prefix + '(';
+        String line = head + String.join(", ", args) + ')' + suffix;
+        if (line.length() <= MAX_WIDTH) {
+            return line;
+        }
+        return head + '\n' + sb + "        " + String.join(", ", args) + ')' + suffix;
+    }
+
+    private static String handleName(String benchmarkName) {
+        return StringUtils.toSnakeCase(benchmarkName).toUpperCase(Locale.ROOT);
+    }
+
+    private static String quoted(List<String> values) {
+        List<String> quoted = new ArrayList<>();
+        for (String value : values) {
+            quoted.add('"' + value + '"');
+        }
+        return String.join(", ", quoted);
+    }
+
+    private static String randomValue(Primitive type) {
+        switch (type) {
+            case BOOLEAN:
+                return "random.nextBoolean()";
+            case FLOAT:
+                return "random.nextFloat()";
+            case DOUBLE:
+                return "random.nextDouble()";
+            case LONG:
+                return "random.nextLong()";
+            default:
+                return String.format("(%s) random.nextInt()", type.sourceName());
+        }
+    }
+
+    private static void renderBenchmarkMethod(PrintWriter pw, MethodInfo method, String name, String threads) {
+        List<String> args = new ArrayList<>();
+        if (!method.isStatic()) {
+            args.add("instance");
+        }
+        for (Param<JavaType> param : method.originalParams()) {
+            args.add(name + capitalize(param.name()));
+        }
+        JavaType retType = method.retType();
+        boolean isVoid = retType == Primitive.VOID;
+        String returnType = isVoid ? "void" : retType.sourceName();
+        String invoke = handleName(name) + ".invokeExact";
+
+        pw.println("");
+        pw.println("    @Benchmark");
+        pw.printf("    @Threads(%s)\n", threads);
+        pw.printf("    public %s %sThreads%s() throws Throwable {\n", returnType, name, threads);
+        if (isVoid) {
+            pw.println(callLine(2, invoke, args, ";"));
+        } else {
+            // invokeExact needs the cast to the exact return type, and JMH consumes the returned value
+            pw.println(callLine(2, String.format("return (%s) %s", returnType, invoke), args, ";"));
+        }
+        pw.println("    }");
+    }
+
+    /**
+     * Render the Rust module that defines the no-op native methods of all benchmark classes.
+     */
+    private static String renderBaseline(Collection<ClassInfo> classInfos) {
+        StringWriter out = new StringWriter();
+        try (PrintWriter pw = new PrintWriter(out)) {
+            pw.println("// THIS FILE IS GENERATED AUTOMATICALLY. DO NOT EDIT!");
+            pw.println("use jni::objects::JClass;");
+            pw.println("use jni::JNIEnv;");
+            for (ClassInfo classInfo : classInfos) {
+                pw.println("");
+                pw.println("#[no_mangle]");
+                String signature = RustFormatter.fnSignature(
+                        0, "extern \"system\" fn " + baselineMethod(classInfo).jniFuncName(),
+                        Arrays.asList("_env: JNIEnv", "_clazz: JClass"), " {");
+                // rustfmt puts the closing brace of an empty body on its own line after a multi-line signature
+                pw.println(signature + (signature.contains("\n") ? "\n}" : "}"));
+            }
+        }
+        return out.toString();
+    }
+
+    private String renderGradle() {
+        return "// THIS FILE IS GENERATED AUTOMATICALLY. DO NOT EDIT!\n"
+               + "// Benchmarks of native methods. Apply this file from the build script of the project that has\n"
+               + "// the target classes, and run `./gradlew jmh -PjmhLibraryPath=DIR -PjmhArgs='...'`.\n"
+               + "def jmhDir = buildscript.sourceFile.parentFile\n"
+               + "\n"
+               + "sourceSets {\n"
+               + "    jmh {\n"
+               + "        java.srcDir new File(jmhDir, '" + JAVA_DIR + "')\n"
+               + "        compileClasspath += sourceSets.main.output + sourceSets.main.compileClasspath\n"
+               + "        runtimeClasspath += sourceSets.main.output + sourceSets.main.runtimeClasspath\n"
+               + "    }\n"
+               + "}\n"
+               + "\n"
+               + "dependencies {\n"
+               + "    jmhImplementation 'org.openjdk.jmh:jmh-core:" + options.get("jmhVersion", "1.37") + "'\n"
+               + "    jmhAnnotationProcessor 'org.openjdk.jmh:jmh-generator-annprocess:"
+               + options.get("jmhVersion", "1.37") + "'\n"
+               + "}\n"
+               + "\n"
+               + "task jmh(type: JavaExec) {\n"
+               + "    description = 'Runs benchmarks of native methods.'\n"
+               + "    classpath = sourceSets.jmh.runtimeClasspath\n"
+               + "    mainClass = 'org.openjdk.jmh.Main'\n"
+               + "    args = (project.findProperty('jmhArgs') ?: '').tokenize()\n"
+               + "    if (project.hasProperty('jmhLibraryPath')) {\n"
+               + "        // Forked JVMs inherit JVM options of the runner\n"
+               + "        systemProperty 'java.library.path', project.property('jmhLibraryPath')\n"
+               + "    }\n"
+               + "}\n";
+    }
+
+    @Override
+    public void finish(OutputSink sink, Collection<ClassInfo> classInfos) throws IOException {
+        sink.write(BASELINE_FILE_NAME, renderBaseline(classInfos).getBytes(UTF_8));
+        sink.write(GRADLE_FILE_NAME, renderGradle().getBytes(UTF_8));
+    }
+
+    @Override
+    public String fingerprint() {
+        return CodeGenerator.super.fingerprint() + ';' + options;
+    }
+}
@@ -0,0 +1,378 @@
+package javah4x.rust;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javah4x.GeneratorOptions;
+import javah4x.JavaType;
+import javah4x.JavaType.JArray;
+import javah4x.JavaType.Primitive;
+import javah4x.MethodInfo;
+import javah4x.MethodInfo.Param;
+import javah4x.StringUtils;
+
+/**
+ * Renders methods that receive primitive array parameters as borrowed slices, for {@link RustGenerator}.
+ *
+ * The shim of such a method first reads the lengths of all arrays. If every array fits in its buffer on the
+ * stack, which holds up to "arrayStackThreshold" bytes, elements are copied into the buffers with
+ * {@code Get<Type>ArrayRegion}. Otherwise all arrays are pinned with {@code GetPrimitiveArrayCritical}, so
+ * large arrays are never copied on the native side. Arrays are never mixed between the two modes, since no
+ * JNI function but the critical ones may be called while any array is pinned.
+ *
+ * The trait method receives {@code &[T]} for arrays that are released without writing back
+ * ({@code JNI_ABORT}), and {@code &mut [T]} for arrays listed in "arrayMut", which are committed back on
+ * release. It doesn't receive the {@code JNIEnv}, as no JNI function may be called in the critical region;
+ * a returned error is thrown after all arrays are released. An array passed as {@code &mut [T]} is checked not to
+ * be the same as another array of the call, as both would be pinned to the same elements.
+ */
+final class ArraySlices {
+    /**
+     * The default of "arrayStackThreshold", in bytes per array.
+     */
+    static final int DEFAULT_STACK_THRESHOLD = 256;
+
+    private final GeneratorOptions options;
+
+    ArraySlices(GeneratorOptions options) {
+        this.options = options;
+    }
+
+    /**
+     * Returns whether the given method is rendered with slices, which is when "arraySlices" is enabled for
+     * the method and it has at least one primitive array parameter, no object parameter and a primitive
+     * return type.
+     */
+    boolean isApplicable(MethodInfo method) {
+        if (!options.getBoolean("arraySlices", method, false) || !(method.retType() instanceof Primitive)) {
+            return false;
+        }
+        boolean hasArray = false;
+        for (Param<JavaType> param : method.originalParams()) {
+            if (param.type() instanceof JArray) {
+                if (!(((JArray) param.type()).innerType() instanceof Primitive)) {
+                    return false;
+                }
+                hasArray = true;
+            } else if (!(param.type() instanceof Primitive)) {
+                return false;
+            }
+        }
+        return hasArray;
+    }
+
+    private boolean isMutable(MethodInfo method, String paramName) {
+        return RustGenerator.isListed(options, "arrayMut", method, paramName);
+    }
+
+    private static Primitive elementType(JavaType type) {
+        return (Primitive) ((JArray) type).innerType();
+    }
+
+    private static String rustElementType(JavaType type) {
+        return RustJniTypes.rustJniType(elementType(type).jniType());
+    }
+
+    private static int elementSize(Primitive type) {
+        switch (type) {
+            case BOOLEAN:
+            case BYTE:
+                return 1;
+            case CHAR:
+            case SHORT:
+                return 2;
+            case INT:
+            case FLOAT:
+                return 4;
+            default:
+                return 8;
+        }
+    }
+
+    /**
+     * Returns the parameters of the trait method.
+     */
+    List<String> traitParams(MethodInfo method) {
+        List<String> params = new ArrayList<>();
+        for (Param<JavaType> param : method.originalParams()) {
+            String type;
+            if (param.type() instanceof JArray) {
+                type = String.format("&%s[%s]", isMutable(method, param.name()) ? "mut " : "",
+                                     rustElementType(param.type()));
+            } else {
+                type = RustJniTypes.rustJniType(param.type().jniType());
+            }
+            params.add(StringUtils.toSnakeCase(param.name()) + ": " + type);
+        }
+        return params;
+    }
+
+    /**
+     * Render the shim function of the given method. The call is recorded into the counters at
+     * {@code metricsIndex} unless it is negative, see {@link CallMetrics}.
+     */
+    void renderShim(PrintWriter pw, MethodInfo method, String implTypeName, String head, int metricsIndex) {
+        String defaultValue = RustJniTypes.defaultValue(method.retType().jniType());
+        int threshold = options.getInt("arrayStackThreshold", method, DEFAULT_STACK_THRESHOLD);
+        List<String> params = new ArrayList<>();
+        params.add("mut env: JNIEnv<'a>");
+        params.add(method.isStatic() ? "_clazz: JClass<'a>" : "_this: JObject<'a>");
+        List<String> arrays = new ArrayList<>();
+        List<Object> args = new ArrayList<>();
+        for (Param<JavaType> param : method.originalParams()) {
+            String name = StringUtils.toSnakeCase(param.name());
+            params.add(name + ": " + RustJniTypes.rustJniType(param.type().jniType()));
+            if (param.type() instanceof JArray) {
+                arrays.add(name);
+                args.add((isMutable(method, param.name()) ? "&mut " : "&") + name);
+            } else {
+                args.add(name);
+            }
+        }
+
+        pw.println(RustFormatter.fnSignature(0, head, params,
+                                             RustJniTypes.fnReturnSign(method.retType().jniType()) + " {"));
+        if (metricsIndex >= 0) {
+            CallMetrics.renderTimerStart(pw, metricsIndex);
+        }
+        pw.println("    let raw = env.get_raw();");
+        for (String array : arrays) {
+            pw.printf("    let %s_len = match array_len(raw, %s) {\n", array, array);
+            pw.println("        Some(len) => len,");
+            pw.printf("        None => return %s,\n", defaultValue);
+            pw.println("    };");
+        }
+        renderDistinctArrays(pw, method, defaultValue);
+        List<String> fits = new ArrayList<>();
+        for (Param<JavaType> param : method.originalParams()) {
+            if (param.type() instanceof JArray) {
+                String name = StringUtils.toSnakeCase(param.name());
+                pw.printf("    let mut %s_buf = [0 as %s; %d];\n", name, rustElementType(param.type()),
+                          threshold / elementSize(elementType(param.type())));
+                fits.add(String.format("%s_len <= %s_buf.len()", name, name));
+            }
+        }
+        String onStack = "    let on_stack = " + String.join(" && ", fits) + ';';
+        if (onStack.length() > RustFormatter.MAX_WIDTH) {
+            onStack = "    let on_stack = " + String.join("\n        && ", fits) + ';';
+        }
+        pw.println(onStack);
+        for (Param<JavaType> param : method.originalParams()) {
+            if (!(param.type() instanceof JArray)) {
+                continue;
+            }
+            String name = StringUtils.toSnakeCase(param.name());
+            boolean mutable = isMutable(method, param.name());
+            pw.println(RustFormatter.callLine(
+                    1, String.format("let %s%s = match ", mutable ? "mut " : "", name),
+                    RustFormatter.call("ArrayArg::new", "raw", name, name + "_len", "&mut " + name + "_buf",
+                                       "on_stack", Boolean.toString(mutable)), " {"));
+            pw.println("        Some(array) => array,");
+            pw.printf("        None => return %s,\n", defaultValue);
+            pw.println("    };");
+        }
+        pw.println(RustFormatter.callLine(
+                1, "let result = ",
+                RustFormatter.call(implTypeName + "::" + StringUtils.toSnakeCase(method.name()), args.toArray()),
+                ";"));
+        if (metricsIndex >= 0) {
+            CallMetrics.renderErrorCheck(pw);
+        }
+        for (String array : arrays) {
+            pw.printf("    drop(%s);\n", array);
+        }
+        pw.println(RustFormatter.callLine(1, RustFormatter.macroCall("wrap_error!", "env", "result",
+                                                                     defaultValue), ""));
+        pw.println("}");
+    }
+
+    /**
+     * Render the statement of the shim checking that arrays passed as {@code &mut [T]} aren't the same as other
+     * arrays, if any.
+     */
+    private void renderDistinctArrays(PrintWriter pw, MethodInfo method, String defaultValue) {
+        List<Object> arrays = new ArrayList<>();
+        boolean anyMutable = false;
+        for (Param<JavaType> param : method.originalParams()) {
+            if (param.type() instanceof JArray) {
+                boolean mutable = isMutable(method, param.name());
+                anyMutable |= mutable;
+                arrays.add(String.format("(%s, \"%s\", %s)", StringUtils.toSnakeCase(param.name()), param.name(),
+                                         mutable));
+            }
+        }
+        if (anyMutable && arrays.size() > 1) {
+            pw.println(RustFormatter.callLine(1, RustFormatter.macroCall(
+                    "wrap_error!", "env", RustFormatter.call("distinct_arrays", "raw",
+                                                             RustFormatter.array(arrays.toArray())),
+                    "return " + defaultValue), ";"));
+        }
+    }
+
+    /**
+     * Returns the paths that the module needs to import for {@link #renderRuntime(PrintWriter, Collection)}.
+     */
+    static List<String> runtimeUses() {
+        return Arrays.asList("std::marker::PhantomData", "std::ops::Deref", "std::ops::DerefMut",
+                             "std::ptr::null_mut");
+    }
+
+    /**
+     * Returns element types of arrays passed as slices among the given methods.
+     */
+    Set<Primitive> elementTypes(Collection<MethodInfo> methods) {
+        Set<Primitive> types = new HashSet<>();
+        for (MethodInfo method : methods) {
+            if (isApplicable(method)) {
+                for (Param<JavaType> param : method.originalParams()) {
+                    if (param.type() instanceof JArray) {
+                        types.add(elementType(param.type()));
+                    }
+                }
+            }
+        }
+        return types;
+    }
+
+    /**
+     * Render the types and functions used by shims of methods with slices, which are written in the module
+     * once, after {@code RawEnv}.
+     */
+    static void renderRuntime(PrintWriter pw, Collection<Primitive> elementTypes) {
+        pw.println("/// Element type of primitive arrays that can be copied with `Get/Set<Type>ArrayRegion`.\n"
+                   + "trait ArrayElement: Copy {\n"
+                   + "    unsafe fn get_region(env: RawEnv, array: jarray, len: jsize, buf: *mut Self);\n"
+                   + "    unsafe fn set_region(env: RawEnv, array: jarray, len: jsize, buf: *const Self);\n"
+                   + "}\n");
+        for (Primitive type : Primitive.values()) {
+            if (!elementTypes.contains(type)) {
+                continue;
+            }
+            String typeName = type.capitalizedName();
+            pw.printf("impl ArrayElement for %s {\n", RustJniTypes.rustJniType(type.jniType()));
+            pw.println("    unsafe fn get_region(env: RawEnv, array: jarray, len: jsize, buf: *mut Self) {");
+            pw.printf("        unsafe { (**env).Get%sArrayRegion.unwrap()(env, array, 0, len, buf) }\n", typeName);
+            pw.println("    }");
+            pw.println("");
+            pw.println("    unsafe fn set_region(env: RawEnv, array: jarray, len: jsize, buf: *const Self) {");
+            pw.printf("        unsafe { (**env).Set%sArrayRegion.unwrap()(env, array, 0, len, buf) }\n", typeName);
+            pw.println("    }");
+            pw.println("}");
+            pw.println("");
+        }
+        pw.println("/// Returns the length of the array, or throws NullPointerException and returns None if it's null.\n"
+                   + "fn array_len(env: RawEnv, array: jarray) -> Option<usize> {\n"
+                   + "    unsafe {\n"
+                   + "        if array.is_null() {\n"
+                   + "            let name = b\"java/lang/NullPointerException\\0\";\n"
+                   + "            let class = (**env).FindClass.unwrap()(env, name.as_ptr().cast());\n"
+                   + "            if class.is_null() {\n"
+                   + "                return None;\n"
+                   + "            }\n"
+                   + "            (**env).ThrowNew.unwrap()(env, class, std::ptr::null());\n"
+                   + "            return None;\n"
+                   + "        }\n"
+                   + "        Some((**env).GetArrayLength.unwrap()(env, array) as usize)\n"
+                   + "    }\n"
+                   + "}\n"
+                   + "\n"
+                   + "/// Fails if an array passed as `&mut [T]` is the same as another array of the call.\n"
+                   + "#[allow(dead_code)]\n"
+                   + "fn distinct_arrays<const N: usize>(\n"
+                   + "    env: RawEnv,\n"
+                   + "    arrays: [(jarray, &str, bool); N],\n"
+                   + ") -> Result<(), (&'static str, String)> {\n"
+                   + "    for (i, (array, name, mutable)) in arrays.iter().enumerate() {\n"
+                   + "        for (other, other_name, other_mutable) in &arrays[i + 1..] {\n"
+                   + "            if !(*mutable || *other_mutable) {\n"
+                   + "                continue;\n"
+                   + "            }\n"
+                   + "            let same = unsafe { (**env).IsSameObject.unwrap()(env, *array, *other) };\n"
+                   + "            if same != JNI_FALSE {\n"
+                   + "                let message = format!(\"{} and {} must not be the same array\", name, other_name);\n"
+                   + "                return Err((\"java/lang/IllegalArgumentException\", message));\n"
+                   + "            }\n"
+                   + "        }\n"
+                   + "    }\n"
+                   + "    Ok(())\n"
+                   + "}\n"
+                   + "\n"
+                   + "/// A primitive array borrowed as a slice, either copied into a buffer on the stack or pinned with\n"
+                   + "/// `GetPrimitiveArrayCritical`. Changes are written back to the array on drop only if `commit`.\n"
+                   + "struct ArrayArg<'b, T: ArrayElement> {\n"
+                   + "    env: RawEnv,\n"
+                   + "    array: jarray,\n"
+                   + "    ptr: *mut T,\n"
+                   + "    len: usize,\n"
+                   + "    critical: bool,\n"
+                   + "    commit: bool,\n"
+                   + "    _buf: PhantomData<&'b mut [T]>,\n"
+                   + "}\n"
+                   + "\n"
+                   + "impl<'b, T: ArrayElement> ArrayArg<'b, T> {\n"
+                   + "    /// Borrows `len` elements of the array, copying them into `buf` if `on_stack` or pinning them\n"
+                   + "    /// otherwise. Returns None if pinning failed, with an exception thrown.\n"
+                   + "    fn new(\n"
+                   + "        env: RawEnv,\n"
+                   + "        array: jarray,\n"
+                   + "        len: usize,\n"
+                   + "        buf: &'b mut [T],\n"
+                   + "        on_stack: bool,\n"
+                   + "        commit: bool,\n"
+                   + "    ) -> Option<Self> {\n"
+                   + "        let ptr = if on_stack {\n"
+                   + "            unsafe { T::get_region(env, array, len as jsize, buf.as_mut_ptr()) };\n"
+                   + "            buf.as_mut_ptr()\n"
+                   + "        } else {\n"
+                   + "            let ptr = unsafe { (**env).GetPrimitiveArrayCritical.unwrap()(env, array, null_mut()) };\n"
+                   + "            if ptr.is_null() {\n"
+                   + "                return None;\n"
+                   + "            }\n"
+                   + "            ptr.cast()\n"
+                   + "        };\n"
+                   + "        Some(ArrayArg {\n"
+                   + "            env,\n"
+                   + "            array,\n"
+                   + "            ptr,\n"
+                   + "            len,\n"
+                   + "            critical: !on_stack,\n"
+                   + "            commit,\n"
+                   + "            _buf: PhantomData,\n"
+                   + "        })\n"
+                   + "    }\n"
+                   + "}\n"
+                   + "\n"
+                   + "impl<T: ArrayElement> Deref for ArrayArg<'_, T> {\n"
+                   + "    type Target = [T];\n"
+                   + "\n"
+                   + "    fn deref(&self) -> &[T] {\n"
+                   + "        unsafe { std::slice::from_raw_parts(self.ptr, self.len) }\n"
+                   + "    }\n"
+                   + "}\n"
+                   + "\n"
+                   + "impl<T: ArrayElement> DerefMut for ArrayArg<'_, T> {\n"
+                   + "    fn deref_mut(&mut self) -> &mut [T] {\n"
+                   + "        unsafe { std::slice::from_raw_parts_mut(self.ptr, self.len) }\n"
+                   + "    }\n"
+                   + "}\n"
+                   + "\n"
+                   + "impl<T: ArrayElement> Drop for ArrayArg<'_, T> {\n"
+                   + "    fn drop(&mut self) {\n"
+                   + "        unsafe {\n"
+                   + "            if self.critical {\n"
+                   + "                let mode = if self.commit { 0 } else { JNI_ABORT };\n"
+                   + "                let release = (**self.env).ReleasePrimitiveArrayCritical.unwrap();\n"
+                   + "                release(self.env, self.array, self.ptr.cast(), mode);\n"
+                   + "            } else if self.commit {\n"
+                   + "                T::set_region(self.env, self.array, self.len as jsize, self.ptr);\n"
+                   + "            }\n"
+                   + "        }\n"
+                   + "    }\n"
+                   + "}");
+    }
+}
@@ -0,0 +1,563 @@
+package javah4x.rust;
+
+import static java.util.stream.Collectors.toList;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javah4x.ClassInfo;
+import javah4x.GeneratorOptions;
+import javah4x.JavaType;
+import javah4x.JavaType.Primitive;
+import javah4x.JniType;
+import javah4x.MethodInfo;
+import javah4x.MethodInfo.Param;
+import javah4x.NativeMethod;
+import javah4x.StringUtils;
+
+/**
+ * Renders asynchronous variants of native methods, for {@link RustGenerator}.
+ *
+ * When "async" is enabled for a method, such as {@code long hash(long)}, javah4x generates the Java class
+ * {@code com.example.FooAsync}, whose {@code hash} returns {@code CompletableFuture<Long>} right away, so the
+ * calling thread isn't blocked, nor a virtual thread pinned to its carrier, while the call runs.
+ * The shim of its companion native promotes the receiver and reference arguments to global references and
+ * submits the call to worker threads of the module, which are started on the first call and stay attached to
+ * the JVM as daemons. A worker calls the same trait function as the synchronous shim, in a local reference
+ * frame of its own, and completes the future with the result, boxed if primitive, or exceptionally with the
+ * error, through method IDs looked up once.
+ *
+ * Methods taking direct buffers aren't supported, as their contents can't outlive the calling thread's call.
+ * The number of worker threads is "asyncThreads", or the available parallelism if it isn't given.
+ */
+final class AsyncCalls {
+    static final String HELPER_SUFFIX = "Async";
+    private static final String FUTURE_CLASS = "java.util.concurrent.CompletableFuture";
+    private static final int JAVA_MAX_WIDTH = 120;
+    /**
+     * Names used in shims, which parameters get renamed from.
+     */
+    private static final Set<String> RESERVED_PARAM_NAMES = new HashSet<>(Arrays.asList(
+            "env", "this", "clazz", "future", "ids", "task", "result"));
+    /**
+     * Names used in helper classes, which parameters get renamed from.
+     */
+    private static final Set<String> RESERVED_JAVA_NAMES = new HashSet<>(Arrays.asList(
+            "instance", "future", "clazz"));
+
+    private final GeneratorOptions options;
+
+    AsyncCalls(GeneratorOptions options) {
+        this.options = options;
+    }
+
+    /**
+     * Returns whether "async" is enabled for the given method and it doesn't take direct buffers.
+     * Methods whose trait functions take slices or string views don't have asynchronous variants either, which
+     * {@link RustGenerator} excludes.
+     */
+    boolean isApplicable(MethodInfo method) {
+        if (!options.getBoolean("async", method, false)) {
+            return false;
+        }
+        return method.params().stream().noneMatch(param -> param.type() == JniType.DIRECT_BUFFER);
+    }
+
+    static String helperName(ClassInfo classInfo) {
+        return classInfo.fqn() + HELPER_SUFFIX;
+    }
+
+    /**
+     * Returns the companion native of the given method, declared by the helper class.
+     * It takes the instance, or the class for a static method, the arguments and the future to complete.
+     */
+    static MethodInfo companionMethod(MethodInfo method) {
+        String helper = helperName(method.classInfo());
+        ClassInfo helperInfo = new ClassInfo(helper, ClassInfo.simpleNameOf(helper), Collections.emptyList());
+        StringBuilder descriptor = new StringBuilder("(");
+        List<String> paramNames = new ArrayList<>();
+        if (method.isStatic()) {
+            descriptor.append("Ljava/lang/Class;");
+            paramNames.add("clazz");
+        } else {
+            descriptor.append('L').append(method.classInfo().fqn().replace('.', '/')).append(';');
+            paramNames.add("instance");
+        }
+        for (Param<JavaType> param : method.originalParams()) {
+            descriptor.append(param.type().descriptor());
+            paramNames.add(param.name());
+        }
+        descriptor.append('L').append(FUTURE_CLASS.replace('.', '/')).append(";)V");
+        paramNames.add("future");
+        return new MethodInfo(helperInfo, new NativeMethod(method.name() + '0', descriptor.toString(), true,
+                                                           paramNames));
+    }
+
+    /**
+     * Returns the primitive types of results of the given methods, which are boxed to complete futures.
+     */
+    static Set<Primitive> boxedTypes(Collection<MethodInfo> methods) {
+        Set<Primitive> types = new HashSet<>();
+        for (MethodInfo method : methods) {
+            if (method.retType() instanceof Primitive && method.retType() != Primitive.VOID) {
+                types.add((Primitive) method.retType());
+            }
+        }
+        return types;
+    }
+
+    private static String boxedName(Primitive type) {
+        switch (type) {
+            case CHAR:
+                return "Character";
+            case INT:
+                return "Integer";
+            case VOID:
+                return "Void";
+            default:
+                return type.capitalizedName();
+        }
+    }
+
+    private static String futureType(MethodInfo method) {
+        JavaType retType = method.retType();
+        String type = retType instanceof Primitive ? boxedName((Primitive) retType) : retType.sourceName();
+        return String.format("CompletableFuture<%s>", type);
+    }
+
+    /**
+     * Returns a method signature of the helper class, with each parameter on its own line if it doesn't fit in a
+     * line.
+     */
+    private static String javaSignature(String head, List<String> params, String tail) {
+        String oneLine = head + '(' + String.join(", ", params) + ')' + tail;
+        if (oneLine.length() <= JAVA_MAX_WIDTH) {
+            return oneLine;
+        }
+        return head + "(\n            " + String.join(",\n            ", params) + ')' + tail;
+    }
+
+    private static String shimParamName(Param<JavaType> param) {
+        String name = StringUtils.toSnakeCase(param.name());
+        return RESERVED_PARAM_NAMES.contains(name) ? name + '_' : name;
+    }
+
+    private static String javaParamName(Param<JavaType> param) {
+        return RESERVED_JAVA_NAMES.contains(param.name()) ? param.name() + '_' : param.name();
+    }
+
+    /**
+     * Returns the paths that the module needs to import for {@link #renderRuntime(PrintWriter, Collection)}.
+     */
+    static List<String> runtimeUses() {
+        return Arrays.asList("jni::signature::Primitive", "jni::signature::ReturnType", "jni::JavaVM",
+                             "std::sync::mpsc", "std::sync::Arc", "std::sync::Mutex", "std::sync::OnceLock");
+    }
+
+    /**
+     * Render the worker threads, the cache of method IDs and the functions completing futures, which are
+     * written in the module once.
+     */
+    void renderRuntime(PrintWriter pw, Collection<Primitive> boxedTypes) {
+        List<Primitive> types = new ArrayList<>();
+        for (Primitive type : Primitive.values()) {
+            if (boxedTypes.contains(type)) {
+                types.add(type);
+            }
+        }
+        int threads = options.getInt("asyncThreads", 0);
+
+        pw.println("type AsyncResult<T> = Result<T, (&'static str, String)>;\n"
+                   + "\n"
+                   + "/// A call made by a worker thread, with the `JNIEnv` of the thread.\n"
+                   + "type AsyncTask = Box<dyn FnOnce(&mut JNIEnv) + Send>;\n"
+                   + "\n"
+                   + "/// IDs for completing futures and boxing results, which are looked up once.\n"
+                   + "struct AsyncIds {\n"
+                   + "    complete: JMethodID,\n"
+                   + "    complete_exceptionally: JMethodID,");
+        for (Primitive type : types) {
+            pw.printf("    %s: (GlobalRef, JStaticMethodID),\n", type.sourceName());
+        }
+        pw.println("}\n"
+                   + "\n"
+                   + "static ASYNC_IDS: OnceLock<AsyncIds> = OnceLock::new();\n"
+                   + "static ASYNC_POOL: OnceLock<Mutex<mpsc::Sender<AsyncTask>>> = OnceLock::new();\n"
+                   + "\n"
+                   + "fn async_error(e: jni::errors::Error) -> (&'static str, String) {\n"
+                   + "    (\"java/lang/RuntimeException\", e.to_string())\n"
+                   + "}\n"
+                   + "\n"
+                   + "/// Returns the IDs for completing futures, looking them up on the first call.\n"
+                   + "fn async_ids(env: &mut JNIEnv) -> AsyncResult<&'static AsyncIds> {\n"
+                   + "    if let Some(ids) = ASYNC_IDS.get() {\n"
+                   + "        return Ok(ids);\n"
+                   + "    }\n"
+                   + "    let ids = lookup_async_ids(env).map_err(async_error)?;\n"
+                   + "    Ok(ASYNC_IDS.get_or_init(|| ids))\n"
+                   + "}\n"
+                   + "\n"
+                   + "fn lookup_async_ids(env: &mut JNIEnv) -> jni::errors::Result<AsyncIds> {\n"
+                   + "    let future = \"java/util/concurrent/CompletableFuture\";\n"
+                   + "    let complete = env.get_method_id(future, \"complete\", \"(Ljava/lang/Object;)Z\")?;\n"
+                   + "    let failed = env.get_method_id(future, \"completeExceptionally\", \"(Ljava/lang/Throwable;)Z\")?;\n"
+                   + "    Ok(AsyncIds {\n"
+                   + "        complete,\n"
+                   + "        complete_exceptionally: failed,");
+        for (Primitive type : types) {
+            String boxed = "java/lang/" + boxedName(type);
+            pw.printf("        %s: box_ids(env, \"%s\", \"(%s)L%s;\")?,\n", type.sourceName(), boxed,
+                      type.descriptor(), boxed);
+        }
+        pw.println("    })\n"
+                   + "}");
+        if (!types.isEmpty()) {
+            pw.println("\n"
+                       + "/// Looks up the class of boxed values and its `valueOf`.\n"
+                       + "fn box_ids(\n"
+                       + "    env: &mut JNIEnv,\n"
+                       + "    class: &str,\n"
+                       + "    sig: &str,\n"
+                       + ") -> jni::errors::Result<(GlobalRef, JStaticMethodID)> {\n"
+                       + "    let class = env.find_class(class)?;\n"
+                       + "    let value_of = env.get_static_method_id(&class, \"valueOf\", sig)?;\n"
+                       + "    Ok((env.new_global_ref(class)?, value_of))\n"
+                       + "}\n"
+                       + "\n"
+                       + "/// Boxes a primitive value with `valueOf` of its class.\n"
+                       + "fn box_value(\n"
+                       + "    env: &mut JNIEnv,\n"
+                       + "    (class, value_of): &(GlobalRef, JStaticMethodID),\n"
+                       + "    value: jvalue,\n"
+                       + ") -> jni::errors::Result<jobject> {\n"
+                       + "    let ret = ReturnType::Object;\n"
+                       + "    let boxed = unsafe { env.call_static_method_unchecked(class, *value_of, ret, &[value]) }?;\n"
+                       + "    Ok(boxed.l()?.into_raw())\n"
+                       + "}");
+        }
+        pw.println("\n"
+                   + "/// A value that a future is completed with.\n"
+                   + "trait AsyncValue {\n"
+                   + "    fn to_object(self, env: &mut JNIEnv, ids: &AsyncIds) -> jni::errors::Result<jobject>;\n"
+                   + "}\n"
+                   + "\n"
+                   + "impl AsyncValue for () {\n"
+                   + "    fn to_object(self, _env: &mut JNIEnv, _ids: &AsyncIds) -> jni::errors::Result<jobject> {\n"
+                   + "        Ok(std::ptr::null_mut())\n"
+                   + "    }\n"
+                   + "}\n"
+                   + "\n"
+                   + "impl AsyncValue for jobject {\n"
+                   + "    fn to_object(self, _env: &mut JNIEnv, _ids: &AsyncIds) -> jni::errors::Result<jobject> {\n"
+                   + "        Ok(self)\n"
+                   + "    }\n"
+                   + "}");
+        for (Primitive type : types) {
+            String name = type.sourceName();
+            pw.println("");
+            pw.printf("impl AsyncValue for %s {\n", RustJniTypes.rustJniType(type.jniType()));
+            pw.println("    fn to_object(self, env: &mut JNIEnv, ids: &AsyncIds) -> jni::errors::Result<jobject> {");
+            pw.printf("        box_value(env, &ids.%s, jvalue { %s: self })\n", name,
+                      RustJniTypes.jvalueField(type));
+            pw.println("    }");
+            pw.println("}");
+        }
+        pw.println("\n"
+                   + "/// A global reference to an argument of a call made by a worker thread, which may be null.\n"
+                   + "struct AsyncArg(Option<GlobalRef>);\n"
+                   + "\n"
+                   + "impl AsyncArg {\n"
+                   + "    fn new(env: &mut JNIEnv, obj: jobject) -> AsyncResult<Self> {\n"
+                   + "        if obj.is_null() {\n"
+                   + "            return Ok(AsyncArg(None));\n"
+                   + "        }\n"
+                   + "        let obj = unsafe { JObject::from_raw(obj) };\n"
+                   + "        match env.new_global_ref(obj) {\n"
+                   + "            Ok(obj) => Ok(AsyncArg(Some(obj))),\n"
+                   + "            Err(e) => Err(async_error(e)),\n"
+                   + "        }\n"
+                   + "    }\n"
+                   + "\n"
+                   + "    fn as_raw(&self) -> jobject {\n"
+                   + "        match &self.0 {\n"
+                   + "            Some(obj) => obj.as_raw(),\n"
+                   + "            None => std::ptr::null_mut(),\n"
+                   + "        }\n"
+                   + "    }\n"
+                   + "}\n"
+                   + "\n"
+                   + "/// Calls `complete` or `completeExceptionally` of the future with the value.\n"
+                   + "fn call_future(\n"
+                   + "    env: &mut JNIEnv,\n"
+                   + "    future: &JObject,\n"
+                   + "    method: JMethodID,\n"
+                   + "    value: jobject,\n"
+                   + ") -> jni::errors::Result<()> {\n"
+                   + "    let ret = ReturnType::Primitive(Primitive::Boolean);\n"
+                   + "    unsafe { env.call_method_unchecked(future, method, ret, &[jvalue { l: value }]) }?;\n"
+                   + "    Ok(())\n"
+                   + "}\n"
+                   + "\n"
+                   + "/// Completes the future with the result of a call, or exceptionally with the error it returned\n"
+                   + "/// or the exception it threw, so the future completes even if completing it with the result fails.\n"
+                   + "fn complete_future<'a, T, E>(\n"
+                   + "    env: &mut JNIEnv<'a>,\n"
+                   + "    ids: &AsyncIds,\n"
+                   + "    future: &AsyncArg,\n"
+                   + "    result: Result<T, E>,\n"
+                   + ") where\n"
+                   + "    T: AsyncValue,\n"
+                   + "    E: Desc<'a, JThrowable<'a>>,\n"
+                   + "{\n"
+                   + "    let future = unsafe { JObject::from_raw(future.as_raw()) };\n"
+                   + "    let completed = if env.exception_check().unwrap_or(true) {\n"
+                   + "        Err(jni::errors::Error::JavaException)\n"
+                   + "    } else {\n"
+                   + "        match result {\n"
+                   + "            Ok(value) => match value.to_object(env, ids) {\n"
+                   + "                Ok(value) => call_future(env, &future, ids.complete, value),\n"
+                   + "                Err(e) => Err(e),\n"
+                   + "            },\n"
+                   + "            Err(e) => match e.lookup(env) {\n"
+                   + "                Ok(throwable) => {\n"
+                   + "                    let throwable: &JThrowable = throwable.as_ref();\n"
+                   + "                    call_future(env, &future, ids.complete_exceptionally, throwable.as_raw())\n"
+                   + "                }\n"
+                   + "                Err(e) => Err(e),\n"
+                   + "            },\n"
+                   + "        }\n"
+                   + "    };\n"
+                   + "    if completed.is_err() {\n"
+                   + "        let exception = env.exception_occurred();\n"
+                   + "        env.exception_clear().ok();\n"
+                   + "        if let Ok(exception) = exception {\n"
+                   + "            if !exception.is_null() {\n"
+                   + "                call_future(env, &future, ids.complete_exceptionally, exception.as_raw()).ok();\n"
+                   + "                env.exception_clear().ok();\n"
+                   + "            }\n"
+                   + "        }\n"
+                   + "    }\n"
+                   + "}\n"
+                   + "\n"
+                   + "fn async_threads() -> usize {");
+        if (threads > 0) {
+            pw.printf("    %d\n", threads);
+        } else {
+            pw.println("    match std::thread::available_parallelism() {\n"
+                       + "        Ok(n) => n.get(),\n"
+                       + "        Err(_) => 1,\n"
+                       + "    }");
+        }
+        pw.printf("}\n"
+                  + "\n"
+                  + "/// Submits the task to the worker threads, which are started on the first call.\n"
+                  + "fn submit_async(env: &JNIEnv, task: AsyncTask) -> AsyncResult<()> {\n"
+                  + "    let pool = match ASYNC_POOL.get() {\n"
+                  + "        Some(pool) => pool,\n"
+                  + "        None => {\n"
+                  + "            let vm = Arc::new(env.get_java_vm().map_err(async_error)?);\n"
+                  + "            let (sender, receiver) = mpsc::channel();\n"
+                  + "            let receiver = Arc::new(Mutex::new(receiver));\n"
+                  + "            for index in 0..async_threads() {\n"
+                  + "                let (vm, receiver) = (vm.clone(), receiver.clone());\n"
+                  + "                std::thread::Builder::new()\n"
+                  + "                    .name(format!(\"javah4x-async-{}\", index))\n"
+                  + "                    .spawn(move || run_worker(&vm, &receiver))\n"
+                  + "                    .map_err(|e| (\"java/lang/RuntimeException\", e.to_string()))?;\n"
+                  + "            }\n"
+                  + "            // Workers of a pool set concurrently by another thread exit as the sender is dropped\n"
+                  + "            ASYNC_POOL.get_or_init(|| Mutex::new(sender))\n"
+                  + "        }\n"
+                  + "    };\n"
+                  + "    match pool.lock().unwrap().send(task) {\n"
+                  + "        Ok(()) => Ok(()),\n"
+                  + "        Err(_) => {\n"
+                  + "            let message = \"no worker threads\".to_string();\n"
+                  + "            Err((\"java/lang/IllegalStateException\", message))\n"
+                  + "        }\n"
+                  + "    }\n"
+                  + "}\n"
+                  + "\n"
+                  + "/// Runs tasks on the current thread, which stays attached to the JVM as a daemon.\n"
+                  + "fn run_worker(vm: &JavaVM, receiver: &Mutex<mpsc::Receiver<AsyncTask>>) {\n"
+                  + "    let mut env = match vm.attach_current_thread_as_daemon() {\n"
+                  + "        Ok(env) => env,\n"
+                  + "        Err(_) => return,\n"
+                  + "    };\n"
+                  + "    loop {\n"
+                  + "        // The lock is released before running the task, so other workers can take tasks meanwhile\n"
+                  + "        let task = receiver.lock().unwrap().recv();\n"
+                  + "        let task = match task {\n"
+                  + "            Ok(task) => task,\n"
+                  + "            Err(_) => return,\n"
+                  + "        };\n"
+                  + "        // Local references are freed after each task, as the thread never returns to Java\n"
+                  + "        let framed = env.push_local_frame(%d).is_ok();\n"
+                  + "        task(&mut env);\n"
+                  + "        if framed {\n"
+                  + "            unsafe { env.pop_local_frame(&JObject::null()) }.ok();\n"
+                  + "        }\n"
+                  + "    }\n"
+                  + "}\n", LocalFrames.BASE_CAPACITY);
+    }
+
+    /**
+     * Returns the type of the jni crate that the trait function receives a reference of the given type as, or
+     * null if it receives the raw reference, which is the case for arrays.
+     */
+    private static String wrapperType(JniType type) {
+        switch (type) {
+            case CLASS:
+                return "JClass";
+            case STRING:
+                return "JString";
+            case OBJECT:
+                return "JObject";
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Render the shim of the companion native of the given method.
+     */
+    static void renderShim(PrintWriter pw, MethodInfo method, String implTypeName, boolean registerNatives) {
+        List<String> params = new ArrayList<>();
+        params.add("mut env: JNIEnv<'a>");
+        params.add("_async: JClass<'a>");
+        String receiver = method.isStatic() ? "clazz" : "this";
+        params.add(receiver + (method.isStatic() ? ": JClass<'a>" : ": JObject<'a>"));
+        List<Object> args = new ArrayList<>();
+        args.add("env");
+        args.add(receiver);
+        // References are promoted to global references, and the task recreates local ones from them
+        Map<String, String> promotions = new LinkedHashMap<>();
+        List<String> recreations = new ArrayList<>();
+        promotions.put(receiver, receiver + ".as_raw()");
+        recreations.add(String.format("let %s = unsafe { %s::from_raw(%s.as_raw()) };", receiver,
+                                      method.isStatic() ? "JClass" : "JObject", receiver));
+        for (Param<JavaType> param : method.originalParams()) {
+            String name = shimParamName(param);
+            JniType type = param.type().jniType();
+            params.add(name + ": " + RustJniTypes.rustJniParamType(type, false));
+            args.add(name);
+            if (param.type() instanceof Primitive) {
+                continue;
+            }
+            String wrapper = wrapperType(type);
+            if (wrapper != null) {
+                promotions.put(name, name + ".as_raw()");
+                recreations.add(String.format("let %s = unsafe { %s::from_raw(%s.as_raw()) };", name, wrapper, name));
+            } else {
+                promotions.put(name, name);
+                recreations.add(String.format("let %s = %s.as_raw();", name, name));
+            }
+        }
+        params.add("future: JObject<'a>");
+        promotions.put("future", "future.as_raw()");
+
+        pw.println("");
+        pw.printf("/// Calls `%s` on a worker thread, completing `future` with the result.\n",
+                  StringUtils.toSnakeCase(method.name()));
+        pw.println(registerNatives ? "#[allow(non_snake_case)]" : "#[no_mangle]");
+        pw.println(RustFormatter.fnSignature(
+                0, String.format("extern \"system\" fn %s<'a>", companionMethod(method).jniFuncName()), params,
+                " {"));
+        pw.println(RustFormatter.callLine(1, "let ids = ", RustFormatter.macroCall(
+                "wrap_error!", "env", RustFormatter.call("async_ids", "&mut env"), "return"), ";"));
+        for (Map.Entry<String, String> promotion : promotions.entrySet()) {
+            pw.println(RustFormatter.callLine(1, String.format("let %s = ", promotion.getKey()), RustFormatter.macroCall(
+                    "wrap_error!", "env", RustFormatter.call("AsyncArg::new", "&mut env", promotion.getValue()),
+                    "return"), ";"));
+        }
+        pw.println("    let task: AsyncTask = Box::new(move |env: &mut JNIEnv| {");
+        for (String recreation : recreations) {
+            pw.println("        " + recreation);
+        }
+        pw.println(RustFormatter.callLine(2, "let result = ", RustFormatter.call(
+                implTypeName + "::" + StringUtils.toSnakeCase(method.name()), args.toArray()), ";"));
+        pw.println("        complete_future(env, ids, &future, result);");
+        pw.println("    });");
+        pw.println("    wrap_error!(env, submit_async(&env, task), ())");
+        pw.println("}");
+    }
+
+    /**
+     * Render the Java class that calls the given methods of the class asynchronously.
+     */
+    static String renderHelper(ClassInfo classInfo, List<MethodInfo> methods) {
+        String helper = helperName(classInfo);
+        int idx = helper.lastIndexOf('.');
+        String pkg = idx < 0 ? null : helper.substring(0, idx);
+        String simpleName = helper.substring(idx + 1);
+        String className = classInfo.fqn().replace('$', '.');
+
+        StringWriter out = new StringWriter();
+        try (PrintWriter pw = new PrintWriter(out)) {
+            pw.println("// THIS FILE IS GENERATED AUTOMATICALLY. DO NOT EDIT!");
+            if (pkg != null) {
+                pw.printf("package %s;\n", pkg);
+                pw.println("");
+            }
+            pw.println("import java.util.concurrent.CompletableFuture;");
+            pw.println("");
+            pw.println("/**");
+            pw.printf(" * Asynchronous calls of native methods of {@code %s}.\n", classInfo.fqn());
+            pw.println(" * Calls are made by native worker threads, so the calling thread isn't blocked by them.");
+            pw.println(" * Returned futures are completed by the worker threads, so actions depending on them should");
+            pw.println(" * be run by an executor of their own unless they are short.");
+            pw.println(" */");
+            pw.printf("public final class %s {\n", simpleName);
+            pw.printf("    private %s() {}\n", simpleName);
+            List<String> natives = new ArrayList<>();
+            for (MethodInfo method : methods) {
+                List<String> params = new ArrayList<>();
+                List<String> args = new ArrayList<>();
+                if (method.isStatic()) {
+                    args.add(className + ".class");
+                } else {
+                    params.add(className + " instance");
+                    args.add("instance");
+                }
+                for (Param<JavaType> param : method.originalParams()) {
+                    params.add(param.type().sourceName() + ' ' + javaParamName(param));
+                    args.add(javaParamName(param));
+                }
+                args.add("future");
+                String futureType = futureType(method);
+                pw.println("");
+                pw.println("    /**");
+                pw.printf("     * Calls {@code %s%s} on a native worker thread.\n", method.name(), method.descriptor());
+                pw.println("     */");
+                pw.println(javaSignature(String.format("    public static %s %s", futureType, method.name()), params,
+                                         " {"));
+                pw.printf("        %s future = new CompletableFuture<>();\n", futureType);
+                pw.printf("        %s(%s);\n", companionMethod(method).name(), String.join(", ", args));
+                pw.println("        return future;");
+                pw.println("    }");
+
+                List<String> nativeParams = new ArrayList<>();
+                nativeParams.add(method.isStatic() ? "Class<?> clazz" : className + " instance");
+                nativeParams.addAll(params.subList(method.isStatic() ? 0 : 1, params.size()));
+                nativeParams.add(futureType + " future");
+                natives.add(javaSignature("    private static native void " + companionMethod(method).name(),
+                                          nativeParams, ";"));
+            }
+            pw.println("");
+            for (String nativeMethod : natives) {
+                pw.println(nativeMethod);
+            }
+            pw.println("}");
+        }
+        return out.toString();
+    }
+}
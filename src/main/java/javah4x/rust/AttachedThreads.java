@@ -0,0 +1,99 @@
+package javah4x.rust;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.List;
+
+import javah4x.ClassInfo;
+
+/**
+ * Renders helpers for threads of the library calling into the JVM, for {@link RustGenerator}.
+ *
+ * When "attach" is enabled for the class, the module holds the {@code JavaVM}, which is captured by
+ * {@code register_natives} when called from {@code JNI_OnLoad}, or by {@code init_java_vm}. Then
+ * {@code with_attached_env(|env| ...)} runs a closure with the {@code JNIEnv} of the current thread, which is
+ * cached in a thread local. A thread is attached to the JVM by its first call, and detached when it exits, so
+ * threads of a pool pay for attaching once instead of on each callback. The env of a thread attached by others,
+ * such as a Java thread or one attached by a scoped {@code AttachGuard}, isn't cached but looked up on each call,
+ * as it may be detached while the thread lives. With "registry" also enabled,
+ * {@code with_attached_ids(|env, ids| ...)} passes the cached IDs of the class along with the env.
+ * Each closure runs in a local reference frame of its own, as such a thread never returns to Java to free
+ * local references, so a closure shouldn't return local references.
+ */
+final class AttachedThreads {
+    private AttachedThreads() {}
+
+    /**
+     * Returns the paths that the module needs to import for {@link #render(PrintWriter, ClassInfo, boolean)}.
+     */
+    static List<String> uses() {
+        return Arrays.asList("jni::JavaVM", "std::cell::Cell", "std::sync::OnceLock");
+    }
+
+    static void render(PrintWriter pw, ClassInfo classInfo, boolean registry) {
+        pw.println("/// The JVM that the library is loaded into, captured by `init_java_vm`.\n"
+                   + "static JAVA_VM: OnceLock<JavaVM> = OnceLock::new();\n"
+                   + "\n"
+                   + "thread_local! {\n"
+                   + "    /// The `JNIEnv` of the current thread if attached by `with_attached_env`, until it exits.\n"
+                   + "    static ATTACHED_ENV: Cell<*mut jni::sys::JNIEnv> = const { Cell::new(std::ptr::null_mut()) };\n"
+                   + "}\n"
+                   + "\n"
+                   + "/// Captures the JVM, so threads of the library can attach to it. This is called by\n"
+                   + "/// `register_natives`, and should be called by a native method otherwise.\n"
+                   + "#[allow(dead_code)]\n"
+                   + "pub(crate) fn init_java_vm(env: &JNIEnv) -> jni::errors::Result<()> {\n"
+                   + "    if JAVA_VM.get().is_none() {\n"
+                   + "        let vm = env.get_java_vm()?;\n"
+                   + "        JAVA_VM.get_or_init(|| vm);\n"
+                   + "    }\n"
+                   + "    Ok(())\n"
+                   + "}\n"
+                   + "\n"
+                   + "/// Runs the closure with the `JNIEnv` of the current thread, in a local reference frame of its own.\n"
+                   + "/// The thread is attached to the JVM on its first call, and detached when it exits.\n"
+                   + "#[allow(dead_code)]\n"
+                   + "pub(crate) fn with_attached_env<T, E, F>(f: F) -> Result<T, E>\n"
+                   + "where\n"
+                   + "    F: FnOnce(&mut JNIEnv) -> Result<T, E>,\n"
+                   + "    E: From<jni::errors::Error>,\n"
+                   + "{\n"
+                   + "    let mut raw = ATTACHED_ENV.with(Cell::get);\n"
+                   + "    if raw.is_null() {\n"
+                   + "        let vm = match JAVA_VM.get() {\n"
+                   + "            Some(vm) => vm,\n"
+                   + "            None => return Err(jni::errors::Error::NullPtr(\"JavaVM\").into()),\n"
+                   + "        };\n"
+                   + "        match vm.get_env() {\n"
+                   + "            // Attached by another owner, which may detach it, so it isn't cached\n"
+                   + "            Ok(env) => raw = env.get_raw(),\n"
+                   + "            Err(_) => {\n"
+                   + "                // Detached when the thread exits\n"
+                   + "                raw = vm.attach_current_thread_permanently()?.get_raw();\n"
+                   + "                ATTACHED_ENV.with(|env| env.set(raw));\n"
+                   + "            }\n"
+                   + "        }\n"
+                   + "    }\n"
+                   + "    let mut env = unsafe { JNIEnv::from_raw(raw) }?;");
+        pw.printf("    env.with_local_frame(%d, f)\n", LocalFrames.BASE_CAPACITY);
+        pw.println("}");
+        if (!registry) {
+            return;
+        }
+        String idsType = MemberRegistry.typeName(classInfo);
+        pw.println("");
+        pw.println("/// Runs the closure like `with_attached_env`, with the IDs of the class, which should have been\n"
+                   + "/// looked up by `register_natives` or a native method of the class.\n"
+                   + "#[allow(dead_code)]\n"
+                   + "pub(crate) fn with_attached_ids<T, E, F>(f: F) -> Result<T, E>\n"
+                   + "where");
+        pw.printf("    F: FnOnce(&mut JNIEnv, &%s) -> Result<T, E>,\n", idsType);
+        pw.println("    E: From<jni::errors::Error>,\n"
+                   + "{\n"
+                   + "    with_attached_env(|env| {");
+        pw.printf("        let ids = %s::get(env)?;\n", idsType);
+        pw.println("        f(env, ids)\n"
+                   + "    })\n"
+                   + "}");
+    }
+}
@@ -0,0 +1,450 @@
+package javah4x.rust;
+
+import static java.util.stream.Collectors.toList;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javah4x.ClassInfo;
+import javah4x.GeneratorOptions;
+import javah4x.JavaType;
+import javah4x.JavaType.Primitive;
+import javah4x.MethodInfo;
+import javah4x.MethodInfo.Param;
+import javah4x.NativeMethod;
+import javah4x.StringUtils;
+
+/**
+ * Renders batched variants of fine-grained native methods, for {@link RustGenerator}.
+ *
+ * When "batch" is enabled for a method taking and returning only primitives, such as {@code long hash(long)},
+ * javah4x generates the Java class {@code com.example.FooBatch}, which has a nested class per method, such as
+ * {@code FooBatch.Hash}, that accumulates arguments of calls into arrays, one for each parameter, and makes all
+ * of them in a single native call on flush. The companion native declared by {@code FooBatch} receives the
+ * arrays and the number of calls, and its shim copies arguments in chunks of {@value #CHUNK} calls with
+ * {@code Get<Type>ArrayRegion}, calls the trait function for each of them, and copies results back to the
+ * results array with {@code Set<Type>ArrayRegion}, so no JNI function is called per call.
+ *
+ * If the trait function returns an error, the calls after it aren't made and the error is thrown from the flush,
+ * so no result of the batch is available in Java.
+ */
+final class BatchCalls {
+    /**
+     * The number of calls whose arguments and results are copied at once.
+     */
+    static final int CHUNK = 256;
+    static final String HELPER_SUFFIX = "Batch";
+    /**
+     * Names used in shims, which parameters get renamed from.
+     */
+    private static final Set<String> RESERVED_PARAM_NAMES = new HashSet<>(Arrays.asList(
+            "env", "this", "clazz", "results", "count", "raw", "done", "len", "result", "n", "ret"));
+    /**
+     * Names of members, locals and native parameters of helper classes, which parameters get renamed from.
+     */
+    private static final Set<String> RESERVED_FIELD_NAMES = new HashSet<>(Arrays.asList(
+            "instance", "results", "size", "flushed", "capacity", "index", "count", "clazz"));
+
+    private final GeneratorOptions options;
+
+    BatchCalls(GeneratorOptions options) {
+        this.options = options;
+    }
+
+    /**
+     * Returns whether the given method has a batched variant, which is when "batch" is enabled for the method
+     * and it takes and returns only primitives.
+     */
+    boolean isApplicable(MethodInfo method) {
+        if (!options.getBoolean("batch", method, false) || !(method.retType() instanceof Primitive)) {
+            return false;
+        }
+        return method.originalParams().stream().allMatch(param -> param.type() instanceof Primitive);
+    }
+
+    List<MethodInfo> methods(Collection<MethodInfo> methods) {
+        return methods.stream().filter(this::isApplicable).collect(toList());
+    }
+
+    /**
+     * Returns the types of arguments and results of the given batched methods.
+     */
+    static Set<Primitive> elementTypes(Collection<MethodInfo> methods) {
+        Set<Primitive> types = new HashSet<>();
+        for (MethodInfo method : methods) {
+            for (Param<JavaType> param : method.originalParams()) {
+                types.add((Primitive) param.type());
+            }
+            if (method.retType() != Primitive.VOID) {
+                types.add((Primitive) method.retType());
+            }
+        }
+        return types;
+    }
+
+    static String helperName(ClassInfo classInfo) {
+        return classInfo.fqn() + HELPER_SUFFIX;
+    }
+
+    /**
+     * Returns the companion native of the given method, declared by the helper class.
+     * It takes the instance, or the class for a static method, arrays of arguments, the array of results unless
+     * the method is void, and the number of calls, and returns the number of calls made.
+     */
+    static MethodInfo companionMethod(MethodInfo method) {
+        String helper = helperName(method.classInfo());
+        ClassInfo helperInfo = new ClassInfo(helper, ClassInfo.simpleNameOf(helper), Collections.emptyList());
+        StringBuilder descriptor = new StringBuilder("(");
+        List<String> paramNames = new ArrayList<>();
+        if (method.isStatic()) {
+            descriptor.append("Ljava/lang/Class;");
+            paramNames.add("clazz");
+        } else {
+            descriptor.append('L').append(method.classInfo().fqn().replace('.', '/')).append(';');
+            paramNames.add("instance");
+        }
+        for (Param<JavaType> param : method.originalParams()) {
+            descriptor.append('[').append(param.type().descriptor());
+            paramNames.add(param.name());
+        }
+        if (method.retType() != Primitive.VOID) {
+            descriptor.append('[').append(method.retType().descriptor());
+            paramNames.add("results");
+        }
+        descriptor.append("I)I");
+        paramNames.add("count");
+        return new MethodInfo(helperInfo, new NativeMethod(method.name(), descriptor.toString(), true,
+                                                           paramNames));
+    }
+
+    private static String shimParamName(Param<JavaType> param) {
+        String name = StringUtils.toSnakeCase(param.name());
+        return RESERVED_PARAM_NAMES.contains(name) ? name + '_' : name;
+    }
+
+    private static String fieldName(Param<JavaType> param) {
+        return RESERVED_FIELD_NAMES.contains(param.name()) ? param.name() + '_' : param.name();
+    }
+
+    private static String rustType(JavaType type) {
+        return RustJniTypes.rustJniType(type.jniType());
+    }
+
+    /**
+     * Render the trait for copying regions of arrays and its implementations for the given types, which are
+     * written in the module once, after {@code RawEnv}.
+     */
+    static void renderRuntime(PrintWriter pw, Collection<Primitive> elementTypes) {
+        pw.printf("/// The number of batched calls whose arguments and results are copied at once.\n"
+                  + "const BATCH_CHUNK: usize = %d;\n"
+                  + "\n", CHUNK);
+        pw.println("/// Element type of arrays of arguments and results of batched calls.\n"
+                   + "trait BatchElement: Copy {\n"
+                   + "    unsafe fn get(env: RawEnv, array: jarray, start: jsize, buf: &mut [Self]);\n"
+                   + "    unsafe fn set(env: RawEnv, array: jarray, start: jsize, buf: &[Self]);\n"
+                   + "}");
+        for (Primitive type : Primitive.values()) {
+            if (!elementTypes.contains(type)) {
+                continue;
+            }
+            String typeName = type.capitalizedName();
+            pw.println("");
+            pw.printf("impl BatchElement for %s {\n", rustType(type));
+            pw.println("    unsafe fn get(env: RawEnv, array: jarray, start: jsize, buf: &mut [Self]) {");
+            pw.println("        let len = buf.len() as jsize;");
+            pw.printf("        unsafe { (**env).Get%sArrayRegion.unwrap()(env, array, start, len, buf.as_mut_ptr()) }\n",
+                      typeName);
+            pw.println("    }");
+            pw.println("");
+            pw.println("    unsafe fn set(env: RawEnv, array: jarray, start: jsize, buf: &[Self]) {");
+            pw.println("        let len = buf.len() as jsize;");
+            pw.printf("        unsafe { (**env).Set%sArrayRegion.unwrap()(env, array, start, len, buf.as_ptr()) }\n",
+                      typeName);
+            pw.println("    }");
+            pw.println("}");
+        }
+    }
+
+    /**
+     * Render the shim of the companion native of the given method.
+     */
+    static void renderShim(PrintWriter pw, MethodInfo method, String implTypeName, boolean registerNatives) {
+        boolean hasResult = method.retType() != Primitive.VOID;
+        List<String> params = new ArrayList<>();
+        params.add("mut env: JNIEnv<'a>");
+        params.add("_batch: JClass<'a>");
+        params.add(method.isStatic() ? "clazz: JClass<'a>" : "this: JObject<'a>");
+        List<Object> args = new ArrayList<>();
+        args.add("&mut env");
+        args.add(method.isStatic() ? "clazz" : "this");
+        for (Param<JavaType> param : method.originalParams()) {
+            String name = shimParamName(param);
+            params.add(String.format("%s: %sArray", name, rustType(param.type())));
+            args.add(name + "_buf[n]");
+        }
+        if (hasResult) {
+            params.add(String.format("results: %sArray", rustType(method.retType())));
+        }
+        params.add("count: jint");
+
+        pw.println("");
+        pw.printf("/// Makes `count` calls of `%s` batched by `%s`.\n", StringUtils.toSnakeCase(method.name()),
+                  ClassInfo.simpleNameOf(helperName(method.classInfo())));
+        pw.println(registerNatives ? "#[allow(non_snake_case)]" : "#[no_mangle]");
+        pw.println(RustFormatter.fnSignature(
+                0, String.format("extern \"system\" fn %s<'a>", companionMethod(method).jniFuncName()), params,
+                " -> jint {"));
+        if (hasResult || !method.originalParams().isEmpty()) {
+            pw.println("    let raw = env.get_raw();");
+        }
+        for (Param<JavaType> param : method.originalParams()) {
+            pw.printf("    let mut %s_buf = [0 as %s; BATCH_CHUNK];\n", shimParamName(param), rustType(param.type()));
+        }
+        if (hasResult) {
+            pw.printf("    let mut results_buf = [0 as %s; BATCH_CHUNK];\n", rustType(method.retType()));
+        }
+        pw.println("    let mut done = 0;");
+        pw.println("    while done < count {");
+        pw.println("        let len = (count - done).min(BATCH_CHUNK as jint) as usize;");
+        for (Param<JavaType> param : method.originalParams()) {
+            String name = shimParamName(param);
+            RustFormatter.Call get = RustFormatter.call(
+                    "BatchElement::get", "raw", name, "done", String.format("&mut %s_buf[..len]", name));
+            String line = String.format("        unsafe { %s };", get);
+            if (line.length() <= RustFormatter.MAX_WIDTH) {
+                pw.println(line);
+            } else {
+                pw.println("        unsafe {");
+                pw.println(RustFormatter.callLine(3, get, ""));
+                pw.println("        };");
+            }
+        }
+        pw.println("        let mut result = Ok(());");
+        pw.println("        let mut n = 0;");
+        pw.println("        while n < len {");
+        if (method.isStatic()) {
+            pw.println("            let clazz = unsafe { JClass::from_raw(clazz.as_raw()) };");
+        } else {
+            pw.println("            let this = unsafe { JObject::from_raw(this.as_raw()) };");
+        }
+        RustFormatter.Call call = RustFormatter.call(
+                implTypeName + "::" + StringUtils.toSnakeCase(method.name()), args.toArray());
+        if (hasResult) {
+            pw.println(RustFormatter.callLine(3, "match ", call, " {"));
+            pw.println("                Ok(ret) => results_buf[n] = ret,");
+            pw.println("                Err(e) => {");
+            pw.println("                    result = Err(e);");
+            pw.println("                    break;");
+            pw.println("                }");
+            pw.println("            }");
+        } else {
+            pw.println(RustFormatter.callLine(3, "if let Err(e) = ", call, " {"));
+            pw.println("                result = Err(e);");
+            pw.println("                break;");
+            pw.println("            }");
+        }
+        pw.println("            n += 1;");
+        pw.println("        }");
+        if (hasResult) {
+            pw.println("        unsafe { BatchElement::set(raw, results, done, &results_buf[..n]) };");
+        }
+        pw.println("        done += n as jint;");
+        pw.println("        wrap_error!(env, result, return done);");
+        pw.println("    }");
+        pw.println("    done");
+        pw.println("}");
+    }
+
+    /**
+     * Returns the names of nested classes of the helper class for the given methods, which are the method names
+     * capitalized, followed by the descriptors of parameters for overloaded methods.
+     */
+    private static Map<MethodInfo, String> nestedNames(List<MethodInfo> methods) {
+        Map<String, Integer> counts = new HashMap<>();
+        for (MethodInfo method : methods) {
+            counts.merge(method.name(), 1, Integer::sum);
+        }
+        Map<MethodInfo, String> names = new HashMap<>();
+        for (MethodInfo method : methods) {
+            String name = Character.toUpperCase(method.name().charAt(0)) + method.name().substring(1);
+            if (counts.get(method.name()) > 1) {
+                name += '_' + method.originalParams().stream()
+                                    .map(param -> param.type().descriptor())
+                                    .reduce("", String::concat);
+            }
+            names.put(method, name);
+        }
+        return names;
+    }
+
+    /**
+     * Render the Java class that batches calls of the given methods of the class.
+     */
+    static String renderHelper(ClassInfo classInfo, List<MethodInfo> methods) {
+        String helper = helperName(classInfo);
+        int idx = helper.lastIndexOf('.');
+        String pkg = idx < 0 ? null : helper.substring(0, idx);
+        String simpleName = helper.substring(idx + 1);
+        String className = classInfo.fqn().replace('$', '.');
+        Map<MethodInfo, String> nestedNames = nestedNames(methods);
+
+        StringWriter out = new StringWriter();
+        try (PrintWriter pw = new PrintWriter(out)) {
+            pw.println("// THIS FILE IS GENERATED AUTOMATICALLY. DO NOT EDIT!");
+            if (pkg != null) {
+                pw.printf("package %s;\n", pkg);
+                pw.println("");
+            }
+            pw.println("/**");
+            pw.printf(" * Batched calls of native methods of {@code %s}.\n", classInfo.fqn());
+            pw.println(" * Calls added to a batch are made in a single native call when the batch is flushed,");
+            pw.println(" * which saves the transition between Java and native code of each call.");
+            pw.println(" * Batches reuse their buffers, and aren't thread-safe.");
+            pw.println(" */");
+            pw.printf("public final class %s {\n", simpleName);
+            pw.printf("    private %s() {}\n", simpleName);
+            for (MethodInfo method : methods) {
+                renderNestedClass(pw, method, nestedNames.get(method), className);
+            }
+            pw.println("");
+            for (MethodInfo method : methods) {
+                MethodInfo companion = companionMethod(method);
+                List<String> params = new ArrayList<>();
+                params.add(method.isStatic() ? "Class<?> clazz" : className + " instance");
+                for (Param<JavaType> param : method.originalParams()) {
+                    params.add(String.format("%s[] %s", param.type().sourceName(), fieldName(param)));
+                }
+                if (method.retType() != Primitive.VOID) {
+                    params.add(method.retType().sourceName() + "[] results");
+                }
+                params.add("int count");
+                pw.printf("    private static native int %s(%s);\n", companion.name(), String.join(", ", params));
+            }
+            pw.println("}");
+        }
+        return out.toString();
+    }
+
+    private static void renderNestedClass(PrintWriter pw, MethodInfo method, String name, String className) {
+        boolean hasResult = method.retType() != Primitive.VOID;
+        List<Param<JavaType>> params = new ArrayList<>(method.originalParams());
+        // The capacity is held by the results array, or the first argument array if any
+        String capacityField = hasResult ? "results" : params.isEmpty() ? null : fieldName(params.get(0));
+
+        pw.println("");
+        pw.println("    /**");
+        pw.printf("     * Batched calls of {@code %s%s}.\n", method.name(), method.descriptor());
+        pw.println("     */");
+        pw.printf("    public static final class %s {\n", name);
+        if (!method.isStatic()) {
+            pw.printf("        private final %s instance;\n", className);
+        }
+        if (capacityField == null) {
+            pw.println("        private final int capacity;");
+        }
+        for (Param<JavaType> param : params) {
+            pw.printf("        private final %s[] %s;\n", param.type().sourceName(), fieldName(param));
+        }
+        if (hasResult) {
+            pw.printf("        private final %s[] results;\n", method.retType().sourceName());
+        }
+        pw.println("        private int size;");
+        if (hasResult) {
+            pw.println("        private int flushed;");
+        }
+        pw.println("");
+        pw.println("        /**");
+        pw.printf("         * Create a batch of up to {@code capacity} calls%s.\n",
+                  method.isStatic() ? "" : " on the instance");
+        pw.println("         */");
+        pw.printf("        public %s(%sint capacity) {\n", name, method.isStatic() ? "" : className + " instance, ");
+        pw.println("            if (capacity <= 0) {");
+        pw.println("                throw new IllegalArgumentException(\"capacity must be positive\");");
+        pw.println("            }");
+        if (!method.isStatic()) {
+            pw.println("            this.instance = instance;");
+        }
+        if (capacityField == null) {
+            pw.println("            this.capacity = capacity;");
+        }
+        for (Param<JavaType> param : params) {
+            pw.printf("            %s = new %s[capacity];\n", fieldName(param), param.type().sourceName());
+        }
+        if (hasResult) {
+            pw.printf("            results = new %s[capacity];\n", method.retType().sourceName());
+        }
+        pw.println("        }");
+        pw.println("");
+        pw.println("        /**");
+        pw.println("         * Adds a call with the arguments.");
+        pw.println("         * @return true if the batch is full, which must be flushed before adding more calls.");
+        pw.println("         */");
+        List<String> addParams = new ArrayList<>();
+        for (Param<JavaType> param : params) {
+            addParams.add(param.type().sourceName() + ' ' + fieldName(param));
+        }
+        String capacity = capacityField == null ? "capacity" : capacityField + ".length";
+        pw.printf("        public boolean add(%s) {\n", String.join(", ", addParams));
+        pw.printf("            if (size == %s) {\n", capacity);
+        pw.println("                throw new IllegalStateException(\"batch is full\");");
+        pw.println("            }");
+        for (Param<JavaType> param : params) {
+            pw.printf("            this.%s[size] = %s;\n", fieldName(param), fieldName(param));
+        }
+        pw.printf("            return ++size == %s;\n", capacity);
+        pw.println("        }");
+        pw.println("");
+        pw.println("        /**");
+        pw.println("         * Makes all added calls in a single native call, and empties the batch.");
+        pw.println("         * If a call throws an exception, the calls added after it aren't made, and no result of the");
+        pw.println("         * batch is available.");
+        pw.println("         * @return the number of calls made.");
+        pw.println("         */");
+        pw.println("        public int flush() {");
+        pw.println("            int count = size;");
+        pw.println("            size = 0;");
+        List<String> args = new ArrayList<>();
+        args.add(method.isStatic() ? className + ".class" : "instance");
+        for (Param<JavaType> param : params) {
+            args.add(fieldName(param));
+        }
+        if (hasResult) {
+            args.add("results");
+            // Left 0 if a call throws
+            pw.println("            flushed = 0;");
+        }
+        args.add("count");
+        String nativeCall = String.format("%s.%s(%s)", ClassInfo.simpleNameOf(helperName(method.classInfo())),
+                                          method.name(), String.join(", ", args));
+        if (hasResult) {
+            pw.printf("            flushed = %s;\n", nativeCall);
+            pw.println("            return flushed;");
+        } else {
+            pw.printf("            return %s;\n", nativeCall);
+        }
+        pw.println("        }");
+        if (hasResult) {
+            pw.println("");
+            pw.println("        /**");
+            pw.println("         * Returns the result of the call at the index among calls made by the last flush.");
+            pw.println("         */");
+            pw.printf("        public %s result(int index) {\n", method.retType().sourceName());
+            pw.println("            if (index < 0 || index >= flushed) {");
+            pw.println("                throw new IndexOutOfBoundsException(\"index: \" + index"
+                       + " + \", flushed: \" + flushed);");
+            pw.println("            }");
+            pw.println("            return results[index];");
+            pw.println("        }");
+        }
+        pw.println("    }");
+    }
+}
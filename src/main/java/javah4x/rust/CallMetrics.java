@@ -0,0 +1,311 @@
+package javah4x.rust;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Collections;
+
+import javah4x.ClassInfo;
+import javah4x.MethodInfo;
+import javah4x.NativeMethod;
+
+/**
+ * Renders the instrumentation of native methods, for {@link RustGenerator}.
+ *
+ * Each shim records the number of calls, the number of calls that returned an error and a histogram of the
+ * latency into counters of its method. Counters are atomics sharded by thread, each shard in its own cache
+ * line, so threads calling the same method rarely contend. All the instrumentation is compiled only when the
+ * cargo feature {@value #FEATURE} is enabled.
+ *
+ * Given the Java class {@code com.example.Foo}, the Java class {@code com.example.FooMetrics} is generated as
+ * well, which takes a snapshot of the counters through its native method exported by the module of
+ * {@code Foo}.
+ */
+final class CallMetrics {
+    static final String FEATURE = "javah4x-metrics";
+    static final String ACCESSOR_SUFFIX = "Metrics";
+    static final String SNAPSHOT_METHOD = "snapshot0";
+    /**
+     * Number of latency histogram buckets. The bucket i counts calls that took [2^i, 2^(i+1)) nanoseconds,
+     * except the last one which counts all slower calls.
+     */
+    static final int HISTOGRAM_BUCKETS = 32;
+    static final int SHARDS = 16;
+
+    private static final String CFG = String.format("#[cfg(feature = \"%s\")]", FEATURE);
+
+    private CallMetrics() {}
+
+    static String accessorName(ClassInfo classInfo) {
+        return classInfo.fqn().substring(0, classInfo.fqn().length() - classInfo.name().length())
+               + classInfo.name() + ACCESSOR_SUFFIX;
+    }
+
+    /**
+     * Returns the method that takes a snapshot of counters, declared by the accessor class.
+     */
+    static MethodInfo snapshotMethod(ClassInfo classInfo) {
+        String accessor = accessorName(classInfo);
+        ClassInfo accessorInfo = new ClassInfo(accessor, accessor.substring(accessor.lastIndexOf('.') + 1),
+                                               Collections.emptyList());
+        return new MethodInfo(accessorInfo,
+                              new NativeMethod(SNAPSHOT_METHOD, "()[J", true, Collections.emptyList()));
+    }
+
+    /**
+     * Render the runtime module and the counters of all native methods of the class.
+     */
+    static void renderRuntime(PrintWriter pw, ClassInfo classInfo) {
+        pw.println(CFG);
+        pw.println("mod metrics {");
+        pw.print(indent(RustFormatter.useBlock(Arrays.asList(
+                "std::sync::atomic::AtomicU64",
+                "std::sync::atomic::AtomicUsize",
+                "std::sync::atomic::Ordering",
+                "std::time::Instant"))));
+        pw.println("");
+        pw.printf("    pub const BUCKETS: usize = %d;\n", HISTOGRAM_BUCKETS);
+        pw.printf("    const SHARDS: usize = %d;\n", SHARDS);
+        pw.println("\n"
+                   + "    #[repr(align(64))]\n"
+                   + "    struct Shard {\n"
+                   + "        calls: AtomicU64,\n"
+                   + "        errors: AtomicU64,\n"
+                   + "        latency: [AtomicU64; BUCKETS],\n"
+                   + "    }\n"
+                   + "\n"
+                   + "    #[allow(clippy::declare_interior_mutable_const)]\n"
+                   + "    const ZERO: AtomicU64 = AtomicU64::new(0);\n"
+                   + "    #[allow(clippy::declare_interior_mutable_const)]\n"
+                   + "    const SHARD: Shard = Shard {\n"
+                   + "        calls: ZERO,\n"
+                   + "        errors: ZERO,\n"
+                   + "        latency: [ZERO; BUCKETS],\n"
+                   + "    };\n"
+                   + "\n"
+                   + "    /// Counters of a native method, sharded by thread.\n"
+                   + "    pub struct MethodMetrics {\n"
+                   + "        shards: [Shard; SHARDS],\n"
+                   + "    }\n"
+                   + "\n"
+                   + "    #[allow(clippy::declare_interior_mutable_const)]\n"
+                   + "    pub const METHOD: MethodMetrics = MethodMetrics {\n"
+                   + "        shards: [SHARD; SHARDS],\n"
+                   + "    };\n"
+                   + "\n"
+                   + "    static NEXT_SHARD: AtomicUsize = AtomicUsize::new(0);\n"
+                   + "\n"
+                   + "    thread_local! {\n"
+                   + "        static SHARD_INDEX: usize = NEXT_SHARD.fetch_add(1, Ordering::Relaxed) % SHARDS;\n"
+                   + "    }\n"
+                   + "\n"
+                   + "    /// Returns calls, errors and latency histogram of each method, summed over shards.\n"
+                   + "    pub fn snapshot(methods: &[MethodMetrics]) -> Vec<i64> {\n"
+                   + "        let mut values = Vec::with_capacity(methods.len() * (BUCKETS + 2));\n"
+                   + "        for method in methods {\n"
+                   + "            let mut counts = [0u64; BUCKETS + 2];\n"
+                   + "            for shard in &method.shards {\n"
+                   + "                counts[0] += shard.calls.load(Ordering::Relaxed);\n"
+                   + "                counts[1] += shard.errors.load(Ordering::Relaxed);\n"
+                   + "                for (count, bucket) in counts[2..].iter_mut().zip(&shard.latency) {\n"
+                   + "                    *count += bucket.load(Ordering::Relaxed);\n"
+                   + "                }\n"
+                   + "            }\n"
+                   + "            values.extend(counts.iter().map(|&count| count as i64));\n"
+                   + "        }\n"
+                   + "        values\n"
+                   + "    }\n"
+                   + "\n"
+                   + "    /// Records a call into the shard of the current thread when dropped.\n"
+                   + "    pub struct MethodTimer {\n"
+                   + "        shard: &'static Shard,\n"
+                   + "        start: Instant,\n"
+                   + "    }\n"
+                   + "\n"
+                   + "    impl MethodTimer {\n"
+                   + "        pub fn start(metrics: &'static MethodMetrics) -> MethodTimer {\n"
+                   + "            let index = SHARD_INDEX.with(|index| *index);\n"
+                   + "            MethodTimer {\n"
+                   + "                shard: &metrics.shards[index],\n"
+                   + "                start: Instant::now(),\n"
+                   + "            }\n"
+                   + "        }\n"
+                   + "\n"
+                   + "        pub fn failed(&self) {\n"
+                   + "            self.shard.errors.fetch_add(1, Ordering::Relaxed);\n"
+                   + "        }\n"
+                   + "    }\n"
+                   + "\n"
+                   + "    impl Drop for MethodTimer {\n"
+                   + "        fn drop(&mut self) {\n"
+                   + "            let nanos = self.start.elapsed().as_nanos() as u64;\n"
+                   + "            let log2 = 63 - (nanos | 1).leading_zeros() as usize;\n"
+                   + "            let bucket = log2.min(BUCKETS - 1);\n"
+                   + "            self.shard.calls.fetch_add(1, Ordering::Relaxed);\n"
+                   + "            self.shard.latency[bucket].fetch_add(1, Ordering::Relaxed);\n"
+                   + "        }\n"
+                   + "    }\n"
+                   + "}\n");
+        int methods = classInfo.methods().size();
+        pw.println(CFG);
+        pw.printf("static METRICS: [metrics::MethodMetrics; %d] = [metrics::METHOD; %d];\n", methods, methods);
+    }
+
+    private static String indent(String lines) {
+        return lines.replaceAll("(?m)^(?=.)", "    ");
+    }
+
+    /**
+     * Render the statement that starts timing a call, at the head of the shim of the method at the given
+     * index.
+     */
+    static void renderTimerStart(PrintWriter pw, int index) {
+        pw.println("    " + CFG);
+        pw.printf("    let timer = metrics::MethodTimer::start(&METRICS[%d]);\n", index);
+    }
+
+    /**
+     * Render the statement that counts an error when {@code result} is an error.
+     */
+    static void renderErrorCheck(PrintWriter pw) {
+        pw.println("    " + CFG);
+        pw.println("    if result.is_err() {");
+        pw.println("        timer.failed();");
+        pw.println("    }");
+    }
+
+    /**
+     * Render the exported function that takes a snapshot of counters, which returns an empty array when the
+     * feature is disabled.
+     */
+    static void renderSnapshotFunction(PrintWriter pw, ClassInfo classInfo, boolean registerNatives) {
+        pw.println("");
+        String accessor = accessorName(classInfo);
+        pw.printf("/// Takes a snapshot of counters for `%s`.\n", accessor.substring(accessor.lastIndexOf('.') + 1));
+        pw.println(registerNatives ? "#[allow(non_snake_case)]" : "#[no_mangle]");
+        pw.println(RustFormatter.fnSignature(
+                0, String.format("extern \"system\" fn %s<'a>", snapshotMethod(classInfo).jniFuncName()),
+                Arrays.asList("mut env: JNIEnv<'a>", "_clazz: JClass<'a>"), " -> jlongArray {"));
+        pw.println("    " + CFG);
+        pw.println("    let values = metrics::snapshot(&METRICS);");
+        pw.printf("    #[cfg(not(feature = \"%s\"))]\n", FEATURE);
+        pw.println("    let values: Vec<jlong> = Vec::new();");
+        pw.println("    let array = match env.new_long_array(values.len() as jsize) {");
+        pw.println("        Ok(array) => array,");
+        pw.println("        Err(_) => return JObject::null().into_raw(),");
+        pw.println("    };");
+        pw.println("    if env.set_long_array_region(&array, 0, &values).is_err() {");
+        pw.println("        return JObject::null().into_raw();");
+        pw.println("    }");
+        pw.println("    array.into_raw()");
+        pw.println("}");
+    }
+
+    /**
+     * Render the Java class that takes a snapshot of counters of native methods of the class.
+     */
+    static String renderAccessor(ClassInfo classInfo) {
+        String accessor = accessorName(classInfo);
+        int idx = accessor.lastIndexOf('.');
+        String pkg = idx < 0 ? null : accessor.substring(0, idx);
+        String simpleName = accessor.substring(idx + 1);
+
+        StringWriter out = new StringWriter();
+        try (PrintWriter pw = new PrintWriter(out)) {
+            pw.println("// THIS FILE IS GENERATED AUTOMATICALLY. DO NOT EDIT!");
+            if (pkg != null) {
+                pw.printf("package %s;\n", pkg);
+                pw.println("");
+            }
+            pw.println("import java.util.ArrayList;");
+            pw.println("import java.util.Collections;");
+            pw.println("import java.util.List;");
+            pw.println("");
+            pw.println("/**");
+            pw.printf(" * Call metrics of native methods of {@code %s}.\n", classInfo.fqn());
+            pw.printf(" * Metrics are recorded only when the native library is built with the \"%s\" feature,\n",
+                      FEATURE);
+            pw.println(" * and the library must be loaded before taking a snapshot.");
+            pw.println(" */");
+            pw.printf("public final class %s {\n", simpleName);
+            pw.println("    /**");
+            pw.println("     * Number of latency histogram buckets. The bucket i counts calls that took [2^i, 2^(i+1))");
+            pw.println("     * nanoseconds, except the last one which counts all slower calls.");
+            pw.println("     */");
+            pw.printf("    public static final int HISTOGRAM_BUCKETS = %d;\n", HISTOGRAM_BUCKETS);
+            pw.println("    private static final String[] METHODS = {");
+            for (MethodInfo method : classInfo.methods()) {
+                pw.printf("            \"%s%s\",\n", method.name(), method.descriptor());
+            }
+            pw.println("    };");
+            pw.println("");
+            pw.printf("    private %s() {}\n", simpleName);
+            pw.println("\n"
+                       + "    /**\n"
+                       + "     * Metrics of a native method.\n"
+                       + "     */\n"
+                       + "    public static final class MethodMetrics {\n"
+                       + "        private final String method;\n"
+                       + "        private final long calls;\n"
+                       + "        private final long errors;\n"
+                       + "        private final long[] latencyHistogram;\n"
+                       + "\n"
+                       + "        MethodMetrics(String method, long calls, long errors, long[] latencyHistogram) {\n"
+                       + "            this.method = method;\n"
+                       + "            this.calls = calls;\n"
+                       + "            this.errors = errors;\n"
+                       + "            this.latencyHistogram = latencyHistogram;\n"
+                       + "        }\n"
+                       + "\n"
+                       + "        /**\n"
+                       + "         * Returns the name and descriptor of the method, such as \"getInt()I\".\n"
+                       + "         */\n"
+                       + "        public String method() {\n"
+                       + "            return method;\n"
+                       + "        }\n"
+                       + "\n"
+                       + "        public long calls() {\n"
+                       + "            return calls;\n"
+                       + "        }\n"
+                       + "\n"
+                       + "        /**\n"
+                       + "         * Returns the number of calls that threw an exception from the implementation.\n"
+                       + "         */\n"
+                       + "        public long errors() {\n"
+                       + "            return errors;\n"
+                       + "        }\n"
+                       + "\n"
+                       + "        /**\n"
+                       + "         * Returns the number of calls in each latency bucket, see {@link #HISTOGRAM_BUCKETS}.\n"
+                       + "         */\n"
+                       + "        public long[] latencyHistogram() {\n"
+                       + "            return latencyHistogram.clone();\n"
+                       + "        }\n"
+                       + "    }\n"
+                       + "\n"
+                       + "    /**\n"
+                       + "     * Takes a snapshot of metrics of all native methods. Counters are never reset.\n"
+                       + "     * @return metrics of native methods, or an empty list when metrics aren't recorded.\n"
+                       + "     */\n"
+                       + "    public static List<MethodMetrics> snapshot() {\n"
+                       + "        long[] values = " + SNAPSHOT_METHOD + "();\n"
+                       + "        if (values.length == 0) {\n"
+                       + "            return Collections.emptyList();\n"
+                       + "        }\n"
+                       + "        int stride = HISTOGRAM_BUCKETS + 2;\n"
+                       + "        List<MethodMetrics> metrics = new ArrayList<>(METHODS.length);\n"
+                       + "        for (int i = 0; i < METHODS.length; i++) {\n"
+                       + "            int base = i * stride;\n"
+                       + "            long[] histogram = new long[HISTOGRAM_BUCKETS];\n"
+                       + "            System.arraycopy(values, base + 2, histogram, 0, HISTOGRAM_BUCKETS);\n"
+                       + "            metrics.add(new MethodMetrics(METHODS[i], values[base], values[base + 1], histogram));\n"
+                       + "        }\n"
+                       + "        return Collections.unmodifiableList(metrics);\n"
+                       + "    }\n"
+                       + "\n"
+                       + "    private static native long[] " + SNAPSHOT_METHOD + "();\n"
+                       + "}");
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,137 @@
+package javah4x.rust;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javah4x.ClassInfo;
+import javah4x.GeneratorOptions;
+
+/**
+ * Renders the cache of exception classes thrown by a module, for {@link RustGenerator}.
+ *
+ * Given the Java class {@code com.example.Foo} and "exceptions" listing binary names of exception classes, the
+ * enum {@code JniFooException} has a variant named after the simple name of each class, and the error type
+ * {@code JniFooError} pairs a variant with a message. Global references to the classes and IDs of their
+ * constructors taking a message are looked up once, by {@code register_natives} or the first throw, so throwing
+ * a {@code JniFooError} from a trait function neither finds the class nor looks up its constructor.
+ * The message is a {@code CStr}, which is passed to {@code NewStringUTF} as is, so a static message is thrown
+ * without any allocation on the Rust side.
+ */
+final class ExceptionCache {
+    private ExceptionCache() {}
+
+    /**
+     * Returns the binary names of the exception classes of the class, which are empty if the option isn't
+     * given.
+     */
+    static List<String> exceptionClasses(GeneratorOptions options, ClassInfo classInfo) {
+        String value = options.get("exceptions", classInfo, "");
+        List<String> classes = new ArrayList<>();
+        Set<String> names = new HashSet<>();
+        for (String exception : value.split(",")) {
+            exception = exception.trim();
+            if (exception.isEmpty()) {
+                continue;
+            }
+            if (!names.add(ClassInfo.simpleNameOf(exception))) {
+                throw new IllegalArgumentException("exceptions of the same simple name: " + value);
+            }
+            classes.add(exception);
+        }
+        return classes;
+    }
+
+    static String enumName(ClassInfo classInfo) {
+        return String.format("Jni%sException", classInfo.name());
+    }
+
+    static String errorName(ClassInfo classInfo) {
+        return String.format("Jni%sError", classInfo.name());
+    }
+
+    /**
+     * Returns the paths that the module needs to import for {@link #render(PrintWriter, ClassInfo, List)}.
+     */
+    static List<String> uses() {
+        return Arrays.asList("std::borrow::Cow", "std::ffi::CStr", "std::sync::OnceLock");
+    }
+
+    static void render(PrintWriter pw, ClassInfo classInfo, List<String> exceptionClasses) {
+        String enumName = enumName(classInfo);
+        String errorName = errorName(classInfo);
+        int size = exceptionClasses.size();
+
+        pw.printf("/// Exceptions of `%s`, whose classes and constructors are looked up once.\n", errorName);
+        pw.println("#[allow(dead_code)]");
+        pw.println("#[derive(Clone, Copy, Debug, PartialEq, Eq)]");
+        pw.printf("pub(crate) enum %s {\n", enumName);
+        for (int i = 0; i < size; i++) {
+            pw.printf("    %s = %d,\n", ClassInfo.simpleNameOf(exceptionClasses.get(i)), i);
+        }
+        pw.println("}");
+        pw.println("");
+        List<Object> names = new ArrayList<>();
+        for (String exception : exceptionClasses) {
+            names.add('"' + exception.replace('.', '/') + '"');
+        }
+        pw.println(RustFormatter.callLine(0, String.format("const EXCEPTION_CLASSES: [&str; %d] = ", size),
+                                          RustFormatter.array(names.toArray()), ";"));
+        pw.println("");
+        pw.println("static EXCEPTIONS: OnceLock<Vec<(GlobalRef, JMethodID)>> = OnceLock::new();");
+        pw.println("");
+        pw.println("/// Returns the classes and constructors of exceptions, looking them up on the first call.");
+        pw.println("fn exceptions(env: &mut JNIEnv) -> jni::errors::Result<&'static [(GlobalRef, JMethodID)]> {\n"
+                   + "    if let Some(exceptions) = EXCEPTIONS.get() {\n"
+                   + "        return Ok(exceptions);\n"
+                   + "    }\n"
+                   + "    let mut exceptions = Vec::with_capacity(EXCEPTION_CLASSES.len());\n"
+                   + "    for name in EXCEPTION_CLASSES.iter() {\n"
+                   + "        let class = env.find_class(name)?;\n"
+                   + "        let constructor = env.get_method_id(&class, \"<init>\", \"(Ljava/lang/String;)V\")?;\n"
+                   + "        exceptions.push((env.new_global_ref(class)?, constructor));\n"
+                   + "    }\n"
+                   + "    Ok(EXCEPTIONS.get_or_init(|| exceptions))\n"
+                   + "}");
+        pw.println("");
+        pw.println("/// An error thrown as a new instance of its `exception` with the message.");
+        pw.println("#[allow(dead_code)]");
+        pw.println("#[derive(Debug)]");
+        pw.printf("pub(crate) struct %s {\n", errorName);
+        pw.printf("    pub(crate) exception: %s,\n", enumName);
+        pw.println("    pub(crate) message: Cow<'static, CStr>,");
+        pw.println("}");
+        pw.println("");
+        pw.println("#[allow(dead_code)]");
+        pw.printf("impl %s {\n", errorName);
+        pw.println(RustFormatter.fnSignature(
+                1, "pub(crate) fn new",
+                Arrays.asList("exception: " + enumName, "message: impl Into<Cow<'static, CStr>>"), " -> Self {"));
+        pw.println("        Self {\n"
+                   + "            exception,\n"
+                   + "            message: message.into(),\n"
+                   + "        }\n"
+                   + "    }\n"
+                   + "}");
+        pw.println("");
+        pw.printf("unsafe impl<'local> Desc<'local, JThrowable<'local>> for %s {\n", errorName);
+        pw.println("    type Output = JThrowable<'local>;\n"
+                   + "\n"
+                   + "    fn lookup(self, env: &mut JNIEnv<'local>) -> jni::errors::Result<JThrowable<'local>> {\n"
+                   + "        let (class, constructor) = &exceptions(env)?[self.exception as usize];\n"
+                   + "        let raw = env.get_raw();\n"
+                   + "        let message = unsafe { ((**raw).NewStringUTF.unwrap())(raw, self.message.as_ptr()) };\n"
+                   + "        if message.is_null() {\n"
+                   + "            return Err(jni::errors::Error::NullPtr(\"NewStringUTF\"));\n"
+                   + "        }\n"
+                   + "        let message = unsafe { JObject::from_raw(message) };\n"
+                   + "        let args = [JValue::Object(&message).as_jni()];\n"
+                   + "        let throwable = unsafe { env.new_object_unchecked(class, *constructor, &args)? };\n"
+                   + "        Ok(JThrowable::from(throwable))\n"
+                   + "    }\n"
+                   + "}");
+    }
+}
@@ -0,0 +1,107 @@
+package javah4x.rust;
+
+import javah4x.JavaType;
+import javah4x.JavaType.JArray;
+import javah4x.JavaType.JObject;
+import javah4x.JavaType.Primitive;
+
+/**
+ * Type mappings used by {@link RustFfmGenerator}, between Java types, memory layouts of the FFM API and Rust
+ * types of the C ABI.
+ *
+ * Supported types are primitives, primitive arrays except boolean[], which are passed as a pair of a pointer
+ * and a length, and {@link String} parameters, which are passed as NUL-terminated UTF-8 strings.
+ */
+public final class FfmTypes {
+    private FfmTypes() {}
+
+    /**
+     * Returns whether the given type can be passed as a parameter of a downcall.
+     * @param type the Java type.
+     * @return true if the type is supported.
+     */
+    public static boolean isSupportedParam(JavaType type) {
+        if (type instanceof Primitive) {
+            return type != Primitive.VOID;
+        }
+        if (type instanceof JArray) {
+            JavaType inner = ((JArray) type).innerType();
+            // There's no memory segment view of boolean[]
+            return inner instanceof Primitive && inner != Primitive.BOOLEAN;
+        }
+        return isString(type);
+    }
+
+    /**
+     * Returns whether the given type can be returned from a downcall.
+     * @param type the Java type.
+     * @return true if the type is supported.
+     */
+    public static boolean isSupportedReturn(JavaType type) {
+        return type instanceof Primitive;
+    }
+
+    /**
+     * Returns whether the given type is {@link String}.
+     * @param type the Java type.
+     * @return true if the type is {@link String}.
+     */
+    public static boolean isString(JavaType type) {
+        return type instanceof JObject && "java.lang.String".equals(((JObject) type).name());
+    }
+
+    /**
+     * Returns the name of the {@code ValueLayout} constant for the given primitive type, e.g, "JAVA_INT".
+     * @param type a primitive type other than void.
+     * @return the name of the layout constant.
+     */
+    public static String layout(Primitive type) {
+        if (type == Primitive.VOID) {
+            throw new IllegalArgumentException("no layout for void");
+        }
+        return "JAVA_" + type;
+    }
+
+    /**
+     * Returns the Rust type of the C ABI that corresponds to the given primitive type, e.g, "i32" for int.
+     * @param type a primitive type.
+     * @return the Rust type.
+     */
+    public static String rustType(Primitive type) {
+        switch (type) {
+            case VOID:
+                return "()";
+            case BOOLEAN:
+                return "bool";
+            case BYTE:
+                return "i8";
+            case CHAR:
+                return "u16";
+            case SHORT:
+                return "i16";
+            case INT:
+                return "i32";
+            case LONG:
+                return "i64";
+            case FLOAT:
+                return "f32";
+            case DOUBLE:
+                return "f64";
+            default:
+                throw new RuntimeException("never happens");
+        }
+    }
+
+    /**
+     * Returns the function return signature for the given primitive type, e.g, " -&gt; i32", or empty string
+     * for void.
+     * @param type a primitive type.
+     * @return Rust function's return signature.
+     */
+    public static String fnReturnSign(Primitive type) {
+        if (type == Primitive.VOID) {
+            return "";
+        }
+        return " -> " + rustType(type);
+    }
+}
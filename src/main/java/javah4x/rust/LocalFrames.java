@@ -0,0 +1,134 @@
+package javah4x.rust;
+
+import java.io.PrintWriter;
+import java.util.Collection;
+
+import javah4x.GeneratorOptions;
+import javah4x.JavaType;
+import javah4x.JavaType.Primitive;
+import javah4x.JniType;
+import javah4x.MethodInfo;
+import javah4x.MethodInfo.Param;
+
+/**
+ * Renders local reference frames around calls of object-heavy methods, for {@link RustGenerator}.
+ *
+ * When "localFrames" is enabled for a method taking or returning an object array ({@code jobjectArray}), its
+ * shim pushes a local reference frame with {@code PushLocalFrame} before calling the trait function and pops it
+ * with {@code PopLocalFrame} after, so local references the implementation creates are freed at once on return
+ * instead of piling up in the frame of the native method. A returned object is carried over to the caller's
+ * frame, and an error is thrown before the frame is popped, so the error may refer to local references too.
+ *
+ * The capacity of the frame is {@value #BASE_CAPACITY}, the number of local references JNI guarantees, plus
+ * one for each reference parameter and return value, or "localFrameCapacity" if given.
+ * Implementations iterating object arrays can use {@code for_each_element}, which runs each element in a frame
+ * of its own, so local references don't grow with the length of the array.
+ */
+final class LocalFrames {
+    /**
+     * The capacity of a frame for a method without reference parameters or return value.
+     */
+    static final int BASE_CAPACITY = 16;
+
+    private final GeneratorOptions options;
+
+    LocalFrames(GeneratorOptions options) {
+        this.options = options;
+    }
+
+    /**
+     * Returns whether the shim of the given method pushes a local frame, which is when "localFrames" is
+     * enabled for the method and it takes or returns an object array.
+     */
+    boolean isApplicable(MethodInfo method) {
+        if (!options.getBoolean("localFrames", method, false)) {
+            return false;
+        }
+        if (method.retType().jniType() == JniType.OBJECT_ARRAY) {
+            return true;
+        }
+        return method.params().stream().anyMatch(param -> param.type() == JniType.OBJECT_ARRAY);
+    }
+
+    boolean isUsed(Collection<MethodInfo> methods) {
+        return methods.stream().anyMatch(this::isApplicable);
+    }
+
+    int capacity(MethodInfo method) {
+        int capacity = BASE_CAPACITY;
+        for (Param<JavaType> param : method.originalParams()) {
+            if (!(param.type() instanceof Primitive)) {
+                capacity++;
+            }
+        }
+        if (!(method.retType() instanceof Primitive)) {
+            capacity++;
+        }
+        return options.getInt("localFrameCapacity", method, capacity);
+    }
+
+    static void renderRuntime(PrintWriter pw) {
+        pw.println("/// Pops the local reference frame pushed for a call, keeping `result` valid in the caller's frame.\n"
+                   + "fn pop_frame(env: &JNIEnv, result: jobject) -> jobject {\n"
+                   + "    let result = unsafe { JObject::from_raw(result) };\n"
+                   + "    match unsafe { env.pop_local_frame(&result) } {\n"
+                   + "        Ok(result) => result.into_raw(),\n"
+                   + "        Err(_) => std::ptr::null_mut(),\n"
+                   + "    }\n"
+                   + "}\n"
+                   + "\n"
+                   + "/// Calls `f` with each element of `array` in a local reference frame of its own, which has room\n"
+                   + "/// for `capacity` references, so references created for an element are freed before the next.\n"
+                   + "#[allow(dead_code)]\n"
+                   + "fn for_each_element<'a, E>(\n"
+                   + "    env: &mut JNIEnv<'a>,\n"
+                   + "    array: jobjectArray,\n"
+                   + "    capacity: jint,\n"
+                   + "    mut f: impl for<'f> FnMut(&mut JNIEnv<'f>, jsize, JObject<'f>) -> Result<(), E>,\n"
+                   + ") -> Result<(), E>\n"
+                   + "where\n"
+                   + "    E: From<jni::errors::Error>,\n"
+                   + "{\n"
+                   + "    let array = unsafe { JObjectArray::from_raw(array) };\n"
+                   + "    for index in 0..env.get_array_length(&array)? {\n"
+                   + "        env.push_local_frame(capacity)?;\n"
+                   + "        let result = match env.get_object_array_element(&array, index) {\n"
+                   + "            Ok(element) => f(env, index, element),\n"
+                   + "            Err(e) => Err(e.into()),\n"
+                   + "        };\n"
+                   + "        unsafe { env.pop_local_frame(&JObject::null())? };\n"
+                   + "        result?;\n"
+                   + "    }\n"
+                   + "    Ok(())\n"
+                   + "}");
+    }
+
+    /**
+     * Render the statement that pushes the frame for the method, returning the default value if it fails, in
+     * which case {@code OutOfMemoryError} is pending.
+     */
+    void renderPush(PrintWriter pw, MethodInfo method) {
+        pw.printf("    if env.push_local_frame(%d).is_err() {\n", capacity(method));
+        pw.printf("        return %s;\n", RustJniTypes.defaultValue(method.retType().jniType()));
+        pw.println("    }");
+    }
+
+    /**
+     * Render the tail of the shim that pops the frame, given the expression that evaluates to the return value
+     * with throwing an error.
+     */
+    static void renderPop(PrintWriter pw, MethodInfo method, RustFormatter.Call wrapError) {
+        JniType retType = method.retType().jniType();
+        if (retType == JniType.VOID) {
+            pw.println(RustFormatter.callLine(1, wrapError, ";"));
+            pw.println("    pop_frame(&env, std::ptr::null_mut());");
+        } else if (method.retType() instanceof Primitive) {
+            pw.println(RustFormatter.callLine(1, "let value = ", wrapError, ";"));
+            pw.println("    pop_frame(&env, std::ptr::null_mut());");
+            pw.println("    value");
+        } else {
+            pw.println(RustFormatter.callLine(1, "let value = ", wrapError, ";"));
+            pw.println("    pop_frame(&env, value)");
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package javah4x.rust;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import javah4x.ClassInfo;
+import javah4x.JavaMember;
+import javah4x.JavaType;
+import javah4x.JavaType.Primitive;
+import javah4x.MethodInfo;
+import javah4x.NativeMethod;
+import javah4x.StringUtils;
+
+/**
+ * Renders the registry of IDs of a class and its non-native members, for {@link RustGenerator}.
+ *
+ * Given the Java class {@code com.example.Foo}, the struct {@code JniFooIds} holds a global reference to the
+ * class, and a method or field ID for each of its declared constructors, methods and fields. IDs are looked up
+ * once by {@code JniFooIds::get} and shared among threads, and for each constructor and method it has a typed
+ * helper that calls it through the unchecked JNI functions taking the ID, such as
+ * {@code call_on_data(env, obj, data)}.
+ *
+ * Names of IDs are the snake case names of members, where constructors are named "new" and fields are
+ * suffixed with "_field". Overloaded methods are distinguished by appending their mangled argument signature.
+ */
+final class MemberRegistry {
+    private static final Set<String> RUST_KEYWORDS = new HashSet<>(Arrays.asList(
+            "as", "async", "await", "box", "break", "const", "continue", "crate", "dyn", "else", "enum", "extern",
+            "false", "fn", "for", "if", "impl", "in", "let", "loop", "match", "mod", "move", "mut", "pub", "ref",
+            "return", "self", "static", "struct", "super", "trait", "true", "type", "unsafe", "use", "where",
+            "while", "yield"));
+    /**
+     * Names used in typed helpers, which parameters of members get renamed from.
+     */
+    private static final Set<String> RESERVED_PARAM_NAMES = new HashSet<>(Arrays.asList(
+            "env", "obj", "args", "ret", "id", "self"));
+
+    private MemberRegistry() {}
+
+    static String typeName(ClassInfo classInfo) {
+        return String.format("Jni%sIds", classInfo.name());
+    }
+
+    private static String staticName(ClassInfo classInfo) {
+        String name = StringUtils.toSnakeCase(classInfo.name());
+        return ("JNI" + (name.startsWith("_") ? name : '_' + name) + "_IDS").toUpperCase(Locale.ROOT);
+    }
+
+    /**
+     * Returns the paths that the module needs to import for {@link #render(PrintWriter, ClassInfo)}.
+     */
+    static List<String> uses() {
+        return Arrays.asList("jni::signature::Primitive", "jni::signature::ReturnType", "std::sync::OnceLock");
+    }
+
+    /**
+     * Returns the names of IDs for the members of the given class, in the order of
+     * {@link ClassInfo#members()}.
+     */
+    static List<String> idNames(ClassInfo classInfo) {
+        Map<String, Integer> counts = new HashMap<>();
+        for (JavaMember member : classInfo.members()) {
+            counts.merge(member.kind() + member.name(), 1, Integer::sum);
+        }
+        List<String> names = new ArrayList<>();
+        for (JavaMember member : classInfo.members()) {
+            if (member.kind() == JavaMember.Kind.FIELD) {
+                names.add(StringUtils.toSnakeCase(member.name()) + "_field");
+                continue;
+            }
+            String name = member.isConstructor() ? "new" : rustIdent(StringUtils.toSnakeCase(member.name()));
+            if (counts.get(member.kind() + member.name()) > 1) {
+                name = name.replace("r#", "") + "__" + argumentSignature(member);
+            }
+            names.add(name);
+        }
+        return names;
+    }
+
+    private static String argumentSignature(JavaMember member) {
+        MethodInfo method = asMethod(member);
+        StringBuilder sb = new StringBuilder();
+        for (MethodInfo.Param<JavaType> param : method.originalParams()) {
+            sb.append(param.type().jniTypeSign());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns a {@link MethodInfo} of the member to parse its descriptor.
+     */
+    private static MethodInfo asMethod(JavaMember member) {
+        return new MethodInfo(null, new NativeMethod(member.name(), member.descriptor(), member.isStatic(),
+                                                     member.paramNames()));
+    }
+
+    private static String rustIdent(String name) {
+        return RUST_KEYWORDS.contains(name) ? "r#" + name : name;
+    }
+
+    static void render(PrintWriter pw, ClassInfo classInfo) {
+        String typeName = typeName(classInfo);
+        String staticName = staticName(classInfo);
+        List<JavaMember> members = classInfo.members();
+        List<String> idNames = idNames(classInfo);
+
+        pw.printf("/// Cached IDs of `%s` and its members.\n", classInfo.fqn());
+        pw.println("#[allow(dead_code, non_snake_case)]");
+        pw.printf("pub(crate) struct %s {\n", typeName);
+        pw.println("    pub(crate) class: GlobalRef,");
+        for (int i = 0; i < members.size(); i++) {
+            pw.printf("    pub(crate) %s: %s,\n", idNames.get(i), idType(members.get(i)));
+        }
+        pw.println("}");
+        pw.println("");
+        pw.printf("static %s: OnceLock<%s> = OnceLock::new();\n", staticName, typeName);
+        pw.println("");
+        pw.println("#[allow(dead_code, non_snake_case)]");
+        pw.printf("impl %s {\n", typeName);
+        pw.println("    /// Returns the IDs, looking them up on the first call. The first call should be made from");
+        pw.println("    /// `JNI_OnLoad` or a native method of the class, so the class is found by its class loader.");
+        pw.printf("    pub(crate) fn get(env: &mut JNIEnv) -> jni::errors::Result<&'static %s> {\n", typeName);
+        pw.printf("        if let Some(ids) = %s.get() {\n", staticName);
+        pw.println("            return Ok(ids);");
+        pw.println("        }");
+        pw.println(RustFormatter.callLine(2, "let class = ", RustFormatter.call(
+                "env.find_class", '"' + classInfo.fqn().replace('.', '/') + '"'), "?;"));
+        pw.printf("        let ids = %s {\n", typeName);
+        for (int i = 0; i < members.size(); i++) {
+            JavaMember member = members.get(i);
+            pw.println(RustFormatter.callLine(3, idNames.get(i) + ": ", RustFormatter.call(
+                    "env." + lookupFunction(member), "&class", '"' + member.name() + '"',
+                    '"' + member.descriptor() + '"'), "?,"));
+        }
+        pw.println("            class: env.new_global_ref(class)?,");
+        pw.println("        };");
+        pw.printf("        Ok(%s.get_or_init(|| ids))\n", staticName);
+        pw.println("    }");
+        for (int i = 0; i < members.size(); i++) {
+            if (members.get(i).kind() == JavaMember.Kind.METHOD) {
+                renderHelper(pw, members.get(i), idNames.get(i));
+            }
+        }
+        pw.println("}");
+    }
+
+    private static String idType(JavaMember member) {
+        if (member.kind() == JavaMember.Kind.FIELD) {
+            return member.isStatic() ? "JStaticFieldID" : "JFieldID";
+        }
+        return member.isStatic() ? "JStaticMethodID" : "JMethodID";
+    }
+
+    private static String lookupFunction(JavaMember member) {
+        String kind = member.kind() == JavaMember.Kind.FIELD ? "field" : "method";
+        return (member.isStatic() ? "get_static_" : "get_") + kind + "_id";
+    }
+
+    private static void renderHelper(PrintWriter pw, JavaMember member, String idName) {
+        MethodInfo method = asMethod(member);
+        List<String> params = new ArrayList<>();
+        params.add("&self");
+        params.add("env: &mut JNIEnv<'local>");
+        if (!member.isStatic() && !member.isConstructor()) {
+            params.add("obj: &JObject");
+        }
+        List<Object> args = new ArrayList<>();
+        for (MethodInfo.Param<JavaType> param : method.originalParams()) {
+            String name = rustIdent(StringUtils.toSnakeCase(param.name()));
+            if (RESERVED_PARAM_NAMES.contains(name)) {
+                name += '_';
+            }
+            params.add(name + ": " + paramType(param.type()));
+            args.add(jvalue(param.type(), name));
+        }
+        String retType = member.isConstructor() ? "JObject<'local>" : returnType(method.retType());
+        String helperName = member.isConstructor() ? "new_object" + idName.substring("new".length())
+                                                   : "call_" + idName.replace("r#", "");
+
+        pw.println("");
+        pw.printf("    /// Calls `%s%s`.\n", member.name(), member.descriptor());
+        pw.println(RustFormatter.fnSignature(1, String.format("pub(crate) fn %s<'local>", helperName), params,
+                                             String.format(" -> jni::errors::Result<%s> {", retType)));
+        if (args.isEmpty()) {
+            pw.println("        let args: [jvalue; 0] = [];");
+        } else {
+            pw.println(RustFormatter.callLine(2, "let args = ", RustFormatter.array(args.toArray()), ";"));
+        }
+        pw.printf("        let id = self.%s;\n", idName);
+        if (member.isStatic() || member.isConstructor()) {
+            pw.println("        let class = &self.class;");
+        }
+        if (member.isConstructor()) {
+            pw.println("        unsafe { env.new_object_unchecked(class, id, &args) }");
+        } else {
+            pw.printf("        let ret = %s;\n", returnTypeDescriptor(method.retType()));
+            if (member.isStatic()) {
+                pw.println("        let value = unsafe { env.call_static_method_unchecked(class, id, ret, &args)? };");
+            } else {
+                pw.println("        let value = unsafe { env.call_method_unchecked(obj, id, ret, &args)? };");
+            }
+            pw.printf("        value.%s()\n", valueAccessor(method.retType()));
+        }
+        pw.println("    }");
+    }
+
+    private static String paramType(JavaType type) {
+        if (type instanceof Primitive) {
+            return RustJniTypes.rustJniType(type.jniType());
+        }
+        return "&JObject";
+    }
+
+    private static String jvalue(JavaType type, String name) {
+        if (!(type instanceof Primitive)) {
+            return String.format("JValue::Object(%s).as_jni()", name);
+        }
+        switch ((Primitive) type) {
+            case BOOLEAN:
+                return String.format("JValue::Bool(%s).as_jni()", name);
+            default:
+                return String.format("JValue::%s(%s).as_jni()", ((Primitive) type).capitalizedName(), name);
+        }
+    }
+
+    private static String returnType(JavaType type) {
+        if (type == Primitive.VOID) {
+            return "()";
+        }
+        if (type == Primitive.BOOLEAN) {
+            return "bool";
+        }
+        if (type instanceof Primitive) {
+            return RustJniTypes.rustJniType(type.jniType());
+        }
+        return "JObject<'local>";
+    }
+
+    private static String returnTypeDescriptor(JavaType type) {
+        if (type instanceof Primitive) {
+            return String.format("ReturnType::Primitive(Primitive::%s)", ((Primitive) type).capitalizedName());
+        }
+        return type instanceof JavaType.JArray ? "ReturnType::Array" : "ReturnType::Object";
+    }
+
+    private static String valueAccessor(JavaType type) {
+        if (type instanceof Primitive) {
+            return RustJniTypes.jvalueField((Primitive) type);
+        }
+        return "l";
+    }
+}
@@ -0,0 +1,401 @@
+package javah4x.rust;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import javah4x.ClassInfo;
+import javah4x.GeneratorOptions;
+import javah4x.JavaMember;
+import javah4x.MethodInfo;
+import javah4x.NativeMethod;
+import javah4x.StringUtils;
+
+/**
+ * Renders access to native handles, for {@link RustGenerator}.
+ *
+ * A native handle is a {@code long} field of a Java object holding a pointer to a Rust value the object owns.
+ * Given the Java class {@code com.example.Foo} and "handle" naming such a field, e.g, "nativeHandle", the trait
+ * functions of instance methods of the class take the value as {@code native_handle: &JniFooHandle}, or
+ * {@code &mut JniFooHandle} with "handleMut" enabled for the method, where {@code JniFooHandle} is defined in
+ * the {@code imp} module along with {@code JniFooImpl}. Methods whose trait functions take slices or string
+ * views don't take the handle.
+ * The shim reads the field with the unchecked {@code GetLongField} through its field ID, which is looked up
+ * once, by {@code register_natives} or the first call, and throws {@code IllegalStateException} if it's 0.
+ * {@code create_handle} and {@code destroy_handle} move a value into and out of the field, as a {@code Box}.
+ *
+ * A handle passed as {@code &mut} must not be used by another call at the same time, and neither the handle of
+ * an object may be destroyed while other calls are using it, which Java code has to ensure.
+ *
+ * With "handleCleaner" enabled for the class, the Java class {@code com.example.FooCleaner} registers owners of
+ * handles with a {@code java.lang.ref.Cleaner}. Handles of unreachable owners are queued into a lock-free batch
+ * and dropped {@value #CLEANER_BATCH_SIZE} at a time by the native {@code freeBatch(long[])}, so an owner costs
+ * a fraction of a JNI transition to free instead of one {@code close()} call. As the cleaner owns registered
+ * handles then, {@code create_handle} throws {@code IllegalStateException} instead of dropping the handle
+ * already stored.
+ */
+final class NativeHandles {
+    static final int CLEANER_BATCH_SIZE = 256;
+    private static final String CLEANER_SUFFIX = "Cleaner";
+
+    private final GeneratorOptions options;
+
+    NativeHandles(GeneratorOptions options) {
+        this.options = options;
+    }
+
+    /**
+     * Returns the name of the handle field of the class, or null if "handle" isn't given or the class doesn't
+     * declare the field.
+     */
+    String handleField(ClassInfo classInfo) {
+        String name = options.get("handle", classInfo, "");
+        if (name.isEmpty()) {
+            return null;
+        }
+        for (JavaMember member : classInfo.members()) {
+            if (member.kind() == JavaMember.Kind.FIELD && member.name().equals(name)) {
+                if (member.isStatic() || !"J".equals(member.descriptor())) {
+                    throw new IllegalArgumentException(
+                            String.format("handle must be a long instance field: %s.%s", classInfo.fqn(), name));
+                }
+                return name;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns whether the trait function of the given method takes the handle, which is when it's an instance
+     * method of a class having the handle field.
+     */
+    boolean isApplicable(MethodInfo method) {
+        return !method.isStatic() && handleField(method.classInfo()) != null;
+    }
+
+    /**
+     * Returns whether the class has a cleaner companion, which is when "handleCleaner" is enabled for the class
+     * and it has the handle field.
+     */
+    boolean hasCleaner(ClassInfo classInfo) {
+        return options.getBoolean("handleCleaner", classInfo, false) && handleField(classInfo) != null;
+    }
+
+    static String cleanerName(ClassInfo classInfo) {
+        return classInfo.fqn() + CLEANER_SUFFIX;
+    }
+
+    /**
+     * Returns the native of the cleaner companion, {@code static native void freeBatch(long[] handles)}.
+     */
+    static MethodInfo freeBatchMethod(ClassInfo classInfo) {
+        String cleaner = cleanerName(classInfo);
+        ClassInfo cleanerInfo = new ClassInfo(cleaner, ClassInfo.simpleNameOf(cleaner), Collections.emptyList());
+        return new MethodInfo(cleanerInfo, new NativeMethod("freeBatch", "([J)V", true,
+                                                            Collections.singletonList("handles")));
+    }
+
+    static String typeName(ClassInfo classInfo) {
+        return String.format("Jni%sHandle", classInfo.name());
+    }
+
+    /**
+     * Returns the name of the parameter taking the handle, which is the snake case name of the field, followed
+     * by underscores if a parameter of the method has the same name.
+     */
+    static String paramName(MethodInfo method, String field) {
+        Set<String> names = method.params().stream()
+                                  .map(param -> StringUtils.toSnakeCase(param.name()))
+                                  .collect(Collectors.toSet());
+        String name = StringUtils.toSnakeCase(field);
+        while (names.contains(name)) {
+            name += '_';
+        }
+        return name;
+    }
+
+    /**
+     * Returns the parameter of the trait function taking the handle.
+     */
+    String traitParam(MethodInfo method, String field) {
+        return String.format("%s: &%s%s", paramName(method, field),
+                             options.getBoolean("handleMut", method, false) ? "mut " : "",
+                             typeName(method.classInfo()));
+    }
+
+    /**
+     * Returns the paths that the module needs to import for {@link #render(PrintWriter, ClassInfo, String)}.
+     */
+    static List<String> uses(ClassInfo classInfo) {
+        return Arrays.asList(String.format("self::%s::%s", RustGenerator.IMPL_MOD_NAME, typeName(classInfo)),
+                             "std::sync::OnceLock");
+    }
+
+    /**
+     * Render the statements of the shim that obtain the handle, returning the default value if it's 0.
+     */
+    void renderShimHandle(PrintWriter pw, MethodInfo method, String field) {
+        String name = paramName(method, field);
+        String receiver = StringUtils.toSnakeCase(method.params().stream().skip(1).findFirst().get().name());
+        pw.println(RustFormatter.callLine(1, "let " + name + " = ", RustFormatter.macroCall(
+                "wrap_error!", "env", RustFormatter.call("handle_ptr", "&mut env", '&' + receiver),
+                "return " + RustJniTypes.defaultValue(method.retType().jniType())), ";"));
+        pw.printf("    let %s = unsafe { &%s*%s };\n", name,
+                  options.getBoolean("handleMut", method, false) ? "mut " : "", name);
+    }
+
+    /**
+     * Render the field ID and the functions accessing the handle. With the cleaner, {@code create_handle} doesn't
+     * replace a handle, which the cleaner would free again.
+     */
+    static void render(PrintWriter pw, ClassInfo classInfo, String field, boolean cleaner) {
+        String type = typeName(classInfo);
+        pw.println("static HANDLE_FIELD: OnceLock<JFieldID> = OnceLock::new();");
+        pw.println("");
+        pw.printf("/// Returns the field ID of `%s`, looking it up on the first call.\n", field);
+        pw.println("fn handle_field(env: &mut JNIEnv) -> jni::errors::Result<JFieldID> {\n"
+                   + "    if let Some(field) = HANDLE_FIELD.get() {\n"
+                   + "        return Ok(*field);\n"
+                   + "    }");
+        pw.println(RustFormatter.callLine(1, "let field = ", RustFormatter.call(
+                "env.get_field_id", '"' + classInfo.fqn().replace('.', '/') + '"', '"' + field + '"', "\"J\""),
+                                          "?;"));
+        pw.println("    Ok(*HANDLE_FIELD.get_or_init(|| field))\n"
+                   + "}");
+        pw.println("");
+        pw.printf("/// Returns the handle stored in `%s` of `obj`, which must not be 0.\n", field);
+        pw.println(RustFormatter.fnSignature(0, "fn handle_ptr", Arrays.asList("env: &mut JNIEnv", "obj: &JObject"),
+                                             String.format(" -> Result<*mut %s, (&'static str, String)> {", type)));
+        pw.println("    let field = match handle_field(env) {\n"
+                   + "        Ok(field) => field,\n"
+                   + "        Err(e) => return Err((\"java/lang/RuntimeException\", e.to_string())),\n"
+                   + "    };\n"
+                   + "    let raw = env.get_raw();\n"
+                   + "    let handle = unsafe { ((**raw).GetLongField.unwrap())(raw, obj.as_raw(), field.into_raw()) };\n"
+                   + "    if handle == 0 {");
+        pw.printf("        let message = \"%s is 0\";\n", field);
+        pw.println("        return Err((\"java/lang/IllegalStateException\", message.to_string()));\n"
+                   + "    }");
+        pw.printf("    Ok(handle as *mut %s)\n", type);
+        pw.println("}");
+        pw.println("");
+        pw.printf("/// Moves `handle` into a new box and stores its pointer into `%s` of `obj`.\n", field);
+        if (cleaner) {
+            pw.println("/// Throws `IllegalStateException` if `obj` has a handle, which its cleaner frees.");
+        } else {
+            pw.println("/// The handle stored before, if any, is dropped.");
+        }
+        pw.println("#[allow(dead_code)]");
+        pw.println(RustFormatter.fnSignature(
+                0, "pub(crate) fn create_handle", Arrays.asList("env: &mut JNIEnv", "obj: &JObject", "handle: " + type),
+                " -> jni::errors::Result<()> {"));
+        pw.println("    let field = handle_field(env)?;\n"
+                   + "    let raw = env.get_raw();");
+        if (cleaner) {
+            pw.println("    let prev = unsafe { ((**raw).GetLongField.unwrap())(raw, obj.as_raw(), field.into_raw()) };\n"
+                       + "    if prev != 0 {");
+            pw.printf("        let message = \"%s is already set\";\n", field);
+            pw.println("        env.throw_new(\"java/lang/IllegalStateException\", message)?;\n"
+                       + "        return Err(jni::errors::Error::JavaException);\n"
+                       + "    }\n"
+                       + "    let ptr = Box::into_raw(Box::new(handle));\n"
+                       + "    unsafe { ((**raw).SetLongField.unwrap())(raw, obj.as_raw(), field.into_raw(), ptr as jlong) };\n"
+                       + "    Ok(())\n"
+                       + "}");
+        } else {
+            pw.println("    let ptr = Box::into_raw(Box::new(handle));\n"
+                       + "    unsafe {\n"
+                       + "        let prev = ((**raw).GetLongField.unwrap())(raw, obj.as_raw(), field.into_raw());\n"
+                       + "        ((**raw).SetLongField.unwrap())(raw, obj.as_raw(), field.into_raw(), ptr as jlong);\n"
+                       + "        if prev != 0 {");
+            pw.printf("            drop(Box::from_raw(prev as *mut %s));\n", type);
+            pw.println("        }\n"
+                       + "    }\n"
+                       + "    Ok(())\n"
+                       + "}");
+        }
+        pw.println("");
+        pw.printf("/// Takes the handle out of `%s` of `obj`, leaving 0 there.\n", field);
+        pw.println("/// Dropping the returned box drops the handle. Returns `None` if `obj` has no handle.");
+        pw.println("#[allow(dead_code)]");
+        pw.println(RustFormatter.fnSignature(
+                0, "pub(crate) fn destroy_handle", Arrays.asList("env: &mut JNIEnv", "obj: &JObject"),
+                String.format(" -> jni::errors::Result<Option<Box<%s>>> {", type)));
+        pw.println("    let field = handle_field(env)?;\n"
+                   + "    let raw = env.get_raw();\n"
+                   + "    unsafe {\n"
+                   + "        let handle = ((**raw).GetLongField.unwrap())(raw, obj.as_raw(), field.into_raw());\n"
+                   + "        if handle == 0 {\n"
+                   + "            return Ok(None);\n"
+                   + "        }\n"
+                   + "        ((**raw).SetLongField.unwrap())(raw, obj.as_raw(), field.into_raw(), 0);");
+        pw.printf("        Ok(Some(Box::from_raw(handle as *mut %s)))\n", type);
+        pw.println("    }\n"
+                   + "}");
+    }
+
+    /**
+     * Render the function freeing a batch of handles for the cleaner companion, which copies handles from the
+     * array in chunks and drops each of them.
+     */
+    static void renderFreeBatch(PrintWriter pw, ClassInfo classInfo, boolean registerNatives) {
+        pw.println("");
+        pw.printf("/// Drops the handles freed by `%s` in a batch.\n", ClassInfo.simpleNameOf(cleanerName(classInfo)));
+        pw.println(registerNatives ? "#[allow(non_snake_case)]" : "#[no_mangle]");
+        pw.println(RustFormatter.fnSignature(
+                0, String.format("extern \"system\" fn %s<'a>", freeBatchMethod(classInfo).jniFuncName()),
+                Arrays.asList("env: JNIEnv<'a>", "_cleaner: JClass<'a>", "handles: jlongArray"), " {"));
+        pw.println("    let raw = env.get_raw();\n"
+                   + "    let len = unsafe { ((**raw).GetArrayLength.unwrap())(raw, handles) };");
+        pw.printf("    let mut buf = [0 as jlong; %d];\n", CLEANER_BATCH_SIZE);
+        pw.println("    let mut start = 0;\n"
+                   + "    while start < len {\n"
+                   + "        let n = (len - start).min(buf.len() as jsize);\n"
+                   + "        unsafe { ((**raw).GetLongArrayRegion.unwrap())(raw, handles, start, n, buf.as_mut_ptr()) };\n"
+                   + "        for &handle in &buf[..n as usize] {\n"
+                   + "            if handle != 0 {");
+        pw.printf("                let handle = handle as *mut %s;\n", typeName(classInfo));
+        pw.println("                drop(unsafe { Box::from_raw(handle) });\n"
+                   + "            }\n"
+                   + "        }\n"
+                   + "        start += n;\n"
+                   + "    }\n"
+                   + "}");
+    }
+
+    /**
+     * Render the Java class that frees handles of unreachable owners in batches.
+     * A batch is filled by reserving a slot and then writing to it, and the thread completing the last write
+     * frees the batch, so no lock is taken. {@code flush()} closes the current batch by reserving all of its
+     * remaining slots at once, completing their writes.
+     */
+    static String renderCleaner(ClassInfo classInfo) {
+        String cleaner = cleanerName(classInfo);
+        int idx = cleaner.lastIndexOf('.');
+        String pkg = idx < 0 ? null : cleaner.substring(0, idx);
+        String simpleName = cleaner.substring(idx + 1);
+
+        StringWriter out = new StringWriter();
+        try (PrintWriter pw = new PrintWriter(out)) {
+            pw.println("// THIS FILE IS GENERATED AUTOMATICALLY. DO NOT EDIT!");
+            if (pkg != null) {
+                pw.printf("package %s;\n", pkg);
+                pw.println("");
+            }
+            pw.println("import java.lang.ref.Cleaner;");
+            pw.println("import java.util.Arrays;");
+            pw.println("import java.util.concurrent.atomic.AtomicInteger;");
+            pw.println("import java.util.concurrent.atomic.AtomicReference;");
+            pw.println("");
+            pw.println("/**");
+            pw.printf(" * Frees native handles of {@code %s} after their owners become unreachable.\n", classInfo.fqn());
+            pw.println(" * Handles of registered owners are queued without locking, and freed by a single native call");
+            pw.println(" * for every {@value #BATCH_SIZE} handles, or by {@link #flush()}.");
+            pw.println(" */");
+            pw.printf("public final class %s {\n", simpleName);
+            pw.println("    /**\n"
+                       + "     * The number of handles freed by a native call.\n"
+                       + "     */");
+            pw.printf("    public static final int BATCH_SIZE = %d;\n", CLEANER_BATCH_SIZE);
+            pw.println("");
+            pw.println("    private static final Cleaner CLEANER = Cleaner.create();\n"
+                       + "    private static final AtomicReference<Batch> CURRENT = new AtomicReference<>(new Batch());\n");
+            pw.printf("    private %s() {}\n", simpleName);
+            pw.println("\n"
+                       + "    /**\n"
+                       + "     * Registers the owner of a native handle, whose handle is freed after the owner becomes phantom\n"
+                       + "     * reachable or the returned cleanable is cleaned. The handle must not be used after that, nor\n"
+                       + "     * freed in any other way.\n"
+                       + "     */\n"
+                       + "    public static Cleaner.Cleanable register(Object owner, long handle) {\n"
+                       + "        return CLEANER.register(owner, new Release(handle));\n"
+                       + "    }\n"
+                       + "\n"
+                       + "    /**\n"
+                       + "     * Frees handles queued so far, without waiting for the batch to fill up.\n"
+                       + "     */\n"
+                       + "    public static void flush() {\n"
+                       + "        CURRENT.getAndSet(new Batch()).close();\n"
+                       + "    }\n"
+                       + "\n"
+                       + "    private static void release(long handle) {\n"
+                       + "        while (true) {\n"
+                       + "            Batch batch = CURRENT.get();\n"
+                       + "            if (batch.add(handle)) {\n"
+                       + "                return;\n"
+                       + "            }\n"
+                       + "            CURRENT.compareAndSet(batch, new Batch());\n"
+                       + "        }\n"
+                       + "    }\n"
+                       + "\n"
+                       + "    /**\n"
+                       + "     * The cleaning action, which must not refer to the owner.\n"
+                       + "     */\n"
+                       + "    private static final class Release implements Runnable {\n"
+                       + "        private final long handle;\n"
+                       + "\n"
+                       + "        Release(long handle) {\n"
+                       + "            this.handle = handle;\n"
+                       + "        }\n"
+                       + "\n"
+                       + "        @Override\n"
+                       + "        public void run() {\n"
+                       + "            release(handle);\n"
+                       + "        }\n"
+                       + "    }\n"
+                       + "\n"
+                       + "    /**\n"
+                       + "     * Handles freed together. A slot is reserved before a handle is written to it, and the thread\n"
+                       + "     * completing the last write frees the batch.\n"
+                       + "     */\n"
+                       + "    private static final class Batch {\n"
+                       + "        private final long[] handles = new long[BATCH_SIZE];\n"
+                       + "        private final AtomicInteger reserved = new AtomicInteger();\n"
+                       + "        private final AtomicInteger written = new AtomicInteger();\n"
+                       + "        private volatile int count = BATCH_SIZE;\n"
+                       + "\n"
+                       + "        boolean add(long handle) {\n"
+                       + "            int index = reserved.getAndIncrement();\n"
+                       + "            if (index >= BATCH_SIZE) {\n"
+                       + "                return false;\n"
+                       + "            }\n"
+                       + "            handles[index] = handle;\n"
+                       + "            if (written.incrementAndGet() == BATCH_SIZE) {\n"
+                       + "                free();\n"
+                       + "            }\n"
+                       + "            return true;\n"
+                       + "        }\n"
+                       + "\n"
+                       + "        /**\n"
+                       + "         * Reserves all remaining slots, so the batch is freed once handles of the reserved ones are\n"
+                       + "         * written.\n"
+                       + "         */\n"
+                       + "        void close() {\n"
+                       + "            int n = Math.min(reserved.getAndAdd(BATCH_SIZE), BATCH_SIZE);\n"
+                       + "            if (n == BATCH_SIZE) {\n"
+                       + "                return;\n"
+                       + "            }\n"
+                       + "            count = n;\n"
+                       + "            if (written.addAndGet(BATCH_SIZE - n) == BATCH_SIZE) {\n"
+                       + "                free();\n"
+                       + "            }\n"
+                       + "        }\n"
+                       + "\n"
+                       + "        private void free() {\n"
+                       + "            int n = count;\n"
+                       + "            if (n > 0) {\n"
+                       + "                freeBatch(n == BATCH_SIZE ? handles : Arrays.copyOf(handles, n));\n"
+                       + "            }\n"
+                       + "        }\n"
+                       + "    }\n"
+                       + "\n"
+                       + "    private static native void freeBatch(long[] handles);\n"
+                       + "}");
+        }
+        return out.toString();
+    }
+}
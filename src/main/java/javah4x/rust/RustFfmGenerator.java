@@ -0,0 +1,416 @@
+package javah4x.rust;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javah4x.ClassInfo;
+import javah4x.CodeGenerator;
+import javah4x.GeneratorOptions;
+import javah4x.JavaType;
+import javah4x.JavaType.JArray;
+import javah4x.JavaType.Primitive;
+import javah4x.MethodInfo;
+import javah4x.MethodInfo.Param;
+import javah4x.StringUtils;
+
+/**
+ * A {@link CodeGenerator} implementation that generates bindings using the Foreign Function &amp; Memory
+ * (FFM) API of Java 22+ instead of JNI, for Rust language.
+ *
+ * Given the Java class {@code com.example.Foo}, this generator generates two files:
+ * <ul>
+ *     <li>the Rust module {@code com_example_Foo} that puts the trait named {@code FfmFoo} in it, with
+ *     exported {@code extern "C"} functions taking plain C types, and</li>
+ *     <li>the Java class {@code com.example.FooFfm} under the {@code java} directory, which has a static
+ *     method for each native method of {@code Foo} that calls the exported function through a downcall
+ *     method handle.</li>
+ * </ul>
+ * The implementor adds a submodule named {@code imp} with the implementation of {@code FfmFoo} named
+ * {@code FfmFooImpl} just like {@link RustGenerator}, and makes {@code Foo} delegate to {@code FooFfm}
+ * instead of declaring native methods. Since functions don't receive a {@code JNIEnv}, they can neither
+ * access the receiver object nor throw Java exceptions.
+ *
+ * Primitive array parameters are passed as a pointer and a length, and received as a mutable slice.
+ * {@link String} parameters are passed as NUL-terminated UTF-8 strings and received as {@code &CStr}.
+ * Methods having other types of parameters or non-primitive return type can't be called through this
+ * binding, and are left out with a comment in the generated Java class.
+ *
+ * Options:
+ * <ul>
+ *     <li>{@code ffmJavaDir}: the directory to put Java classes, relative to the output directory.
+ *     Defaults to "java".</li>
+ *     <li>{@code ffmCritical}: link downcalls with {@code Linker.Option.critical(true)}, so that arrays are
+ *     passed by the address of the Java heap without copying. Can be given per class or method (see
+ *     {@link GeneratorOptions#get(String, MethodInfo, String)}), and must only be enabled for functions
+ *     that return quickly and never call back into Java.</li>
+ * </ul>
+ *
+ * The generator itself runs on Java 8, while the generated Java code requires Java 22 or later.
+ * Instances are immutable and can be used from multiple threads concurrently.
+ */
+public class RustFfmGenerator implements CodeGenerator {
+    public static final String SYMBOL_PREFIX = "ffm";
+    public static final String COMPANION_SUFFIX = "Ffm";
+
+    private final GeneratorOptions options;
+    private final String javaDir;
+
+    public RustFfmGenerator(GeneratorOptions options) {
+        this.options = options;
+        javaDir = options.get("ffmJavaDir", "java");
+    }
+
+    public RustFfmGenerator() {
+        this(GeneratorOptions.empty());
+    }
+
+    @Override
+    public Map<String, byte[]> renderClass(ClassInfo classInfo) {
+        Map<String, byte[]> files = new LinkedHashMap<>();
+        files.put(classInfo.fullyQualifiedNameDelimitedWith("_") + '/' + RustGenerator.MOD_FILE_NAME,
+                  renderRust(classInfo).getBytes(UTF_8));
+        files.put(javaDir + '/' + companionName(classInfo).replace('.', '/') + ".java",
+                  renderJava(classInfo).getBytes(UTF_8));
+        return files;
+    }
+
+    @Override
+    public String fingerprint() {
+        return CodeGenerator.super.fingerprint() + ';' + options;
+    }
+
+    /**
+     * Returns the name of the exported function for the given method.
+     * It follows the naming convention of JNI, but prefixed with "ffm" instead of "Java" so the function never
+     * gets linked as a JNI native method by accident.
+     */
+    static String symbolName(MethodInfo method) {
+        return SYMBOL_PREFIX + method.jniFuncName().substring("Java".length());
+    }
+
+    private static String companionName(ClassInfo classInfo) {
+        return classInfo.fqn().substring(0, classInfo.fqn().length() - classInfo.name().length())
+               + classInfo.name() + COMPANION_SUFFIX;
+    }
+
+    private static boolean isSupported(MethodInfo method) {
+        if (!FfmTypes.isSupportedReturn(method.retType())) {
+            return false;
+        }
+        for (Param<JavaType> param : method.originalParams()) {
+            if (!FfmTypes.isSupportedParam(param.type())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static List<MethodInfo> supportedMethods(ClassInfo classInfo) {
+        List<MethodInfo> methods = new ArrayList<>();
+        for (MethodInfo method : classInfo.methods()) {
+            if (isSupported(method)) {
+                methods.add(method);
+            }
+        }
+        return methods;
+    }
+
+    String renderRust(ClassInfo classInfo) {
+        List<MethodInfo> methods = supportedMethods(classInfo);
+        boolean hasArray = false;
+        boolean hasString = false;
+        for (MethodInfo method : methods) {
+            for (Param<JavaType> param : method.originalParams()) {
+                hasArray |= param.type() instanceof JArray;
+                hasString |= FfmTypes.isString(param.type());
+            }
+        }
+
+        StringWriter out = new StringWriter();
+        try (PrintWriter pw = new PrintWriter(out)) {
+            String traitName = "Ffm" + classInfo.name();
+            String implTypeName = traitName + "Impl";
+
+            pw.println("// THIS FILE IS GENERATED AUTOMATICALLY. DO NOT EDIT!");
+            pw.printf("mod %s;\n", RustGenerator.IMPL_MOD_NAME);
+            pw.println("");
+            List<String> uses = new ArrayList<>();
+            uses.add(String.format("self::%s::%s", RustGenerator.IMPL_MOD_NAME, implTypeName));
+            if (hasString) {
+                uses.add("std::ffi::CStr");
+                uses.add("std::os::raw::c_char");
+            }
+            pw.print(RustFormatter.useBlock(uses));
+            pw.println("");
+
+            pw.printf("trait %s {\n", traitName);
+            for (MethodInfo method : methods) {
+                List<String> params = new ArrayList<>();
+                for (Param<JavaType> param : method.originalParams()) {
+                    params.add(String.format("%s: %s", StringUtils.toSnakeCase(param.name()),
+                                             traitParamType(param.type())));
+                }
+                pw.println(RustFormatter.fnSignature(
+                        1, "fn " + StringUtils.toSnakeCase(method.name()), params,
+                        FfmTypes.fnReturnSign((Primitive) method.retType()) + ';'));
+            }
+            pw.println("}");
+
+            if (hasArray) {
+                pw.println("");
+                pw.println("unsafe fn slice_mut<'a, T>(ptr: *mut T, len: usize) -> &'a mut [T] {\n"
+                           + "    if len == 0 {\n"
+                           + "        &mut []\n"
+                           + "    } else {\n"
+                           + "        unsafe { std::slice::from_raw_parts_mut(ptr, len) }\n"
+                           + "    }\n"
+                           + "}");
+            }
+
+            for (MethodInfo method : methods) {
+                List<String> params = new ArrayList<>();
+                List<String> conversions = new ArrayList<>();
+                List<Object> args = new ArrayList<>();
+                for (Param<JavaType> param : method.originalParams()) {
+                    String name = StringUtils.toSnakeCase(param.name());
+                    JavaType type = param.type();
+                    if (type instanceof JArray) {
+                        params.add(String.format("%s: *mut %s", name,
+                                                 FfmTypes.rustType((Primitive) ((JArray) type).innerType())));
+                        params.add(name + "_len: usize");
+                        conversions.add(String.format("let %s = unsafe { slice_mut(%s, %s_len) };",
+                                                      name, name, name));
+                    } else if (FfmTypes.isString(type)) {
+                        params.add(name + ": *const c_char");
+                        conversions.add(String.format("let %s = unsafe { CStr::from_ptr(%s) };", name, name));
+                    } else {
+                        params.add(String.format("%s: %s", name, FfmTypes.rustType((Primitive) type)));
+                    }
+                    args.add(name);
+                }
+                pw.println("");
+                pw.println("#[no_mangle]");
+                pw.println(RustFormatter.fnSignature(
+                        0, String.format("pub extern \"C\" fn %s", symbolName(method)), params,
+                        FfmTypes.fnReturnSign((Primitive) method.retType()) + " {"));
+                for (String conversion : conversions) {
+                    pw.println(RustFormatter.INDENT + conversion);
+                }
+                pw.println(RustFormatter.callLine(1, RustFormatter.call(
+                        implTypeName + "::" + StringUtils.toSnakeCase(method.name()), args.toArray()), ""));
+                pw.println("}");
+            }
+        }
+        return out.toString();
+    }
+
+    private static String traitParamType(JavaType type) {
+        if (type instanceof JArray) {
+            return String.format("&mut [%s]", FfmTypes.rustType((Primitive) ((JArray) type).innerType()));
+        }
+        if (FfmTypes.isString(type)) {
+            return "&CStr";
+        }
+        return FfmTypes.rustType((Primitive) type);
+    }
+
+    String renderJava(ClassInfo classInfo) {
+        String companion = companionName(classInfo);
+        int idx = companion.lastIndexOf('.');
+        String pkg = idx < 0 ? null : companion.substring(0, idx);
+        String simpleName = companion.substring(idx + 1);
+
+        boolean needsArena = false;
+        for (MethodInfo method : supportedMethods(classInfo)) {
+            needsArena |= needsArena(method);
+        }
+
+        StringWriter out = new StringWriter();
+        try (PrintWriter pw = new PrintWriter(out)) {
+            pw.println("// THIS FILE IS GENERATED AUTOMATICALLY. DO NOT EDIT!");
+            if (pkg != null) {
+                pw.printf("package %s;\n", pkg);
+                pw.println("");
+            }
+            if (needsArena) {
+                pw.println("import java.lang.foreign.Arena;");
+            }
+            pw.println("import java.lang.foreign.FunctionDescriptor;");
+            pw.println("import java.lang.foreign.Linker;");
+            pw.println("import java.lang.foreign.MemorySegment;");
+            pw.println("import java.lang.foreign.SymbolLookup;");
+            pw.println("import java.lang.foreign.ValueLayout;");
+            pw.println("import java.lang.invoke.MethodHandle;");
+            pw.println("");
+            pw.println("/**");
+            pw.printf(" * Calls native functions for {@code %s} through the FFM API.\n", classInfo.fqn());
+            pw.println(" * Native functions are looked up from libraries loaded by the class loader of this class.");
+            pw.println(" */");
+            pw.printf("public final class %s {\n", simpleName);
+            pw.println("    private static final Linker LINKER = Linker.nativeLinker();");
+            pw.println("    private static final SymbolLookup LOOKUP = SymbolLookup.loaderLookup();");
+            pw.println("");
+            for (MethodInfo method : classInfo.methods()) {
+                if (!isSupported(method)) {
+                    continue;
+                }
+                pw.printf("    private static final MethodHandle %s = downcall(\n", handleName(method));
+                pw.printf("            \"%s\",\n", symbolName(method));
+                pw.printf("            %s,\n", functionDescriptor(method));
+                pw.printf("            %s);\n", isCritical(method));
+            }
+            pw.println("");
+            pw.printf("    private %s() {}\n", simpleName);
+            for (MethodInfo method : classInfo.methods()) {
+                pw.println("");
+                if (isSupported(method)) {
+                    renderJavaMethod(pw, method);
+                } else {
+                    pw.printf("    // %s%s can't be called through FFM, keep it as a JNI native method.\n",
+                              method.name(), method.descriptor());
+                }
+            }
+            pw.println("");
+            pw.println("    private static MethodHandle downcall(String name, FunctionDescriptor descriptor, "
+                       + "boolean critical) {");
+            pw.println("        MemorySegment symbol = LOOKUP.find(name)");
+            pw.println("                                     .orElseThrow(() -> new UnsatisfiedLinkError(name));");
+            pw.println("        if (critical) {");
+            pw.println("            return LINKER.downcallHandle(symbol, descriptor, Linker.Option.critical(true));");
+            pw.println("        }");
+            pw.println("        return LINKER.downcallHandle(symbol, descriptor);");
+            pw.println("    }");
+            pw.println("");
+            pw.println("    private static RuntimeException rethrow(Throwable t) {");
+            pw.println("        if (t instanceof RuntimeException) {");
+            pw.println("            return (RuntimeException) t;");
+            pw.println("        }");
+            pw.println("        if (t instanceof Error) {");
+            pw.println("            throw (Error) t;");
+            pw.println("        }");
+            pw.println("        return new IllegalStateException(t);");
+            pw.println("    }");
+            pw.println("}");
+        }
+        return out.toString();
+    }
+
+    private void renderJavaMethod(PrintWriter pw, MethodInfo method) {
+        boolean critical = isCritical(method);
+        List<String> params = new ArrayList<>();
+        List<String> allocations = new ArrayList<>();
+        List<String> args = new ArrayList<>();
+        List<String> copyBacks = new ArrayList<>();
+        for (Param<JavaType> param : method.originalParams()) {
+            String name = param.name();
+            JavaType type = param.type();
+            params.add(type.sourceName() + ' ' + name);
+            if (type instanceof JArray) {
+                String layout = "ValueLayout." + FfmTypes.layout((Primitive) ((JArray) type).innerType());
+                if (critical) {
+                    // Critical downcalls can access the Java heap directly
+                    args.add(String.format("MemorySegment.ofArray(%s)", name));
+                } else {
+                    String segment = name + "Segment";
+                    allocations.add(String.format("MemorySegment %s = arena.allocateFrom(%s, %s);",
+                                                  segment, layout, name));
+                    args.add(segment);
+                    copyBacks.add(String.format("MemorySegment.copy(%s, %s, 0, %s, 0, %s.length);",
+                                                segment, layout, name, name));
+                }
+                args.add(String.format("(long) %s.length", name));
+            } else if (FfmTypes.isString(type)) {
+                args.add(String.format("arena.allocateFrom(%s)", name));
+            } else {
+                args.add(name);
+            }
+        }
+
+        Primitive retType = (Primitive) method.retType();
+        String invoke = String.format("%s.invokeExact(%s)", handleName(method), String.join(", ", args));
+        String indent = "            ";
+        pw.printf("    public static %s %s(%s) {\n", retType.sourceName(), method.name(),
+                  String.join(", ", params));
+        if (needsArena(method)) {
+            pw.println("        try (Arena arena = Arena.ofConfined()) {");
+        } else {
+            pw.println("        try {");
+        }
+        for (String allocation : allocations) {
+            pw.println(indent + allocation);
+        }
+        if (retType == Primitive.VOID) {
+            pw.println(indent + invoke + ';');
+        } else if (copyBacks.isEmpty()) {
+            pw.printf("%sreturn (%s) %s;\n", indent, retType.sourceName(), invoke);
+        } else {
+            pw.printf("%s%s result = (%s) %s;\n", indent, retType.sourceName(),
+                      retType.sourceName(), invoke);
+        }
+        for (String copyBack : copyBacks) {
+            pw.println(indent + copyBack);
+        }
+        if (retType != Primitive.VOID && !copyBacks.isEmpty()) {
+            pw.println(indent + "return result;");
+        }
+        pw.println("        } catch (Throwable t) {");
+        pw.println("            throw rethrow(t);");
+        pw.println("        }");
+        pw.println("    }");
+    }
+
+    private boolean isCritical(MethodInfo method) {
+        return options.getBoolean("ffmCritical", method, false);
+    }
+
+    private boolean needsArena(MethodInfo method) {
+        for (Param<JavaType> param : method.originalParams()) {
+            if (FfmTypes.isString(param.type()) || param.type() instanceof JArray && !isCritical(method)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the name of the field holding the downcall handle of the method, which is the method name followed
+     * by the mangled argument signature for overloaded methods, in upper snake case.
+     */
+    private static String handleName(MethodInfo method) {
+        String name = method.name();
+        long overloads = method.classInfo().methods().stream().filter(m -> m.name().equals(name)).count();
+        String jniName = method.jniFuncName();
+        int idx = jniName.lastIndexOf("__");
+        if (overloads > 1 && idx >= 0) {
+            return StringUtils.toSnakeCase(name + jniName.substring(idx)).toUpperCase(Locale.ROOT);
+        }
+        return StringUtils.toSnakeCase(name).toUpperCase(Locale.ROOT);
+    }
+
+    private static String functionDescriptor(MethodInfo method) {
+        List<String> layouts = new ArrayList<>();
+        for (Param<JavaType> param : method.originalParams()) {
+            if (param.type() instanceof Primitive) {
+                layouts.add("ValueLayout." + FfmTypes.layout((Primitive) param.type()));
+            } else {
+                layouts.add("ValueLayout.ADDRESS");
+                if (param.type() instanceof JArray) {
+                    layouts.add("ValueLayout.JAVA_LONG");
+                }
+            }
+        }
+        Primitive retType = (Primitive) method.retType();
+        if (retType == Primitive.VOID) {
+            return String.format("FunctionDescriptor.ofVoid(%s)", String.join(", ", layouts));
+        }
+        layouts.add(0, "ValueLayout." + FfmTypes.layout(retType));
+        return String.format("FunctionDescriptor.of(%s)", String.join(", ", layouts));
+    }
+}
@@ -0,0 +1,275 @@
+package javah4x.rust;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A small pretty-printer that lays out Rust code in the way rustfmt does with its default configuration,
+ * so that the generated code is already formatted without running rustfmt.
+ *
+ * Only the shapes of code this project generates are supported: function signatures, function and macro
+ * calls, array literals and blocks of use declarations.
+ */
+public final class RustFormatter {
+    /**
+     * Maximum width of a line, corresponds to rustfmt's "max_width".
+     */
+    public static final int MAX_WIDTH = 100;
+    /**
+     * Maximum width of the arguments of a function call to be put in a line, corresponds to rustfmt's
+     * "fn_call_width".
+     */
+    public static final int FN_CALL_WIDTH = 60;
+    public static final String INDENT = "    ";
+
+    private RustFormatter() {}
+
+    /**
+     * A function or macro call expression, or an array literal, that can be nested as an argument of another
+     * call.
+     */
+    public static final class Call {
+        private final String callee;
+        private final List<Object> args;
+        private final boolean macro;
+        private final char open;
+        private final char close;
+
+        private Call(String callee, List<Object> args, boolean macro, char open, char close) {
+            this.callee = callee;
+            this.args = args;
+            this.macro = macro;
+            this.open = open;
+            this.close = close;
+        }
+
+        @Override
+        public String toString() {
+            return format(0, "");
+        }
+
+        /**
+         * Format this call starting at the given indentation level.
+         * @param indent the indentation level of the line the call starts at.
+         * @param suffix the string that follows the call in the same line, such as ";".
+         * @return the formatted call, without leading indentation and suffix.
+         */
+        public String format(int indent, String suffix) {
+            return format(indent * INDENT.length(), indent * INDENT.length(), suffix.length());
+        }
+
+        private String format(int lineIndent, int column, int suffixLen) {
+            String oneLine = oneLine();
+            if (oneLine != null && column + oneLine.length() + suffixLen <= MAX_WIDTH) {
+                return oneLine;
+            }
+            String argIndent = spaces(lineIndent + INDENT.length());
+            StringBuilder sb = new StringBuilder(callee).append(open).append('\n');
+            for (int i = 0; i < args.size(); i++) {
+                Object arg = args.get(i);
+                // rustfmt never adds a trailing comma to macro arguments
+                String sep = i < args.size() - 1 || !macro ? "," : "";
+                sb.append(argIndent);
+                if (arg instanceof Call) {
+                    int argColumn = lineIndent + INDENT.length();
+                    sb.append(((Call) arg).format(argColumn, argColumn, sep.length()));
+                } else {
+                    sb.append(arg);
+                }
+                sb.append(sep).append('\n');
+            }
+            return sb.append(spaces(lineIndent)).append(close).toString();
+        }
+
+        /**
+         * Returns this call in a line, or null if arguments of this call or nested calls exceed
+         * {@link #FN_CALL_WIDTH}.
+         */
+        private String oneLine() {
+            List<String> parts = new ArrayList<>();
+            for (Object arg : args) {
+                String part = arg instanceof Call ? ((Call) arg).oneLine() : arg.toString();
+                if (part == null) {
+                    return null;
+                }
+                parts.add(part);
+            }
+            String joined = String.join(", ", parts);
+            if (joined.length() > FN_CALL_WIDTH) {
+                return null;
+            }
+            return callee + open + joined + close;
+        }
+    }
+
+    /**
+     * Create a function call expression.
+     * @param callee the function to call, e.g, "Foo::bar".
+     * @param args arguments, each either a {@link String} or a nested {@link Call}.
+     * @return a {@link Call}.
+     */
+    public static Call call(String callee, Object... args) {
+        return new Call(callee, Arrays.asList(args), false, '(', ')');
+    }
+
+    /**
+     * Create a macro call expression delimited with parentheses.
+     * @param name the macro name including "!", e.g, "wrap_error!".
+     * @param args arguments, each either a {@link String} or a nested {@link Call}.
+     * @return a {@link Call}.
+     */
+    public static Call macroCall(String name, Object... args) {
+        return new Call(name, Arrays.asList(args), true, '(', ')');
+    }
+
+    /**
+     * Create an array literal expression. The elements are laid out in the same way as call arguments.
+     * @param elements elements, each either a {@link String} or a nested {@link Call}.
+     * @return a {@link Call} that represents the array.
+     */
+    public static Call array(Object... elements) {
+        return new Call("", Arrays.asList(elements), false, '[', ']');
+    }
+
+    /**
+     * Format a line of statement or expression that consists of a call.
+     * @param indent the indentation level.
+     * @param call the call.
+     * @param suffix the string that follows the call, such as ";".
+     * @return the formatted line, without a trailing newline.
+     */
+    public static String callLine(int indent, Call call, String suffix) {
+        return callLine(indent, "", call, suffix);
+    }
+
+    /**
+     * Format a line of statement that ends with a call, such as "let x = foo(a, b);".
+     * @param indent the indentation level.
+     * @param prefix the string that precedes the call in the line, such as "let x = ".
+     * @param call the call.
+     * @param suffix the string that follows the call, such as ";".
+     * @return the formatted line, without a trailing newline.
+     */
+    public static String callLine(int indent, String prefix, Call call, String suffix) {
+        int lineIndent = indent * INDENT.length();
+        String formatted = call.format(lineIndent, lineIndent + prefix.length(), suffix.length());
+        if (formatted.indexOf('\n') >= 0 && prefix.endsWith("= ")) {
+            // Like rustfmt, the right-hand side goes to the next line if it fits in a line there
+            String oneLine = call.oneLine();
+            int nextIndent = lineIndent + INDENT.length();
+            if (oneLine != null && nextIndent + oneLine.length() + suffix.length() <= MAX_WIDTH) {
+                return spaces(lineIndent) + prefix.substring(0, prefix.length() - 1) + '\n' + spaces(nextIndent)
+                       + oneLine + suffix;
+            }
+        }
+        return spaces(lineIndent) + prefix + formatted + suffix;
+    }
+
+    /**
+     * Format a function signature.
+     * When the whole signature doesn't fit in a line, each parameter is put on its own line with a trailing
+     * comma.
+     * @param indent the indentation level.
+     * @param head the part of the signature before the parameters, e.g, "pub fn foo&lt;'a&gt;".
+     * @param params list of parameters, e.g, "env: JNIEnv&lt;'a&gt;".
+     * @param tail the part after the parameters, e.g, " -&gt; jint {" or ";".
+     * @return the formatted signature, without a trailing newline.
+     */
+    public static String fnSignature(int indent, String head, Collection<String> params, String tail) {
+        String prefix = spaces(indent * INDENT.length());
+        String oneLine = prefix + head + '(' + String.join(", ", params) + ')' + tail;
+        if (params.isEmpty() || oneLine.length() <= MAX_WIDTH) {
+            return oneLine;
+        }
+        StringBuilder sb = new StringBuilder(prefix).append(head).append("(\n");
+        for (String param : params) {
+            sb.append(prefix).append(INDENT).append(param).append(",\n");
+        }
+        return sb.append(prefix).append(')').append(tail).toString();
+    }
+
+    /**
+     * Format a block of use declarations, sorted in the order rustfmt reorders them.
+     * @param paths paths to import, e.g, "jni::JNIEnv".
+     * @return use declarations, each terminated by a newline.
+     */
+    public static String useBlock(Collection<String> paths) {
+        return useBlock("", paths);
+    }
+
+    /**
+     * Same as {@link #useBlock(Collection)}, with the visibility such as "pub " put before each use.
+     */
+    public static String useBlock(String visibility, Collection<String> paths) {
+        List<String> sorted = new ArrayList<>(paths);
+        sorted.sort(USE_ORDER);
+        StringBuilder sb = new StringBuilder();
+        for (String path : sorted) {
+            sb.append(visibility).append("use ").append(path).append(";\n");
+        }
+        return sb.toString();
+    }
+
+    private static final Comparator<String> USE_ORDER = (a, b) -> {
+        String[] as = a.split("::");
+        String[] bs = b.split("::");
+        for (int i = 0; i < Math.min(as.length, bs.length); i++) {
+            int c = compareSegment(as[i], bs[i]);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return Integer.compare(as.length, bs.length);
+    };
+
+    private static int segmentRank(String segment) {
+        switch (segment) {
+            case "self":
+                return 0;
+            case "super":
+                return 1;
+            case "crate":
+                return 2;
+            case "*":
+                return 4;
+            default:
+                return 3;
+        }
+    }
+
+    /**
+     * Compare path segments like rustfmt: self &lt; super &lt; crate &lt; identifiers &lt; glob, and
+     * snake_case &lt; CamelCase &lt; UPPER_SNAKE_CASE among identifiers.
+     */
+    private static int compareSegment(String a, String b) {
+        int c = Integer.compare(segmentRank(a), segmentRank(b));
+        if (c != 0 || segmentRank(a) != 3) {
+            return c;
+        }
+        c = Integer.compare(identRank(a), identRank(b));
+        return c != 0 ? c : a.compareTo(b);
+    }
+
+    private static int identRank(String ident) {
+        if (!Character.isUpperCase(ident.charAt(0))) {
+            return 0;
+        }
+        for (char ch : ident.toCharArray()) {
+            if (Character.isLowerCase(ch)) {
+                return 1;
+            }
+        }
+        return 2;
+    }
+
+    private static String spaces(int n) {
+        StringBuilder sb = new StringBuilder(n);
+        for (int i = 0; i < n; i++) {
+            sb.append(' ');
+        }
+        return sb.toString();
+    }
+}
@@ -1,22 +1,37 @@
 package javah4x.rust;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.stream.Collectors.toList;
 
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
 import javah4x.ClassInfo;
 import javah4x.CodeGenerator;
+import javah4x.GeneratorOptions;
+import javah4x.JavaType;
+import javah4x.JavaType.Primitive;
 import javah4x.JniType;
 import javah4x.MethodInfo;
 import javah4x.MethodInfo.Param;
+import javah4x.OutputSink;
 import javah4x.StringUtils;
 
 /**
@@ -33,115 +48,875 @@ import javah4x.StringUtils;
  * impl<'a> super::JniFoo<'a> for JniFooImpl {
  * ...
  * }
+ *
+ * With "aggregate" enabled, the output directory is the source root of a single crate instead: the code that
+ * doesn't depend on a class, such as {@code wrap_error!} and the runtime of array slices or asynchronous calls,
+ * is rendered once into the module {@code javah4x_rt} and each class module imports it, and {@code lib.rs}
+ * declares the runtime module followed by all class modules. Class modules then have only the trait, shims and
+ * what is specific to the class, so rustc parses and expands the common code once per crate rather than once
+ * per class. With "shards", classes are put into multiple such crates of a cargo workspace, see
+ * {@link ShardedCrates}.
+ *
+ * Instances are immutable and can be used from multiple threads concurrently.
  */
 public class RustGenerator implements CodeGenerator {
     public static final String IMPL_MOD_NAME = "imp";
+    public static final String MOD_FILE_NAME = "mod.rs";
+    public static final String ONLOAD_FILE_NAME = "jni_onload.rs";
+    public static final String RUNTIME_MOD_NAME = "javah4x_rt";
+    public static final String ROOT_FILE_NAME = "lib.rs";
+
+    /**
+     * Items of the runtime made public in the shared runtime module, which are ones at the top level except
+     * statics, and functions of inherent impls.
+     */
+    private static final Pattern RUNTIME_ITEM = Pattern.compile("^(unsafe )?(fn|struct|trait|type|const) ");
+    private static final Pattern RUNTIME_METHOD = Pattern.compile("^    (unsafe )?fn ");
 
-    private final boolean applyRustFmt;
+    private final GeneratorOptions options;
+    private final boolean rustfmtCheck;
+    private final boolean registerNatives;
+    private final boolean aggregate;
+    private final ShardedCrates shardedCrates;
+    private final ArraySlices arraySlices;
+    private final StringViews stringViews;
+    private final LocalFrames localFrames;
+    private final BatchCalls batchCalls;
+    private final AsyncCalls asyncCalls;
+    private final NativeHandles nativeHandles;
+    private final String metricsJavaDir;
+    private final String batchJavaDir;
+    private final String asyncJavaDir;
+    private final String cleanerJavaDir;
 
-    RustGenerator(boolean applyRustFmt) {
-        this.applyRustFmt = applyRustFmt;
+    public RustGenerator(GeneratorOptions options) {
+        this.options = options;
+        rustfmtCheck = options.getBoolean("rustfmtCheck", false);
+        registerNatives = options.getBoolean("registerNatives", false);
+        shardedCrates = new ShardedCrates(options);
+        // Each shard is an aggregated crate
+        aggregate = options.getBoolean("aggregate", false) || shardedCrates.isEnabled();
+        arraySlices = new ArraySlices(options);
+        stringViews = new StringViews(options);
+        localFrames = new LocalFrames(options);
+        batchCalls = new BatchCalls(options);
+        asyncCalls = new AsyncCalls(options);
+        nativeHandles = new NativeHandles(options);
+        metricsJavaDir = options.get("metricsJavaDir", "java");
+        batchJavaDir = options.get("batchJavaDir", "java");
+        asyncJavaDir = options.get("asyncJavaDir", "java");
+        cleanerJavaDir = options.get("cleanerJavaDir", "java");
     }
 
     public RustGenerator() {
-        this(true);
+        this(GeneratorOptions.empty());
     }
 
     @Override
-    public void generateClass(Path baseDir, ClassInfo classInfo) throws IOException {
-        String modName = classInfo.fullyQualifiedNameDelimitedWith("_");
-        Path modDir = baseDir.resolve(modName);
-        Files.createDirectories(modDir);
+    public Map<String, byte[]> renderClass(ClassInfo classInfo) {
+        String modFile = modName(classInfo) + '/' + MOD_FILE_NAME;
+        if (shardedCrates.isEnabled()) {
+            modFile = ShardedCrates.sourceDir(shardedCrates.shardOf(classInfo)) + modFile;
+        }
+        List<MethodInfo> batchMethods = batchMethods(classInfo.methods());
+        List<MethodInfo> asyncMethods = asyncMethods(classInfo.methods());
+        boolean cleaner = nativeHandles.hasCleaner(classInfo);
+        if (!isMetricsEnabled(classInfo) && batchMethods.isEmpty() && asyncMethods.isEmpty() && !cleaner) {
+            return Collections.singletonMap(modFile, render(classInfo).getBytes(UTF_8));
+        }
+        Map<String, byte[]> files = new LinkedHashMap<>();
+        files.put(modFile, render(classInfo).getBytes(UTF_8));
+        if (isMetricsEnabled(classInfo)) {
+            files.put(metricsJavaDir + '/' + CallMetrics.accessorName(classInfo).replace('.', '/') + ".java",
+                      CallMetrics.renderAccessor(classInfo).getBytes(UTF_8));
+        }
+        if (!batchMethods.isEmpty()) {
+            files.put(batchJavaDir + '/' + BatchCalls.helperName(classInfo).replace('.', '/') + ".java",
+                      BatchCalls.renderHelper(classInfo, batchMethods).getBytes(UTF_8));
+        }
+        if (!asyncMethods.isEmpty()) {
+            files.put(asyncJavaDir + '/' + AsyncCalls.helperName(classInfo).replace('.', '/') + ".java",
+                      AsyncCalls.renderHelper(classInfo, asyncMethods).getBytes(UTF_8));
+        }
+        if (cleaner) {
+            files.put(cleanerJavaDir + '/' + NativeHandles.cleanerName(classInfo).replace('.', '/') + ".java",
+                      NativeHandles.renderCleaner(classInfo).getBytes(UTF_8));
+        }
+        return files;
+    }
+
+    /**
+     * Returns methods that have batched variants, except ones whose trait functions take native handles.
+     */
+    private List<MethodInfo> batchMethods(Collection<MethodInfo> methods) {
+        return batchCalls.methods(methods).stream().filter(method -> !hasHandle(method)).collect(toList());
+    }
+
+    /**
+     * Returns methods that have asynchronous variants, except ones whose trait functions take slices, string
+     * views or native handles, which can't be borrowed by another thread.
+     */
+    private List<MethodInfo> asyncMethods(Collection<MethodInfo> methods) {
+        return methods.stream()
+                        .filter(method -> asyncCalls.isApplicable(method) && !arraySlices.isApplicable(method)
+                                          && !stringViews.isApplicable(method) && !hasHandle(method))
+                        .collect(toList());
+    }
+
+    /**
+     * Returns whether the trait function of the method takes the native handle, which the ones taking slices
+     * or string views don't.
+     */
+    private boolean hasHandle(MethodInfo method) {
+        return nativeHandles.isApplicable(method) && !arraySlices.isApplicable(method)
+               && !stringViews.isApplicable(method);
+    }
+
+    private boolean isMetricsEnabled(ClassInfo classInfo) {
+        return options.getBoolean("metrics", classInfo, false);
+    }
+
+    private static String modName(ClassInfo classInfo) {
+        return classInfo.fullyQualifiedNameDelimitedWith("_");
+    }
 
-        Path modFile = modDir.resolve("mod.rs");
-        try (PrintWriter pw = new PrintWriter(new FileOutputStream(modFile.toFile()))) {
+    String render(ClassInfo classInfo) {
+        StringWriter out = new StringWriter();
+        try (PrintWriter pw = new PrintWriter(out)) {
             String implTypeName = String.format("Jni%sImpl", classInfo.name());
+            List<MethodInfo> batchMethods = batchMethods(classInfo.methods());
+            List<MethodInfo> asyncMethods = asyncMethods(classInfo.methods());
 
             pw.println("// THIS FILE IS GENERATED AUTOMATICALLY. DO NOT EDIT!");
             pw.printf("mod %s;\n", IMPL_MOD_NAME);
             pw.println("");
-            pw.println("use jni::descriptors::Desc;");
-            pw.println("use jni::objects::*;");
-            pw.println("use jni::sys::*;");
-            pw.println("use jni::JNIEnv;");
-            pw.printf("use self::%s::%s;\n", IMPL_MOD_NAME, implTypeName);
+            boolean registry = options.getBoolean("registry", classInfo, false);
+            boolean metrics = isMetricsEnabled(classInfo);
+            List<String> exceptionClasses = ExceptionCache.exceptionClasses(options, classInfo);
+            String handleField = nativeHandles.handleField(classInfo);
+            boolean cleaner = nativeHandles.hasCleaner(classInfo);
+            boolean attach = options.getBoolean("attach", classInfo, false);
+            Set<String> uses = new LinkedHashSet<>();
+            if (aggregate) {
+                uses.add(String.format("crate::%s::*", RUNTIME_MOD_NAME));
+            } else {
+                uses.addAll(runtimeUses(classInfo.methods()));
+            }
+            uses.add(String.format("self::%s::%s", IMPL_MOD_NAME, implTypeName));
+            if (registry) {
+                uses.addAll(MemberRegistry.uses());
+            }
+            if (!exceptionClasses.isEmpty()) {
+                uses.addAll(ExceptionCache.uses());
+            }
+            if (handleField != null) {
+                uses.addAll(NativeHandles.uses(classInfo));
+            }
+            if (attach) {
+                uses.addAll(AttachedThreads.uses());
+            }
+            pw.print(RustFormatter.useBlock(uses));
             pw.println("");
-            pw.println("macro_rules! wrap_error {\n"
-                       + "    ($env:expr, $body:expr, $default:expr) => {\n"
-                       + "        match $body {\n"
-                       + "            Ok(v) => v,\n"
-                       + "            Err(e) => {\n"
-                       + "                if let Err(err) = $env.throw(e) {\n"
-                       + "                    $env.exception_describe().ok();\n"
-                       + "                    panic!(\"error in throwing exception: {}\", err);\n"
-                       + "                }\n"
-                       + "                $default\n"
-                       + "            }\n"
+            if (!aggregate) {
+                renderRuntime(pw, classInfo.methods());
+            }
+            if (metrics) {
+                CallMetrics.renderRuntime(pw, classInfo);
+                pw.println("");
+            }
+            if (registry) {
+                MemberRegistry.render(pw, classInfo);
+                pw.println("");
+            }
+            if (!exceptionClasses.isEmpty()) {
+                ExceptionCache.render(pw, classInfo, exceptionClasses);
+                pw.println("");
+            }
+            if (handleField != null) {
+                NativeHandles.render(pw, classInfo, handleField, cleaner);
+                pw.println("");
+            }
+            if (attach) {
+                AttachedThreads.render(pw, classInfo, registry);
+                pw.println("");
+            }
+
+            renderTrait(pw, classInfo);
+            renderShims(pw, classInfo, implTypeName, metrics);
+            if (metrics) {
+                CallMetrics.renderSnapshotFunction(pw, classInfo, registerNatives);
+            }
+            for (MethodInfo method : batchMethods) {
+                BatchCalls.renderShim(pw, method, implTypeName, registerNatives);
+            }
+            for (MethodInfo method : asyncMethods) {
+                AsyncCalls.renderShim(pw, method, implTypeName, registerNatives);
+            }
+            if (cleaner) {
+                NativeHandles.renderFreeBatch(pw, classInfo, registerNatives);
+            }
+            if (registerNatives) {
+                renderRegisterNatives(pw, classInfo, attach, registry, !exceptionClasses.isEmpty(),
+                                      handleField != null, metrics, batchMethods, asyncMethods, cleaner);
+            }
+        }
+        return out.toString();
+    }
+
+    private boolean hasDirectBuffer(Collection<MethodInfo> methods) {
+        return methods.stream().anyMatch(
+                method -> method.params().stream().anyMatch(p -> isDirectBuffer(method, p.type())));
+    }
+
+    /**
+     * Returns whether a parameter of the given type is passed to the trait function as a slice of the direct
+     * buffer, which is when "directBuffers" is enabled for the method. Otherwise it's passed as {@code JObject}.
+     */
+    private boolean isDirectBuffer(MethodInfo method, JniType type) {
+        return type == JniType.DIRECT_BUFFER && options.getBoolean("directBuffers", method, false);
+    }
+
+    /**
+     * Returns the paths that the code of the given methods and the runtime they use need to import.
+     */
+    private Set<String> runtimeUses(Collection<MethodInfo> methods) {
+        Set<String> uses = new LinkedHashSet<>(Arrays.asList(
+                "jni::descriptors::Desc",
+                "jni::objects::*",
+                "jni::sys::*",
+                "jni::JNIEnv"));
+        if (registerNatives) {
+            uses.add("jni::NativeMethod");
+            uses.add("std::os::raw::c_void");
+        }
+        if (!arraySlices.elementTypes(methods).isEmpty()) {
+            uses.addAll(ArraySlices.runtimeUses());
+        }
+        List<StringViews.Mode> stringModes = stringViews.modes(methods);
+        if (!stringModes.isEmpty()) {
+            uses.addAll(StringViews.runtimeUses(stringModes));
+        }
+        if (hasDirectBuffer(methods)) {
+            uses.add("std::sync::OnceLock");
+        }
+        if (!asyncMethods(methods).isEmpty()) {
+            uses.addAll(AsyncCalls.runtimeUses());
+        }
+        return uses;
+    }
+
+    /**
+     * Render the macros and the runtime that the given methods use, each followed by an empty line.
+     */
+    private void renderRuntime(PrintWriter pw, Collection<MethodInfo> methods) {
+        Set<Primitive> sliceElementTypes = arraySlices.elementTypes(methods);
+        List<StringViews.Mode> stringModes = stringViews.modes(methods);
+        List<MethodInfo> batchMethods = batchMethods(methods);
+        List<MethodInfo> asyncMethods = asyncMethods(methods);
+        pw.println("macro_rules! wrap_error {\n"
+                   + "    ($env:expr, $body:expr, $default:expr) => {\n"
+                   + "        match $body {\n"
+                   + "            Ok(v) => v,\n"
+                   + "            Err(e) => {\n"
+                   + "                if let Err(err) = $env.throw(e) {\n"
+                   + "                    $env.exception_describe().ok();\n"
+                   + "                    panic!(\"error in throwing exception: {}\", err);\n"
+                   + "                }\n"
+                   + "                $default\n"
+                   + "            }\n"
+                   + "        }\n"
+                   + "    };\n"
+                   + "}\n");
+        if (registerNatives) {
+            pw.println("macro_rules! native_method {\n"
+                       + "    ($name:expr, $sig:expr, $fn_ptr:expr) => {\n"
+                       + "        NativeMethod {\n"
+                       + "            name: $name.into(),\n"
+                       + "            sig: $sig.into(),\n"
+                       + "            fn_ptr: $fn_ptr as *mut c_void,\n"
                        + "        }\n"
                        + "    };\n"
                        + "}\n");
+        }
+        if (!sliceElementTypes.isEmpty() || !stringModes.isEmpty() || !batchMethods.isEmpty()) {
+            pw.println("type RawEnv = *mut jni::sys::JNIEnv;");
+            pw.println("");
+        }
+        if (!sliceElementTypes.isEmpty()) {
+            ArraySlices.renderRuntime(pw, sliceElementTypes);
+            pw.println("");
+        }
+        if (!stringModes.isEmpty()) {
+            StringViews.renderRuntime(pw, stringModes);
+            pw.println("");
+        }
+        if (!batchMethods.isEmpty()) {
+            BatchCalls.renderRuntime(pw, BatchCalls.elementTypes(batchMethods));
+            pw.println("");
+        }
+        if (hasDirectBuffer(methods)) {
+            renderDirectBufferRuntime(pw);
+            pw.println("");
+        }
+        if (!asyncMethods.isEmpty()) {
+            asyncCalls.renderRuntime(pw, AsyncCalls.boxedTypes(asyncMethods));
+            pw.println("");
+        }
+        if (localFrames.isUsed(methods)) {
+            LocalFrames.renderRuntime(pw);
+            pw.println("");
+        }
+    }
 
-            pw.printf("trait Jni%s<'a> {\n", classInfo.name());
-            pw.println("    type Error: Desc<'a, JThrowable<'a>>;");
-            for (MethodInfo method : classInfo.methods()) {
-                pw.printf("    fn %s(%s) -> Result<%s, Self::Error>;\n",
-                          StringUtils.toSnakeCase(method.name()),
-                          toRustParams(method.params(), true),
-                          RustJniTypes.rustJniType(method.retType().jniType()));
+    /**
+     * Render the runtime module shared by all class modules in aggregate mode, which re-exports the imports of
+     * class modules and makes the runtime public to them. The macros are made visible to the modules declared
+     * after it by {@code #[macro_use]} in the root module.
+     */
+    private String renderRuntimeModule(Collection<ClassInfo> classInfos) {
+        List<MethodInfo> methods = classInfos.stream()
+                                             .flatMap(classInfo -> classInfo.methods().stream())
+                                             .collect(toList());
+        StringWriter runtime = new StringWriter();
+        try (PrintWriter pw = new PrintWriter(runtime)) {
+            renderRuntime(pw, methods);
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append("// THIS FILE IS GENERATED AUTOMATICALLY. DO NOT EDIT!\n");
+        sb.append(RustFormatter.useBlock("pub ", runtimeUses(methods)));
+        sb.append('\n');
+        boolean inherentImpl = false;
+        for (String line : runtime.toString().trim().split("\n", -1)) {
+            if (line.startsWith("impl") || line.startsWith("unsafe impl")) {
+                inherentImpl = !line.contains(" for ");
+            } else if ("}".equals(line)) {
+                inherentImpl = false;
             }
-            pw.println("}");
-            pw.println("");
+            if (RUNTIME_ITEM.matcher(line).lookingAt()) {
+                sb.append("pub ");
+            } else if (inherentImpl && RUNTIME_METHOD.matcher(line).lookingAt()) {
+                sb.append("    pub");
+                line = line.substring(3);
+            }
+            sb.append(line).append('\n');
+        }
+        return sb.toString();
+    }
 
-            for (MethodInfo method : classInfo.methods()) {
-                pw.println("#[no_mangle]");
-                pw.printf("extern \"system\" fn %s<'a>(%s)%s {\n",
-                          method.jniFuncName(), toRustParams(method.params(), false),
-                          RustJniTypes.fnReturnSign(method.retType().jniType()));
-                pw.printf("    wrap_error!(env, %s::%s(&mut env, %s), %s)\n",
-                          implTypeName, StringUtils.toSnakeCase(method.name()),
-                          toRustParamNames(method.params().stream().skip(1).collect(toList())),
-                          RustJniTypes.defaultValue(method.retType().jniType()));
-                pw.println("}");
+    /**
+     * Render the crate root in aggregate mode, which declares the runtime module and all other modules.
+     * The root of a shard defines {@code register_natives} of the shard instead of declaring
+     * {@code jni_onload}, which is in the cdylib crate.
+     */
+    private String renderRoot(Collection<ClassInfo> classInfos) {
+        StringWriter out = new StringWriter();
+        try (PrintWriter pw = new PrintWriter(out)) {
+            pw.println("// THIS FILE IS GENERATED AUTOMATICALLY. DO NOT EDIT!");
+            pw.println("#[macro_use]");
+            pw.printf("mod %s;\n", RUNTIME_MOD_NAME);
+            pw.println("");
+            // Sorted by name as rustfmt reorders them
+            Set<String> modNames = new TreeSet<>();
+            for (ClassInfo classInfo : classInfos) {
+                modNames.add(modName(classInfo));
+            }
+            if (registerNatives && !shardedCrates.isEnabled()) {
+                modNames.add(ONLOAD_FILE_NAME.substring(0, ONLOAD_FILE_NAME.length() - ".rs".length()));
+            }
+            for (String modName : modNames) {
+                pw.printf("mod %s;\n", modName);
+            }
+            if (registerNatives && shardedCrates.isEnabled()) {
                 pw.println("");
+                pw.println("/// Registers native methods of all classes in this crate.");
+                renderRegisterAll(pw, "pub fn register_natives(env: &mut jni::JNIEnv)", modPaths(classInfos));
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * Render the function that obtains the contents of a direct buffer, which reads the position and limit of
+     * the buffer from their fields, with the field IDs looked up once, rather than calling their methods.
+     * Contents of buffers passed as {@code &mut [u8]} are checked not to be read-only, nor to overlap other buffers
+     * of the call.
+     */
+    private static void renderDirectBufferRuntime(PrintWriter pw) {
+        pw.println("static BUFFER_IDS: OnceLock<(JFieldID, JFieldID, JMethodID)> = OnceLock::new();\n"
+                   + "\n"
+                   + "/// Returns the field IDs of position and limit, and the method ID of `isReadOnly` of\n"
+                   + "/// `java.nio.Buffer`.\n"
+                   + "fn buffer_ids(env: &mut JNIEnv) -> jni::errors::Result<(JFieldID, JFieldID, JMethodID)> {\n"
+                   + "    if let Some(ids) = BUFFER_IDS.get() {\n"
+                   + "        return Ok(*ids);\n"
+                   + "    }\n"
+                   + "    let position = env.get_field_id(\"java/nio/Buffer\", \"position\", \"I\")?;\n"
+                   + "    let limit = env.get_field_id(\"java/nio/Buffer\", \"limit\", \"I\")?;\n"
+                   + "    let read_only = env.get_method_id(\"java/nio/Buffer\", \"isReadOnly\", \"()Z\")?;\n"
+                   + "    Ok(*BUFFER_IDS.get_or_init(|| (position, limit, read_only)))\n"
+                   + "}\n"
+                   + "\n"
+                   + "/// The contents of a direct buffer between its position and limit.\n"
+                   + "#[allow(dead_code)]\n"
+                   + "struct BufferContents {\n"
+                   + "    address: *mut u8,\n"
+                   + "    len: usize,\n"
+                   + "    mutable: bool,\n"
+                   + "}\n"
+                   + "\n"
+                   + "#[allow(dead_code)]\n"
+                   + "impl BufferContents {\n"
+                   + "    /// The contents must not be accessed after the buffer is freed.\n"
+                   + "    unsafe fn as_slice<'b>(&self) -> &'b [u8] {\n"
+                   + "        unsafe { std::slice::from_raw_parts(self.address, self.len) }\n"
+                   + "    }\n"
+                   + "\n"
+                   + "    /// The contents must not be accessed after the buffer is freed, nor be aliased.\n"
+                   + "    unsafe fn as_mut_slice<'b>(&self) -> &'b mut [u8] {\n"
+                   + "        unsafe { std::slice::from_raw_parts_mut(self.address, self.len) }\n"
+                   + "    }\n"
+                   + "\n"
+                   + "    /// Returns whether the contents overlap, either of which is mutable.\n"
+                   + "    fn conflicts(&self, other: &BufferContents) -> bool {\n"
+                   + "        let (start, other_start) = (self.address as usize, other.address as usize);\n"
+                   + "        (self.mutable || other.mutable)\n"
+                   + "            && start < other_start + other.len\n"
+                   + "            && other_start < start + self.len\n"
+                   + "    }\n"
+                   + "}\n"
+                   + "\n"
+                   + "/// Returns the contents of a direct buffer, which must not be read-only if `mutable`.\n"
+                   + "fn direct_buffer(\n"
+                   + "    env: &mut JNIEnv,\n"
+                   + "    buffer: &JByteBuffer,\n"
+                   + "    name: &str,\n"
+                   + "    mutable: bool,\n"
+                   + ") -> Result<BufferContents, (&'static str, String)> {\n"
+                   + "    if buffer.is_null() {\n"
+                   + "        return Err((\"java/lang/NullPointerException\", name.to_string()));\n"
+                   + "    }\n"
+                   + "    let address = match env.get_direct_buffer_address(buffer) {\n"
+                   + "        Ok(address) => address,\n"
+                   + "        Err(_) => {\n"
+                   + "            let message = format!(\"{} must be a direct buffer\", name);\n"
+                   + "            return Err((\"java/lang/IllegalArgumentException\", message));\n"
+                   + "        }\n"
+                   + "    };\n"
+                   + "    let (position, limit, read_only) = match buffer_ids(env) {\n"
+                   + "        Ok(ids) => ids,\n"
+                   + "        Err(e) => return Err((\"java/lang/RuntimeException\", e.to_string())),\n"
+                   + "    };\n"
+                   + "    let raw = env.get_raw();\n"
+                   + "    unsafe {\n"
+                   + "        if mutable {\n"
+                   + "            let call_boolean = (**raw).CallBooleanMethodA.unwrap();\n"
+                   + "            let no_args = std::ptr::null();\n"
+                   + "            if call_boolean(raw, buffer.as_raw(), read_only.into_raw(), no_args) != JNI_FALSE {\n"
+                   + "                let message = format!(\"{} must not be read-only\", name);\n"
+                   + "                return Err((\"java/lang/IllegalArgumentException\", message));\n"
+                   + "            }\n"
+                   + "        }\n"
+                   + "        let get_int = (**raw).GetIntField.unwrap();\n"
+                   + "        let position = get_int(raw, buffer.as_raw(), position.into_raw()) as usize;\n"
+                   + "        let limit = get_int(raw, buffer.as_raw(), limit.into_raw()) as usize;\n"
+                   + "        Ok(BufferContents {\n"
+                   + "            address: address.add(position),\n"
+                   + "            len: limit - position,\n"
+                   + "            mutable,\n"
+                   + "        })\n"
+                   + "    }\n"
+                   + "}\n"
+                   + "\n"
+                   + "/// Fails if the contents of a buffer passed as `&mut [u8]` overlap another buffer.\n"
+                   + "#[allow(dead_code)]\n"
+                   + "fn disjoint_buffers<const N: usize>(\n"
+                   + "    buffers: [(&BufferContents, &str); N],\n"
+                   + ") -> Result<(), (&'static str, String)> {\n"
+                   + "    for (i, (contents, name)) in buffers.iter().enumerate() {\n"
+                   + "        for (other, other_name) in &buffers[i + 1..] {\n"
+                   + "            if contents.conflicts(other) {\n"
+                   + "                let message = format!(\"{} and {} must not overlap\", name, other_name);\n"
+                   + "                return Err((\"java/lang/IllegalArgumentException\", message));\n"
+                   + "            }\n"
+                   + "        }\n"
+                   + "    }\n"
+                   + "    Ok(())\n"
+                   + "}");
+    }
+
+    /**
+     * Render the statements of the shim that obtain the contents of direct buffers, checking that buffers passed
+     * as {@code &mut [u8]} don't overlap others.
+     */
+    private void renderDirectBuffers(PrintWriter pw, MethodInfo method) {
+        String returnDefault = "return " + RustJniTypes.defaultValue(method.retType().jniType());
+        List<Param<JavaType>> buffers = method.originalParams().stream()
+                                              .filter(param -> isDirectBuffer(method, param.type().jniType()))
+                                              .collect(toList());
+        boolean anyMutable = false;
+        for (Param<JavaType> param : buffers) {
+            String name = StringUtils.toSnakeCase(param.name());
+            boolean mutable = isListed(options, "bufferMut", method, param.name());
+            anyMutable |= mutable;
+            pw.println(RustFormatter.callLine(1, "let " + name + " = ", RustFormatter.macroCall(
+                    "wrap_error!",
+                    "env",
+                    RustFormatter.call("direct_buffer", "&mut env", '&' + name, '"' + param.name() + '"',
+                                       String.valueOf(mutable)),
+                    returnDefault), ";"));
+        }
+        if (anyMutable && buffers.size() > 1) {
+            List<Object> pairs = new ArrayList<>();
+            for (Param<JavaType> param : buffers) {
+                pairs.add(String.format("(&%s, \"%s\")", StringUtils.toSnakeCase(param.name()), param.name()));
+            }
+            pw.println(RustFormatter.callLine(1, RustFormatter.macroCall(
+                    "wrap_error!", "env", RustFormatter.call("disjoint_buffers", RustFormatter.array(pairs.toArray())),
+                    returnDefault), ";"));
+        }
+        for (Param<JavaType> param : buffers) {
+            String name = StringUtils.toSnakeCase(param.name());
+            pw.printf("    let %s = unsafe { %s.%s() };\n", name, name,
+                      isListed(options, "bufferMut", method, param.name()) ? "as_mut_slice" : "as_slice");
+        }
+    }
+
+    private void renderTrait(PrintWriter pw, ClassInfo classInfo) {
+        pw.printf("trait Jni%s<'a> {\n", classInfo.name());
+        pw.println("    type Error: Desc<'a, JThrowable<'a>>;");
+        for (MethodInfo method : classInfo.methods()) {
+            List<String> params;
+            if (arraySlices.isApplicable(method)) {
+                params = arraySlices.traitParams(method);
+            } else if (stringViews.isApplicable(method)) {
+                params = stringViews.traitParams(method);
+            } else {
+                params = toRustParams(method, true);
+            }
+            pw.println(RustFormatter.fnSignature(
+                    1, "fn " + StringUtils.toSnakeCase(method.name()), params,
+                    String.format(" -> Result<%s, Self::Error>;",
+                                  RustJniTypes.rustJniType(method.retType().jniType()))));
+        }
+        pw.println("}");
+    }
+
+    private void renderShims(PrintWriter pw, ClassInfo classInfo, String implTypeName, boolean metrics) {
+        int index = 0;
+        for (MethodInfo method : classInfo.methods()) {
+            int metricsIndex = metrics ? index++ : -1;
+            String head = String.format("extern \"system\" fn %s<'a>", method.jniFuncName());
+            pw.println("");
+            // Functions registered through RegisterNatives don't need to be exported
+            pw.println(registerNatives ? "#[allow(non_snake_case)]" : "#[no_mangle]");
+            if (arraySlices.isApplicable(method)) {
+                arraySlices.renderShim(pw, method, implTypeName, head, metricsIndex);
+                continue;
+            }
+            if (stringViews.isApplicable(method)) {
+                stringViews.renderShim(pw, method, implTypeName, head, metricsIndex);
+                continue;
+            }
+            List<Object> args = new ArrayList<>();
+            args.add("&mut env");
+            args.addAll(toRustParamNames(method.params().stream().skip(1).collect(toList())));
+            String handleField = hasHandle(method) ? nativeHandles.handleField(classInfo) : null;
+            if (handleField != null) {
+                // Following the receiver
+                args.add(2, NativeHandles.paramName(method, handleField));
+            }
+            pw.println(RustFormatter.fnSignature(
+                    0, head, toRustParams(method, false),
+                    RustJniTypes.fnReturnSign(method.retType().jniType()) + " {"));
+            if (metrics) {
+                CallMetrics.renderTimerStart(pw, metricsIndex);
+            }
+            if (handleField != null) {
+                nativeHandles.renderShimHandle(pw, method, handleField);
+            }
+            renderDirectBuffers(pw, method);
+            boolean localFrame = localFrames.isApplicable(method);
+            if (localFrame) {
+                // Pushed after direct buffers are obtained, so early returns above don't leave the frame
+                localFrames.renderPush(pw, method);
+            }
+            RustFormatter.Call call = RustFormatter.call(
+                    implTypeName + "::" + StringUtils.toSnakeCase(method.name()), args.toArray());
+            String defaultValue = RustJniTypes.defaultValue(method.retType().jniType());
+            RustFormatter.Call wrapError;
+            if (metrics) {
+                // The result is inspected before wrap_error! turns it into an exception
+                pw.println(RustFormatter.callLine(1, "let result = ", call, ";"));
+                CallMetrics.renderErrorCheck(pw);
+                wrapError = RustFormatter.macroCall("wrap_error!", "env", "result", defaultValue);
+            } else {
+                wrapError = RustFormatter.macroCall("wrap_error!", "env", call, defaultValue);
+            }
+            if (localFrame) {
+                LocalFrames.renderPop(pw, method, wrapError);
+            } else {
+                pw.println(RustFormatter.callLine(1, wrapError, ""));
+            }
+            pw.println("}");
+        }
+    }
+
+    private static void renderRegisterNatives(PrintWriter pw, ClassInfo classInfo, boolean attach,
+                                              boolean registry, boolean exceptions, boolean handle,
+                                              boolean metrics, List<MethodInfo> batchMethods,
+                                              List<MethodInfo> asyncMethods, boolean cleaner) {
+        pw.println("");
+        pw.println("pub(crate) fn register_natives(env: &mut JNIEnv) -> jni::errors::Result<()> {");
+        if (attach) {
+            pw.println("    init_java_vm(env)?;");
+        }
+        if (registry) {
+            // Look up IDs while the class loader of the library is at hand
+            pw.printf("    %s::get(env)?;\n", MemberRegistry.typeName(classInfo));
+        }
+        if (exceptions) {
+            pw.println("    exceptions(env)?;");
+        }
+        if (handle) {
+            pw.println("    handle_field(env)?;");
+        }
+        // Methods of the class, followed by ones of generated Java classes, the last of which returns the result
+        List<String> names = new ArrayList<>(Collections.singletonList("methods"));
+        List<String> classes = new ArrayList<>(Collections.singletonList(classInfo.fqn()));
+        List<Collection<MethodInfo>> methodLists = new ArrayList<>(Collections.singletonList(classInfo.methods()));
+        if (metrics) {
+            names.add("metrics_methods");
+            classes.add(CallMetrics.accessorName(classInfo));
+            methodLists.add(Collections.singletonList(CallMetrics.snapshotMethod(classInfo)));
+        }
+        if (!batchMethods.isEmpty()) {
+            names.add("batch_methods");
+            classes.add(BatchCalls.helperName(classInfo));
+            methodLists.add(batchMethods.stream().map(BatchCalls::companionMethod).collect(toList()));
+        }
+        if (!asyncMethods.isEmpty()) {
+            names.add("async_methods");
+            classes.add(AsyncCalls.helperName(classInfo));
+            methodLists.add(asyncMethods.stream().map(AsyncCalls::companionMethod).collect(toList()));
+        }
+        if (cleaner) {
+            names.add("cleaner_methods");
+            classes.add(NativeHandles.cleanerName(classInfo));
+            methodLists.add(Collections.singletonList(NativeHandles.freeBatchMethod(classInfo)));
+        }
+        for (int i = 0; i < names.size(); i++) {
+            List<Object> methods = new ArrayList<>();
+            for (MethodInfo method : methodLists.get(i)) {
+                methods.add(RustFormatter.macroCall("native_method!", '"' + method.name() + '"',
+                                                    '"' + method.descriptor() + '"', method.jniFuncName()));
             }
+            pw.println(RustFormatter.callLine(1, "let " + names.get(i) + " = ",
+                                              RustFormatter.array(methods.toArray()), ";"));
+            pw.println(RustFormatter.callLine(1, RustFormatter.call(
+                    "env.register_native_methods", '"' + classes.get(i).replace('.', '/') + '"',
+                    '&' + names.get(i)), i < names.size() - 1 ? "?;" : ""));
+        }
+        pw.println("}");
+    }
+
+    private static List<String> modPaths(Collection<ClassInfo> classInfos) {
+        return classInfos.stream().map(classInfo -> "crate::" + modName(classInfo)).collect(toList());
+    }
+
+    /**
+     * Render the module that defines JNI_OnLoad, which calls {@code register_natives} of the given modules or
+     * crates.
+     */
+    private static String renderOnLoad(Collection<String> paths) {
+        StringWriter out = new StringWriter();
+        try (PrintWriter pw = new PrintWriter(out)) {
+            pw.println("// THIS FILE IS GENERATED AUTOMATICALLY. DO NOT EDIT!");
+            pw.print(RustFormatter.useBlock(Arrays.asList(
+                    "jni::sys::*",
+                    "jni::JNIEnv",
+                    "jni::JavaVM",
+                    "std::os::raw::c_void")));
+            pw.println("");
+            pw.println("#[no_mangle]");
+            pw.println("pub extern \"system\" fn JNI_OnLoad(vm: JavaVM, _reserved: *mut c_void) -> jint {");
+            pw.println("    let mut env = match vm.get_env() {");
+            pw.println("        Ok(env) => env,");
+            pw.println("        Err(_) => return JNI_ERR,");
+            pw.println("    };");
+            pw.println("    match register_natives(&mut env) {");
+            pw.println("        Ok(()) => JNI_VERSION_1_8,");
+            pw.println("        Err(_) => {");
+            pw.println("            env.exception_describe().ok();");
+            pw.println("            JNI_ERR");
+            pw.println("        }");
+            pw.println("    }");
+            pw.println("}");
+            pw.println("");
+            renderRegisterAll(pw, "fn register_natives(env: &mut JNIEnv)", paths);
         }
+        return out.toString();
+    }
 
-        maybeApplyRustfmt(modFile);
+    private static void renderRegisterAll(PrintWriter pw, String head, Collection<String> paths) {
+        pw.println(head + " -> jni::errors::Result<()> {");
+        for (String path : paths) {
+            pw.println(RustFormatter.callLine(1, RustFormatter.call(path + "::register_natives", "env"), "?;"));
+        }
+        pw.println("    Ok(())");
+        pw.println("}");
     }
 
-    private static String toRustParamNames(Collection<Param<?>> params) {
+    private static List<String> toRustParamNames(Collection<Param<?>> params) {
         return params.stream()
                      .map(param -> StringUtils.toSnakeCase(param.name()))
-                     .collect(Collectors.joining(", "));
+                     .collect(toList());
     }
 
-    private static String toRustParams(Collection<Param<JniType>> params, boolean trait) {
+    private List<String> toRustParams(MethodInfo method, boolean trait) {
         List<String> parts = new ArrayList<>();
         boolean isFirst = true;
-        for (Param<JniType> param : params) {
+        for (Param<JniType> param : method.params()) {
+            String type;
+            if (!isDirectBuffer(method, param.type())) {
+                type = RustJniTypes.rustJniParamType(
+                        param.type() == JniType.DIRECT_BUFFER ? JniType.OBJECT : param.type(), trait);
+            } else if (trait && isListed(options, "bufferMut", method, param.name())) {
+                type = "&mut [u8]";
+            } else {
+                type = RustJniTypes.rustJniParamType(param.type(), trait);
+            }
             String var = String.format("%s%s: %s",
                     !trait && isFirst && param.type() == JniType.JNI_ENV ? "mut " : "",
                     StringUtils.toSnakeCase(param.name()),
-                    RustJniTypes.rustJniParamType(param.type(), trait));
+                    type);
             parts.add(var);
             isFirst = false;
         }
-        return String.join(", ", parts);
+        if (trait && hasHandle(method)) {
+            // Following the receiver
+            parts.add(2, nativeHandles.traitParam(method, nativeHandles.handleField(method.classInfo())));
+        }
+        return parts;
     }
 
-    void maybeApplyRustfmt(Path path) {
-        if (!applyRustFmt) {
-            return;
+    /**
+     * Returns whether the given parameter is listed in the option that takes a comma-separated list of
+     * parameter names, or "*" for all parameters.
+     */
+    static boolean isListed(GeneratorOptions options, String key, MethodInfo method, String paramName) {
+        String value = options.get(key, method, "");
+        if ("*".equals(value)) {
+            return true;
+        }
+        return Arrays.asList(value.split(",")).contains(paramName);
+    }
+
+    @Override
+    public void finish(OutputSink sink, Collection<ClassInfo> classInfos) throws IOException {
+        Map<String, byte[]> crateFiles = renderCrateFiles(classInfos);
+        for (Map.Entry<String, byte[]> file : crateFiles.entrySet()) {
+            sink.write(file.getKey(), file.getValue());
         }
+        if (rustfmtCheck) {
+            Map<String, byte[]> files = new LinkedHashMap<>();
+            for (ClassInfo classInfo : classInfos) {
+                for (Map.Entry<String, byte[]> file : renderClass(classInfo).entrySet()) {
+                    if (file.getKey().endsWith(".rs")) {
+                        files.put(file.getKey(), file.getValue());
+                    }
+                }
+            }
+            for (Map.Entry<String, byte[]> file : crateFiles.entrySet()) {
+                if (file.getKey().endsWith(".rs")) {
+                    files.put(file.getKey(), file.getValue());
+                }
+            }
+            checkRustfmt(files);
+        }
+    }
+
+    /**
+     * Render files that depend on the whole set of classes, keyed by their paths.
+     */
+    private Map<String, byte[]> renderCrateFiles(Collection<ClassInfo> classInfos) {
+        Map<String, byte[]> files = new LinkedHashMap<>();
+        if (shardedCrates.isEnabled()) {
+            Map<Integer, List<ClassInfo>> shards = new TreeMap<>();
+            for (ClassInfo classInfo : classInfos) {
+                shards.computeIfAbsent(shardedCrates.shardOf(classInfo), k -> new ArrayList<>()).add(classInfo);
+            }
+            for (Map.Entry<Integer, List<ClassInfo>> shard : shards.entrySet()) {
+                String sourceDir = ShardedCrates.sourceDir(shard.getKey());
+                files.put(ShardedCrates.crateName(shard.getKey()) + '/' + ShardedCrates.MANIFEST_FILE_NAME,
+                          shardedCrates.renderShardManifest(shard.getKey()).getBytes(UTF_8));
+                files.put(sourceDir + RUNTIME_MOD_NAME + ".rs",
+                          renderRuntimeModule(shard.getValue()).getBytes(UTF_8));
+                files.put(sourceDir + ROOT_FILE_NAME, renderRoot(shard.getValue()).getBytes(UTF_8));
+            }
+            files.put(ShardedCrates.MANIFEST_FILE_NAME,
+                      shardedCrates.renderWorkspaceManifest(shards.keySet()).getBytes(UTF_8));
+            files.put("src/" + ROOT_FILE_NAME,
+                      ShardedCrates.renderLib(shards.keySet(), registerNatives).getBytes(UTF_8));
+            if (registerNatives) {
+                List<String> crates = shards.keySet().stream().map(ShardedCrates::crateName).collect(toList());
+                files.put("src/" + ONLOAD_FILE_NAME, renderOnLoad(crates).getBytes(UTF_8));
+            }
+            return files;
+        }
+        if (registerNatives) {
+            files.put(ONLOAD_FILE_NAME, renderOnLoad(modPaths(classInfos)).getBytes(UTF_8));
+        }
+        if (aggregate) {
+            files.put(RUNTIME_MOD_NAME + ".rs", renderRuntimeModule(classInfos).getBytes(UTF_8));
+            files.put(ROOT_FILE_NAME, renderRoot(classInfos).getBytes(UTF_8));
+        }
+        return files;
+    }
+
+    @Override
+    public String fingerprint() {
+        return CodeGenerator.super.fingerprint() + ';' + options;
+    }
+
+    /**
+     * Verify that the generated files are left unchanged by rustfmt, with a single rustfmt invocation.
+     * Generated files are rendered again into a temporary directory, regardless of the sink they were written
+     * to, along with an empty {@code imp} module for each class module, so rustfmt doesn't look into the
+     * implementation modules.
+     */
+    void checkRustfmt(Map<String, byte[]> files) throws IOException {
+        Path tmpDir = Files.createTempDirectory("javah4x-rustfmt");
         try {
-            System.err.println("Applying rustfmt for " + path);
-            Process proc = Runtime.getRuntime().exec(new String[] { "rustfmt", path.toString() });
+            List<String> command = new ArrayList<>(Arrays.asList("rustfmt", "--check"));
+            for (Map.Entry<String, byte[]> file : files.entrySet()) {
+                Path copy = tmpDir.resolve(file.getKey());
+                Files.createDirectories(copy.getParent());
+                Files.write(copy, file.getValue());
+                if (file.getKey().endsWith('/' + MOD_FILE_NAME)) {
+                    Files.createFile(copy.resolveSibling(IMPL_MOD_NAME + ".rs"));
+                }
+                command.add(copy.toString());
+            }
+            Process proc;
+            try {
+                proc = new ProcessBuilder(command).inheritIO().start();
+            } catch (IOException e) {
+                System.out.println("rustfmt isn't available in PATH, skipping check.");
+                return;
+            }
             int status = proc.waitFor();
             if (status != 0) {
-                throw new RuntimeException("rustfmt exit with error: " + status);
+                throw new IOException("generated code differs from rustfmt output, rustfmt exit with: " + status);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while running rustfmt", e);
+        } finally {
+            try (Stream<Path> tmpFiles = Files.walk(tmpDir)) {
+                for (Path path : tmpFiles.sorted(Comparator.reverseOrder()).collect(toList())) {
+                    Files.delete(path);
+                }
             }
-        } catch (InterruptedException | IOException e) {
-            System.out.println("rustfmt isn't available in PATH, skipping apply.");
         }
     }
 }
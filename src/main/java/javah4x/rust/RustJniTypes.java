@@ -1,5 +1,8 @@
 package javah4x.rust;
 
+import java.util.Locale;
+
+import javah4x.JavaType.Primitive;
 import javah4x.JniType;
 
 public final class RustJniTypes {
@@ -9,6 +12,7 @@ public final class RustJniTypes {
      * Returns the type signature of Rust jni crate that corresponds to the given {@link JniType}.
      * This method returns the type which has a lifetime parameter where possible, so for {@link JniType#OBJECT}
      * "JObject" is returned instead of "jobject".
+     * For {@link JniType#DIRECT_BUFFER}, the trait type is the slice of the buffer's contents.
      * @param type the JNI type.
      * @param trait determine whether to return the trait type or the value type for
      * {@link JniType#JNI_ENV}.
@@ -23,6 +27,12 @@ public final class RustJniTypes {
                 return "JString<'a>";
             case OBJECT:
                 return "JObject<'a>";
+            case DIRECT_BUFFER:
+                if (trait) {
+                    return "&[u8]";
+                } else {
+                    return "JByteBuffer<'a>";
+                }
             case JNI_ENV:
                 if (trait) {
                     return "&mut JNIEnv<'a>";
@@ -87,6 +97,7 @@ public final class RustJniTypes {
             case STRING:
                 return "jstring";
             case OBJECT:
+            case DIRECT_BUFFER:
                 return "jobject";
             default:
                 throw new RuntimeException("BUG: all JNI types are supposed to have type mapping");
@@ -132,4 +143,14 @@ public final class RustJniTypes {
                 return "JObject::null().into_raw()";
         }
     }
+
+    /**
+     * Returns the name of the field of {@code jvalue} holding the given primitive type, e.g, "i" for int, which
+     * is also the name of the accessor of {@code JValueGen}.
+     * @param type a primitive type other than void.
+     * @return the name of the field.
+     */
+    public static String jvalueField(Primitive type) {
+        return type.descriptor().toLowerCase(Locale.ROOT);
+    }
 }
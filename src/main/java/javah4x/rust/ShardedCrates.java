@@ -0,0 +1,182 @@
+package javah4x.rust;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javah4x.ClassInfo;
+import javah4x.GeneratorOptions;
+
+/**
+ * Lays out class modules into crates of a cargo workspace, for {@link RustGenerator}.
+ *
+ * Given "shards" N, each class is put into one of N crates {@code javah4x_shard_0} to
+ * {@code javah4x_shard_<N-1>} by the FNV-1a hash of its fully qualified name, so the crate of a class doesn't
+ * change as other classes are added or removed, as long as N is unchanged. Each shard crate is an aggregated
+ * crate of its classes (see {@link RustGenerator}) and can be compiled on its own, so cargo compiles shards in
+ * parallel and a change in a class recompiles its shard only.
+ * The output directory is the root of the workspace, whose own package "crateName" ({@code javah4x} by
+ * default) is a cdylib depending on all shards, and defines {@code JNI_OnLoad} with "registerNatives".
+ * Dependencies that implementations need are given by "shardDependencies" as a comma-separated list of
+ * {@code NAME=VERSION}, which every shard depends on.
+ * Every shard declares the feature {@value CallMetrics#FEATURE} that gates recording of call metrics, and the
+ * cdylib crate declares the same feature enabling it in all shards.
+ */
+final class ShardedCrates {
+    static final String MANIFEST_FILE_NAME = "Cargo.toml";
+    static final String JNI_VERSION = "0.21";
+
+    private static final int FNV_OFFSET_BASIS = 0x811c9dc5;
+    private static final int FNV_PRIME = 0x01000193;
+
+    private final int shards;
+    private final String crateName;
+    private final Map<String, String> dependencies;
+
+    ShardedCrates(GeneratorOptions options) {
+        shards = options.getInt("shards", 0);
+        if (shards < 0) {
+            throw new IllegalArgumentException("negative number of shards: " + shards);
+        }
+        crateName = options.get("crateName", "javah4x");
+        dependencies = new LinkedHashMap<>();
+        dependencies.put("jni", JNI_VERSION);
+        for (String dependency : options.get("shardDependencies", "").split(",")) {
+            dependency = dependency.trim();
+            if (dependency.isEmpty()) {
+                continue;
+            }
+            int i = dependency.indexOf('=');
+            if (i <= 0) {
+                throw new IllegalArgumentException("dependency must be NAME=VERSION: " + dependency);
+            }
+            dependencies.put(dependency.substring(0, i).trim(), dependency.substring(i + 1).trim());
+        }
+    }
+
+    boolean isEnabled() {
+        return shards > 0;
+    }
+
+    /**
+     * Returns the index of the shard that the class is put into.
+     */
+    int shardOf(ClassInfo classInfo) {
+        return shardOf(classInfo.fqn(), shards);
+    }
+
+    static int shardOf(String fqn, int shards) {
+        int hash = FNV_OFFSET_BASIS;
+        for (byte b : fqn.getBytes(UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= FNV_PRIME;
+        }
+        return Integer.remainderUnsigned(hash, shards);
+    }
+
+    static String crateName(int shard) {
+        return "javah4x_shard_" + shard;
+    }
+
+    /**
+     * Returns the directory of the source files of the shard, relative to the root of the workspace.
+     */
+    static String sourceDir(int shard) {
+        return crateName(shard) + "/src/";
+    }
+
+    /**
+     * Render the manifest of the workspace, which is also the manifest of the cdylib crate.
+     */
+    String renderWorkspaceManifest(Collection<Integer> shardIndices) {
+        List<String> crates = new ArrayList<>();
+        for (int shard : shardIndices) {
+            crates.add(crateName(shard));
+        }
+        StringWriter out = new StringWriter();
+        try (PrintWriter pw = new PrintWriter(out)) {
+            pw.println("# THIS FILE IS GENERATED AUTOMATICALLY. DO NOT EDIT!");
+            pw.println("[workspace]");
+            pw.println("members = [");
+            for (String crate : crates) {
+                pw.printf("    \"%s\",\n", crate);
+            }
+            pw.println("]");
+            pw.println("resolver = \"2\"");
+            pw.println("");
+            pw.println("[workspace.dependencies]");
+            for (Map.Entry<String, String> dependency : dependencies.entrySet()) {
+                pw.printf("%s = \"%s\"\n", dependency.getKey(), dependency.getValue());
+            }
+            pw.println("");
+            renderPackage(pw, crateName);
+            pw.println("");
+            pw.println("[lib]");
+            pw.println("crate-type = [\"cdylib\"]");
+            pw.println("");
+            pw.println("[dependencies]");
+            pw.println("jni.workspace = true");
+            for (String crate : crates) {
+                pw.printf("%s = { path = \"%s\" }\n", crate, crate);
+            }
+            pw.println("");
+            pw.println("[features]");
+            pw.printf("%s = [\n", CallMetrics.FEATURE);
+            for (String crate : crates) {
+                pw.printf("    \"%s/%s\",\n", crate, CallMetrics.FEATURE);
+            }
+            pw.println("]");
+        }
+        return out.toString();
+    }
+
+    /**
+     * Render the manifest of the shard, which depends on all dependencies of the workspace.
+     */
+    String renderShardManifest(int shard) {
+        StringWriter out = new StringWriter();
+        try (PrintWriter pw = new PrintWriter(out)) {
+            pw.println("# THIS FILE IS GENERATED AUTOMATICALLY. DO NOT EDIT!");
+            renderPackage(pw, crateName(shard));
+            pw.println("");
+            pw.println("[dependencies]");
+            for (String dependency : dependencies.keySet()) {
+                pw.printf("%s.workspace = true\n", dependency);
+            }
+            pw.println("");
+            pw.println("[features]");
+            pw.printf("%s = []\n", CallMetrics.FEATURE);
+        }
+        return out.toString();
+    }
+
+    private static void renderPackage(PrintWriter pw, String name) {
+        pw.println("[package]");
+        pw.printf("name = \"%s\"\n", name);
+        pw.println("version = \"0.1.0\"");
+        pw.println("edition = \"2021\"");
+    }
+
+    /**
+     * Render the root of the cdylib crate, which re-exports all shards.
+     */
+    static String renderLib(Collection<Integer> shardIndices, boolean onLoad) {
+        List<String> crates = new ArrayList<>();
+        for (int shard : shardIndices) {
+            crates.add(crateName(shard));
+        }
+        StringBuilder sb = new StringBuilder("// THIS FILE IS GENERATED AUTOMATICALLY. DO NOT EDIT!\n");
+        sb.append(RustFormatter.useBlock("pub ", crates));
+        if (onLoad) {
+            String onLoadFile = RustGenerator.ONLOAD_FILE_NAME;
+            sb.append("\nmod ").append(onLoadFile, 0, onLoadFile.length() - ".rs".length()).append(";\n");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,306 @@
+package javah4x.rust;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+
+import javah4x.GeneratorOptions;
+import javah4x.JavaType;
+import javah4x.JavaType.Primitive;
+import javah4x.JniType;
+import javah4x.MethodInfo;
+import javah4x.MethodInfo.Param;
+import javah4x.StringUtils;
+
+/**
+ * Renders methods that receive {@code String} parameters as borrowed views, for {@link RustGenerator}.
+ *
+ * "stringViews" chooses how strings are borrowed for a method:
+ * <ul>
+ *     <li>"utf16": the trait method receives {@code &[jchar]}, the UTF-16 units of the string pinned with
+ *     {@code GetStringCritical}. Like arrays pinned by {@link ArraySlices}, no JNI function may be called until
+ *     they are released.</li>
+ *     <li>"utf8": the trait method receives {@code &[u8]}, the modified UTF-8 bytes of the string. Strings that
+ *     fit in a buffer of "stringStackThreshold" bytes on the stack are copied into it with
+ *     {@code GetStringUTFRegion}, and longer ones are obtained with {@code GetStringUTFChars}.</li>
+ * </ul>
+ * In both modes, nothing is allocated on the Rust side, and the shim releases the strings after the trait
+ * method returns. As in {@link ArraySlices}, the trait method doesn't receive the {@code JNIEnv}, and a
+ * returned error is thrown after all strings are released.
+ */
+final class StringViews {
+    /**
+     * The default of "stringStackThreshold", in bytes per string including the terminating NUL.
+     */
+    static final int DEFAULT_STACK_THRESHOLD = 256;
+
+    enum Mode {
+        UTF16,
+        UTF8,
+    }
+
+    private final GeneratorOptions options;
+
+    StringViews(GeneratorOptions options) {
+        this.options = options;
+    }
+
+    /**
+     * Returns how strings of the given method are borrowed, or null if it is rendered as usual, which is when
+     * "stringViews" isn't given for the method or it doesn't have a string parameter, other parameters of
+     * non-primitive types or a non-primitive return type.
+     */
+    Mode mode(MethodInfo method) {
+        String value = options.get("stringViews", method, "");
+        if (value.isEmpty() || !(method.retType() instanceof Primitive)) {
+            return null;
+        }
+        Mode mode;
+        try {
+            mode = Mode.valueOf(value.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("stringViews must be utf16 or utf8: " + value);
+        }
+        boolean hasString = false;
+        for (Param<JavaType> param : method.originalParams()) {
+            if (param.type().jniType() == JniType.STRING) {
+                hasString = true;
+            } else if (!(param.type() instanceof Primitive)) {
+                return null;
+            }
+        }
+        return hasString ? mode : null;
+    }
+
+    boolean isApplicable(MethodInfo method) {
+        return mode(method) != null;
+    }
+
+    /**
+     * Returns the modes used by the given methods.
+     */
+    List<Mode> modes(Collection<MethodInfo> methods) {
+        List<Mode> modes = new ArrayList<>();
+        for (MethodInfo method : methods) {
+            Mode mode = mode(method);
+            if (mode != null && !modes.contains(mode)) {
+                modes.add(mode);
+            }
+        }
+        modes.sort(null);
+        return modes;
+    }
+
+    /**
+     * Returns the parameters of the trait method.
+     */
+    List<String> traitParams(MethodInfo method) {
+        String stringType = mode(method) == Mode.UTF16 ? "&[jchar]" : "&[u8]";
+        List<String> params = new ArrayList<>();
+        for (Param<JavaType> param : method.originalParams()) {
+            String type = param.type().jniType() == JniType.STRING ? stringType
+                                                                   : RustJniTypes.rustJniType(param.type().jniType());
+            params.add(StringUtils.toSnakeCase(param.name()) + ": " + type);
+        }
+        return params;
+    }
+
+    /**
+     * Render the shim function of the given method. The call is recorded into the counters at
+     * {@code metricsIndex} unless it is negative, see {@link CallMetrics}.
+     */
+    void renderShim(PrintWriter pw, MethodInfo method, String implTypeName, String head, int metricsIndex) {
+        Mode mode = mode(method);
+        String defaultValue = RustJniTypes.defaultValue(method.retType().jniType());
+        List<String> params = new ArrayList<>();
+        params.add("mut env: JNIEnv<'a>");
+        params.add(method.isStatic() ? "_clazz: JClass<'a>" : "_this: JObject<'a>");
+        List<String> strings = new ArrayList<>();
+        List<Object> args = new ArrayList<>();
+        for (Param<JavaType> param : method.originalParams()) {
+            String name = StringUtils.toSnakeCase(param.name());
+            params.add(name + ": " + RustJniTypes.rustJniType(param.type().jniType()));
+            if (param.type().jniType() == JniType.STRING) {
+                strings.add(name);
+                args.add('&' + name);
+            } else {
+                args.add(name);
+            }
+        }
+
+        pw.println(RustFormatter.fnSignature(0, head, params,
+                                             RustJniTypes.fnReturnSign(method.retType().jniType()) + " {"));
+        if (metricsIndex >= 0) {
+            CallMetrics.renderTimerStart(pw, metricsIndex);
+        }
+        pw.println("    let raw = env.get_raw();");
+        // Lengths are read before any string is pinned, as no JNI function may be called while pinned
+        for (String string : strings) {
+            pw.printf("    let %s_len = match string_len(raw, %s) {\n", string, string);
+            pw.println("        Some(len) => len,");
+            pw.printf("        None => return %s,\n", defaultValue);
+            pw.println("    };");
+        }
+        if (mode == Mode.UTF8) {
+            int threshold = options.getInt("stringStackThreshold", method, DEFAULT_STACK_THRESHOLD);
+            for (String string : strings) {
+                pw.printf("    let mut %s_buf = [0u8; %d];\n", string, threshold);
+            }
+        }
+        for (String string : strings) {
+            RustFormatter.Call call = mode == Mode.UTF16
+                                      ? RustFormatter.call("Utf16Arg::new", "raw", string, string + "_len")
+                                      : RustFormatter.call("Utf8Arg::new", "raw", string, string + "_len",
+                                                           "&mut " + string + "_buf");
+            pw.println(RustFormatter.callLine(1, String.format("let %s = match ", string), call, " {"));
+            pw.println("        Some(string) => string,");
+            pw.printf("        None => return %s,\n", defaultValue);
+            pw.println("    };");
+        }
+        pw.println(RustFormatter.callLine(
+                1, "let result = ",
+                RustFormatter.call(implTypeName + "::" + StringUtils.toSnakeCase(method.name()), args.toArray()),
+                ";"));
+        if (metricsIndex >= 0) {
+            CallMetrics.renderErrorCheck(pw);
+        }
+        for (String string : strings) {
+            pw.printf("    drop(%s);\n", string);
+        }
+        pw.println(RustFormatter.callLine(1, RustFormatter.macroCall("wrap_error!", "env", "result",
+                                                                     defaultValue), ""));
+        pw.println("}");
+    }
+
+    /**
+     * Returns the paths that the module needs to import for {@link #renderRuntime(PrintWriter, Collection)}.
+     */
+    static List<String> runtimeUses(Collection<Mode> modes) {
+        if (modes.contains(Mode.UTF8)) {
+            return Arrays.asList("std::marker::PhantomData", "std::ops::Deref", "std::ptr::null_mut");
+        }
+        return Arrays.asList("std::ops::Deref", "std::ptr::null_mut");
+    }
+
+    /**
+     * Render the types and functions used by shims of methods with string views, which are written in the
+     * module once. They refer to {@code RawEnv}, which is also used by {@link ArraySlices}.
+     */
+    static void renderRuntime(PrintWriter pw, Collection<Mode> modes) {
+        pw.print("/// Returns the length of the string, or throws NullPointerException and returns None if it's null.\n"
+                 + "fn string_len(env: RawEnv, string: jstring) -> Option<usize> {\n"
+                 + "    unsafe {\n"
+                 + "        if string.is_null() {\n"
+                 + "            let name = b\"java/lang/NullPointerException\\0\";\n"
+                 + "            let class = (**env).FindClass.unwrap()(env, name.as_ptr().cast());\n"
+                 + "            (**env).ThrowNew.unwrap()(env, class, std::ptr::null());\n"
+                 + "            return None;\n"
+                 + "        }\n"
+                 + "        Some((**env).GetStringLength.unwrap()(env, string) as usize)\n"
+                 + "    }\n"
+                 + "}\n");
+        if (modes.contains(Mode.UTF16)) {
+            pw.print("\n"
+                     + "/// A string borrowed as UTF-16 units pinned with `GetStringCritical`, which are released on drop.\n"
+                     + "struct Utf16Arg {\n"
+                     + "    env: RawEnv,\n"
+                     + "    string: jstring,\n"
+                     + "    ptr: *const jchar,\n"
+                     + "    len: usize,\n"
+                     + "}\n"
+                     + "\n"
+                     + "impl Utf16Arg {\n"
+                     + "    /// Pins the string of `len` units. Returns None if pinning failed, with an exception thrown.\n"
+                     + "    fn new(env: RawEnv, string: jstring, len: usize) -> Option<Self> {\n"
+                     + "        let ptr = unsafe { (**env).GetStringCritical.unwrap()(env, string, null_mut()) };\n"
+                     + "        if ptr.is_null() {\n"
+                     + "            return None;\n"
+                     + "        }\n"
+                     + "        Some(Utf16Arg {\n"
+                     + "            env,\n"
+                     + "            string,\n"
+                     + "            ptr,\n"
+                     + "            len,\n"
+                     + "        })\n"
+                     + "    }\n"
+                     + "}\n"
+                     + "\n"
+                     + "impl Deref for Utf16Arg {\n"
+                     + "    type Target = [jchar];\n"
+                     + "\n"
+                     + "    fn deref(&self) -> &[jchar] {\n"
+                     + "        unsafe { std::slice::from_raw_parts(self.ptr, self.len) }\n"
+                     + "    }\n"
+                     + "}\n"
+                     + "\n"
+                     + "impl Drop for Utf16Arg {\n"
+                     + "    fn drop(&mut self) {\n"
+                     + "        unsafe { (**self.env).ReleaseStringCritical.unwrap()(self.env, self.string, self.ptr) }\n"
+                     + "    }\n"
+                     + "}\n");
+        }
+        if (modes.contains(Mode.UTF8)) {
+            pw.print("\n"
+                     + "/// A string borrowed as modified UTF-8 bytes, either copied into a buffer on the stack with\n"
+                     + "/// `GetStringUTFRegion` or obtained with `GetStringUTFChars` and released on drop.\n"
+                     + "struct Utf8Arg<'b> {\n"
+                     + "    env: RawEnv,\n"
+                     + "    string: jstring,\n"
+                     + "    ptr: *const u8,\n"
+                     + "    len: usize,\n"
+                     + "    chars: bool,\n"
+                     + "    _buf: PhantomData<&'b mut [u8]>,\n"
+                     + "}\n"
+                     + "\n"
+                     + "impl<'b> Utf8Arg<'b> {\n"
+                     + "    /// Borrows the string of `len` UTF-16 units, copying it into `buf` if it fits along with the\n"
+                     + "    /// terminating NUL. Returns None if obtaining it failed, with an exception thrown.\n"
+                     + "    fn new(env: RawEnv, string: jstring, len: usize, buf: &'b mut [u8]) -> Option<Self> {\n"
+                     + "        unsafe {\n"
+                     + "            let utf_len = (**env).GetStringUTFLength.unwrap()(env, string) as usize;\n"
+                     + "            let chars = utf_len >= buf.len();\n"
+                     + "            let ptr = if chars {\n"
+                     + "                let ptr = (**env).GetStringUTFChars.unwrap()(env, string, null_mut());\n"
+                     + "                if ptr.is_null() {\n"
+                     + "                    return None;\n"
+                     + "                }\n"
+                     + "                ptr.cast()\n"
+                     + "            } else {\n"
+                     + "                let region = (**env).GetStringUTFRegion.unwrap();\n"
+                     + "                region(env, string, 0, len as jsize, buf.as_mut_ptr().cast());\n"
+                     + "                buf.as_ptr()\n"
+                     + "            };\n"
+                     + "            Some(Utf8Arg {\n"
+                     + "                env,\n"
+                     + "                string,\n"
+                     + "                ptr,\n"
+                     + "                len: utf_len,\n"
+                     + "                chars,\n"
+                     + "                _buf: PhantomData,\n"
+                     + "            })\n"
+                     + "        }\n"
+                     + "    }\n"
+                     + "}\n"
+                     + "\n"
+                     + "impl Deref for Utf8Arg<'_> {\n"
+                     + "    type Target = [u8];\n"
+                     + "\n"
+                     + "    fn deref(&self) -> &[u8] {\n"
+                     + "        unsafe { std::slice::from_raw_parts(self.ptr, self.len) }\n"
+                     + "    }\n"
+                     + "}\n"
+                     + "\n"
+                     + "impl Drop for Utf8Arg<'_> {\n"
+                     + "    fn drop(&mut self) {\n"
+                     + "        if self.chars {\n"
+                     + "            let release = unsafe { (**self.env).ReleaseStringUTFChars.unwrap() };\n"
+                     + "            unsafe { release(self.env, self.string, self.ptr.cast()) };\n"
+                     + "        }\n"
+                     + "    }\n"
+                     + "}\n");
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package javah4x;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javah4x.rust.RustGenerator;
+import javah4x.test.TestJniClass;
+
+public class ArchiveSinkTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void write() throws IOException {
+        Path archive = folder.getRoot().toPath().resolve("out/bindings.zip");
+        ClassInfo classInfo = new ClassInfo(TestJniClass.class);
+        RustGenerator generator = new RustGenerator();
+        try (ArchiveSink sink = new ArchiveSink(archive)) {
+            generator.generateClass(sink, classInfo);
+        }
+
+        try (ZipFile zip = new ZipFile(archive.toFile())) {
+            assertEquals(1, zip.size());
+            ZipEntry entry = zip.getEntry("javah4x_test_TestJniClass/mod.rs");
+            byte[] content = FileUtils.readFully(zip.getInputStream(entry));
+            assertArrayEquals(generator.renderClass(classInfo).get("javah4x_test_TestJniClass/mod.rs"), content);
+        }
+        assertEquals("no temporary file is left", 1, Files.list(archive.getParent()).count());
+    }
+
+    @Test
+    public void abort() throws IOException {
+        Path archive = folder.getRoot().toPath().resolve("bindings.jar");
+        try (ArchiveSink sink = new ArchiveSink(archive)) {
+            sink.write("a.rs", new byte[] { 1 });
+        }
+        ArchiveSink sink = new ArchiveSink(archive);
+        sink.write("b.rs", new byte[] { 2 });
+        sink.abort();
+
+        try (ZipFile zip = new ZipFile(archive.toFile())) {
+            assertNull("existing archive is kept", zip.getEntry("b.rs"));
+        }
+        assertEquals(1, Files.list(archive.getParent()).count());
+    }
+}
@@ -0,0 +1,92 @@
+package javah4x;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javah4x.test.TestJniClass;
+
+public class GenerationManifestTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ClassInfo classInfo = new ClassInfo(TestJniClass.class);
+
+    @Test
+    public void hash() {
+        String hash = GenerationManifest.hash(classInfo, "gen@1");
+        assertNotEquals(hash, GenerationManifest.hash(classInfo, "gen@2"));
+        ClassInfo changed = new ClassInfo(classInfo.fqn(), classInfo.name(), Collections.singletonList(
+                new NativeMethod("getInt", "()J", false, Collections.emptyList())));
+        assertNotEquals(hash, GenerationManifest.hash(changed, "gen@1"));
+    }
+
+    @Test
+    public void saveAndLoad() throws IOException {
+        Path file = folder.getRoot().toPath().resolve(GenerationManifest.FILE_NAME);
+        GenerationManifest manifest = GenerationManifest.load(file);
+        String hash = GenerationManifest.hash(classInfo, "gen@1");
+        assertFalse(manifest.isUpToDate(classInfo.fqn(), hash));
+        manifest.update(classInfo.fqn(), hash, Collections.emptyMap());
+        manifest.save();
+
+        GenerationManifest loaded = GenerationManifest.load(file);
+        assertTrue(loaded.isUpToDate(classInfo.fqn(), hash));
+        assertFalse(loaded.isUpToDate(classInfo.fqn(), GenerationManifest.hash(classInfo, "gen@2")));
+    }
+
+    @Test
+    public void generatedFilesChanged() throws IOException {
+        Path root = folder.getRoot().toPath();
+        Path file = root.resolve(GenerationManifest.FILE_NAME);
+        Path modFile = root.resolve("javah4x_test_TestJniClass/mod.rs");
+        Map<String, byte[]> files = Collections.singletonMap("javah4x_test_TestJniClass/mod.rs",
+                                                             "// mod".getBytes(UTF_8));
+        String hash = GenerationManifest.hash(classInfo, "gen@1");
+        GenerationManifest manifest = GenerationManifest.load(file);
+        manifest.update(classInfo.fqn(), hash, files);
+        manifest.save();
+
+        assertFalse("deleted file is generated again", GenerationManifest.load(file).isUpToDate(classInfo.fqn(), hash));
+        Files.createDirectories(modFile.getParent());
+        Files.write(modFile, "// edited".getBytes(UTF_8));
+        assertFalse("edited file is generated again", GenerationManifest.load(file).isUpToDate(classInfo.fqn(), hash));
+        Files.write(modFile, "// mod".getBytes(UTF_8));
+        assertTrue(GenerationManifest.load(file).isUpToDate(classInfo.fqn(), hash));
+    }
+
+    @Test
+    public void savePrunesClassesNotInRun() throws IOException {
+        Path root = folder.getRoot().toPath();
+        Path file = root.resolve(GenerationManifest.FILE_NAME);
+        Path modFile = root.resolve("javah4x_test_TestJniClass/mod.rs");
+        Files.createDirectories(modFile.getParent());
+        Files.write(modFile, "// mod".getBytes(UTF_8));
+        String hash = GenerationManifest.hash(classInfo, "gen@1");
+        GenerationManifest manifest = GenerationManifest.load(file);
+        manifest.update(classInfo.fqn(), hash, Collections.singletonMap("javah4x_test_TestJniClass/mod.rs",
+                                                                        "// mod".getBytes(UTF_8)));
+        manifest.save();
+
+        // Neither generated nor skipped, as by another run writing to the same directory
+        GenerationManifest.load(file).save();
+        assertTrue(Files.exists(modFile));
+        assertTrue(GenerationManifest.load(file).isUpToDate(classInfo.fqn(), hash));
+
+        GenerationManifest.load(file).save(true);
+        assertFalse(Files.exists(modFile));
+        assertFalse("empty module directory is deleted", Files.exists(modFile.getParent()));
+        assertFalse(GenerationManifest.load(file).isUpToDate(classInfo.fqn(), hash));
+    }
+}
@@ -0,0 +1,89 @@
+package javah4x;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.stream.Collectors.toList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javah4x.rust.RustGenerator;
+
+public class GenerationPipelineTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ClassLoader loader = getClass().getClassLoader();
+
+    @Test
+    public void run() throws ClassNotFoundException, IOException {
+        List<String> classNames = Arrays.asList("javah4x.test.with_underscore.With_Underscore",
+                                                "javah4x.test.TestJniClass",
+                                                "javah4x.test.VariousSignatures");
+        MemorySink sink = new MemorySink();
+        GenerationPipeline pipeline = new GenerationPipeline(new RustGenerator(), sink, 4, 1, null);
+        List<ClassInfo> classInfos = pipeline.run(classNames, Collections.emptyList(), loader);
+
+        assertEquals(classNames, classInfos.stream().map(ClassInfo::fqn).collect(toList()));
+        for (ClassInfo classInfo : classInfos) {
+            String modFile = classInfo.fullyQualifiedNameDelimitedWith("_") + "/mod.rs";
+            assertNotNull(String.format("%s exists", modFile), sink.get(modFile));
+        }
+    }
+
+    @Test
+    public void runIncremental() throws ClassNotFoundException, IOException {
+        Path root = folder.getRoot().toPath();
+        GenerationManifest manifest = GenerationManifest.load(root.resolve(GenerationManifest.FILE_NAME));
+        RustGenerator generator = new RustGenerator();
+        List<String> classNames = Collections.singletonList("javah4x.test.TestJniClass");
+        new GenerationPipeline(generator, new DirectorySink(root), 2, 2, manifest).run(classNames, Collections.emptyList(), loader);
+
+        Path modFile = root.resolve("javah4x_test_TestJniClass").resolve("mod.rs");
+        MemorySink sink = new MemorySink();
+        new GenerationPipeline(generator, sink, 2, 2, manifest).run(classNames, Collections.emptyList(), loader);
+        assertTrue("up-to-date class is skipped", sink.files().isEmpty());
+
+        Files.delete(modFile);
+        new GenerationPipeline(generator, new DirectorySink(root), 2, 2, manifest).run(classNames, Collections.emptyList(), loader);
+        assertTrue("deleted file is generated again", Files.exists(modFile));
+    }
+
+    /**
+     * A generator implementing only {@link CodeGenerator#generateClass(Path, ClassInfo)}.
+     */
+    public static class DirectoryGenerator implements CodeGenerator {
+        @Override
+        public void generateClass(Path baseDir, ClassInfo classInfo) throws IOException {
+            Path file = baseDir.resolve(Paths.get("gen", classInfo.name() + ".txt"));
+            Files.createDirectories(file.getParent());
+            Files.write(file, classInfo.fqn().getBytes(UTF_8));
+        }
+    }
+
+    @Test
+    public void runDirectoryGenerator() throws ClassNotFoundException, IOException {
+        MemorySink sink = new MemorySink();
+        new GenerationPipeline(new DirectoryGenerator(), sink, 2, 1, null)
+                .run(Collections.singletonList("javah4x.test.TestJniClass"), Collections.emptyList(), loader);
+        assertEquals(Collections.singleton("gen/TestJniClass.txt"), sink.files().keySet());
+        assertEquals("javah4x.test.TestJniClass", new String(sink.get("gen/TestJniClass.txt"), UTF_8));
+    }
+
+    @Test(expected = ClassNotFoundException.class)
+    public void runClassNotFound() throws ClassNotFoundException, IOException {
+        new GenerationPipeline(new RustGenerator(), new MemorySink(), 2, 1, null)
+                .run(Collections.singletonList("javah4x.test.NoSuchClass"), Collections.emptyList(), loader);
+    }
+}
@@ -0,0 +1,40 @@
+package javah4x;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import javah4x.test.TestJniClass;
+
+public class GeneratorOptionsTest {
+    private final ClassInfo classInfo = new ClassInfo(TestJniClass.class);
+
+    private MethodInfo method(String name) {
+        return classInfo.methods().stream().filter(m -> m.name().equals(name)).findFirst().get();
+    }
+
+    @Test
+    public void getForMethod() {
+        Map<String, String> map = new HashMap<>();
+        map.put("size", "1");
+        map.put("size.javah4x.test.TestJniClass", "2");
+        map.put("size.javah4x.test.TestJniClass#getInt", "3");
+        map.put("size.javah4x.test.Other", "4");
+        GeneratorOptions options = new GeneratorOptions(map);
+        assertEquals(3, options.getInt("size", method("getInt"), 0));
+        assertEquals(2, options.getInt("size", method("doNothing"), 0));
+        assertEquals(1, options.getInt("size", 0));
+        assertEquals(0, options.getInt("missing", method("getInt"), 0));
+        assertEquals("x", options.get("missing", method("getInt"), "x"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void getIntMalformed() {
+        GeneratorOptions options = new GeneratorOptions(Collections.singletonMap("size", "a"));
+        options.getInt("size", method("getInt"), 0);
+    }
+}
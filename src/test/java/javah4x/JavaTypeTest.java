@@ -2,8 +2,13 @@ package javah4x;
 
 import static org.junit.Assert.assertEquals;
 
+import java.util.Locale;
+import java.util.Map;
+
 import org.junit.Test;
 
+import javah4x.JavaType.Primitive;
+
 public class JavaTypeTest {
 
     @Test
@@ -26,4 +31,27 @@ public class JavaTypeTest {
         assertEquals(JniType.STRING, JavaType.fromClass(String.class).jniType());
         assertEquals(JniType.CLASS, JavaType.fromClass(Class.class).jniType());
     }
+
+    @Test
+    public void fromDescriptor() {
+        assertEquals(JavaType.fromClass(int.class), JavaType.fromDescriptor("I"));
+        assertEquals(JavaType.fromClass(void.class), JavaType.fromDescriptor("V"));
+        assertEquals(JavaType.fromClass(String[][].class), JavaType.fromDescriptor("[[Ljava/lang/String;"));
+        assertEquals("[[Ljava/lang/String;", JavaType.fromClass(String[][].class).descriptor());
+    }
+
+    @Test
+    public void sourceName() {
+        Locale defaultLocale = Locale.getDefault();
+        // Lower-casing "I" yields dotless "\u0131" in Turkish
+        Locale.setDefault(new Locale("tr", "TR"));
+        try {
+            assertEquals("int", JavaType.fromClass(int.class).sourceName());
+            assertEquals("Int", Primitive.INT.capitalizedName());
+            assertEquals("int[][]", JavaType.fromClass(int[][].class).sourceName());
+            assertEquals("java.util.Map.Entry", JavaType.fromClass(Map.Entry.class).sourceName());
+        } finally {
+            Locale.setDefault(defaultLocale);
+        }
+    }
 }
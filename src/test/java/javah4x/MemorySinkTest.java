@@ -0,0 +1,26 @@
+package javah4x;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class MemorySinkTest {
+    @Test
+    public void write() {
+        MemorySink sink = new MemorySink();
+        assertTrue(sink.write("b/mod.rs", new byte[] { 1 }));
+        assertTrue(sink.write("a/mod.rs", new byte[] { 2 }));
+        assertFalse("unchanged content", sink.write("a/mod.rs", new byte[] { 2 }));
+        assertTrue(sink.write("a/mod.rs", new byte[] { 3 }));
+
+        assertArrayEquals(new byte[] { 3 }, sink.get("a/mod.rs"));
+        assertNull(sink.get("c/mod.rs"));
+        assertEquals(Arrays.asList("a/mod.rs", "b/mod.rs"), Arrays.asList(sink.files().keySet().toArray()));
+    }
+}
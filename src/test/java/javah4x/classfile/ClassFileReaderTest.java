@@ -0,0 +1,62 @@
+package javah4x.classfile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import javah4x.ClassInfo;
+import javah4x.FileUtils;
+import javah4x.JavaMember;
+import javah4x.NativeMethod;
+import javah4x.test.Callbacks;
+import javah4x.test.TestJniClass;
+import javah4x.test.with_underscore.With_Underscore;
+
+public class ClassFileReaderTest {
+    private static byte[] classBytes(Class<?> clazz) throws IOException {
+        String resource = '/' + clazz.getName().replace('.', '/') + ".class";
+        try (InputStream in = clazz.getResourceAsStream(resource)) {
+            return FileUtils.readFully(in);
+        }
+    }
+
+    @Test
+    public void read() throws IOException {
+        assertEquals(new ClassInfo(TestJniClass.class), ClassFileReader.read(classBytes(TestJniClass.class)));
+        assertEquals(new ClassInfo(With_Underscore.class), ClassFileReader.read(classBytes(With_Underscore.class)));
+        assertEquals(new ClassInfo(Callbacks.class), ClassFileReader.read(classBytes(Callbacks.class)));
+    }
+
+    @Test
+    public void readClassWithoutInitialization() throws ClassNotFoundException, IOException {
+        ClassInfo info = ClassFileReader.readClass("javah4x.test.UnloadableJniClass", getClass().getClassLoader());
+        ClassInfo expected = new ClassInfo("javah4x.test.UnloadableJniClass", "UnloadableJniClass",
+                Collections.singletonList(new NativeMethod("hash", "(J)J", true,
+                                                           Collections.singletonList("value"))),
+                Collections.singletonList(new JavaMember(JavaMember.Kind.METHOD, "<init>", "()V", false,
+                                                         Collections.emptyList())));
+        assertEquals(expected, info);
+    }
+
+    @Test(expected = ClassNotFoundException.class)
+    public void readClassNotFound() throws ClassNotFoundException, IOException {
+        ClassFileReader.readClass("javah4x.test.NoSuchClass", getClass().getClassLoader());
+    }
+
+    @Test
+    public void hasNativeMethods() throws IOException {
+        assertTrue(ClassFileReader.hasNativeMethods(classBytes(TestJniClass.class)));
+        assertFalse(ClassFileReader.hasNativeMethods(classBytes(ClassFileReaderTest.class)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void malformed() {
+        ClassFileReader.read(new byte[] { (byte) 0xCA, (byte) 0xFE, (byte) 0xBA, (byte) 0xBE, 0, 0 });
+    }
+}
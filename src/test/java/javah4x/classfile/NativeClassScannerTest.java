@@ -0,0 +1,72 @@
+package javah4x.classfile;
+
+import static java.util.stream.Collectors.toList;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javah4x.ClassInfo;
+import javah4x.FileUtils;
+import javah4x.test.TestJniClass;
+import javah4x.test.with_underscore.With_Underscore;
+
+public class NativeClassScannerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final NativeClassScanner scanner = new NativeClassScanner();
+
+    private static final List<Class<?>> CLASSES = Arrays.asList(
+            TestJniClass.class, NativeClassScannerTest.class, With_Underscore.class);
+
+    private static byte[] classBytes(Class<?> clazz) throws IOException {
+        try (InputStream in = clazz.getResourceAsStream(clazz.getSimpleName() + ".class")) {
+            return FileUtils.readFully(in);
+        }
+    }
+
+    private static String entryName(Class<?> clazz) {
+        return clazz.getName().replace('.', '/') + ".class";
+    }
+
+    @Test
+    public void scanJar() throws IOException {
+        Path jar = folder.getRoot().toPath().resolve("test.jar");
+        try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar))) {
+            out.putNextEntry(new JarEntry("META-INF/versions/9/" + entryName(TestJniClass.class)));
+            out.write(classBytes(TestJniClass.class));
+            for (Class<?> clazz : CLASSES) {
+                out.putNextEntry(new JarEntry(entryName(clazz)));
+                out.write(classBytes(clazz));
+            }
+        }
+        assertEquals(Arrays.asList(new ClassInfo(TestJniClass.class), new ClassInfo(With_Underscore.class)),
+                     scanner.scan(jar));
+    }
+
+    @Test
+    public void scanDirectory() throws IOException {
+        Path root = folder.getRoot().toPath().resolve("classes");
+        for (Class<?> clazz : CLASSES) {
+            Path file = root.resolve(entryName(clazz));
+            Files.createDirectories(file.getParent());
+            try (OutputStream out = Files.newOutputStream(file)) {
+                out.write(classBytes(clazz));
+            }
+        }
+        List<String> names = scanner.scan(root).stream().map(ClassInfo::fqn).collect(toList());
+        assertEquals(Arrays.asList(TestJniClass.class.getName(), With_Underscore.class.getName()), names);
+    }
+}
@@ -0,0 +1,116 @@
+package javah4x.classfile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javah4x.ClassInfo;
+import javah4x.FileUtils;
+import javah4x.test.Callbacks;
+import javah4x.test.TestJniClass;
+import javah4x.test.VariousSignatures;
+
+public class ScanIndexTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<ClassInfo> classInfos = Arrays.asList(new ClassInfo(Callbacks.class),
+                                                             new ClassInfo(TestJniClass.class),
+                                                             new ClassInfo(VariousSignatures.class));
+
+    @Test
+    public void encodeDecode() throws IOException {
+        assertEquals(classInfos, ScanIndex.decode(ScanIndex.encode(classInfos)));
+        assertEquals(Collections.emptyList(), ScanIndex.decode(ScanIndex.encode(Collections.emptyList())));
+    }
+
+    @Test
+    public void putGet() throws IOException {
+        ScanIndex index = new ScanIndex(folder.getRoot().toPath().resolve("index"));
+        assertNull(index.get("0123"));
+        index.put("0123", classInfos);
+        assertEquals(classInfos, index.get("0123"));
+    }
+
+    @Test
+    public void getBroken() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        Files.write(dir.resolve("0123.idx"), new byte[] { 'J', '4', 'X' });
+        assertNull(new ScanIndex(dir).get("0123"));
+    }
+
+    @Test
+    public void getFromOtherVersion() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        Files.write(dir.resolve("0123.idx"), ScanIndex.encode(classInfos, "other"));
+        assertNull(new ScanIndex(dir).get("0123"));
+        new ScanIndex(dir).put("0123", classInfos);
+        assertEquals(classInfos, new ScanIndex(dir).get("0123"));
+    }
+
+    @Test
+    public void evict() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        long size = ScanIndex.encode(classInfos).length;
+        ScanIndex index = new ScanIndex(dir, size * 2);
+        index.put("a", classInfos);
+        index.put("b", classInfos);
+        Files.setLastModifiedTime(dir.resolve("a.idx"), FileTime.fromMillis(1000));
+        Files.setLastModifiedTime(dir.resolve("b.idx"), FileTime.fromMillis(2000));
+        // Reading renews "a", making "b" the least recently used
+        index.get("a");
+        index.put("c", classInfos);
+
+        assertEquals(classInfos, index.get("a"));
+        assertNull(index.get("b"));
+        assertEquals(classInfos, index.get("c"));
+    }
+
+    @Test
+    public void digest() throws IOException {
+        Path root = folder.getRoot().toPath().resolve("classes");
+        Path classFile = root.resolve("com/example/Foo.class");
+        Files.createDirectories(classFile.getParent());
+        Files.write(classFile, new byte[] { 1 });
+        Files.write(root.resolve("README"), new byte[] { 2 });
+        String digest = ScanIndex.digest(root);
+
+        Files.write(root.resolve("README"), new byte[] { 3 });
+        assertEquals("non class files are ignored", digest, ScanIndex.digest(root));
+        Files.write(classFile, new byte[] { 4 });
+        assertNotEquals(digest, ScanIndex.digest(root));
+    }
+
+    @Test
+    public void scanWithIndex() throws IOException {
+        Path root = folder.getRoot().toPath().resolve("classes");
+        Path classFile = root.resolve("javah4x/test/TestJniClass.class");
+        Files.createDirectories(classFile.getParent());
+        try (InputStream in = TestJniClass.class.getResourceAsStream("TestJniClass.class")) {
+            Files.write(classFile, FileUtils.readFully(in));
+        }
+        ScanIndex index = new ScanIndex(folder.getRoot().toPath().resolve("index"));
+        NativeClassScanner scanner = new NativeClassScanner(ForkJoinPool.commonPool(), index);
+        List<ClassInfo> expected = Collections.singletonList(new ClassInfo(TestJniClass.class));
+        assertEquals(expected, scanner.scan(root));
+        assertEquals(expected, index.get(ScanIndex.digest(root)));
+
+        // Unchanged paths are read from the index
+        index.put(ScanIndex.digest(root), classInfos);
+        assertEquals(classInfos, scanner.scan(root));
+    }
+}
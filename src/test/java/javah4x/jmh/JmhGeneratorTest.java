@@ -0,0 +1,107 @@
+package javah4x.jmh;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javah4x.ClassInfo;
+import javah4x.GeneratorOptions;
+import javah4x.NativeMethod;
+import javah4x.test.TestJniClass;
+import javah4x.test.VariousSignatures;
+
+public class JmhGeneratorTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ClassInfo classInfo = new ClassInfo(VariousSignatures.class);
+
+    @Test
+    public void renderClass() {
+        Map<String, byte[]> files = new JmhGenerator().renderClass(classInfo);
+        assertEquals(Collections.singleton("src/jmh/java/javah4x/test/VariousSignaturesBenchmark.java"),
+                     files.keySet());
+    }
+
+    @Test
+    public void renderBenchmark() {
+        Map<String, String> options = new HashMap<>();
+        options.put("jmhArraySizes", "64,4096");
+        options.put("jmhThreads", "1,8");
+        options.put("jmhLoadLibrary", "various");
+        String javaCode = new JmhGenerator(new GeneratorOptions(options)).renderBenchmark(classInfo);
+
+        assertTrue(javaCode.contains("public class VariousSignaturesBenchmark {\n"));
+        assertTrue(javaCode.contains("    private static final MethodHandle HASH = handle(\"hash\", long.class);\n"));
+        assertTrue(javaCode.contains("    @Param({\"64\", \"4096\"})\n"
+                                     + "    public int arraySize;\n"));
+        // No String parameter to synthesize
+        assertFalse(javaCode.contains("stringLength"));
+        assertTrue(javaCode.contains("        System.loadLibrary(\"various\");\n"));
+        assertTrue(javaCode.contains("        compressInputOffset = 0;\n"
+                                     + "        compressInputLength = arraySize;\n"));
+        assertTrue(javaCode.contains("        sendBuffer = ByteBuffer.allocateDirect(arraySize);\n"));
+        assertTrue(javaCode.contains("    @Benchmark\n"
+                                     + "    @Threads(8)\n"
+                                     + "    public void nativeBaselineThreads8() {\n"
+                                     + "        nativeBaseline();\n"
+                                     + "    }\n"));
+        assertTrue(javaCode.contains("    @Benchmark\n"
+                                     + "    @Threads(8)\n"
+                                     + "    public long hashThreads8() throws Throwable {\n"
+                                     + "        return (long) HASH.invokeExact(instance, hashValue);\n"
+                                     + "    }\n"));
+        assertTrue(javaCode.contains("    public void noArgsThreads1() throws Throwable {\n"
+                                     + "        NO_ARGS.invokeExact();\n"
+                                     + "    }\n"));
+        assertTrue(javaCode.contains("    // matrix([Ljava/lang/Object;IIZ)[[Ljava/lang/String; isn't benchmarked\n"
+                                     + "    // because arguments can't be synthesized for elements.\n"));
+    }
+
+    @Test
+    public void renderBenchmarkOfUnsupportedReturn() {
+        ClassInfo opener = new ClassInfo("javah4x.test.Opener", "Opener", Collections.singletonList(
+                new NativeMethod("open", "(Ljava/lang/String;)Ljavah4x/test/Opener$Handle;", true,
+                                 Collections.singletonList("path"))));
+        String javaCode = new JmhGenerator().renderBenchmark(opener);
+        assertTrue(javaCode.contains("    // open(Ljava/lang/String;)Ljavah4x/test/Opener$Handle; isn't benchmarked\n"
+                                     + "    // because the return type isn't supported.\n"));
+        assertFalse(javaCode.contains("OPEN"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidThreads() {
+        new JmhGenerator(new GeneratorOptions(Collections.singletonMap("jmhThreads", "1,many")));
+    }
+
+    @Test
+    public void finish() throws IOException {
+        Path root = folder.getRoot().toPath();
+        new JmhGenerator().finish(root, Arrays.asList(new ClassInfo(TestJniClass.class), classInfo));
+
+        String baseline = new String(Files.readAllBytes(root.resolve(JmhGenerator.BASELINE_FILE_NAME)));
+        assertTrue(baseline.contains("#[no_mangle]\n"
+                                     + "extern \"system\" fn Java_javah4x_test_TestJniClassBenchmark_nativeBaseline(\n"
+                                     + "    _env: JNIEnv,\n"
+                                     + "    _clazz: JClass,\n"
+                                     + ") {\n"
+                                     + "}\n"));
+        assertTrue(baseline.contains("fn Java_javah4x_test_VariousSignaturesBenchmark_nativeBaseline("));
+
+        String gradle = new String(Files.readAllBytes(root.resolve(JmhGenerator.GRADLE_FILE_NAME)));
+        assertTrue(gradle.contains("    jmhImplementation 'org.openjdk.jmh:jmh-core:1.37'\n"));
+        assertTrue(gradle.contains("task jmh(type: JavaExec) {\n"));
+    }
+}
@@ -0,0 +1,134 @@
+package javah4x.rust;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.Test;
+
+import javah4x.ClassInfo;
+import javah4x.GeneratorOptions;
+import javah4x.NativeMethod;
+import javah4x.test.VariousSignatures;
+
+public class RustFfmGeneratorTest {
+    private final ClassInfo classInfo = new ClassInfo(VariousSignatures.class);
+
+    @Test
+    public void renderClass() {
+        Map<String, byte[]> files = new RustFfmGenerator().renderClass(classInfo);
+        assertEquals(2, files.size());
+        assertTrue(files.containsKey("javah4x_test_VariousSignatures/mod.rs"));
+        assertTrue(files.containsKey("java/javah4x/test/VariousSignaturesFfm.java"));
+    }
+
+    @Test
+    public void renderRust() {
+        assertEquals("// THIS FILE IS GENERATED AUTOMATICALLY. DO NOT EDIT!\n"
+                     + "mod imp;\n"
+                     + '\n'
+                     + "use self::imp::FfmVariousSignaturesImpl;\n"
+                     + '\n'
+                     + "trait FfmVariousSignatures {\n"
+                     + "    fn compress(\n"
+                     + "        input: &mut [i8],\n"
+                     + "        input_offset: i32,\n"
+                     + "        input_length: i32,\n"
+                     + "        output: &mut [i8],\n"
+                     + "        output_offset: i32,\n"
+                     + "    ) -> i32;\n"
+                     + "    fn hash(value: i64) -> i64;\n"
+                     + "    fn no_args();\n"
+                     + "}\n"
+                     + '\n'
+                     + "unsafe fn slice_mut<'a, T>(ptr: *mut T, len: usize) -> &'a mut [T] {\n"
+                     + "    if len == 0 {\n"
+                     + "        &mut []\n"
+                     + "    } else {\n"
+                     + "        unsafe { std::slice::from_raw_parts_mut(ptr, len) }\n"
+                     + "    }\n"
+                     + "}\n"
+                     + '\n'
+                     + "#[no_mangle]\n"
+                     + "pub extern \"C\" fn ffm_javah4x_test_VariousSignatures_compress___3BII_3BI(\n"
+                     + "    input: *mut i8,\n"
+                     + "    input_len: usize,\n"
+                     + "    input_offset: i32,\n"
+                     + "    input_length: i32,\n"
+                     + "    output: *mut i8,\n"
+                     + "    output_len: usize,\n"
+                     + "    output_offset: i32,\n"
+                     + ") -> i32 {\n"
+                     + "    let input = unsafe { slice_mut(input, input_len) };\n"
+                     + "    let output = unsafe { slice_mut(output, output_len) };\n"
+                     + "    FfmVariousSignaturesImpl::compress(input, input_offset, input_length, output, output_offset)\n"
+                     + "}\n"
+                     + '\n'
+                     + "#[no_mangle]\n"
+                     + "pub extern \"C\" fn ffm_javah4x_test_VariousSignatures_hash__J(value: i64) -> i64 {\n"
+                     + "    FfmVariousSignaturesImpl::hash(value)\n"
+                     + "}\n"
+                     + '\n'
+                     + "#[no_mangle]\n"
+                     + "pub extern \"C\" fn ffm_javah4x_test_VariousSignatures_noArgs() {\n"
+                     + "    FfmVariousSignaturesImpl::no_args()\n"
+                     + "}\n", new RustFfmGenerator().renderRust(classInfo));
+    }
+
+    @Test
+    public void renderJava() {
+        String java = new RustFfmGenerator().renderJava(classInfo);
+        assertTrue(java.contains("package javah4x.test;\n"));
+        assertTrue(java.contains("public final class VariousSignaturesFfm {\n"));
+        assertTrue(java.contains(
+                "    private static final MethodHandle HASH = downcall(\n"
+                + "            \"ffm_javah4x_test_VariousSignatures_hash__J\",\n"
+                + "            FunctionDescriptor.of(ValueLayout.JAVA_LONG, ValueLayout.JAVA_LONG),\n"
+                + "            false);\n"));
+        assertTrue(java.contains(
+                "    public static int compress(byte[] input, int inputOffset, int inputLength, byte[] output, "
+                + "int outputOffset) {\n"
+                + "        try (Arena arena = Arena.ofConfined()) {\n"
+                + "            MemorySegment inputSegment = arena.allocateFrom(ValueLayout.JAVA_BYTE, input);\n"));
+        assertTrue(java.contains(
+                "            MemorySegment.copy(outputSegment, ValueLayout.JAVA_BYTE, 0, output, 0, output.length);\n"
+                + "            return result;\n"));
+        assertTrue(java.contains("    // matrix([Ljava/lang/Object;IIZ)[[Ljava/lang/String; can't be called through FFM"));
+        assertTrue(java.contains(
+                "    public static void noArgs() {\n"
+                + "        try {\n"
+                + "            NO_ARGS.invokeExact();\n"));
+    }
+
+    @Test
+    public void renderJavaCritical() {
+        GeneratorOptions options = new GeneratorOptions(Collections.singletonMap(
+                "ffmCritical.javah4x.test.VariousSignatures#compress", "true"));
+        String java = new RustFfmGenerator(options).renderJava(classInfo);
+        assertFalse(java.contains("Arena"));
+        assertTrue(java.contains(
+                "            return (int) COMPRESS.invokeExact(MemorySegment.ofArray(input), (long) input.length, "
+                + "inputOffset, inputLength, MemorySegment.ofArray(output), (long) output.length, "
+                + "outputOffset);\n"));
+        assertTrue(java.contains("            \"ffm_javah4x_test_VariousSignatures_hash__J\",\n"
+                                 + "            FunctionDescriptor.of(ValueLayout.JAVA_LONG, ValueLayout.JAVA_LONG),\n"
+                                 + "            false);\n"));
+    }
+
+    @Test
+    public void renderJavaOverloaded() {
+        ClassInfo overloaded = new ClassInfo("javah4x.test.Overloads", "Overloads", Arrays.asList(
+                new NativeMethod("add", "(II)I", true, Arrays.asList("a", "b")),
+                new NativeMethod("add", "(JJ)J", true, Arrays.asList("a", "b"))));
+        String java = new RustFfmGenerator().renderJava(overloaded);
+        assertTrue(java.contains("    private static final MethodHandle ADD___I_I = downcall(\n"
+                                 + "            \"ffm_javah4x_test_Overloads_add__II\",\n"));
+        assertTrue(java.contains("    private static final MethodHandle ADD___J_J = downcall(\n"
+                                 + "            \"ffm_javah4x_test_Overloads_add__JJ\",\n"));
+        assertTrue(java.contains("            return (long) ADD___J_J.invokeExact(a, b);\n"));
+    }
+}
@@ -0,0 +1,72 @@
+package javah4x.rust;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class RustFormatterTest {
+    @Test
+    public void fnSignature() {
+        assertEquals("fn foo(a: jint, b: jint) -> jint {",
+                     RustFormatter.fnSignature(0, "fn foo", Arrays.asList("a: jint", "b: jint"), " -> jint {"));
+        assertEquals("    fn foo();", RustFormatter.fnSignature(1, "fn foo", Collections.emptyList(), ";"));
+        assertEquals("    fn a_very_long_function_name_to_wrap(\n"
+                     + "        env: &mut JNIEnv<'a>,\n"
+                     + "        this: JObject<'a>,\n"
+                     + "        value: jlong,\n"
+                     + "    ) -> Result<jlong, Self::Error>;",
+                     RustFormatter.fnSignature(1, "fn a_very_long_function_name_to_wrap",
+                                               Arrays.asList("env: &mut JNIEnv<'a>", "this: JObject<'a>",
+                                                             "value: jlong"),
+                                               " -> Result<jlong, Self::Error>;"));
+    }
+
+    @Test
+    public void callLine() {
+        assertEquals("    foo(a, b);", RustFormatter.callLine(1, RustFormatter.call("foo", "a", "b"), ";"));
+        // arguments exceeding fn_call_width are put vertically even when the line fits in max_width
+        assertEquals("    wrap_error!(\n"
+                     + "        env,\n"
+                     + "        JniTestJniClassImpl::get_int(&mut env, this),\n"
+                     + "        Default::default()\n"
+                     + "    )",
+                     RustFormatter.callLine(1, RustFormatter.macroCall(
+                             "wrap_error!", "env", RustFormatter.call("JniTestJniClassImpl::get_int", "&mut env", "this"),
+                             "Default::default()"), ""));
+        assertEquals("    JniFooImpl::compress(\n"
+                     + "        &mut env,\n"
+                     + "        this,\n"
+                     + "        input,\n"
+                     + "        input_offset,\n"
+                     + "        input_length,\n"
+                     + "        output,\n"
+                     + "        output_offset,\n"
+                     + "    );",
+                     RustFormatter.callLine(1, RustFormatter.call(
+                             "JniFooImpl::compress", "&mut env", "this", "input", "input_offset", "input_length",
+                             "output", "output_offset"), ";"));
+        // the right-hand side of an assignment goes to the next line if it fits in a line there
+        assertEquals("        let result =\n"
+                     + "            JniVariousSignaturesImpl::matrix(env, clazz, elements, rows, columns, transpose);",
+                     RustFormatter.callLine(2, "let result = ", RustFormatter.call(
+                             "JniVariousSignaturesImpl::matrix", "env", "clazz", "elements", "rows", "columns",
+                             "transpose"), ";"));
+    }
+
+    @Test
+    public void useBlock() {
+        assertEquals("use self::imp::Impl;\n"
+                     + "use jni::objects::*;\n"
+                     + "use jni::sys::*;\n"
+                     + "use jni::JNIEnv;\n"
+                     + "use std::sync::OnceLock;\n",
+                     RustFormatter.useBlock(Arrays.asList("std::sync::OnceLock", "jni::JNIEnv", "jni::sys::*",
+                                                          "jni::objects::*", "self::imp::Impl")));
+        assertEquals("pub use jni::sys::*;\n"
+                     + "pub use jni::JNIEnv;\n",
+                     RustFormatter.useBlock("pub ", Arrays.asList("jni::JNIEnv", "jni::sys::*")));
+    }
+}
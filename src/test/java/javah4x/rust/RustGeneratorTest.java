@@ -1,19 +1,40 @@
 package javah4x.rust;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+import org.junit.Assume;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
 import javah4x.ClassInfo;
+import javah4x.GeneratorOptions;
+import javah4x.NativeMethod;
+import javah4x.test.Callbacks;
+import javah4x.test.Handles;
+import javah4x.test.ReservedNames;
 import javah4x.test.TestJniClass;
+import javah4x.test.VariousSignatures;
+import javah4x.test.with_underscore.With_Underscore;
 
 public class RustGeneratorTest {
     @Rule
@@ -23,7 +44,7 @@ public class RustGeneratorTest {
     public void generateClass() throws IOException {
         Path root = folder.getRoot().toPath();
         ClassInfo classInfo = new ClassInfo(TestJniClass.class);
-        RustGenerator generator = new RustGenerator(false);
+        RustGenerator generator = new RustGenerator();
         generator.generateClass(root, classInfo);
 
         Path modFile = root.resolve(Paths.get("javah4x_test_TestJniClass", "mod.rs"));
@@ -32,11 +53,11 @@ public class RustGeneratorTest {
         assertEquals("// THIS FILE IS GENERATED AUTOMATICALLY. DO NOT EDIT!\n"
                      + "mod imp;\n"
                      + '\n'
+                     + "use self::imp::JniTestJniClassImpl;\n"
                      + "use jni::descriptors::Desc;\n"
                      + "use jni::objects::*;\n"
                      + "use jni::sys::*;\n"
                      + "use jni::JNIEnv;\n"
-                     + "use self::imp::JniTestJniClassImpl;\n"
                      + '\n'
                      + "macro_rules! wrap_error {\n"
                      + "    ($env:expr, $body:expr, $default:expr) => {\n"
@@ -55,18 +76,895 @@ public class RustGeneratorTest {
                      + '\n'
                      + "trait JniTestJniClass<'a> {\n"
                      + "    type Error: Desc<'a, JThrowable<'a>>;\n"
-                     + "    fn do_nothing(env: &mut JNIEnv<'a>, clazz: JClass<'a>, name: JString<'a>, x: jint) -> Result<(), Self::Error>;\n"
+                     + "    fn do_nothing(\n"
+                     + "        env: &mut JNIEnv<'a>,\n"
+                     + "        clazz: JClass<'a>,\n"
+                     + "        name: JString<'a>,\n"
+                     + "        x: jint,\n"
+                     + "    ) -> Result<(), Self::Error>;\n"
                      + "    fn get_int(env: &mut JNIEnv<'a>, this: JObject<'a>) -> Result<jint, Self::Error>;\n"
                      + "}\n"
                      + '\n'
                      + "#[no_mangle]\n"
-                     + "extern \"system\" fn Java_javah4x_test_TestJniClass_doNothing__Ljava_lang_String_2I<'a>(mut env: JNIEnv<'a>, clazz: JClass<'a>, name: JString<'a>, x: jint) {\n"
-                     + "    wrap_error!(env, JniTestJniClassImpl::do_nothing(&mut env, clazz, name, x), Default::default())\n"
+                     + "extern \"system\" fn Java_javah4x_test_TestJniClass_doNothing__Ljava_lang_String_2I<'a>(\n"
+                     + "    mut env: JNIEnv<'a>,\n"
+                     + "    clazz: JClass<'a>,\n"
+                     + "    name: JString<'a>,\n"
+                     + "    x: jint,\n"
+                     + ") {\n"
+                     + "    wrap_error!(\n"
+                     + "        env,\n"
+                     + "        JniTestJniClassImpl::do_nothing(&mut env, clazz, name, x),\n"
+                     + "        Default::default()\n"
+                     + "    )\n"
                      + "}\n"
                      + '\n'
                      + "#[no_mangle]\n"
-                     + "extern \"system\" fn Java_javah4x_test_TestJniClass_getInt<'a>(mut env: JNIEnv<'a>, this: JObject<'a>) -> jint {\n"
-                     + "    wrap_error!(env, JniTestJniClassImpl::get_int(&mut env, this), Default::default())\n"
-                     + "}\n\n", rustCode);
+                     + "extern \"system\" fn Java_javah4x_test_TestJniClass_getInt<'a>(\n"
+                     + "    mut env: JNIEnv<'a>,\n"
+                     + "    this: JObject<'a>,\n"
+                     + ") -> jint {\n"
+                     + "    wrap_error!(\n"
+                     + "        env,\n"
+                     + "        JniTestJniClassImpl::get_int(&mut env, this),\n"
+                     + "        Default::default()\n"
+                     + "    )\n"
+                     + "}\n", rustCode);
+    }
+
+    @Test
+    public void generateClassUnchanged() throws IOException {
+        Path root = folder.getRoot().toPath();
+        ClassInfo classInfo = new ClassInfo(TestJniClass.class);
+        RustGenerator generator = new RustGenerator();
+        generator.generateClass(root, classInfo);
+
+        Path modFile = root.resolve(Paths.get("javah4x_test_TestJniClass", "mod.rs"));
+        FileTime mtime = FileTime.fromMillis(0);
+        Files.setLastModifiedTime(modFile, mtime);
+        generator.generateClass(root, classInfo);
+        assertEquals(mtime, Files.getLastModifiedTime(modFile));
+    }
+
+    private static GeneratorOptions options(String... keyValues) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < keyValues.length; i += 2) {
+            options.put(keyValues[i], keyValues[i + 1]);
+        }
+        return new GeneratorOptions(options);
+    }
+
+    /**
+     * Compiles generated Java files against test classes, unless no compiler is available.
+     */
+    private void assertCompiles(Map<String, byte[]> files) throws IOException {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        Assume.assumeNotNull(compiler);
+        Path root = folder.newFolder().toPath();
+        Path classes = Files.createDirectory(root.resolve("classes"));
+        List<String> args = new ArrayList<>(Arrays.asList(
+                "-d", classes.toString(), "-cp", System.getProperty("java.class.path")));
+        for (Map.Entry<String, byte[]> file : files.entrySet()) {
+            if (file.getKey().endsWith(".java")) {
+                Path path = root.resolve(file.getKey());
+                Files.createDirectories(path.getParent());
+                Files.write(path, file.getValue());
+                args.add(path.toString());
+            }
+        }
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        assertEquals(err.toString(), 0, compiler.run(null, null, err, args.toArray(new String[0])));
+    }
+
+    @Test
+    public void generateRegisterNatives() throws IOException {
+        Path root = folder.getRoot().toPath();
+        ClassInfo classInfo = new ClassInfo(TestJniClass.class);
+        RustGenerator generator = new RustGenerator(options("registerNatives", "true"));
+        generator.generateClass(root, classInfo);
+        generator.finish(root, Collections.singletonList(classInfo));
+
+        String rustCode = new String(Files.readAllBytes(root.resolve("javah4x_test_TestJniClass/mod.rs")));
+        assertFalse(rustCode.contains("#[no_mangle]"));
+        assertTrue(rustCode.endsWith(
+                "pub(crate) fn register_natives(env: &mut JNIEnv) -> jni::errors::Result<()> {\n"
+                + "    let methods = [\n"
+                + "        native_method!(\n"
+                + "            \"doNothing\",\n"
+                + "            \"(Ljava/lang/String;I)V\",\n"
+                + "            Java_javah4x_test_TestJniClass_doNothing__Ljava_lang_String_2I\n"
+                + "        ),\n"
+                + "        native_method!(\"getInt\", \"()I\", Java_javah4x_test_TestJniClass_getInt),\n"
+                + "    ];\n"
+                + "    env.register_native_methods(\"javah4x/test/TestJniClass\", &methods)\n"
+                + "}\n"));
+
+        String onLoad = new String(Files.readAllBytes(root.resolve(RustGenerator.ONLOAD_FILE_NAME)));
+        assertTrue(onLoad.contains("#[no_mangle]\n"
+                                   + "pub extern \"system\" fn JNI_OnLoad(vm: JavaVM, _reserved: *mut c_void) -> jint {\n"));
+        assertTrue(onLoad.endsWith(
+                "fn register_natives(env: &mut JNIEnv) -> jni::errors::Result<()> {\n"
+                + "    crate::javah4x_test_TestJniClass::register_natives(env)?;\n"
+                + "    Ok(())\n"
+                + "}\n"));
+    }
+
+    @Test
+    public void generateAggregate() throws IOException {
+        Path root = folder.getRoot().toPath();
+        List<ClassInfo> classInfos = Arrays.asList(new ClassInfo(TestJniClass.class),
+                                                   new ClassInfo(VariousSignatures.class));
+        RustGenerator generator = new RustGenerator(options("aggregate", "true", "registerNatives", "true",
+                                                            "arraySlices.javah4x.test.VariousSignatures", "true",
+                                                            "directBuffers", "true"));
+        for (ClassInfo classInfo : classInfos) {
+            generator.generateClass(root, classInfo);
+        }
+        generator.finish(root, classInfos);
+
+        String rustCode = new String(Files.readAllBytes(root.resolve("javah4x_test_VariousSignatures/mod.rs")));
+        assertTrue(rustCode.startsWith("// THIS FILE IS GENERATED AUTOMATICALLY. DO NOT EDIT!\n"
+                                       + "mod imp;\n"
+                                       + "\n"
+                                       + "use self::imp::JniVariousSignaturesImpl;\n"
+                                       + "use crate::javah4x_rt::*;\n"
+                                       + "\n"
+                                       + "trait JniVariousSignatures<'a> {\n"));
+        assertFalse(rustCode.contains("macro_rules!"));
+        assertTrue(rustCode.contains("    let input_len = match array_len(raw, input) {\n"));
+
+        String runtime = new String(Files.readAllBytes(root.resolve(RustGenerator.RUNTIME_MOD_NAME + ".rs")));
+        assertTrue(runtime.startsWith("// THIS FILE IS GENERATED AUTOMATICALLY. DO NOT EDIT!\n"
+                                      + "pub use jni::descriptors::Desc;\n"));
+        assertTrue(runtime.contains("pub use jni::NativeMethod;\n"));
+        assertTrue(runtime.contains("\nmacro_rules! wrap_error {\n"));
+        assertTrue(runtime.contains("\nmacro_rules! native_method {\n"));
+        assertTrue(runtime.contains("\npub type RawEnv = *mut jni::sys::JNIEnv;\n"));
+        assertTrue(runtime.contains("\npub fn array_len(env: RawEnv, array: jarray) -> Option<usize> {\n"));
+        assertTrue(runtime.contains("\n    pub fn new(\n"));
+        // Trait impls and statics are left as they are
+        assertTrue(runtime.contains("\nimpl ArrayElement for jbyte {\n    unsafe fn get_region("));
+        assertTrue(runtime.contains(
+                "\nstatic BUFFER_IDS: OnceLock<(JFieldID, JFieldID, JMethodID)> = OnceLock::new();\n"));
+        assertTrue(runtime.endsWith("}\n"));
+        // Rendered once for all classes
+        assertEquals(1, runtime.split("macro_rules! wrap_error").length - 1);
+
+        assertEquals("// THIS FILE IS GENERATED AUTOMATICALLY. DO NOT EDIT!\n"
+                     + "#[macro_use]\n"
+                     + "mod javah4x_rt;\n"
+                     + "\n"
+                     + "mod javah4x_test_TestJniClass;\n"
+                     + "mod javah4x_test_VariousSignatures;\n"
+                     + "mod jni_onload;\n",
+                     new String(Files.readAllBytes(root.resolve(RustGenerator.ROOT_FILE_NAME))));
+    }
+
+    @Test
+    public void generateShards() throws IOException {
+        Path root = folder.getRoot().toPath();
+        List<ClassInfo> classInfos = Arrays.asList(new ClassInfo(TestJniClass.class),
+                                                   new ClassInfo(VariousSignatures.class),
+                                                   new ClassInfo(Callbacks.class));
+        RustGenerator generator = new RustGenerator(options("shards", "4", "registerNatives", "true",
+                                                            "crateName", "bindings",
+                                                            "shardDependencies", "anyhow=1.0"));
+        for (ClassInfo classInfo : classInfos) {
+            generator.generateClass(root, classInfo);
+        }
+        generator.finish(root, classInfos);
+
+        int shard = ShardedCrates.shardOf(TestJniClass.class.getName(), 4);
+        String crate = ShardedCrates.crateName(shard);
+        assertEquals(Arrays.asList(crate + "/src/javah4x_test_TestJniClass/mod.rs"),
+                     new ArrayList<>(generator.renderClass(classInfos.get(0)).keySet()));
+        String rustCode = new String(Files.readAllBytes(
+                root.resolve(crate + "/src/javah4x_test_TestJniClass/mod.rs")));
+        assertTrue(rustCode.contains("use crate::javah4x_rt::*;\n"));
+        assertTrue(Files.exists(root.resolve(crate + "/src/javah4x_rt.rs")));
+        String shardLib = new String(Files.readAllBytes(root.resolve(crate + "/src/lib.rs")));
+        assertTrue(shardLib.contains("mod javah4x_test_TestJniClass;\n"));
+        assertFalse(shardLib.contains("mod jni_onload;"));
+        assertTrue(shardLib.contains(
+                "pub fn register_natives(env: &mut jni::JNIEnv) -> jni::errors::Result<()> {\n"
+                + "    crate::javah4x_test_TestJniClass::register_natives(env)?;\n"));
+        String shardManifest = new String(Files.readAllBytes(root.resolve(crate + "/Cargo.toml")));
+        assertTrue(shardManifest.contains("name = \"" + crate + "\"\n"));
+        assertTrue(shardManifest.contains("[dependencies]\njni.workspace = true\nanyhow.workspace = true\n"));
+        assertTrue(shardManifest.endsWith("\n[features]\njavah4x-metrics = []\n"));
+
+        String manifest = new String(Files.readAllBytes(root.resolve("Cargo.toml")));
+        assertTrue(manifest.contains("    \"" + crate + "\",\n"));
+        assertTrue(manifest.contains("[workspace.dependencies]\njni = \"0.21\"\nanyhow = \"1.0\"\n"));
+        assertTrue(manifest.contains("name = \"bindings\"\n"));
+        assertTrue(manifest.contains("crate-type = [\"cdylib\"]\n"));
+        assertTrue(manifest.contains(crate + " = { path = \"" + crate + "\" }\n"));
+        // Enables the feature in all shards
+        assertTrue(manifest.contains("[features]\njavah4x-metrics = [\n"));
+        assertTrue(manifest.contains("    \"" + crate + "/javah4x-metrics\",\n"));
+        String lib = new String(Files.readAllBytes(root.resolve("src/lib.rs")));
+        assertTrue(lib.contains("pub use " + crate + ";\n"));
+        assertTrue(lib.endsWith("\nmod jni_onload;\n"));
+        String onLoad = new String(Files.readAllBytes(root.resolve("src/" + RustGenerator.ONLOAD_FILE_NAME)));
+        assertTrue(onLoad.contains("    " + crate + "::register_natives(env)?;\n"));
+        assertFalse(Files.exists(root.resolve(RustGenerator.ONLOAD_FILE_NAME)));
+    }
+
+    @Test
+    public void shardOf() {
+        // Depends only on the name, so adding classes doesn't move others
+        assertEquals(ShardedCrates.shardOf("com.example.Foo", 16), ShardedCrates.shardOf("com.example.Foo", 16));
+        int[] counts = new int[8];
+        for (int i = 0; i < 8000; i++) {
+            int shard = ShardedCrates.shardOf("com.example.Class" + i, counts.length);
+            assertTrue(shard >= 0 && shard < counts.length);
+            counts[shard]++;
+        }
+        for (int count : counts) {
+            assertTrue(count > 800 && count < 1200);
+        }
+    }
+
+    @Test
+    public void generateNativeHandles() {
+        ClassInfo classInfo = new ClassInfo(Handles.class);
+        Map<String, byte[]> files = new RustGenerator(options(
+                "handle", "nativeHandle", "handleMut.javah4x.test.Handles#resize", "true", "registerNatives", "true",
+                "batch", "true")).renderClass(classInfo);
+        // Methods taking handles aren't batched
+        assertEquals(Collections.singleton("javah4x_test_Handles/mod.rs"), files.keySet());
+
+        String rustCode = new String(files.get("javah4x_test_Handles/mod.rs"), UTF_8);
+        assertTrue(rustCode.contains("use self::imp::JniHandlesHandle;\n"));
+        assertTrue(rustCode.contains(
+                "    let field = env.get_field_id(\"javah4x/test/Handles\", \"nativeHandle\", \"J\")?;\n"));
+        assertTrue(rustCode.contains(
+                "    let handle = unsafe { ((**raw).GetLongField.unwrap())(raw, obj.as_raw(), field.into_raw()) };\n"));
+        assertTrue(rustCode.contains("pub(crate) fn create_handle(\n"));
+        assertTrue(rustCode.contains(") -> jni::errors::Result<Option<Box<JniHandlesHandle>>> {\n"));
+        assertTrue(rustCode.contains("    fn size(\n"
+                                     + "        env: &mut JNIEnv<'a>,\n"
+                                     + "        this: JObject<'a>,\n"
+                                     + "        native_handle: &JniHandlesHandle,\n"
+                                     + "    ) -> Result<jint, Self::Error>;\n"));
+        assertTrue(rustCode.contains("        native_handle: &mut JniHandlesHandle,\n"
+                                     + "        size: jint,\n"));
+        // Renamed not to collide with the parameter
+        assertTrue(rustCode.contains("        native_handle_: &JniHandlesHandle,\n"
+                                     + "        native_handle: jlong,\n"));
+        assertTrue(rustCode.contains(
+                ") -> jint {\n"
+                + "    let native_handle = wrap_error!(env, handle_ptr(&mut env, &this), return Default::default());\n"
+                + "    let native_handle = unsafe { &*native_handle };\n"
+                + "    wrap_error!(\n"
+                + "        env,\n"
+                + "        JniHandlesImpl::size(&mut env, this, native_handle),\n"
+                + "        Default::default()\n"
+                + "    )\n"
+                + "}\n"));
+        assertTrue(rustCode.contains("    let native_handle = unsafe { &mut *native_handle };\n"));
+        // Static methods don't have handles
+        assertTrue(rustCode.contains("        clazz: JClass<'a>,\n        path: JString<'a>,\n    ) -> Result"));
+        assertTrue(rustCode.contains(
+                "pub(crate) fn register_natives(env: &mut JNIEnv) -> jni::errors::Result<()> {\n"
+                + "    handle_field(env)?;\n"));
+
+        String withoutHandle = new RustGenerator().render(classInfo);
+        assertFalse(withoutHandle.contains("handle_ptr"));
+    }
+
+    @Test
+    public void generateHandleCleaner() {
+        ClassInfo classInfo = new ClassInfo(Handles.class);
+        Map<String, byte[]> files = new RustGenerator(options(
+                "handle", "nativeHandle", "handleCleaner", "true", "registerNatives", "true",
+                "cleanerJavaDir", "src/main/java")).renderClass(classInfo);
+        assertEquals(Arrays.asList("javah4x_test_Handles/mod.rs", "src/main/java/javah4x/test/HandlesCleaner.java"),
+                     new ArrayList<>(files.keySet()));
+
+        String rustCode = new String(files.get("javah4x_test_Handles/mod.rs"), UTF_8);
+        assertTrue(rustCode.contains("extern \"system\" fn Java_javah4x_test_HandlesCleaner_freeBatch___3J<'a>(\n"
+                                     + "    env: JNIEnv<'a>,\n"
+                                     + "    _cleaner: JClass<'a>,\n"
+                                     + "    handles: jlongArray,\n"
+                                     + ") {\n"));
+        assertTrue(rustCode.contains("    let mut buf = [0 as jlong; 256];\n"));
+        // The cleaner frees the handle already stored, so it isn't replaced
+        assertTrue(rustCode.contains("    if prev != 0 {\n"
+                                     + "        let message = \"nativeHandle is already set\";\n"
+                                     + "        env.throw_new(\"java/lang/IllegalStateException\", message)?;\n"));
+        assertFalse(rustCode.contains("drop(Box::from_raw(prev"));
+        assertTrue(rustCode.contains("                let handle = handle as *mut JniHandlesHandle;\n"
+                                     + "                drop(unsafe { Box::from_raw(handle) });\n"));
+        assertTrue(rustCode.contains(
+                "    let cleaner_methods = [\n"
+                + "        native_method!(\n"
+                + "            \"freeBatch\",\n"
+                + "            \"([J)V\",\n"
+                + "            Java_javah4x_test_HandlesCleaner_freeBatch___3J\n"
+                + "        ),\n"
+                + "    ];\n"
+                + "    env.register_native_methods(\"javah4x/test/HandlesCleaner\", &cleaner_methods)\n"));
+
+        String javaCode = new String(files.get("src/main/java/javah4x/test/HandlesCleaner.java"), UTF_8);
+        assertTrue(javaCode.contains("package javah4x.test;\n"));
+        assertTrue(javaCode.contains("public final class HandlesCleaner {\n"));
+        assertTrue(javaCode.contains("    public static Cleaner.Cleanable register(Object owner, long handle) {\n"));
+        assertTrue(javaCode.contains("    private static native void freeBatch(long[] handles);\n"));
+
+        // Not generated without the handle field
+        assertEquals(Collections.singleton("javah4x_test_Callbacks/mod.rs"),
+                     new RustGenerator(options("handleCleaner", "true"))
+                             .renderClass(new ClassInfo(Callbacks.class)).keySet());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void generateNativeHandlesOfNonLongField() {
+        new RustGenerator(options("handle", "count")).render(new ClassInfo(Callbacks.class));
+    }
+
+    @Test
+    public void generateArraySlices() {
+        String rustCode = new RustGenerator(options(
+                "arraySlices", "true",
+                "arrayMut.javah4x.test.VariousSignatures#compress", "output",
+                "arrayStackThreshold.javah4x.test.VariousSignatures", "1024"))
+                .render(new ClassInfo(VariousSignatures.class));
+        assertTrue(rustCode.contains("impl ArrayElement for jbyte {\n"));
+        assertTrue(rustCode.contains("            if class.is_null() {\n"
+                                     + "                return None;\n"
+                                     + "            }\n"));
+        assertTrue(rustCode.contains("fn distinct_arrays<const N: usize>(\n"));
+        assertTrue(rustCode.contains("    fn compress(\n"
+                                     + "        input: &[jbyte],\n"
+                                     + "        input_offset: jint,\n"
+                                     + "        input_length: jint,\n"
+                                     + "        output: &mut [jbyte],\n"
+                                     + "        output_offset: jint,\n"
+                                     + "    ) -> Result<jint, Self::Error>;\n"));
+        // Methods with object parameters keep taking JNIEnv
+        assertTrue(rustCode.contains("    fn hash(env: &mut JNIEnv<'a>, this: JObject<'a>, value: jlong)"));
+        assertTrue(rustCode.contains(
+                ") -> jint {\n"
+                + "    let raw = env.get_raw();\n"
+                + "    let input_len = match array_len(raw, input) {\n"
+                + "        Some(len) => len,\n"
+                + "        None => return Default::default(),\n"
+                + "    };\n"
+                + "    let output_len = match array_len(raw, output) {\n"
+                + "        Some(len) => len,\n"
+                + "        None => return Default::default(),\n"
+                + "    };\n"
+                + "    wrap_error!(\n"
+                + "        env,\n"
+                + "        distinct_arrays(raw, [(input, \"input\", false), (output, \"output\", true)]),\n"
+                + "        return Default::default()\n"
+                + "    );\n"
+                + "    let mut input_buf = [0 as jbyte; 1024];\n"
+                + "    let mut output_buf = [0 as jbyte; 1024];\n"
+                + "    let on_stack = input_len <= input_buf.len() && output_len <= output_buf.len();\n"
+                + "    let input = match ArrayArg::new(raw, input, input_len, &mut input_buf, on_stack, false) {\n"
+                + "        Some(array) => array,\n"
+                + "        None => return Default::default(),\n"
+                + "    };\n"
+                + "    let mut output = match ArrayArg::new(raw, output, output_len, &mut output_buf, on_stack, true) {\n"
+                + "        Some(array) => array,\n"
+                + "        None => return Default::default(),\n"
+                + "    };\n"
+                + "    let result = JniVariousSignaturesImpl::compress(\n"
+                + "        &input,\n"
+                + "        input_offset,\n"
+                + "        input_length,\n"
+                + "        &mut output,\n"
+                + "        output_offset,\n"
+                + "    );\n"
+                + "    drop(input);\n"
+                + "    drop(output);\n"
+                + "    wrap_error!(env, result, Default::default())\n"
+                + "}\n"));
+    }
+
+    @Test
+    public void generateDirectBuffer() {
+        String rustCode = new RustGenerator(options("directBuffers", "true", "bufferMut", "buffer"))
+                .render(new ClassInfo(VariousSignatures.class));
+        assertTrue(rustCode.contains("use std::sync::OnceLock;\n"));
+        assertTrue(rustCode.contains(
+                "static BUFFER_IDS: OnceLock<(JFieldID, JFieldID, JMethodID)> = OnceLock::new();\n"));
+        assertTrue(rustCode.contains("    fn send(\n"
+                                     + "        env: &mut JNIEnv<'a>,\n"
+                                     + "        this: JObject<'a>,\n"
+                                     + "        buffer: &mut [u8],\n"
+                                     + "        flags: jint,\n"
+                                     + "    ) -> Result<jint, Self::Error>;\n"));
+        assertTrue(rustCode.contains(
+                "    buffer: JByteBuffer<'a>,\n"
+                + "    flags: jint,\n"
+                + ") -> jint {\n"
+                + "    let buffer = wrap_error!(\n"
+                + "        env,\n"
+                + "        direct_buffer(&mut env, &buffer, \"buffer\", true),\n"
+                + "        return Default::default()\n"
+                + "    );\n"
+                + "    let buffer = unsafe { buffer.as_mut_slice() };\n"
+                + "    wrap_error!(\n"
+                + "        env,\n"
+                + "        JniVariousSignaturesImpl::send(&mut env, this, buffer, flags),\n"
+                + "        Default::default()\n"
+                + "    )\n"
+                + "}\n"));
+
+        String readOnly = new RustGenerator(options("directBuffers", "true"))
+                .render(new ClassInfo(VariousSignatures.class));
+        assertTrue(readOnly.contains("        buffer: &[u8],\n"));
+        assertTrue(readOnly.contains("        direct_buffer(&mut env, &buffer, \"buffer\", false),\n"));
+        assertTrue(readOnly.contains("    let buffer = unsafe { buffer.as_slice() };\n"));
+        assertFalse(readOnly.contains("    wrap_error!(env, disjoint_buffers("));
+
+        // Buffers passed as &mut [u8] must not overlap others
+        ClassInfo copies = new ClassInfo("javah4x.test.Copies", "Copies", Collections.singletonList(
+                new NativeMethod("copy", "(Ljava/nio/ByteBuffer;Ljava/nio/ByteBuffer;)V", true,
+                                 Arrays.asList("src", "dst"))));
+        String copyCode = new RustGenerator(options("directBuffers", "true", "bufferMut", "dst")).render(copies);
+        assertTrue(copyCode.contains(
+                "    wrap_error!(\n"
+                + "        env,\n"
+                + "        disjoint_buffers([(&src, \"src\"), (&dst, \"dst\")]),\n"
+                + "        return Default::default()\n"
+                + "    );\n"
+                + "    let src = unsafe { src.as_slice() };\n"
+                + "    let dst = unsafe { dst.as_mut_slice() };\n"));
+
+        // Buffers are passed as objects unless enabled
+        String objects = new RustGenerator().render(new ClassInfo(VariousSignatures.class));
+        assertTrue(objects.contains("    fn send(\n"
+                                    + "        env: &mut JNIEnv<'a>,\n"
+                                    + "        this: JObject<'a>,\n"
+                                    + "        buffer: JObject<'a>,\n"
+                                    + "        flags: jint,\n"
+                                    + "    ) -> Result<jint, Self::Error>;\n"));
+        assertFalse(objects.contains("direct_buffer("));
+        assertFalse(objects.contains("BUFFER_IDS"));
+    }
+
+    @Test
+    public void generateAttachedThreads() {
+        String rustCode = new RustGenerator(options("attach", "true", "registry", "true", "registerNatives", "true"))
+                .render(new ClassInfo(Callbacks.class));
+        assertTrue(rustCode.contains("use jni::JavaVM;\n"));
+        assertTrue(rustCode.contains("static JAVA_VM: OnceLock<JavaVM> = OnceLock::new();\n"));
+        assertTrue(rustCode.contains(
+                "    static ATTACHED_ENV: Cell<*mut jni::sys::JNIEnv> = const { Cell::new(std::ptr::null_mut()) };\n"));
+        assertTrue(rustCode.contains(
+                "        match vm.get_env() {\n"
+                + "            // Attached by another owner, which may detach it, so it isn't cached\n"
+                + "            Ok(env) => raw = env.get_raw(),\n"
+                + "            Err(_) => {\n"
+                + "                // Detached when the thread exits\n"
+                + "                raw = vm.attach_current_thread_permanently()?.get_raw();\n"
+                + "                ATTACHED_ENV.with(|env| env.set(raw));\n"));
+        assertTrue(rustCode.contains("    env.with_local_frame(16, f)\n"));
+        assertTrue(rustCode.contains("    F: FnOnce(&mut JNIEnv, &JniCallbacksIds) -> Result<T, E>,\n"));
+        assertTrue(rustCode.contains(
+                "pub(crate) fn register_natives(env: &mut JNIEnv) -> jni::errors::Result<()> {\n"
+                + "    init_java_vm(env)?;\n"));
+
+        // IDs are passed only with the registry
+        String withoutRegistry = new RustGenerator(options("attach", "true")).render(new ClassInfo(Callbacks.class));
+        assertTrue(withoutRegistry.contains("pub(crate) fn with_attached_env<T, E, F>(f: F) -> Result<T, E>\n"));
+        assertFalse(withoutRegistry.contains("with_attached_ids"));
+
+        assertFalse(new RustGenerator().render(new ClassInfo(Callbacks.class)).contains("JAVA_VM"));
+    }
+
+    @Test
+    public void generateRegistry() {
+        String rustCode = new RustGenerator(options("registry.javah4x.test.Callbacks", "true",
+                                                    "registerNatives", "true"))
+                .render(new ClassInfo(Callbacks.class));
+        assertTrue(rustCode.contains("use jni::signature::ReturnType;\n"));
+        assertTrue(rustCode.contains(
+                "pub(crate) struct JniCallbacksIds {\n"
+                + "    pub(crate) class: GlobalRef,\n"
+                + "    pub(crate) count_field: JFieldID,\n"
+                + "    pub(crate) instance_field: JStaticFieldID,\n"
+                + "    pub(crate) new: JMethodID,\n"
+                + "    pub(crate) counter: JMethodID,\n"
+                + "    pub(crate) describe: JStaticMethodID,\n"
+                + "    pub(crate) is_running: JMethodID,\n"
+                + "    pub(crate) on_data: JMethodID,\n"
+                + "}\n"
+                + "\n"
+                + "static JNI_CALLBACKS_IDS: OnceLock<JniCallbacksIds> = OnceLock::new();\n"));
+        assertTrue(rustCode.contains(
+                "        let class = env.find_class(\"javah4x/test/Callbacks\")?;\n"
+                + "        let ids = JniCallbacksIds {\n"
+                + "            count_field: env.get_field_id(&class, \"count\", \"I\")?,\n"));
+        assertTrue(rustCode.contains(
+                "    pub(crate) fn new_object<'local>(\n"
+                + "        &self,\n"
+                + "        env: &mut JNIEnv<'local>,\n"
+                + "        count: jint,\n"
+                + "    ) -> jni::errors::Result<JObject<'local>> {\n"
+                + "        let args = [JValue::Int(count).as_jni()];\n"
+                + "        let id = self.new;\n"
+                + "        let class = &self.class;\n"
+                + "        unsafe { env.new_object_unchecked(class, id, &args) }\n"
+                + "    }\n"));
+        assertTrue(rustCode.contains(
+                "    pub(crate) fn call_on_data<'local>(\n"
+                + "        &self,\n"
+                + "        env: &mut JNIEnv<'local>,\n"
+                + "        obj: &JObject,\n"
+                + "        data: &JObject,\n"
+                + "        length: jint,\n"
+                + "    ) -> jni::errors::Result<()> {\n"
+                + "        let args = [JValue::Object(data).as_jni(), JValue::Int(length).as_jni()];\n"
+                + "        let id = self.on_data;\n"
+                + "        let ret = ReturnType::Primitive(Primitive::Void);\n"
+                + "        let value = unsafe { env.call_method_unchecked(obj, id, ret, &args)? };\n"
+                + "        value.v()\n"
+                + "    }\n"));
+        assertTrue(rustCode.contains(
+                "        let id = self.describe;\n"
+                + "        let class = &self.class;\n"
+                + "        let ret = ReturnType::Object;\n"
+                + "        let value = unsafe { env.call_static_method_unchecked(class, id, ret, &args)? };\n"
+                + "        value.l()\n"));
+        assertTrue(rustCode.contains(
+                "pub(crate) fn register_natives(env: &mut JNIEnv) -> jni::errors::Result<()> {\n"
+                + "    JniCallbacksIds::get(env)?;\n"));
+
+        String withoutRegistry = new RustGenerator().render(new ClassInfo(Callbacks.class));
+        assertFalse(withoutRegistry.contains("JniCallbacksIds"));
+    }
+
+    @Test
+    public void generateMetrics() {
+        ClassInfo classInfo = new ClassInfo(TestJniClass.class);
+        Map<String, byte[]> files = new RustGenerator(options("metrics", "true", "metricsJavaDir", "src"))
+                .renderClass(classInfo);
+        assertEquals(Arrays.asList("javah4x_test_TestJniClass/mod.rs", "src/javah4x/test/TestJniClassMetrics.java"),
+                     new ArrayList<>(files.keySet()));
+
+        String rustCode = new String(files.get("javah4x_test_TestJniClass/mod.rs"), UTF_8);
+        assertTrue(rustCode.contains("#[cfg(feature = \"javah4x-metrics\")]\n"
+                                     + "static METRICS: [metrics::MethodMetrics; 2] = [metrics::METHOD; 2];\n"));
+        assertTrue(rustCode.contains(
+                ") -> jint {\n"
+                + "    #[cfg(feature = \"javah4x-metrics\")]\n"
+                + "    let timer = metrics::MethodTimer::start(&METRICS[1]);\n"
+                + "    let result = JniTestJniClassImpl::get_int(&mut env, this);\n"
+                + "    #[cfg(feature = \"javah4x-metrics\")]\n"
+                + "    if result.is_err() {\n"
+                + "        timer.failed();\n"
+                + "    }\n"
+                + "    wrap_error!(env, result, Default::default())\n"
+                + "}\n"));
+        assertTrue(rustCode.contains("#[no_mangle]\n"
+                                     + "extern \"system\" fn Java_javah4x_test_TestJniClassMetrics_snapshot0<'a>(\n"));
+
+        String javaCode = new String(files.get("src/javah4x/test/TestJniClassMetrics.java"), UTF_8);
+        assertTrue(javaCode.contains("public final class TestJniClassMetrics {\n"));
+        assertTrue(javaCode.contains("    private static final String[] METHODS = {\n"
+                                     + "            \"doNothing(Ljava/lang/String;I)V\",\n"
+                                     + "            \"getInt()I\",\n"
+                                     + "    };\n"));
+        assertTrue(javaCode.contains("    private static native long[] snapshot0();\n"));
+
+        String withoutMetrics = new RustGenerator().render(classInfo);
+        assertFalse(withoutMetrics.contains("javah4x-metrics"));
+    }
+
+    @Test
+    public void generateLocalFrames() {
+        ClassInfo classInfo = new ClassInfo(VariousSignatures.class);
+        String rustCode = new RustGenerator(options("localFrames", "true")).render(classInfo);
+        assertTrue(rustCode.contains("fn pop_frame(env: &JNIEnv, result: jobject) -> jobject {\n"));
+        assertTrue(rustCode.contains("fn for_each_element<'a, E>(\n"));
+        assertTrue(rustCode.contains(
+                ") -> jobjectArray {\n"
+                + "    if env.push_local_frame(18).is_err() {\n"
+                + "        return JObject::null().into_raw();\n"
+                + "    }\n"
+                + "    let value = wrap_error!(\n"
+                + "        env,\n"
+                + "        JniVariousSignaturesImpl::matrix(&mut env, clazz, elements, rows, columns, transpose),\n"
+                + "        JObject::null().into_raw()\n"
+                + "    );\n"
+                + "    pop_frame(&env, value)\n"
+                + "}\n"));
+        // Only methods taking or returning object arrays get frames
+        assertEquals(1, rustCode.split("push_local_frame\\(\\d+\\)").length - 1);
+
+        String withCapacity = new RustGenerator(options(
+                "localFrames", "true", "localFrameCapacity.javah4x.test.VariousSignatures#matrix", "1024"))
+                .render(classInfo);
+        assertTrue(withCapacity.contains("    if env.push_local_frame(1024).is_err() {\n"));
+
+        String withoutFrames = new RustGenerator().render(classInfo);
+        assertFalse(withoutFrames.contains("local_frame"));
+    }
+
+    @Test
+    public void generateExceptions() {
+        ClassInfo classInfo = new ClassInfo(TestJniClass.class);
+        String rustCode = new RustGenerator(options(
+                "registerNatives", "true",
+                "exceptions", "java.lang.IllegalArgumentException, java.util.NoSuchElementException"))
+                .render(classInfo);
+        assertTrue(rustCode.contains("use std::ffi::CStr;\n"));
+        assertTrue(rustCode.contains("pub(crate) enum JniTestJniClassException {\n"
+                                     + "    IllegalArgumentException = 0,\n"
+                                     + "    NoSuchElementException = 1,\n"
+                                     + "}\n"));
+        assertTrue(rustCode.contains("const EXCEPTION_CLASSES: [&str; 2] = [\n"
+                                     + "    \"java/lang/IllegalArgumentException\",\n"
+                                     + "    \"java/util/NoSuchElementException\",\n"
+                                     + "];\n"));
+        assertTrue(rustCode.contains("unsafe impl<'local> Desc<'local, JThrowable<'local>> for JniTestJniClassError {\n"));
+        assertTrue(rustCode.contains("pub(crate) fn register_natives(env: &mut JNIEnv) -> jni::errors::Result<()> {\n"
+                                     + "    exceptions(env)?;\n"));
+
+        assertFalse(new RustGenerator().render(classInfo).contains("EXCEPTION_CLASSES"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void generateExceptionsOfSameName() {
+        new RustGenerator(options("exceptions", "com.example.Error,com.example.other.Error"))
+                .render(new ClassInfo(TestJniClass.class));
+    }
+
+    @Test
+    public void generateStringViews() {
+        ClassInfo classInfo = new ClassInfo(TestJniClass.class);
+        String utf8 = new RustGenerator(options("stringViews", "utf8", "stringStackThreshold", "64"))
+                .render(classInfo);
+        assertTrue(utf8.contains("    fn do_nothing(name: &[u8], x: jint) -> Result<(), Self::Error>;\n"));
+        // Methods without string parameters are rendered as usual
+        assertTrue(utf8.contains("    fn get_int(env: &mut JNIEnv<'a>, this: JObject<'a>) -> Result<jint, Self::Error>;\n"));
+        assertTrue(utf8.contains(
+                "    let raw = env.get_raw();\n"
+                + "    let name_len = match string_len(raw, name) {\n"
+                + "        Some(len) => len,\n"
+                + "        None => return Default::default(),\n"
+                + "    };\n"
+                + "    let mut name_buf = [0u8; 64];\n"
+                + "    let name = match Utf8Arg::new(raw, name, name_len, &mut name_buf) {\n"
+                + "        Some(string) => string,\n"
+                + "        None => return Default::default(),\n"
+                + "    };\n"
+                + "    let result = JniTestJniClassImpl::do_nothing(&name, x);\n"
+                + "    drop(name);\n"
+                + "    wrap_error!(env, result, Default::default())\n"
+                + "}\n"));
+        assertFalse(utf8.contains("struct Utf16Arg"));
+
+        String utf16 = new RustGenerator(options("stringViews.javah4x.test.TestJniClass#doNothing", "utf16"))
+                .render(classInfo);
+        assertTrue(utf16.contains("    fn do_nothing(name: &[jchar], x: jint) -> Result<(), Self::Error>;\n"));
+        assertTrue(utf16.contains("    let name = match Utf16Arg::new(raw, name, name_len) {\n"));
+        assertFalse(utf16.contains("struct Utf8Arg"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void generateStringViewsInvalidMode() {
+        new RustGenerator(options("stringViews", "latin1")).render(new ClassInfo(TestJniClass.class));
+    }
+
+    @Test
+    public void generateBatch() {
+        ClassInfo classInfo = new ClassInfo(VariousSignatures.class);
+        Map<String, byte[]> files = new RustGenerator(options(
+                "batch.javah4x.test.VariousSignatures#hash", "true", "registerNatives", "true")).renderClass(classInfo);
+        assertEquals(Arrays.asList("javah4x_test_VariousSignatures/mod.rs",
+                                   "java/javah4x/test/VariousSignaturesBatch.java"),
+                     new ArrayList<>(files.keySet()));
+
+        String rustCode = new String(files.get("javah4x_test_VariousSignatures/mod.rs"), UTF_8);
+        assertTrue(rustCode.contains("impl BatchElement for jlong {\n"));
+        assertTrue(rustCode.contains(
+                "    _batch: JClass<'a>,\n"
+                + "    this: JObject<'a>,\n"
+                + "    value: jlongArray,\n"
+                + "    results: jlongArray,\n"
+                + "    count: jint,\n"
+                + ") -> jint {\n"
+                + "    let raw = env.get_raw();\n"
+                + "    let mut value_buf = [0 as jlong; BATCH_CHUNK];\n"
+                + "    let mut results_buf = [0 as jlong; BATCH_CHUNK];\n"
+                + "    let mut done = 0;\n"
+                + "    while done < count {\n"
+                + "        let len = (count - done).min(BATCH_CHUNK as jint) as usize;\n"
+                + "        unsafe { BatchElement::get(raw, value, done, &mut value_buf[..len]) };\n"
+                + "        let mut result = Ok(());\n"
+                + "        let mut n = 0;\n"
+                + "        while n < len {\n"
+                + "            let this = unsafe { JObject::from_raw(this.as_raw()) };\n"
+                + "            match JniVariousSignaturesImpl::hash(&mut env, this, value_buf[n]) {\n"
+                + "                Ok(ret) => results_buf[n] = ret,\n"
+                + "                Err(e) => {\n"
+                + "                    result = Err(e);\n"
+                + "                    break;\n"
+                + "                }\n"
+                + "            }\n"
+                + "            n += 1;\n"
+                + "        }\n"
+                + "        unsafe { BatchElement::set(raw, results, done, &results_buf[..n]) };\n"
+                + "        done += n as jint;\n"
+                + "        wrap_error!(env, result, return done);\n"
+                + "    }\n"
+                + "    done\n"
+                + "}\n"));
+        assertTrue(rustCode.contains(
+                "    env.register_native_methods(\"javah4x/test/VariousSignatures\", &methods)?;\n"));
+        assertTrue(rustCode.contains(
+                "            \"(Ljavah4x/test/VariousSignatures;[J[JI)I\",\n"
+                + "            Java_javah4x_test_VariousSignaturesBatch_hash__Ljavah4x_test_VariousSignatures_2_3J_3JI\n"));
+        assertTrue(rustCode.contains(
+                "    env.register_native_methods(\"javah4x/test/VariousSignaturesBatch\", &batch_methods)\n"));
+        // The trait function is shared with the regular shim
+        assertEquals(1, rustCode.split("fn hash\\(").length - 1);
+
+        String javaCode = new String(files.get("java/javah4x/test/VariousSignaturesBatch.java"), UTF_8);
+        assertTrue(javaCode.contains("    public static final class Hash {\n"));
+        assertTrue(javaCode.contains("        public boolean add(long value) {\n"));
+        assertTrue(javaCode.contains("        public long result(int index) {\n"));
+        assertTrue(javaCode.contains("    private static native int hash(javah4x.test.VariousSignatures instance, "
+                                     + "long[] value, long[] results, int count);\n"));
+        assertFalse(javaCode.contains("class Compress"));
+
+        String withoutBatch = new RustGenerator().render(classInfo);
+        assertFalse(withoutBatch.contains("BATCH_CHUNK"));
+    }
+
+    @Test
+    public void generateBatchOfReservedNames() throws IOException {
+        Map<String, byte[]> files = new RustGenerator(options("batch", "true"))
+                .renderClass(new ClassInfo(ReservedNames.class));
+        String javaCode = new String(files.get("java/javah4x/test/ReservedNamesBatch.java"), UTF_8);
+        assertTrue(javaCode.contains("        public boolean add(int count_) {\n"));
+        assertTrue(javaCode.contains(
+                "    private static native int hash(Class<?> clazz, long[] clazz_, long[] results, int count);\n"));
+        assertCompiles(files);
+    }
+
+    @Test
+    public void generateBatchStaticVoid() {
+        ClassInfo classInfo = new ClassInfo(VariousSignatures.class);
+        Map<String, byte[]> files = new RustGenerator(options("batch", "true")).renderClass(classInfo);
+        String rustCode = new String(files.get("javah4x_test_VariousSignatures/mod.rs"), UTF_8);
+        assertTrue(rustCode.contains(
+                "    clazz: JClass<'a>,\n"
+                + "    count: jint,\n"
+                + ") -> jint {\n"
+                + "    let mut done = 0;\n"));
+        assertTrue(rustCode.contains(
+                "            let clazz = unsafe { JClass::from_raw(clazz.as_raw()) };\n"
+                + "            if let Err(e) = JniVariousSignaturesImpl::no_args(&mut env, clazz) {\n"
+                + "                result = Err(e);\n"
+                + "                break;\n"
+                + "            }\n"));
+        // Only methods taking and returning primitives are batched
+        assertFalse(rustCode.contains("VariousSignaturesBatch_compress"));
+
+        String javaCode = new String(files.get("java/javah4x/test/VariousSignaturesBatch.java"), UTF_8);
+        assertTrue(javaCode.contains(
+                "            return VariousSignaturesBatch.noArgs(javah4x.test.VariousSignatures.class, count);\n"));
+        assertFalse(javaCode.contains("class Compress"));
+    }
+
+    @Test
+    public void generateAsync() {
+        ClassInfo classInfo = new ClassInfo(VariousSignatures.class);
+        Map<String, byte[]> files = new RustGenerator(options("async", "true", "registerNatives", "true",
+                                                              "asyncThreads", "4")).renderClass(classInfo);
+        assertEquals(Arrays.asList("javah4x_test_VariousSignatures/mod.rs",
+                                   "java/javah4x/test/VariousSignaturesAsync.java"),
+                     new ArrayList<>(files.keySet()));
+
+        String rustCode = new String(files.get("javah4x_test_VariousSignatures/mod.rs"), UTF_8);
+        assertTrue(rustCode.contains("fn async_threads() -> usize {\n    4\n}\n"));
+        assertTrue(rustCode.contains(
+                "    this: JObject<'a>,\n"
+                + "    value: jlong,\n"
+                + "    future: JObject<'a>,\n"
+                + ") {\n"
+                + "    let ids = wrap_error!(env, async_ids(&mut env), return);\n"
+                + "    let this = wrap_error!(env, AsyncArg::new(&mut env, this.as_raw()), return);\n"
+                + "    let future = wrap_error!(env, AsyncArg::new(&mut env, future.as_raw()), return);\n"
+                + "    let task: AsyncTask = Box::new(move |env: &mut JNIEnv| {\n"
+                + "        let this = unsafe { JObject::from_raw(this.as_raw()) };\n"
+                + "        let result = JniVariousSignaturesImpl::hash(env, this, value);\n"
+                + "        complete_future(env, ids, &future, result);\n"
+                + "    });\n"
+                + "    wrap_error!(env, submit_async(&env, task), ())\n"
+                + "}\n"));
+        assertTrue(rustCode.contains(
+                "            \"(Ljavah4x/test/VariousSignatures;JLjava/util/concurrent/CompletableFuture;)V\",\n"));
+        assertTrue(rustCode.contains(
+                "    env.register_native_methods(\"javah4x/test/VariousSignaturesAsync\", &async_methods)\n"));
+        // Direct buffers can't outlive the call, so methods taking them aren't called asynchronously
+        assertFalse(rustCode.contains("VariousSignaturesAsync_send"));
+
+        String javaCode = new String(files.get("java/javah4x/test/VariousSignaturesAsync.java"), UTF_8);
+        assertTrue(javaCode.contains(
+                "    public static CompletableFuture<Long> hash(javah4x.test.VariousSignatures instance, long value) {\n"
+                + "        CompletableFuture<Long> future = new CompletableFuture<>();\n"
+                + "        hash0(instance, value, future);\n"
+                + "        return future;\n"
+                + "    }\n"));
+        assertTrue(javaCode.contains("    public static CompletableFuture<Void> noArgs() {\n"));
+        assertFalse(javaCode.contains(" send("));
+
+        String withoutAsync = new RustGenerator().render(classInfo);
+        assertFalse(withoutAsync.contains("submit_async"));
+    }
+
+    @Test
+    public void generateAsyncOfReservedNames() throws IOException {
+        Map<String, byte[]> files = new RustGenerator(options("async", "true"))
+                .renderClass(new ClassInfo(ReservedNames.class));
+        String javaCode = new String(files.get("java/javah4x/test/ReservedNamesAsync.java"), UTF_8);
+        assertTrue(javaCode.contains(
+                "    private static native void hash0(Class<?> clazz, long clazz_, CompletableFuture<Long> future);\n"));
+        assertCompiles(files);
+    }
+
+    /**
+     * Verifies the generated code is left unchanged by rustfmt. Skipped when rustfmt isn't in PATH.
+     */
+    @Test
+    public void rustfmtStable() throws IOException {
+        try {
+            new ProcessBuilder("rustfmt", "--version").start().waitFor();
+        } catch (IOException | InterruptedException e) {
+            Assume.assumeNoException(e);
+        }
+        Path root = folder.getRoot().toPath();
+        List<ClassInfo> classInfos = Arrays.asList(new ClassInfo(TestJniClass.class),
+                                                   new ClassInfo(With_Underscore.class),
+                                                   new ClassInfo(VariousSignatures.class),
+                                                   new ClassInfo(Callbacks.class),
+                                                   new ClassInfo(Handles.class));
+        for (GeneratorOptions options : Arrays.asList(options("rustfmtCheck", "true"),
+                                                      options("rustfmtCheck", "true", "registerNatives", "true"),
+                                                      options("rustfmtCheck", "true", "arraySlices", "true",
+                                                              "arrayMut", "output"),
+                                                      options("rustfmtCheck", "true", "registry", "true",
+                                                              "registerNatives", "true"),
+                                                      options("rustfmtCheck", "true", "metrics", "true",
+                                                              "arraySlices", "true"),
+                                                      options("rustfmtCheck", "true", "localFrames", "true",
+                                                              "metrics", "true"),
+                                                      options("rustfmtCheck", "true", "registerNatives", "true",
+                                                              "exceptions", "java.lang.IllegalStateException"),
+                                                      options("rustfmtCheck", "true", "stringViews", "utf8",
+                                                              "arraySlices", "true", "metrics", "true"),
+                                                      options("rustfmtCheck", "true", "stringViews", "utf16",
+                                                              "directBuffers", "true", "bufferMut", "buffer"),
+                                                      options("rustfmtCheck", "true", "batch", "true",
+                                                              "registerNatives", "true", "metrics", "true"),
+                                                      options("rustfmtCheck", "true", "aggregate", "true",
+                                                              "registerNatives", "true", "arraySlices", "true",
+                                                              "stringViews", "utf8", "registry", "true"),
+                                                      options("rustfmtCheck", "true", "shards", "2",
+                                                              "registerNatives", "true", "batch", "true"),
+                                                      options("rustfmtCheck", "true", "handle", "nativeHandle",
+                                                              "handleMut", "true", "registerNatives", "true",
+                                                              "metrics", "true"),
+                                                      options("rustfmtCheck", "true", "handle", "nativeHandle",
+                                                              "handleCleaner", "true"),
+                                                      options("rustfmtCheck", "true", "attach", "true",
+                                                              "registry", "true", "registerNatives", "true",
+                                                              "async", "true"),
+                                                      options("rustfmtCheck", "true", "async", "true",
+                                                              "registerNatives", "true", "localFrames", "true"))) {
+            RustGenerator generator = new RustGenerator(options);
+            for (ClassInfo classInfo : classInfos) {
+                generator.generateClass(root, classInfo);
+            }
+            generator.finish(root, classInfos);
+        }
     }
 }
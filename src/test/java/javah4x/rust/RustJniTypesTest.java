@@ -13,6 +13,8 @@ public class RustJniTypesTest {
         assertEquals("JObject<'a>", RustJniTypes.rustJniParamType(JniType.OBJECT, false));
         assertEquals("JNIEnv<'a>", RustJniTypes.rustJniParamType(JniType.JNI_ENV, false));
         assertEquals("&mut JNIEnv<'a>", RustJniTypes.rustJniParamType(JniType.JNI_ENV, true));
+        assertEquals("JByteBuffer<'a>", RustJniTypes.rustJniParamType(JniType.DIRECT_BUFFER, false));
+        assertEquals("&[u8]", RustJniTypes.rustJniParamType(JniType.DIRECT_BUFFER, true));
     }
 
     @Test
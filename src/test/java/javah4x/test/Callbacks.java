@@ -0,0 +1,31 @@
+package javah4x.test;
+
+import java.util.function.IntSupplier;
+
+public class Callbacks {
+    public static Callbacks instance;
+
+    private int count;
+
+    public Callbacks(int count) {
+        this.count = count;
+    }
+
+    public native void start(int events);
+
+    public void onData(byte[] data, int length) {
+        count++;
+    }
+
+    public boolean isRunning() {
+        return count > 0;
+    }
+
+    private static String describe(Callbacks callbacks) {
+        return String.valueOf(callbacks.count);
+    }
+
+    public IntSupplier counter() {
+        return () -> count;
+    }
+}
@@ -0,0 +1,13 @@
+package javah4x.test;
+
+public class Handles {
+    private long nativeHandle;
+
+    public native int size();
+
+    public native void resize(int size);
+
+    public native void attach(long nativeHandle);
+
+    public static native Handles open(String path);
+}
@@ -0,0 +1,7 @@
+package javah4x.test;
+
+public class ReservedNames {
+    public static native long alloc(int count);
+
+    public static native long hash(long clazz);
+}
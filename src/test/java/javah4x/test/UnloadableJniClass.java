@@ -0,0 +1,9 @@
+package javah4x.test;
+
+public class UnloadableJniClass {
+    static {
+        System.loadLibrary("javah4x_nonexistent");
+    }
+
+    public static native long hash(long value);
+}
@@ -0,0 +1,13 @@
+package javah4x.test;
+
+public class VariousSignatures {
+    public static native void noArgs();
+
+    public native int compress(byte[] input, int inputOffset, int inputLength, byte[] output, int outputOffset);
+
+    public static native String[][] matrix(Object[] elements, int rows, int columns, boolean transpose);
+
+    private native long hash(long value);
+
+    public native int send(java.nio.ByteBuffer buffer, int flags);
+}